@@ -97,6 +97,58 @@ public final class SmartSocketsProperties {
      */
     public static final String ACCEPT_TIMEOUT = PREFIX + "timeout.accept";
 
+    /**
+     * Maximum number of threads used to run connection attempts started with
+     * createClientSocketAsync. (8)
+     * @see ibis.smartsockets.virtual.VirtualSocketFactory
+     */
+    public static final String CONNECT_ASYNC_THREADS = PREFIX + "async.threads";
+
+    /**
+     * Should concurrent connection setups to the same machine share the
+     * search for a working module ? If true, only one caller at a time tries
+     * the modules in order. Callers that arrive while it is busy wait for it
+     * (for at most half of their timeout), and then start with the module
+     * that worked. If it failed, one of them continues the search. (false)
+     * @see ibis.smartsockets.virtual.VirtualSocketFactory
+     */
+    public static final String CONNECT_COALESCE = PREFIX + "connect.coalesce";
+
+    /**
+     * Maximum number of target machines for which the VirtualSocketFactory
+     * remembers the module (and address) that worked last time. (1024)
+     * @see ibis.smartsockets.virtual.VirtualClusters
+     */
+    public static final String ROUTE_CACHE_SIZE = PREFIX + "routes.size";
+
+    /**
+     * Time in milliseconds after which a remembered module is no longer
+     * trusted. (3600000)
+     * @see ibis.smartsockets.virtual.VirtualClusters
+     */
+    public static final String ROUTE_CACHE_TTL = PREFIX + "routes.ttl";
+
+    /**
+     * File in which the remembered modules and addresses are stored, so they
+     * can be reused after a restart. Not stored if unset.
+     * @see ibis.smartsockets.virtual.VirtualClusters
+     */
+    public static final String ROUTE_CACHE_FILE = PREFIX + "routes.file";
+
+    /**
+     * Maximum number of pooled connections kept open to a single target
+     * by the VirtualSocketPool. (8)
+     * @see ibis.smartsockets.virtual.VirtualSocketPool
+     */
+    public static final String POOL_MAX = PREFIX + "pool.max";
+
+    /**
+     * Time in milliseconds after which an unused pooled connection is
+     * closed. (30000)
+     * @see ibis.smartsockets.virtual.VirtualSocketPool
+     */
+    public static final String POOL_IDLE = PREFIX + "pool.idle";
+
     /** Prefix for all SmartSockets "external" properties. */
     public static final String EXTERNAL_PREFIX = PREFIX + "external.";
 
@@ -134,6 +186,34 @@ public final class SmartSocketsProperties {
      */
     public static final String EXTERNAL_MANUAL = EXTERNAL_PREFIX + "manual";
 
+    /**
+     * Time in milliseconds that the DirectSocketFactory waits for the
+     * discovery of the external address (using STUN or uPnP) when it is
+     * created. Discovery continues in the background when this time has
+     * passed, and the address is added once it is found. A
+     * VirtualSocketFactory then registers its new address at its hubs, which
+     * closes its hub routed connections. (0)
+     * @see ibis.smartsockets.direct.DirectSocketFactory
+     */
+    public static final String EXTERNAL_WAIT = EXTERNAL_PREFIX + "wait";
+
+    /**
+     * File in which the discovered external address is stored, so it can be
+     * used right away after a restart on the same machine. Not stored if
+     * unset.
+     * @see ibis.smartsockets.direct.DirectSocketFactory
+     */
+    public static final String EXTERNAL_CACHE_FILE =
+            EXTERNAL_PREFIX + "cache.file";
+
+    /**
+     * Time in milliseconds after which a stored external address is
+     * discovered again. (3600000)
+     * @see ibis.smartsockets.direct.DirectSocketFactory
+     */
+    public static final String EXTERNAL_CACHE_TTL =
+            EXTERNAL_PREFIX + "cache.ttl";
+
     /** Prefix for all SmartSockets "discovery" properties. */
     public static final String DISCOVERY_PREFIX    = PREFIX + "discovery.";
 
@@ -171,6 +251,33 @@ public final class SmartSocketsProperties {
      */
     public static final String DISCOVERY_TIMEOUT = DISCOVERY_PREFIX + "timeout";
 
+    /** Prefix for all SmartSockets "naming" properties. */
+    public static final String NAMING_PREFIX = PREFIX + "naming.";
+
+    /**
+     * Time in milliseconds for which the NameResolver uses a name learned
+     * from another process. A name that is used during the last quarter of
+     * this time is refreshed in the background. (300000)
+     * @see ibis.smartsockets.naming.NameResolver
+     */
+    public static final String NAMING_TTL = NAMING_PREFIX + "ttl";
+
+    /**
+     * Time in milliseconds after which the NameResolver gives up on a query
+     * that was not answered. (2000)
+     * @see ibis.smartsockets.naming.NameResolver
+     */
+    public static final String NAMING_QUERY_TIMEOUT =
+            NAMING_PREFIX + "query.timeout";
+
+    /**
+     * Time in milliseconds during which the NameResolver does not query for a
+     * name again after a query for it was not answered. (5000)
+     * @see ibis.smartsockets.naming.NameResolver
+     */
+    public static final String NAMING_NEGATIVE_TTL =
+            NAMING_PREFIX + "negative.ttl";
+
     /** Prefix for all SmartSockets "hub" properties. */
     public static final String HUB_PREFIX = PREFIX + "hub.";
 
@@ -181,6 +288,21 @@ public final class SmartSocketsProperties {
      */
     public static final String HUB_ADDRESSES = HUB_PREFIX + "addresses";
 
+    /**
+     * File in which the VirtualSocketFactory stores the hubs it was connected
+     * to, so a restarted process can try them right away (in parallel with
+     * the configured hubs and hub discovery). Not stored if unset.
+     * @see ibis.smartsockets.virtual.VirtualSocketFactory
+     */
+    public static final String HUB_CACHE_FILE = HUB_PREFIX + "cache.file";
+
+    /**
+     * Time in milliseconds after which stored hubs are no longer used.
+     * (86400000)
+     * @see ibis.smartsockets.virtual.VirtualSocketFactory
+     */
+    public static final String HUB_CACHE_TTL = HUB_PREFIX + "cache.ttl";
+
     /**
      * Name for the hub. Used in visualization. (hostname)
      * @see ibis.smartsockets.hub.Hub
@@ -264,6 +386,16 @@ public final class SmartSocketsProperties {
      */
     public static final String HUB_ADDRESS_FILE = HUB_PREFIX + "addressfile";
 
+    /**
+     * Should the hub tell clients from which UDP address and port their
+     * packets arrive ? The hub answers on the UDP port with the same number
+     * as its own port. The udp module needs this to get through a NAT, so
+     * enable it on the hubs when the udp module is used. (false)
+     * @see ibis.smartsockets.hub.Hub
+     * @see ibis.smartsockets.virtual.modules.udp
+     */
+    public static final String HUB_UDP_REFLECTOR = HUB_PREFIX + "udp.reflector";
+
     /** Prefix for all SmartSockets "sl" (service link) properties. */
     public static final String SL_PREFIX         = PREFIX + "servicelink.";
 
@@ -298,6 +430,61 @@ public final class SmartSocketsProperties {
      */
     public static final String SL_RETRIES = SL_PREFIX + "retries";
 
+    /**
+     * Interval at which the servicelink sends a heartbeat to the hub (in
+     * milliseconds). Requires a hub that understands heartbeats.
+     * (0 = no heartbeats)
+     * @see ibis.smartsockets.hub.servicelink.ServiceLink
+     */
+    public static final String SL_HEARTBEAT_INTERVAL =
+            SL_PREFIX + "heartbeat.interval";
+
+    /**
+     * Time without any traffic from the hub after which the servicelink
+     * considers the hub dead and fails over to another hub (in
+     * milliseconds). Hub routed connections through the dead hub are closed,
+     * they are not resumed on the new hub. (3 * heartbeat interval)
+     * @see ibis.smartsockets.hub.servicelink.ServiceLink
+     */
+    public static final String SL_HEARTBEAT_TIMEOUT =
+            SL_PREFIX + "heartbeat.timeout";
+
+    /**
+     * Should the servicelink keep track of a live standby hub to fail over
+     * to when the current hub dies ? The standby hub is probed periodically,
+     * but not kept connected, so a failover still sets up a new connection.
+     * (false)
+     * @see ibis.smartsockets.hub.servicelink.ServiceLink
+     */
+    public static final String SL_STANDBY = SL_PREFIX + "standby";
+
+    /**
+     * Should the VirtualSocketFactory be created without waiting for the
+     * servicelink to connect to the hub ? Modules that do not need the
+     * servicelink can then be used right away. The other modules are used
+     * once the servicelink is connected, and the hub is added to the local
+     * addresses at that time. (false)
+     * @see ibis.smartsockets.virtual.VirtualSocketFactory
+     */
+    public static final String SL_LAZY = SL_PREFIX + "lazy";
+
+    /**
+     * Comma separated list of additional hub addresses. The client registers
+     * at each of these hubs in addition to its primary hub, and routes virtual
+     * connections through the hub closest to the target.
+     * @see ibis.smartsockets.virtual.VirtualSocketFactory
+     * @see ibis.smartsockets.virtual.modules.hubrouted.Hubrouted
+     */
+    public static final String SL_ADDITIONAL_HUBS = SL_PREFIX + "additional";
+
+    /**
+     * Interval at which the hub graph used to pick the nearest hub is
+     * refreshed (in milliseconds). (30000)
+     * @see ibis.smartsockets.virtual.modules.hubrouted.Hubrouted
+     */
+    public static final String SL_HUB_GRAPH_REFRESH =
+            SL_PREFIX + "hubgraph.refresh";
+
     /** Prefix for all SmartSockets "viz" (visualization) properties. */
     public static final String VIZ_PREFIX           = PREFIX + "viz.";
 
@@ -331,6 +518,14 @@ public final class SmartSocketsProperties {
      */
     public static final String MODULES_SKIP = MODULES_PREFIX + "skip";
 
+    /**
+     * Should the VirtualSocketFactory initialize the modules concurrently,
+     * each in a separate thread ? The direct module is always initialized
+     * first. (false)
+     * @see ibis.smartsockets.virtual.VirtualSocketFactory
+     */
+    public static final String MODULES_PARALLEL = MODULES_PREFIX + "parallel";
+
     /**
      * Prefix for all SmartSockets "modules.direct" properties.
      * @see ibis.smartsockets.direct.DirectSocketFactory
@@ -432,6 +627,22 @@ public final class SmartSocketsProperties {
      */
     public static final String SSH_PASSPHRASE = SSH_PREFIX + "passphrase";
 
+    /**
+     * Time in milliseconds after which an SSH session without forwarded
+     * connections is closed. Until then, it is reused for new connections to
+     * the same host. A value of 0 disables reuse. (60000)
+     * @see ibis.smartsockets.direct.DirectSocketFactory
+     */
+    public static final String SSH_SESSION_IDLE = SSH_PREFIX + "session.idle";
+
+    /**
+     * Maximum number of connections forwarded over a single SSH session. If
+     * all sessions to a host are full, a new session is opened. (64)
+     * @see ibis.smartsockets.direct.DirectSocketFactory
+     */
+    public static final String SSH_SESSION_CHANNELS =
+            SSH_PREFIX + "session.channels";
+
     /**
      * Prefix for all SmartSockets "modules.reverse" properties.
      * @see ibis.smartsockets.direct.DirectSocketFactory
@@ -472,6 +683,134 @@ public final class SmartSocketsProperties {
      */
     public static final String ROUTED_MIN_ACK = ROUTED_PREFIX + "size.ack";
 
+    /**
+     * Should acknowledgements of virtual (hubrouted) connections be
+     * piggybacked on data flowing in the opposite direction ? Requires all
+     * hubs to support this. (false)
+     * @see ibis.smartsockets.virtual.modules.hubrouted
+     */
+    public static final String ROUTED_PIGGYBACK = ROUTED_PREFIX + "ack.piggyback";
+
+    /**
+     * Time a pending acknowledgement of a virtual (hubrouted) connection may
+     * wait for data in the opposite direction to piggyback on, before it is
+     * sent separately (in milliseconds). Only used when piggybacking is
+     * enabled. (10)
+     * @see ibis.smartsockets.virtual.modules.hubrouted
+     */
+    public static final String ROUTED_ACK_DELAY = ROUTED_PREFIX + "ack.delay";
+
+    /**
+     * Prefix for all SmartSockets "modules.mux" properties.
+     * @see ibis.smartsockets.virtual.modules.mux
+     */
+    public static final String MUX_PREFIX = MODULES_PREFIX + "mux.";
+
+    /**
+     * Time after which an unused multiplexed carrier connection is closed
+     * (in milliseconds). (60000)
+     * @see ibis.smartsockets.virtual.modules.mux
+     */
+    public static final String MUX_IDLE = MUX_PREFIX + "idle";
+
+    /**
+     * Prefix for all SmartSockets "modules.shm" properties.
+     * @see ibis.smartsockets.virtual.modules.shm
+     */
+    public static final String SHM_PREFIX = MODULES_PREFIX + "shm.";
+
+    /**
+     * Directory in which the shared memory files of same-machine connections
+     * are created. Must be the same for both processes. (/dev/shm if it
+     * exists, otherwise java.io.tmpdir)
+     * @see ibis.smartsockets.virtual.modules.shm
+     */
+    public static final String SHM_DIR = SHM_PREFIX + "dir";
+
+    /**
+     * Size of the shared memory buffer of a same-machine connection, per
+     * direction (in bytes). (1048576)
+     * @see ibis.smartsockets.virtual.modules.shm
+     */
+    public static final String SHM_SIZE = SHM_PREFIX + "size";
+
+    /**
+     * Prefix for all SmartSockets "modules.unix" properties.
+     * @see ibis.smartsockets.virtual.modules.unix
+     */
+    public static final String UNIX_PREFIX = MODULES_PREFIX + "unix.";
+
+    /**
+     * Directory in which the Unix domain sockets are created. Must be the
+     * same for both processes. (java.io.tmpdir)
+     * @see ibis.smartsockets.virtual.modules.unix
+     */
+    public static final String UNIX_DIR = UNIX_PREFIX + "dir";
+
+    /**
+     * Implementation of Unix domain sockets to use. Allowed values are auto,
+     * jdk (Java 16 and up) and juds. (auto)
+     * @see ibis.smartsockets.virtual.modules.unix
+     */
+    public static final String UNIX_IMPLEMENTATION =
+        UNIX_PREFIX + "implementation";
+
+    /**
+     * Size of the send and receive buffers of a Unix domain socket (in
+     * bytes). The default buffers of most systems are too small for bulk
+     * transfers. Ignored by juds. (262144)
+     * @see ibis.smartsockets.virtual.modules.unix
+     */
+    public static final String UNIX_BUFFER = UNIX_PREFIX + "buffer";
+
+    /**
+     * Prefix for all SmartSockets "modules.loopback" properties.
+     * @see ibis.smartsockets.virtual.modules.loopback
+     */
+    public static final String LOOPBACK_PREFIX = MODULES_PREFIX + "loopback.";
+
+    /**
+     * Size of the in-memory buffer of a connection within the same JVM, per
+     * direction (in bytes). (65536)
+     * @see ibis.smartsockets.virtual.modules.loopback
+     */
+    public static final String LOOPBACK_SIZE = LOOPBACK_PREFIX + "size";
+
+    /**
+     * Prefix for all SmartSockets "udp" module properties.
+     * @see ibis.smartsockets.virtual.modules.udp
+     */
+    public static final String UDP_PREFIX = MODULES_PREFIX + "udp.";
+
+    /**
+     * Local UDP port used for all connections of this module, 0 picks any
+     * free port. (0)
+     * @see ibis.smartsockets.virtual.modules.udp
+     */
+    public static final String UDP_PORT = UDP_PREFIX + "port";
+
+    /**
+     * Maximum size of a UDP packet, including the protocol header (in
+     * bytes). Larger packets are more efficient, but may be fragmented or
+     * dropped on the way. (1400)
+     * @see ibis.smartsockets.virtual.modules.udp
+     */
+    public static final String UDP_PACKET_SIZE = UDP_PREFIX + "packet.size";
+
+    /**
+     * Maximum number of unacknowledged packets per connection and direction,
+     * which also limits the receive buffer of a connection. (1024)
+     * @see ibis.smartsockets.virtual.modules.udp
+     */
+    public static final String UDP_WINDOW = UDP_PREFIX + "window";
+
+    /**
+     * Address (host:port) of a NAT emulator through which all UDP packets
+     * are sent. Only used for testing.
+     * @see ibis.smartsockets.virtual.modules.udp
+     */
+    public static final String UDP_GATEWAY = UDP_PREFIX + "gateway";
+
     /**
      * Prefix for all SmartSockets "networks" properties.
      * @see ibis.smartsockets.direct.NetworkPreference
@@ -488,6 +827,15 @@ public final class SmartSocketsProperties {
      */
     public static final String NETWORKS_DEFAULT = NETWORKS_PREFIX + "default";
 
+    /**
+     * On Linux, read the netmask, broadcast and MAC address of the network
+     * interfaces directly from /proc and /sys, instead of running ifconfig.
+     * (true)
+     * @see ibis.smartsockets.util.net.NativeNetworkConfig
+     */
+    public static final String NETWORKINFO_NATIVE =
+            NETWORKS_PREFIX + "info.native";
+
     /**
      * Comma separated list of unique network names.
      *
@@ -612,6 +960,21 @@ public final class SmartSocketsProperties {
      */
     public static final String CLUSTER_REORDER = CLUSTER_PREFIX + "reorder";
 
+    /**
+     * Order the modules by their expected connection setup time to each
+     * cluster, as observed so far, instead of putting the module that
+     * succeeded last in front. (false)
+     * @see ibis.smartsockets.virtual.VirtualClusters
+     */
+    public static final String CLUSTER_ADAPTIVE = CLUSTER_PREFIX + "adaptive";
+
+    /**
+     * Percentage of connection setups in which the adaptive ordering tries
+     * a random module first, to find out if it has become faster. (5)
+     * @see ibis.smartsockets.virtual.VirtualClusters
+     */
+    public static final String CLUSTER_EXPLORE = CLUSTER_PREFIX + "explore";
+
     // NOTE: These properties require a prefix which can only be determined at
     // runtime.
 
@@ -656,6 +1019,14 @@ public final class SmartSocketsProperties {
             DIRECT_BACKLOG,         "255",
             BACKLOG,                "50",
             ACCEPT_TIMEOUT,         "60000",
+            CONNECT_ASYNC_THREADS,  "8",
+            CONNECT_COALESCE,       "false",
+            ROUTE_CACHE_SIZE,       "1024",
+            ROUTE_CACHE_TTL,        "3600000",
+            CLUSTER_ADAPTIVE,       "false",
+            CLUSTER_EXPLORE,        "5",
+            POOL_MAX,               "8",
+            POOL_IDLE,              "30000",
             DIRECT_LOCAL_TIMEOUT,   "1000",
 
             STATISTICS_PRINT,       "false",
@@ -663,6 +1034,8 @@ public final class SmartSocketsProperties {
 
             SSH_OUT,                "false",
             SSH_IN,                 "false",
+            SSH_SESSION_IDLE,       "60000",
+            SSH_SESSION_CHANNELS,   "64",
 
             NIO,                    "false",
             DIRECT_SEND_BUFFER,     "-1",
@@ -672,8 +1045,11 @@ public final class SmartSocketsProperties {
             STUN,                   "false",
             UPNP,                   "false",
             UPNP_PORT_FORWARDING,   "false",
+            EXTERNAL_WAIT,          "0",
+            EXTERNAL_CACHE_TTL,     "3600000",
 
             NETWORKS_DEFAULT,       "auto",
+            NETWORKINFO_NATIVE,     "true",
 
             HUB_PORT,               "17878",
             HUB_SEND_BUFFER,        "-1",
@@ -681,24 +1057,50 @@ public final class SmartSocketsProperties {
             HUB_STATISTICS,         "false",
             HUB_STATS_INTERVAL,     "60000",
             HUB_VIRTUAL_PORT,       "42",
+            HUB_UDP_REFLECTOR,      "false",
+            HUB_CACHE_TTL,          "86400000",
 
             MODULES_DEFINE,         "direct,reverse,hubrouted",
             MODULES_ORDER,          "direct,reverse,hubrouted",
+            MODULES_PARALLEL,       "false",
 
             DISCOVERY_ALLOWED,      "false",
             DISCOVERY_PREFERRED,    "false",
             DISCOVERY_PORT,         "24545",
             DISCOVERY_TIMEOUT,      "5000",
 
+            NAMING_TTL,             "300000",
+            NAMING_QUERY_TIMEOUT,   "2000",
+            NAMING_NEGATIVE_TTL,    "5000",
+
             SL_SEND_BUFFER,         "-1",
             SL_RECEIVE_BUFFER,      "-1",
 
             SL_FORCE,               "false",
             SL_TIMEOUT,             "10000",
             SL_RETRIES,             "6",
+            SL_HEARTBEAT_INTERVAL,  "0",
+            SL_STANDBY,             "false",
+            SL_LAZY,                "false",
+            SL_HUB_GRAPH_REFRESH,   "30000",
 
             ROUTED_BUFFER,          "65536",
-            ROUTED_FRAGMENT,        "8176"
+            ROUTED_FRAGMENT,        "8176",
+            ROUTED_PIGGYBACK,       "false",
+            ROUTED_ACK_DELAY,       "10",
+
+            MUX_IDLE,               "60000",
+
+            SHM_SIZE,               "1048576",
+
+            UNIX_IMPLEMENTATION,    "auto",
+            UNIX_BUFFER,            "262144",
+
+            LOOPBACK_SIZE,          "65536",
+
+            UDP_PORT,               "0",
+            UDP_PACKET_SIZE,        "1400",
+            UDP_WINDOW,             "1024"
     };
 
     /**
@@ -13,19 +13,42 @@ import com.trilead.ssh2.LocalStreamForwarder;
 public class DirectSSHSocket extends DirectSocket {
 
     private final LocalStreamForwarder lsf;
+    private final SSHSessionCache.Session session;
     private boolean closed = false;
 
     public DirectSSHSocket(DirectSocketAddress local, DirectSocketAddress remote,
             InputStream in, OutputStream out, LocalStreamForwarder lsf) {
+        this(local, remote, in, out, lsf, null);
+    }
+
+    DirectSSHSocket(DirectSocketAddress local, DirectSocketAddress remote,
+            InputStream in, OutputStream out, LocalStreamForwarder lsf,
+            SSHSessionCache.Session session) {
 
         super(local, remote, in, out);
 
         this.lsf = lsf;
+        this.session = session;
     }
 
     public void close() throws IOException {
-        lsf.close();
-        closed = true;
+
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+
+            closed = true;
+        }
+
+        try {
+            lsf.close();
+        } finally {
+            // The SSH session may be reused by other connections.
+            if (session != null) {
+                session.release();
+            }
+        }
     }
 
     @Override
@@ -71,7 +94,7 @@ public class DirectSSHSocket extends DirectSocket {
     }
 
     @Override
-    public boolean isClosed() {
+    public synchronized boolean isClosed() {
         return closed;
     }
 
@@ -65,7 +65,7 @@ public class DirectServerSocket {
      * Note that the IP's in the external addresses are not bound to a local
      * network.
      */
-    private DirectSocketAddress external;
+    private volatile DirectSocketAddress external;
 
     /**
      * The network preferences that this server socket should take into account.
@@ -111,7 +111,8 @@ public class DirectServerSocket {
      *
      * @param address the external address to add.
      */
-    protected void addExternalAddress(DirectSocketAddress address) {
+    protected synchronized void addExternalAddress(
+            DirectSocketAddress address) {
         // TODO: some checks on the address to see if it makes sence ?
 
         // Create array if it doesn't exist yet.
@@ -310,6 +311,10 @@ public class DirectServerSocket {
         }
     }
 
+    int getLocalPort() {
+        return serverSocket.getLocalPort();
+    }
+
     public DirectSocketAddress getLocalAddressSet() {
         return local;
     }
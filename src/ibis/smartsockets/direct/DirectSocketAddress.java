@@ -1019,6 +1019,29 @@ public class DirectSocketAddress extends SocketAddress
                 other.UUID, user);
     }
 
+    /**
+     * Creates a DirectSocketAddress that only contains external addresses,
+     * all using the same port. The result can be merged with an existing
+     * address.
+     *
+     * @param external the external addresses.
+     * @param port the port.
+     * @param user the user name to use for SSH tunneling (may be null).
+     * @return a new DirectSocketAddress.
+     */
+    static DirectSocketAddress getByExternalAddress(IPAddressSet external,
+            int port, String user) {
+
+        InetSocketAddress[] extern =
+            new InetSocketAddress[external.addresses.length];
+
+        for (int i = 0; i < external.addresses.length; i++) {
+            extern[i] = new InetSocketAddress(external.addresses[i], port);
+        }
+
+        return new DirectSocketAddress(extern, null, null, null, user);
+    }
+
     private static InetSocketAddress[] resize(InetSocketAddress[] orig, int add) {
 
         InetSocketAddress[] result;
@@ -4,6 +4,7 @@ import ibis.smartsockets.SmartSocketsProperties;
 import ibis.smartsockets.util.InetAddressCache;
 import ibis.smartsockets.util.NetworkUtils;
 import ibis.smartsockets.util.STUN;
+import ibis.smartsockets.util.ThreadPool;
 import ibis.smartsockets.util.TypedProperties;
 import ibis.smartsockets.util.UPNP;
 
@@ -24,16 +25,15 @@ import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.Map;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-//import ch.ethz.ssh2.Connection;
 //import ch.ethz.ssh2.LocalStreamForwarder;
 
-import com.trilead.ssh2.Connection;
 import com.trilead.ssh2.LocalStreamForwarder;
 
 /**
@@ -87,33 +87,67 @@ public class DirectSocketFactory {
 
     private final char[][] privateKeys;
 
-    private final boolean haveFirewallRules;
+    // Authenticated SSH sessions that can be reused for new connections.
+    private final SSHSessionCache sshSessions;
+
+    // The fields below may be updated when the discovery of the external
+    // address finishes in the background.
+    private volatile boolean haveFirewallRules;
 
     private IPAddressSet localAddress;
 
-    private IPAddressSet externalAddress;
+    private volatile IPAddressSet externalAddress;
 
-    private IPAddressSet completeAddress;
+    private volatile IPAddressSet completeAddress;
 
     // private byte [] completeAddressInBytes;
-    private byte[] altCompleteAddressInBytes;
+    private volatile byte[] altCompleteAddressInBytes;
 
     // private byte [] networkNameInBytes;
 
-    private InetAddress externalNATAddress;
+    private volatile InetAddress externalNATAddress;
 
     private boolean haveOnlyLocalAddresses = false;
 
-    private String myNATAddress;
+    private volatile String myNATAddress;
 
     private PortRange portRange;
 
-    private NetworkPreference preference;
+    private volatile NetworkPreference preference;
+
+    // Set when the discovery of the external and NAT address has finished.
+    private boolean discoveryDone = false;
+
+    // Server sockets created before the discovery finished. They get the
+    // external address when it is found.
+    private LinkedList<DirectServerSocket> undiscovered =
+        new LinkedList<DirectServerSocket>();
+
+    // Invoked when the discovery has finished.
+    private LinkedList<DiscoveryCallBack> discoveryCallBacks =
+        new LinkedList<DiscoveryCallBack>();
 
     private Preference publicFirst;
 
     private String keyFilePass = "";
 
+    private static final int MAX_PREFERRED_ADDRESSES = 1024;
+
+    // The address that was last used successfully to connect to a target
+    // machine. This one is tried first in the next connection setup.
+    private final LinkedHashMap<DirectSocketAddress, InetSocketAddress>
+        preferredAddresses =
+            new LinkedHashMap<DirectSocketAddress, InetSocketAddress>(16,
+                    0.75f, true) {
+
+        private static final long serialVersionUID = 1L;
+
+        protected boolean removeEldestEntry(
+                Map.Entry<DirectSocketAddress, InetSocketAddress> eldest) {
+            return size() > MAX_PREFERRED_ADDRESSES;
+        }
+    };
+
     private DirectSocketFactory(TypedProperties p) {
 
         // properties = p;
@@ -191,6 +225,16 @@ public class DirectSocketFactory {
 
         ALLOW_SSH_OUT = (privateKeys != null && !(privateKeys.length == 0));
 
+        if (ALLOW_SSH_OUT) {
+            sshSessions = new SSHSessionCache(privateKeys, keyFilePass,
+                    p.getIntProperty(SmartSocketsProperties.SSH_SESSION_IDLE,
+                            60000),
+                    p.getIntProperty(
+                            SmartSocketsProperties.SSH_SESSION_CHANNELS, 64));
+        } else {
+            sshSessions = null;
+        }
+
         ALLOW_UPNP = p.booleanProperty(SmartSocketsProperties.UPNP, false);
 
         if (!ALLOW_UPNP) {
@@ -211,6 +255,9 @@ public class DirectSocketFactory {
         boolean cacheIPaddress = p.booleanProperty(SmartSocketsProperties.DIRECT_CACHE_IP, true);
            localAddress = IPAddressSet.getLocalHost(cacheIPaddress);
 
+        // Identifies this machine in the stored discovery results.
+        String machine = localAddress.toString();
+
         if (!localAddress.containsPublicAddress()) {
             haveOnlyLocalAddresses = true;
 
@@ -218,46 +265,238 @@ public class DirectSocketFactory {
 
             localAddress = IPAddressSet.merge(localAddress, uuid);
 
-            getExternalAddress(p);
-
-            if (externalNATAddress != null) {
+            externalNATAddress = getExternalAddressProperty(p);
 
-                // FIXME!! This is wrong! The IPAddressSet has no clue about the
-                // difference between a public local and external address! So
-                // the value of completeAddress is bs!
-
-                completeAddress = IPAddressSet.merge(localAddress,
-                        externalNATAddress);
-            } else {
-                completeAddress = localAddress;
+            if (logger.isDebugEnabled()) {
+                logger.debug("SmartSocketsProperties lookup result: "
+                        + externalNATAddress);
             }
-        } else {
-            completeAddress = localAddress;
         }
 
         portRange = new PortRange(p);
 
-        preference = NetworkPreference.getPreference(completeAddress, p);
-        preference.sort(completeAddress.getAddresses(), true);
-
         publicFirst = new Preference("PublicBeforePrivate", false);
         publicFirst.addGlobal();
         publicFirst.addSite();
         publicFirst.addLink();
 
+        // Finding the external address (using STUN or UPNP) and the NAT
+        // address (using UPNP) may take seconds. Use the result of an earlier
+        // run if we have one, and do it in the background otherwise.
+        boolean discover = ALLOW_UPNP || (haveOnlyLocalAddresses
+                && externalNATAddress == null
+                && p.booleanProperty(SmartSocketsProperties.STUN, false));
+
+        ExternalAddressCache cache = null;
+
+        if (discover) {
+            cache = new ExternalAddressCache(
+                    p.getProperty(SmartSocketsProperties.EXTERNAL_CACHE_FILE),
+                    p.getLongProperty(SmartSocketsProperties.EXTERNAL_CACHE_TTL,
+                            3600000L));
+
+            ExternalAddressCache.Entry e = cache.load(machine);
+
+            if (e != null) {
+                if (logger.isInfoEnabled()) {
+                    logger.info("Using stored external address "
+                            + e.external + " and NAT address " + e.nat);
+                }
+
+                if (haveOnlyLocalAddresses && externalNATAddress == null) {
+                    externalNATAddress = e.external;
+                }
+
+                myNATAddress = e.nat;
+                discover = false;
+            }
+        }
+
+        updateAddresses(p);
+
+        if (discover) {
+            startDiscovery(p, cache, machine);
+        } else {
+            discoveryDone = true;
+            undiscovered = null;
+            discoveryCallBacks = null;
+        }
+    }
+
+    // (Re)computes all addresses derived from the local and external address.
+    private void updateAddresses(TypedProperties p) {
+
+        if (externalNATAddress != null) {
+
+            externalAddress = IPAddressSet.getFromAddress(externalNATAddress);
+
+            // FIXME!! This is wrong! The IPAddressSet has no clue about the
+            // difference between a public local and external address! So
+            // the value of completeAddress is bs!
+
+            completeAddress = IPAddressSet.merge(localAddress,
+                    externalNATAddress);
+        } else {
+            completeAddress = localAddress;
+        }
+
+        NetworkPreference pref = NetworkPreference.getPreference(
+                completeAddress, p);
+        pref.sort(completeAddress.getAddresses(), true);
+
         if (logger.isInfoEnabled()) {
             logger.info("Local address: " + completeAddress);
-            logger.info("Local network: " + preference.getNetworkName());
+            logger.info("Local network: " + pref.getNetworkName());
         }
 
         DirectSocketAddress tmp = DirectSocketAddress.getByAddress(
                 externalAddress, 1, localAddress, 1, user);
 
-        altCompleteAddressInBytes = toBytes(5, tmp, preference.getNetworkName());
+        altCompleteAddressInBytes = toBytes(5, tmp, pref.getNetworkName());
 
-        haveFirewallRules = preference.haveFirewallRules();
+        haveFirewallRules = pref.haveFirewallRules();
 
-        getNATAddress();
+        preference = pref;
+    }
+
+    private void startDiscovery(final TypedProperties p,
+            final ExternalAddressCache cache, final String machine) {
+
+        ThreadPool.createNew(new Runnable() {
+            public void run() {
+                discover(p, cache, machine);
+            }
+        }, "ExternalAddressDiscovery");
+
+        long wait = p.getLongProperty(SmartSocketsProperties.EXTERNAL_WAIT, 0);
+
+        if (wait > 0) {
+            waitForDiscovery(wait);
+        }
+    }
+
+    private void discover(TypedProperties p, ExternalAddressCache cache,
+            String machine) {
+
+        long start = System.currentTimeMillis();
+
+        InetAddress external = externalNATAddress;
+
+        if (haveOnlyLocalAddresses && external == null) {
+            external = findExternalAddress(p);
+        }
+
+        String nat = findNATAddress();
+
+        if (logger.isInfoEnabled()) {
+            logger.info("Discovered external address " + external
+                    + " and NAT address " + nat + " in "
+                    + (System.currentTimeMillis() - start) + " ms.");
+        }
+
+        cache.save(machine, external, nat);
+
+        LinkedList<DirectServerSocket> tmp;
+        LinkedList<DiscoveryCallBack> callbacks;
+
+        synchronized (this) {
+            externalNATAddress = external;
+            myNATAddress = nat;
+
+            if (external != null) {
+                updateAddresses(p);
+            }
+
+            discoveryDone = true;
+
+            tmp = undiscovered;
+            undiscovered = null;
+
+            callbacks = discoveryCallBacks;
+            discoveryCallBacks = null;
+
+            notifyAll();
+        }
+
+        if (external != null) {
+            for (DirectServerSocket ss : tmp) {
+                addExternalAddress(ss);
+            }
+        }
+
+        for (DiscoveryCallBack cb : callbacks) {
+            cb.discoveryDone();
+        }
+    }
+
+    /**
+     * Registers a callback that is invoked once, when the discovery of the
+     * external and NAT address has finished. Users that publish the
+     * addresses of this factory or its server sockets should use it to
+     * publish them again, since the external address may have been added.
+     * If the discovery has already finished, the callback is invoked right
+     * away.
+     *
+     * @param cb the callback to invoke.
+     */
+    public void registerDiscoveryCallBack(DiscoveryCallBack cb) {
+
+        synchronized (this) {
+            if (!discoveryDone) {
+                discoveryCallBacks.add(cb);
+                return;
+            }
+        }
+
+        cb.discoveryDone();
+    }
+
+    private void waitForDiscovery(long time) {
+
+        long deadline = System.currentTimeMillis() + time;
+        long left = time;
+
+        synchronized (this) {
+            while (!discoveryDone && (time == 0 || left > 0)) {
+                try {
+                    wait(time == 0 ? 0 : left);
+                } catch (InterruptedException e) {
+                    // ignored
+                }
+
+                left = deadline - System.currentTimeMillis();
+            }
+        }
+    }
+
+    private void addExternalAddress(DirectServerSocket ss) {
+
+        DirectSocketAddress a = DirectSocketAddress.getByExternalAddress(
+                externalAddress, ss.getLocalPort(), user);
+
+        ss.addExternalAddress(a);
+
+        if (logger.isDebugEnabled()) {
+            logger.debug("Added external address to server socket: " + ss);
+        }
+    }
+
+    // Makes sure a server socket that was created without external address
+    // gets it once it is found.
+    private void checkExternalAddress(DirectServerSocket ss,
+            IPAddressSet external) {
+
+        synchronized (this) {
+            if (!discoveryDone) {
+                undiscovered.add(ss);
+                return;
+            }
+        }
+
+        if (external == null && externalAddress != null) {
+            // Discovery finished while the socket was created.
+            addExternalAddress(ss);
+        }
     }
 
     private char[][] getPrivateSSHKeys() {
@@ -421,82 +660,73 @@ public class DirectSocketFactory {
     /**
      * This method tries to find which of the local addresses is part of the NAT
      * network. Useful when multiple local networks exist.
+     *
+     * @return the address, or null if it could not be found.
      */
-    private void getNATAddress() {
-        if (ALLOW_UPNP) {
-            if (logger.isDebugEnabled()) {
-                logger.debug("Using UPNP to find my NAT'ed network");
-            }
+    private String findNATAddress() {
+
+        if (!ALLOW_UPNP) {
+            return null;
+        }
+
+        if (logger.isDebugEnabled()) {
+            logger.debug("Using UPNP to find my NAT'ed network");
+        }
 
-            // First get the netmask and an address in the range returned by
-            // the NAT box.
-            byte[] mask = UPNP.getSubnetMask();
-            InetAddress[] range = UPNP.getAddressRange();
+        // First get the netmask and an address in the range returned by
+        // the NAT box.
+        byte[] mask = UPNP.getSubnetMask();
+        InetAddress[] range = UPNP.getAddressRange();
 
-            if (mask == null || range == null) {
-                return;
-            }
+        if (mask == null || range == null) {
+            return null;
+        }
 
-            // Get a local address from the NAT box (not necc. our own).
-            byte[] nw = range[0].getAddress();
+        // Get a local address from the NAT box (not necc. our own).
+        byte[] nw = range[0].getAddress();
 
-            if (mask.length != nw.length) {
-                return;
-            }
+        if (mask.length != nw.length) {
+            return null;
+        }
 
-            // Determine the network address.
-            applyMask(mask, nw);
+        // Determine the network address.
+        applyMask(mask, nw);
 
-            // Now compare all local addresses to the network address.
-            InetAddress[] ads = localAddress.getAddresses();
+        String result = null;
 
-            for (int i = 0; i < ads.length; i++) {
-                byte[] tmp = ads[i].getAddress();
+        // Now compare all local addresses to the network address.
+        InetAddress[] ads = localAddress.getAddresses();
 
-                if (tmp.length == mask.length) {
-                    applyMask(mask, tmp);
+        for (int i = 0; i < ads.length; i++) {
+            byte[] tmp = ads[i].getAddress();
 
-                    if (Arrays.equals(nw, tmp)) {
-                        // Found and address that matches, so remember it...
-                        myNATAddress = NetworkUtils.ipToString(ads[i]);
-                        break;
-                    }
+            if (tmp.length == mask.length) {
+                applyMask(mask, tmp);
+
+                if (Arrays.equals(nw, tmp)) {
+                    // Found and address that matches, so remember it...
+                    result = NetworkUtils.ipToString(ads[i]);
+                    break;
                 }
             }
+        }
 
-            if (logger.isDebugEnabled()) {
-                logger.debug("UPNP result: " + myNATAddress);
-            }
+        if (logger.isDebugEnabled()) {
+            logger.debug("UPNP result: " + result);
         }
+
+        return result;
     }
 
     /**
      * This method tries to find a public address that is valid for this
-     * machine. When an address is found, it it stored in the externalAddress
-     * field.
+     * machine, using STUN or UPNP.
+     *
+     * @return the address, or null if it could not be found.
      */
-    private void getExternalAddress(TypedProperties p) {
-
-        // Check if externalAddress is already known
-        if (externalNATAddress != null) {
-            return;
-        }
-
-        if (logger.isDebugEnabled()) {
-            logger.debug("Checking properties for external address...");
-        }
-
-        externalNATAddress = getExternalAddressProperty(p);
+    private InetAddress findExternalAddress(TypedProperties p) {
 
-        if (logger.isDebugEnabled()) {
-            logger.debug("SmartSocketsProperties lookup result: "
-                    + externalNATAddress);
-        }
-
-        if (externalNATAddress != null) {
-            externalAddress = IPAddressSet.getFromAddress(externalNATAddress);
-            return;
-        }
+        InetAddress result = null;
 
         if (p.booleanProperty(SmartSocketsProperties.STUN, false)) {
 
@@ -507,16 +737,14 @@ public class DirectSocketFactory {
             String[] servers = p.getStringList(
                     SmartSocketsProperties.STUN_SERVERS, ",", null);
 
-            externalNATAddress = STUN.getExternalAddress(servers);
+            result = STUN.getExternalAddress(servers);
 
             if (logger.isDebugEnabled()) {
-                logger.debug("STUN lookup result: " + externalNATAddress);
+                logger.debug("STUN lookup result: " + result);
             }
 
-            if (externalNATAddress != null) {
-                externalAddress = IPAddressSet
-                        .getFromAddress(externalNATAddress);
-                return;
+            if (result != null) {
+                return result;
             }
         }
 
@@ -526,18 +754,14 @@ public class DirectSocketFactory {
                 logger.debug("Using UPNP to find external address...");
             }
 
-            externalNATAddress = UPNP.getExternalAddress();
+            result = UPNP.getExternalAddress();
 
             if (logger.isDebugEnabled()) {
-                logger.debug("UPNP lookup result: " + externalNATAddress);
-            }
-
-            if (externalNATAddress != null) {
-                externalAddress = IPAddressSet
-                        .getFromAddress(externalNATAddress);
-                return;
+                logger.debug("UPNP lookup result: " + result);
             }
         }
+
+        return result;
     }
 
     /**
@@ -604,8 +828,8 @@ public class DirectSocketFactory {
 
     private DirectSocket attemptSSHForwarding(DirectSocketAddress sas,
             InetSocketAddress target, InetSocketAddress forwardTo,
-            Connection conn, long start, byte[] userOut, byte[] userIn,
-            boolean check) throws FirewallException {
+            SSHSessionCache.Session session, long start, byte[] userOut,
+            byte[] userIn, boolean check) throws FirewallException {
 
         LocalStreamForwarder lsf = null;
 
@@ -617,8 +841,8 @@ public class DirectSocketFactory {
         }
 
         try {
-            lsf = conn.createLocalStreamForwarder(forwardTarget, forwardTo
-                    .getPort());
+            lsf = session.connection.createLocalStreamForwarder(forwardTarget,
+                    forwardTo.getPort());
 
             InputStream in = lsf.getInputStream();
             OutputStream out = lsf.getOutputStream();
@@ -659,7 +883,8 @@ public class DirectSocketFactory {
                 DirectSocketAddress a = DirectSocketAddress.getByAddress(
                         externalAddress, 1, localAddress, 1, null);
 
-                return new DirectSSHSocket(a, realAddress, in, out, lsf);
+                return new DirectSSHSocket(a, realAddress, in, out, lsf,
+                        session);
             }
 
         } catch (FirewallException e) {
@@ -713,83 +938,46 @@ public class DirectSocketFactory {
             }
         }
 
-        Connection conn = new Connection(host);
-        //conn.enableDebugging(true, null);
-        conn.connect(null, timeout, timeout);
+        // Reuse an existing session to this host if we have one, so we only
+        // need to open a new channel.
+        SSHSessionCache.Session session = sshSessions.acquire(host, user,
+                timeout);
 
-        boolean isAuthenticated = false;
+        try {
+            if (!sas.inExternalAddress(target)) {
 
-        for (char[] key : privateKeys) {
-            if (logger.isDebugEnabled()) {
-                logger.debug("Attempting authentication of SSH connection to "
-                        + host);
-            }
+                // We should be able to foward a connection to the same IP!
+                result = attemptSSHForwarding(sas, target, target, session,
+                        start, userOut, userIn, true);
+            } else {
+                // We should forward to a local IP
+                for (InetSocketAddress t : sas.getPrivateAddresses()) {
+                    result = attemptSSHForwarding(sas, target, t, session,
+                            start, userOut, userIn, true);
 
-            try {
-                isAuthenticated = conn.authenticateWithPublicKey(user, key,
-                        keyFilePass);
-            } catch (IOException e) {
-                if (logger.isDebugEnabled()) {
-                    logger.debug("Failed to create SSH connection to "
-                            + NetworkUtils.ipToString(target.getAddress())
-                            + ":" + target.getPort() + " after "
-                            + (System.currentTimeMillis() - start) + " ms.", e);
+                    if (result != null) {
+                        break;
+                    }
                 }
-            }
 
-            if (logger.isDebugEnabled()) {
-                logger.debug("Authentication result " + isAuthenticated);
-            }
+                if (result == null) {
+                    // local IP didn't work. Try the public ones ?
+                    for (InetSocketAddress t : sas.getPublicAddresses()) {
+                        result = attemptSSHForwarding(sas, target, t, session,
+                                start, userOut, userIn, true);
 
-            if (isAuthenticated) {
-                break;
-            }
-        }
-
-        if (isAuthenticated == false) {
-            if (logger.isInfoEnabled()) {
-                logger.info("Authentication of SSH connection to "
-                        + NetworkUtils.ipToString(target.getAddress()) + ":"
-                        + target.getPort() + " failed after "
-                        + (System.currentTimeMillis() - start) + " ms.");
-            }
-
-            throw new IOException("SSH authentication failed.");
-        }
-
-        if (logger.isDebugEnabled()) {
-            logger.debug("Established SSH connection to " + sas.toString()
-                    + " in " + (System.currentTimeMillis() - start) + " ms.");
-        }
-
-        if (!sas.inExternalAddress(target)) {
-
-            // We should be able to foward a connection to the same IP!
-            result = attemptSSHForwarding(sas, target, target, conn, start,
-                    userOut, userIn, true);
-        } else {
-            // We should forward to a local IP
-            for (InetSocketAddress t : sas.getPrivateAddresses()) {
-                result = attemptSSHForwarding(sas, target, t, conn, start,
-                        userOut, userIn, true);
-
-                if (result != null) {
-                    break;
+                        if (result != null) {
+                            break;
+                        }
+                    }
                 }
-            }
 
+            }
+        } finally {
             if (result == null) {
-                // local IP didn't work. Try the public ones ?
-                for (InetSocketAddress t : sas.getPublicAddresses()) {
-                    result = attemptSSHForwarding(sas, target, t, conn, start,
-                            userOut, userIn, true);
-
-                    if (result != null) {
-                        break;
-                    }
-                }
+                // No channel uses the session.
+                session.release();
             }
-
         }
 
         if (result == null && logger.isInfoEnabled()) {
@@ -980,22 +1168,25 @@ public class DirectSocketFactory {
             // than (1+completeAddressInBytes.length).
             // TODO: Potential deadlock ? Should fix this ?
 
-            synchronized (altCompleteAddressInBytes) {
+            // The address may be replaced when discovery finishes.
+            byte [] address = altCompleteAddressInBytes;
+
+            synchronized (address) {
 
                 if (checkIdentity) {
-                    altCompleteAddressInBytes[0] = DirectServerSocket.TYPE_CLIENT_CHECK;
+                    address[0] = DirectServerSocket.TYPE_CLIENT_CHECK;
                 } else {
-                    altCompleteAddressInBytes[0] = DirectServerSocket.TYPE_CLIENT_NOCHECK;
+                    address[0] = DirectServerSocket.TYPE_CLIENT_NOCHECK;
                 }
 
                 for (int i = 0; i < 4; i++) {
-                    altCompleteAddressInBytes[1 + i] = userOut[i];
+                    address[1 + i] = userOut[i];
                 }
 
                 // System.out.println("WRITE ALT: " +
                 // altCompleteAddressInBytes.length);
 
-                out.write(altCompleteAddressInBytes);
+                out.write(address);
                 out.flush();
             }
 
@@ -1167,15 +1358,19 @@ public class DirectSocketFactory {
             }
         }
 
+        IPAddressSet external = externalAddress;
+
         if (!(haveOnlyLocalAddresses && portForwarding)) {
             // We are not behind a NAT box or the user doesn't want port
             // forwarding, so just return the server socket
             DirectSocketAddress a = DirectSocketAddress.getByAddress(
-                    externalAddress, ss.getLocalPort(), localAddress, ss
+                    external, ss.getLocalPort(), localAddress, ss
                             .getLocalPort(), user);
 
             DirectServerSocket smss = new DirectServerSocket(a, ss, preference);
 
+            checkExternalAddress(smss, external);
+
             if (logger.isDebugEnabled()) {
                 logger.debug("Created server socket on: " + smss);
             }
@@ -1192,12 +1387,14 @@ public class DirectSocketFactory {
             if (forwardingMayFail) {
                 // It's OK, so return the socket.
                 DirectSocketAddress a = DirectSocketAddress.getByAddress(
-                        externalAddress, ss.getLocalPort(), localAddress, ss
+                        external, ss.getLocalPort(), localAddress, ss
                                 .getLocalPort(), user);
 
                 DirectServerSocket smss = new DirectServerSocket(a, ss,
                         preference);
 
+                checkExternalAddress(smss, external);
+
                 if (logger.isDebugEnabled()) {
                     logger.debug("Port forwarding not allowed for: " + smss);
                 }
@@ -1219,7 +1416,10 @@ public class DirectSocketFactory {
             throw new IOException("Port forwarding not allowed!");
         }
 
-        // Try to do port forwarding!
+        // Try to do port forwarding! This requires the external and NAT
+        // address, so wait until they are known.
+        waitForDiscovery(0);
+
         if (localPort == 0) {
             localPort = ss.getLocalPort();
         }
@@ -1606,6 +1806,8 @@ public class DirectSocketFactory {
             return null;
         }
 
+        sas = preferredFirst(target, sas);
+
         // else, we must try them all, so the connection attempt must return at
         // some point, even if timeout == 0
 
@@ -1748,6 +1950,10 @@ public class DirectSocketFactory {
 
             timeLeft -= (System.currentTimeMillis() - time);
 
+            if (result != null) {
+                setPreferredAddress(target, sa);
+            }
+
             /*
              * if (timing != null) {
              *
@@ -1774,6 +1980,55 @@ public class DirectSocketFactory {
         return result;
     }
 
+    // Move the address that worked last time to the front of the list.
+    private InetSocketAddress[] preferredFirst(DirectSocketAddress target,
+            InetSocketAddress[] sas) {
+
+        InetSocketAddress preferred = getPreferredAddress(target);
+
+        if (preferred == null || sas[0].equals(preferred)) {
+            return sas;
+        }
+
+        for (int i = 1; i < sas.length; i++) {
+            if (sas[i].equals(preferred)) {
+                InetSocketAddress[] result = new InetSocketAddress[sas.length];
+                result[0] = preferred;
+                System.arraycopy(sas, 0, result, 1, i);
+                System.arraycopy(sas, i + 1, result, i + 1, sas.length - i - 1);
+                return result;
+            }
+        }
+
+        return sas;
+    }
+
+    /**
+     * Returns the address that was last used to connect to the target.
+     *
+     * @param target the target machine.
+     * @return the address, or null if it is not known.
+     */
+    public InetSocketAddress getPreferredAddress(DirectSocketAddress target) {
+        synchronized (preferredAddresses) {
+            return preferredAddresses.get(target);
+        }
+    }
+
+    /**
+     * Sets the address that is tried first when connecting to the target.
+     * This can be used to restore addresses learned by an earlier run.
+     *
+     * @param target the target machine.
+     * @param address one of the addresses of the target.
+     */
+    public void setPreferredAddress(DirectSocketAddress target,
+            InetSocketAddress address) {
+        synchronized (preferredAddresses) {
+            preferredAddresses.put(target, address);
+        }
+    }
+
     public DirectServerSocket createServerSocket(int port, int backlog, Map<String, Object> prop)
             throws IOException {
         return createServerSocket(port, backlog, -1, prop);
@@ -0,0 +1,10 @@
+package ibis.smartsockets.direct;
+
+public interface DiscoveryCallBack {
+
+    // Invoked when the discovery of the external and NAT address has
+    // finished. Addresses obtained from the factory or its server sockets
+    // before this time may lack the external address.
+    void discoveryDone();
+
+}
@@ -0,0 +1,92 @@
+package ibis.smartsockets.direct;
+
+import ibis.smartsockets.util.TimedFileCache;
+
+import java.net.InetAddress;
+import java.util.StringTokenizer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Stores the result of the external address discovery of the
+ * DirectSocketFactory in a file, so that a restarted process does not have
+ * to repeat it.
+ *
+ * Results are stored per set of local addresses, so a machine that moves to
+ * another network (or several machines sharing a home directory) will not
+ * use the wrong result. Results expire after a fixed time.
+ */
+final class ExternalAddressCache {
+
+    private static final Logger logger =
+        LoggerFactory.getLogger("ibis.smartsockets.direct.external");
+
+    /**
+     * The result of a discovery.
+     */
+    static final class Entry {
+
+        /** The external address of the NAT box (may be null). */
+        final InetAddress external;
+
+        /** The local address in the network of the NAT box (may be null). */
+        final String nat;
+
+        final long time;
+
+        Entry(InetAddress external, String nat, long time) {
+            this.external = external;
+            this.nat = nat;
+            this.time = time;
+        }
+    }
+
+    private final TimedFileCache cache;
+
+    ExternalAddressCache(String file, long ttl) {
+        cache = new TimedFileCache(file, ttl, logger, "external addresses");
+    }
+
+    /**
+     * Returns the stored result for a machine with the given local
+     * addresses, or null if there is no valid result.
+     */
+    Entry load(String local) {
+
+        TimedFileCache.Entry e = cache.get(local);
+
+        if (e == null) {
+            return null;
+        }
+
+        try {
+            // Format: external|- nat|-
+            StringTokenizer tok = new StringTokenizer(e.value);
+
+            String external = tok.nextToken();
+            String nat = tok.nextToken();
+
+            return new Entry(external.equals("-") ? null
+                    : InetAddress.getByName(external),
+                    nat.equals("-") ? null : nat, e.time);
+
+        } catch (Exception x) {
+            if (logger.isInfoEnabled()) {
+                logger.info("Ignoring external address for " + local + " in "
+                        + cache.getFile() + ": " + x);
+            }
+
+            return null;
+        }
+    }
+
+    /**
+     * Stores the result for a machine with the given local addresses. Valid
+     * results of other machines that are found in the file are kept.
+     */
+    void save(String local, InetAddress external, String nat) {
+        cache.put(local, (external == null ? "-" : external.getHostAddress())
+                + " " + (nat == null ? "-" : nat));
+    }
+}
@@ -0,0 +1,365 @@
+package ibis.smartsockets.direct;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Timer;
+import java.util.TimerTask;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+// import ch.ethz.ssh2.Connection;
+// import ch.ethz.ssh2.ConnectionMonitor;
+
+import com.trilead.ssh2.Connection;
+import com.trilead.ssh2.ConnectionMonitor;
+
+/**
+ * Keeps authenticated SSH sessions open, so they can be reused for
+ * subsequent connections to the same host.
+ *
+ * Setting up an SSH session requires a TCP connection, a key exchange and
+ * an authentication, each costing one or more round trips. Once a session
+ * exists, forwarding another connection over it only requires a new
+ * direct-tcpip channel, which costs a single round trip.
+ *
+ * Sessions are shared per host and user, and carry a bounded number of
+ * channels. A session without channels is closed after it has been idle for
+ * a while. Sessions that are lost are never handed out again.
+ */
+final class SSHSessionCache {
+
+    private static final Logger logger =
+        LoggerFactory.getLogger("ibis.smartsockets.direct.ssh");
+
+    /**
+     * A single SSH session and the number of channels using it.
+     */
+    static final class Session implements ConnectionMonitor {
+
+        private final SSHSessionCache cache;
+
+        final String host;
+        final String user;
+
+        // Set once the session is authenticated.
+        Connection connection;
+
+        // Index of the private key that authenticated this session.
+        int key = -1;
+
+        int channels = 1;
+
+        long idleSince = 0;
+
+        boolean lost = false;
+
+        Session(SSHSessionCache cache, String host, String user) {
+            this.cache = cache;
+            this.host = host;
+            this.user = user;
+        }
+
+        /**
+         * Returns this session to the cache. Must be called exactly once for
+         * each time the session was handed out by acquire.
+         */
+        void release() {
+            cache.release(this);
+        }
+
+        public void connectionLost(Throwable reason) {
+
+            if (logger.isInfoEnabled()) {
+                logger.info("Lost SSH session to " + user + "@" + host + ": "
+                        + reason);
+            }
+
+            cache.lost(this);
+        }
+
+        public String toString() {
+            return user + "@" + host;
+        }
+    }
+
+    private final char[][] privateKeys;
+
+    private final String keyFilePass;
+
+    private final long maxIdle;
+
+    private final int maxChannels;
+
+    // The sessions per user@host.
+    private final HashMap<String, LinkedList<Session>> sessions =
+        new HashMap<String, LinkedList<Session>>();
+
+    private Timer timer;
+
+    SSHSessionCache(char[][] privateKeys, String keyFilePass, long maxIdle,
+            int maxChannels) {
+
+        this.privateKeys = privateKeys;
+        this.keyFilePass = keyFilePass;
+        this.maxIdle = maxIdle;
+        this.maxChannels = Math.max(1, maxChannels);
+    }
+
+    /**
+     * Returns an authenticated SSH session to host, reusing an existing one
+     * if possible. The caller must release the session when it no longer
+     * uses it.
+     *
+     * @param host the host to connect to.
+     * @param user the user to authenticate as.
+     * @param timeout timeout for the connection setup, in milliseconds (0 is
+     *        infinite).
+     * @return an authenticated session.
+     * @throws IOException when no session could be set up.
+     */
+    Session acquire(String host, String user, int timeout)
+        throws IOException {
+
+        String name = user + "@" + host;
+
+        long deadline = timeout > 0 ?
+                System.currentTimeMillis() + timeout : Long.MAX_VALUE;
+
+        Session s = null;
+
+        synchronized (this) {
+
+            while (s == null) {
+
+                LinkedList<Session> list = sessions.get(name);
+
+                if (list == null) {
+                    list = new LinkedList<Session>();
+                    sessions.put(name, list);
+                }
+
+                boolean pending = false;
+
+                Iterator<Session> itt = list.iterator();
+
+                while (itt.hasNext()) {
+
+                    Session tmp = itt.next();
+
+                    if (tmp.connection == null) {
+                        pending = true;
+                    } else if (tmp.channels < maxChannels) {
+                        tmp.channels++;
+
+                        if (logger.isDebugEnabled()) {
+                            logger.debug("Reusing SSH session to " + name
+                                    + " (" + tmp.channels + " channels)");
+                        }
+
+                        return tmp;
+                    }
+                }
+
+                if (!pending) {
+                    // Reserve a new session, which we set up below.
+                    s = new Session(this, host, user);
+                    list.addLast(s);
+                    break;
+                }
+
+                // Another thread is setting up a session to this host. Wait
+                // for it, as it will most likely have room for us.
+                long left = deadline - System.currentTimeMillis();
+
+                if (left <= 0) {
+                    throw new SocketTimeoutException("Timeout while waiting "
+                            + "for SSH session to " + name);
+                }
+
+                try {
+                    wait(left);
+                } catch (InterruptedException e) {
+                    // ignored
+                }
+            }
+        }
+
+        try {
+            connect(s, timeout > 0 ? (int) Math.max(1,
+                    deadline - System.currentTimeMillis()) : 0);
+        } catch (IOException e) {
+            synchronized (this) {
+                remove(s);
+                notifyAll();
+            }
+            throw e;
+        }
+
+        return s;
+    }
+
+    private void connect(Session s, int timeout) throws IOException {
+
+        long start = System.currentTimeMillis();
+
+        Connection conn = new Connection(s.host);
+        //conn.enableDebugging(true, null);
+        conn.connect(null, timeout, timeout);
+
+        int key = -1;
+
+        for (int i = 0; i < privateKeys.length && key == -1; i++) {
+
+            if (logger.isDebugEnabled()) {
+                logger.debug("Attempting authentication of SSH connection to "
+                        + s.host);
+            }
+
+            try {
+                if (conn.authenticateWithPublicKey(s.user, privateKeys[i],
+                        keyFilePass)) {
+                    key = i;
+                }
+            } catch (IOException e) {
+                if (logger.isDebugEnabled()) {
+                    logger.debug("Failed to authenticate SSH connection to "
+                            + s.host + " after "
+                            + (System.currentTimeMillis() - start) + " ms.", e);
+                }
+            }
+
+            if (logger.isDebugEnabled()) {
+                logger.debug("Authentication result " + (key != -1));
+            }
+        }
+
+        if (key == -1) {
+            if (logger.isInfoEnabled()) {
+                logger.info("Authentication of SSH connection to " + s.host
+                        + " failed after "
+                        + (System.currentTimeMillis() - start) + " ms.");
+            }
+
+            conn.close();
+            throw new IOException("SSH authentication failed.");
+        }
+
+        if (logger.isDebugEnabled()) {
+            logger.debug("Established SSH session to " + s + " in "
+                    + (System.currentTimeMillis() - start) + " ms.");
+        }
+
+        conn.addConnectionMonitor(s);
+
+        synchronized (this) {
+            s.connection = conn;
+            s.key = key;
+            notifyAll();
+        }
+    }
+
+    private void remove(Session s) {
+
+        String name = s.user + "@" + s.host;
+
+        LinkedList<Session> list = sessions.get(name);
+
+        if (list != null) {
+            list.remove(s);
+
+            if (list.isEmpty()) {
+                sessions.remove(name);
+            }
+        }
+    }
+
+    private void release(Session s) {
+
+        boolean close = false;
+
+        synchronized (this) {
+
+            s.channels--;
+
+            if (s.channels > 0) {
+                return;
+            }
+
+            if (s.lost || maxIdle <= 0) {
+                remove(s);
+                close = true;
+            } else {
+                s.idleSince = System.currentTimeMillis();
+                startTimer();
+            }
+        }
+
+        if (close) {
+            s.connection.close();
+        }
+    }
+
+    private void lost(Session s) {
+
+        synchronized (this) {
+            // Don't hand out this session anymore. If it is in use, it is
+            // closed when the last channel is released.
+            s.lost = true;
+            remove(s);
+
+            if (s.channels > 0 || s.connection == null) {
+                return;
+            }
+        }
+
+        s.connection.close();
+    }
+
+    private void startTimer() {
+
+        if (timer != null) {
+            return;
+        }
+
+        timer = new Timer("SSHSessionCache eviction", true);
+
+        timer.schedule(new TimerTask() {
+            public void run() {
+                evict();
+            }
+        }, maxIdle, Math.max(100, maxIdle / 2));
+    }
+
+    private void evict() {
+
+        LinkedList<Session> old = new LinkedList<Session>();
+
+        long limit = System.currentTimeMillis() - maxIdle;
+
+        synchronized (this) {
+            for (LinkedList<Session> list : sessions.values()) {
+                for (Session s : list) {
+                    if (s.channels == 0 && s.idleSince <= limit) {
+                        old.add(s);
+                    }
+                }
+            }
+
+            for (Session s : old) {
+                remove(s);
+            }
+        }
+
+        if (logger.isDebugEnabled() && old.size() > 0) {
+            logger.debug("Closing " + old.size() + " idle SSH sessions");
+        }
+
+        for (Session s : old) {
+            s.connection.close();
+        }
+    }
+}
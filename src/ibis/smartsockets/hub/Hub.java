@@ -13,6 +13,7 @@ import ibis.smartsockets.hub.state.HubDescription;
 import ibis.smartsockets.hub.state.HubList;
 import ibis.smartsockets.hub.state.StateCounter;
 import ibis.smartsockets.util.NetworkUtils;
+import ibis.smartsockets.util.ThreadPool;
 import ibis.smartsockets.util.TypedProperties;
 
 import java.io.File;
@@ -52,6 +53,8 @@ public final class Hub extends Thread implements StatisticsCallback {
 
     private final Discovery discovery;
 
+    private final UdpReflector reflector;
+
     private final VirtualConnections virtualConnections;
 
     private final String addressFile;
@@ -139,6 +142,8 @@ public final class Hub extends Thread implements StatisticsCallback {
             goslogger.info("GossipAcceptor listning at " + local);
         }
 
+        reflector = createReflector(p, delegate ? 0 : local.getPorts(false)[0]);
+
         String name = p.getProperty(SmartSocketsProperties.HUB_NAME);
 
         if (name == null || name.length() == 0) {
@@ -232,6 +237,27 @@ public final class Hub extends Thread implements StatisticsCallback {
         start();
     }
 
+    private UdpReflector createReflector(TypedProperties p, int port) {
+
+        // A delegated hub does not own the port in its address.
+        if (port <= 0
+                || !p.booleanProperty(SmartSocketsProperties.HUB_UDP_REFLECTOR,
+                        false)) {
+            misclogger.info("Hub will not reflect UDP addresses");
+            return null;
+        }
+
+        try {
+            UdpReflector r = new UdpReflector(port);
+            ThreadPool.createNew(r, "UdpReflector");
+            return r;
+        } catch (Exception e) {
+            misclogger.warn("Hub failed to create UDP reflector on port "
+                    + port, e);
+            return null;
+        }
+    }
+
     private void writeAddressFile() {
 
         try {
@@ -336,6 +362,10 @@ public final class Hub extends Thread implements StatisticsCallback {
         // Shut down the other threads....
         acceptor.end();
         connector.end();
+
+        if (reflector != null) {
+            reflector.end();
+        }
     }
 
     public void add(Statistics s) {
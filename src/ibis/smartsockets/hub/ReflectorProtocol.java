@@ -0,0 +1,22 @@
+package ibis.smartsockets.hub;
+
+/**
+ * UDP packets understood by the reflector of a hub, which tells a client from
+ * which address and port its packets arrive. Behind a NAT this is the mapping
+ * created by the NAT for the UDP socket of the client.
+ *
+ * A request consists of the MAGIC (an int), the REFLECT_REQUEST opcode (a
+ * byte) and a nonce (an int). The reply consists of the MAGIC, the
+ * REFLECT_REPLY opcode, the same nonce, the length of the address (a byte),
+ * the address itself and the port (an unsigned short). All values are in
+ * network byte order.
+ */
+public interface ReflectorProtocol {
+
+    public static final int MAGIC = 0x53535544;
+
+    public static final byte REFLECT_REQUEST = 64;
+    public static final byte REFLECT_REPLY   = 65;
+
+    public static final int REQUEST_SIZE = 9;
+}
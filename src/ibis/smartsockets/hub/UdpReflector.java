@@ -0,0 +1,118 @@
+package ibis.smartsockets.hub;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Answers UDP packets with the address and port they were sent from. This
+ * allows clients to find the mapping created by a NAT for their UDP socket,
+ * which is needed to punch a hole in the NAT.
+ *
+ * @see ReflectorProtocol
+ */
+class UdpReflector implements Runnable, ReflectorProtocol {
+
+    private static final Logger logger =
+        LoggerFactory.getLogger("ibis.smartsockets.hub.reflector");
+
+    private final DatagramSocket socket;
+
+    private final DatagramPacket packet;
+
+    private boolean done = false;
+
+    UdpReflector(int port) throws SocketException {
+        socket = new DatagramSocket(port);
+        packet = new DatagramPacket(new byte[64], 64);
+    }
+
+    int getPort() {
+        return socket.getLocalPort();
+    }
+
+    private synchronized boolean getDone() {
+        return done;
+    }
+
+    private static int read(byte [] b, int off) {
+        return (((b[off] & 0xff) << 24) |
+                ((b[off+1] & 0xff) << 16) |
+                ((b[off+2] & 0xff) << 8) |
+                 (b[off+3] & 0xff));
+    }
+
+    private static void write(byte [] b, int off, int v) {
+        b[off]   = (byte)(0xff & (v >> 24));
+        b[off+1] = (byte)(0xff & (v >> 16));
+        b[off+2] = (byte)(0xff & (v >> 8));
+        b[off+3] = (byte)(0xff & v);
+    }
+
+    private void reply() throws IOException {
+
+        byte [] in = packet.getData();
+
+        if (packet.getLength() < REQUEST_SIZE || read(in, 0) != MAGIC
+                || in[4] != REFLECT_REQUEST) {
+
+            if (logger.isDebugEnabled()) {
+                logger.debug("Discarding packet from "
+                        + packet.getSocketAddress());
+            }
+            return;
+        }
+
+        InetSocketAddress from = (InetSocketAddress) packet.getSocketAddress();
+
+        byte [] address = from.getAddress().getAddress();
+        byte [] out = new byte[REQUEST_SIZE + 1 + address.length + 2];
+
+        write(out, 0, MAGIC);
+        out[4] = REFLECT_REPLY;
+        System.arraycopy(in, 5, out, 5, 4);
+        out[9] = (byte) address.length;
+        System.arraycopy(address, 0, out, 10, address.length);
+        out[10 + address.length] = (byte) (from.getPort() >> 8);
+        out[11 + address.length] = (byte) from.getPort();
+
+        if (logger.isDebugEnabled()) {
+            logger.debug("Reflecting " + from);
+        }
+
+        socket.send(new DatagramPacket(out, out.length, from));
+    }
+
+    public void run() {
+
+        if (logger.isInfoEnabled()) {
+            logger.info("UdpReflector listening on port " + getPort());
+        }
+
+        while (!getDone()) {
+            try {
+                packet.setLength(packet.getData().length);
+                socket.receive(packet);
+                reply();
+            } catch (Throwable e) {
+                if (!getDone()) {
+                    logger.warn("UdpReflector failed to handle packet", e);
+                }
+            }
+        }
+    }
+
+    void end() {
+
+        synchronized (this) {
+            done = true;
+        }
+
+        socket.close();
+    }
+}
@@ -319,6 +319,13 @@ public class ClientConnection extends MessageForwardingConnection {
         }
     }
 
+    private void handleHeartbeat() throws IOException {
+        synchronized (out) {
+            out.write(ServiceLinkProtocol.HEARTBEAT_ACK);
+            out.flush();
+        }
+    }
+
     protected String getName() {
         return "ClientConnection(" + clientAddress + ")";
     }
@@ -384,6 +391,10 @@ public class ClientConnection extends MessageForwardingConnection {
                 updateProperty();
                 return true;
 
+            case ServiceLinkProtocol.HEARTBEAT:
+                handleHeartbeat();
+                return true;
+
             case ServiceLinkProtocol.REMOVE_PROPERTY:
                 if (reglogger.isDebugEnabled()) {
                     reglogger.debug("Connection " + clientAddress + " requests"
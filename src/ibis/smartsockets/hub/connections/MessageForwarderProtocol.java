@@ -14,6 +14,9 @@ public interface MessageForwarderProtocol extends ConnectionProtocol {
     public static final byte MESSAGE_VIRTUAL         = 65;
     public static final byte MESSAGE_VIRTUAL_ACK     = 66;
 
+    // Virtual message that also carries an ACK for the reverse direction.
+    public static final byte MESSAGE_VIRTUAL_PIGGYBACK = 67;
+
     public static final byte DATA_MESSAGE            = 68;
     public static final byte INFO_MESSAGE            = 69;
 
@@ -419,10 +419,17 @@ public abstract class MessageForwardingConnection extends BaseConnection {
         }
     }
 
-    protected final void handleMessageVirtual() throws IOException {
+    protected final void handleMessageVirtual(boolean piggyback)
+        throws IOException {
 
         long index = in.readLong();
         int size = in.readInt();
+        int ack = 0;
+
+        if (piggyback) {
+            ack = in.readInt();
+            stats.messagesPiggyback++;
+        }
 
         stats.messages++;
         stats.messagesBytes += size;
@@ -459,7 +466,7 @@ public abstract class MessageForwardingConnection extends BaseConnection {
 
             // Read the data into the (pre allocated) buffer.
             in.readFully(vc.buffer1, 0, size);
-            vc.mfc2.forwardVirtualMessage(vc.index2, vc.buffer1, size);
+            vc.mfc2.forwardVirtualMessage(vc.index2, vc.buffer1, size, ack);
 
         } else if (this == vc.mfc2) {
 
@@ -470,7 +477,7 @@ public abstract class MessageForwardingConnection extends BaseConnection {
 
             // Read the data into the (pre allocated) buffer.
             in.readFully(vc.buffer2, 0, size);
-            vc.mfc1.forwardVirtualMessage(vc.index1, vc.buffer2, size);
+            vc.mfc1.forwardVirtualMessage(vc.index1, vc.buffer2, size, ack);
 
         } else {
             stats.messagesError++;
@@ -683,16 +690,24 @@ public abstract class MessageForwardingConnection extends BaseConnection {
         }
     }
 
-    private final void forwardVirtualMessage(long index, byte[] data, int size) {
+    private final void forwardVirtualMessage(long index, byte[] data, int size,
+            int ack) {
 
         // TODO: Should be asynchronous ???
 
-        // forward the message
+        // forward the message (and the piggybacked ack, if any)
         try {
             synchronized (out) {
-                out.write(MessageForwarderProtocol.MESSAGE_VIRTUAL);
-                out.writeLong(index);
-                out.writeInt(size);
+                if (ack > 0) {
+                    out.write(MessageForwarderProtocol.MESSAGE_VIRTUAL_PIGGYBACK);
+                    out.writeLong(index);
+                    out.writeInt(size);
+                    out.writeInt(ack);
+                } else {
+                    out.write(MessageForwarderProtocol.MESSAGE_VIRTUAL);
+                    out.writeLong(index);
+                    out.writeInt(size);
+                }
                 out.write(data, 0, size);
                 out.flush();
             }
@@ -1237,7 +1252,15 @@ public abstract class MessageForwardingConnection extends BaseConnection {
                     meslogger.info("HubConnection got virtual message!");
                 }
 
-                handleMessageVirtual();
+                handleMessageVirtual(false);
+                return true;
+
+            case MessageForwarderProtocol.MESSAGE_VIRTUAL_PIGGYBACK:
+                if (meslogger.isInfoEnabled()) {
+                    meslogger.info("HubConnection got virtual message + ack!");
+                }
+
+                handleMessageVirtual(true);
                 return true;
 
             case MessageForwarderProtocol.MESSAGE_VIRTUAL_ACK:
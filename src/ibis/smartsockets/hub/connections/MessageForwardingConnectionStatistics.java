@@ -23,6 +23,7 @@ public class MessageForwardingConnectionStatistics extends Statistics {
     long messagesError;
     long messagesLost;
     long messagesBytes;
+    long messagesPiggyback;
 
     long messageACK;
     long messageACK_Error;
@@ -62,6 +63,7 @@ public class MessageForwardingConnectionStatistics extends Statistics {
         messagesError += other.messagesError;
         messagesLost += other.messagesLost;
         messagesBytes += other.messagesBytes;
+        messagesPiggyback += other.messagesPiggyback;
 
         messageACK += other.messageACK;
         messageACK_Error += other.messageACK_Error;
@@ -88,6 +90,7 @@ public class MessageForwardingConnectionStatistics extends Statistics {
         out.println(prefix + " - error    : " + connectionsRepliesError);
         out.println(prefix + "VMessages   : " + messages);
         out.println(prefix + " - bytes    : " + messagesBytes);
+        out.println(prefix + " - with ACK : " + messagesPiggyback);
         out.println(prefix + " - lost     : " + messagesLost);
         out.println(prefix + " - error    : " + messagesError);
         out.println(prefix + "VMess. ACKS : " + messageACK);
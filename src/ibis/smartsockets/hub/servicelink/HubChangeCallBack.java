@@ -0,0 +1,11 @@
+package ibis.smartsockets.hub.servicelink;
+
+import ibis.smartsockets.direct.DirectSocketAddress;
+
+public interface HubChangeCallBack {
+
+    // Invoked when the service link has reconnected to a different hub than
+    // the one it was connected to before, for example after a failover.
+    void hubChanged(DirectSocketAddress oldHub, DirectSocketAddress newHub);
+
+}
@@ -15,8 +15,10 @@ import java.io.BufferedOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
+import java.net.SocketTimeoutException;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.LinkedList;
 import java.util.List;
 
 import org.slf4j.Logger;
@@ -35,6 +37,9 @@ public class ServiceLink implements Runnable {
 
     private static final int DEFAULT_WAIT_TIME = 10000;
 
+    // Number of heartbeat intervals between two standby hub probes.
+    private static final int STANDBY_PROBE_INTERVAL = 20;
+
     private final HashMap<String, Object> callbacks
         = new HashMap<String, Object>();
 
@@ -43,12 +48,18 @@ public class ServiceLink implements Runnable {
 
     private final DirectSocketFactory factory;
 
-    private final DirectSocketAddress myAddress;
+    private volatile DirectSocketAddress myAddress;
+
+    // Set when we must register at the current hub again.
+    private boolean reregister = false;
 
     private final List<DirectSocketAddress> hubs;
 
     private DirectSocketAddress hubAddress;
 
+    // The address we used to reach the current hub.
+    private DirectSocketAddress hubContact;
+
     private boolean connected = false;
 
     private boolean done = false;
@@ -68,6 +79,8 @@ public class ServiceLink implements Runnable {
 
     private VirtualConnectionCallBack vcCallBack = null;
 
+    private HubChangeCallBack hubChangeCallBack = null;
+
     private int sendBuffer = -1;
 
     private int receiveBuffer = -1;
@@ -107,11 +120,36 @@ public class ServiceLink implements Runnable {
 
     private final boolean forceConnection;
 
+    private final int heartbeatInterval;
+
+    private final int heartbeatTimeout;
+
+    private final boolean useStandby;
+
+    // Time at which we last received anything from the hub.
+    private long lastReceived;
+
+    private boolean heartbeatPending = false;
+
+    private boolean probePending = false;
+
+    // A hub which recently answered a probe, and which we will try first when
+    // the current hub dies.
+    private DirectSocketAddress standbyHub;
+
+    // Hubs learned from the current hub, used as failover candidates.
+    private DirectSocketAddress[] knownHubs;
+
+    // The initial connection attempt, if it is in progress.
+    private HubRace race;
+
     private ServiceLink(List<DirectSocketAddress> hubs,
             DirectSocketAddress myAddress, int sendBuffer, int receiveBuffer,
-            int virtualHubPort, long maxReconnect, boolean forceConnection) throws IOException {
+            int virtualHubPort, long maxReconnect, boolean forceConnection,
+            int heartbeatInterval, int heartbeatTimeout, boolean useStandby)
+        throws IOException {
 
-        this.hubs = hubs;
+        this.hubs = new LinkedList<DirectSocketAddress>(hubs);
         this.sendBuffer = sendBuffer;
         this.receiveBuffer = receiveBuffer;
         this.myAddress = myAddress;
@@ -121,21 +159,100 @@ public class ServiceLink implements Runnable {
 
         this.virtualHubPort = virtualHubPort;
 
+        this.heartbeatInterval = heartbeatInterval;
+        this.heartbeatTimeout = heartbeatTimeout;
+        this.useStandby = useStandby;
+
         factory = DirectSocketFactory.getSocketFactory();
 
         ThreadPool.createNew(this, "ServiceLink Message Reader");
+
+        if (heartbeatInterval > 0) {
+            ThreadPool.createNew(new HeartbeatMonitor(),
+                    "ServiceLink Heartbeat Monitor");
+        }
+    }
+
+    /**
+     * Periodically sends a heartbeat to the hub, and drops the connection
+     * when the hub has been silent for longer than the heartbeat timeout. The
+     * reader thread will then immediately fail over to the next hub.
+     */
+    private class HeartbeatMonitor implements Runnable {
+
+        private final Runnable sender = new Runnable() {
+            public void run() {
+                try {
+                    sendHeartbeat();
+                } finally {
+                    heartbeatDone();
+                }
+            }
+        };
+
+        private final Runnable prober = new Runnable() {
+            public void run() {
+                try {
+                    probeStandbyHub();
+                } finally {
+                    probeDone();
+                }
+            }
+        };
+
+        public void run() {
+
+            int probe = 0;
+
+            while (!getDone()) {
+
+                try {
+                    Thread.sleep(heartbeatInterval);
+                } catch (InterruptedException e) {
+                    // ignore
+                }
+
+                if (getConnected()) {
+
+                    long silence = System.currentTimeMillis()
+                        - getLastReceived();
+
+                    if (silence > heartbeatTimeout) {
+                        logger.warn("ServiceLink: hub " + hubAddress
+                                + " silent for " + silence
+                                + " ms. -- assuming it is dead!");
+                        closeConnectionToHub();
+                    } else if (startHeartbeat()) {
+                        // The actual send is done by a separate thread, so a
+                        // hub that stops reading cannot block the monitor.
+                        ThreadPool.createNew(sender, "ServiceLink Heartbeat");
+                    }
+
+                    // The probe may have to wait for the hub and for other
+                    // hubs, so it also gets a thread of its own.
+                    if (useStandby && probe-- <= 0 && startProbe()) {
+                        ThreadPool.createNew(prober,
+                                "ServiceLink Standby Probe");
+                        probe = STANDBY_PROBE_INTERVAL;
+                    }
+                }
+            }
+        }
     }
 
     public synchronized boolean getDone() {
         return done;
     }
 
-    public synchronized void setDone() {
-        if (done) {
-            return;
-        }
+    public void setDone() {
+
+        synchronized (this) {
+            if (done) {
+                return;
+            }
 
-        done = true;
+            done = true;
+        }
 
         // hum... this may be a bit harsh ?
         closeConnectionToHub();
@@ -149,6 +266,14 @@ public class ServiceLink implements Runnable {
         return vcCallBack;
     }
 
+    public synchronized void registerHubChangeCallBack(HubChangeCallBack cb) {
+        hubChangeCallBack = cb;
+    }
+
+    private synchronized HubChangeCallBack getHubChangeCallBack() {
+        return hubChangeCallBack;
+    }
+
     public void register(String identifier, CallBack callback) {
 
         synchronized (callbacks) {
@@ -209,15 +334,29 @@ public class ServiceLink implements Runnable {
         }
     }
 
-    protected Object getInfoReply(Integer identifier) {
+    // Waits at most maxWaitTime for the reply, so a hub that does not answer
+    // cannot block the caller forever.
+    protected Object getInfoReply(Integer identifier)
+        throws SocketTimeoutException {
 
         synchronized (infoRequests) {
 
+            long deadline = System.currentTimeMillis() + maxWaitTime;
+
             Object result = infoRequests.get(identifier);
 
             while (result == null) {
+
+                long timeleft = deadline - System.currentTimeMillis();
+
+                if (timeleft <= 0) {
+                    infoRequests.remove(identifier);
+                    throw new SocketTimeoutException("No reply from hub "
+                            + "within " + maxWaitTime + " ms.");
+                }
+
                 try {
-                    infoRequests.wait();
+                    infoRequests.wait(timeleft);
                 } catch (InterruptedException e) {
                     // ignore
                 }
@@ -231,7 +370,8 @@ public class ServiceLink implements Runnable {
         }
     }
 
-    protected boolean getInfoReply(Integer identifier, int value) {
+    protected boolean getInfoReply(Integer identifier, int value)
+        throws SocketTimeoutException {
 
         Object result = getInfoReply(identifier);
 
@@ -244,9 +384,377 @@ public class ServiceLink implements Runnable {
 
     private synchronized void setConnected(boolean value) {
         connected = value;
+
+        if (value) {
+            lastReceived = System.currentTimeMillis();
+            reregister = false;
+        }
+
         notifyAll();
     }
 
+    private synchronized void gotTraffic() {
+        lastReceived = System.currentTimeMillis();
+    }
+
+    private synchronized long getLastReceived() {
+        return lastReceived;
+    }
+
+    private synchronized boolean startHeartbeat() {
+        if (heartbeatPending) {
+            return false;
+        }
+
+        heartbeatPending = true;
+        return true;
+    }
+
+    private synchronized void heartbeatDone() {
+        heartbeatPending = false;
+    }
+
+    private synchronized boolean startProbe() {
+        if (probePending) {
+            return false;
+        }
+
+        probePending = true;
+        return true;
+    }
+
+    private synchronized void probeDone() {
+        probePending = false;
+    }
+
+    private void sendHeartbeat() {
+
+        if (!getConnected()) {
+            return;
+        }
+
+        try {
+            synchronized (out) {
+                out.write(ServiceLinkProtocol.HEARTBEAT);
+                out.flush();
+            }
+        } catch (IOException e) {
+            logger.warn("ServiceLink: Exception while sending heartbeat!", e);
+            closeConnectionToHub();
+        }
+    }
+
+    private synchronized void setStandbyHub(DirectSocketAddress a) {
+        standbyHub = a;
+    }
+
+    private synchronized DirectSocketAddress getStandbyHub() {
+        return standbyHub;
+    }
+
+    private synchronized DirectSocketAddress [] getHubs() {
+        return hubs.toArray(new DirectSocketAddress[hubs.size()]);
+    }
+
+    private synchronized void setKnownHubs(DirectSocketAddress [] a) {
+        knownHubs = a;
+    }
+
+    private synchronized DirectSocketAddress [] getKnownHubs() {
+        return knownHubs;
+    }
+
+    // Note that sameProcess cannot be used here, since it considers all
+    // loopback addresses to be the same.
+    private boolean isCurrentHub(DirectSocketAddress a) {
+        return a.equals(hubAddress) || a.equals(hubContact);
+    }
+
+    private void addCandidate(LinkedList<DirectSocketAddress> list,
+            DirectSocketAddress a) {
+
+        if (a != null && !list.contains(a) && !isCurrentHub(a)) {
+            list.add(a);
+        }
+    }
+
+    private synchronized boolean takeReregister() {
+        boolean result = reregister;
+        reregister = false;
+        return result;
+    }
+
+    // Returns the hubs to try when (re)connecting, in order of preference:
+    // the standby hub, the configured hubs, the hubs the previous hub told us
+    // about and finally the hub we were connected to. When we only
+    // disconnected to register again, the hub we were connected to is tried
+    // first.
+    private LinkedList<DirectSocketAddress> getCandidateHubs() {
+        return getCandidateHubs(false);
+    }
+
+    private LinkedList<DirectSocketAddress> getCandidateHubs(
+            boolean currentFirst) {
+
+        LinkedList<DirectSocketAddress> result =
+            new LinkedList<DirectSocketAddress>();
+
+        if (currentFirst && hubContact != null) {
+            result.add(hubContact);
+        }
+
+        addCandidate(result, getStandbyHub());
+
+        for (DirectSocketAddress a : getHubs()) {
+            addCandidate(result, a);
+        }
+
+        DirectSocketAddress [] known = getKnownHubs();
+
+        if (known != null) {
+            for (DirectSocketAddress a : known) {
+                addCandidate(result, a);
+            }
+        }
+
+        if (hubAddress != null && !currentFirst) {
+            result.add(hubAddress);
+        }
+
+        return result;
+    }
+
+    // Checks if one of the other hubs is alive, so we know where to go when
+    // the current hub dies. The hub list is refreshed each time, since hubs
+    // may join after we connected.
+    private void probeStandbyHub() {
+
+        try {
+            setKnownHubs(hubs());
+        } catch (IOException e) {
+            logger.info("ServiceLink: failed to retrieve hub list", e);
+        }
+
+        for (DirectSocketAddress a : getCandidateHubs()) {
+
+            if (isCurrentHub(a)) {
+                continue;
+            }
+
+            DirectSocket s = null;
+            DataOutputStream o = null;
+
+            try {
+                s = factory.createSocket(a, heartbeatTimeout, 0, -1, -1, null,
+                        false, virtualHubPort);
+
+                o = new DataOutputStream(s.getOutputStream());
+                o.write(ConnectionProtocol.PING);
+                o.writeUTF(myAddress.toString());
+                o.flush();
+
+                if (logger.isInfoEnabled()) {
+                    logger.info("ServiceLink: using standby hub " + a);
+                }
+
+                setStandbyHub(a);
+                return;
+            } catch (IOException e) {
+                if (logger.isInfoEnabled()) {
+                    logger.info("ServiceLink: standby hub " + a
+                            + " not reachable");
+                }
+            } finally {
+                DirectSocketFactory.close(s, o, null);
+            }
+        }
+
+        setStandbyHub(null);
+    }
+
+    /**
+     * Creates connections to several hubs at once. The connections that
+     * succeed are handed out in the order in which they were created.
+     */
+    private final class HubRace {
+
+        private final LinkedList<DirectSocketAddress> started =
+            new LinkedList<DirectSocketAddress>();
+
+        private final LinkedList<DirectSocketAddress> readyAddress =
+            new LinkedList<DirectSocketAddress>();
+
+        private final LinkedList<DirectSocket> readySocket =
+            new LinkedList<DirectSocket>();
+
+        private int pending = 0;
+
+        private boolean changed = false;
+
+        private boolean done = false;
+
+        private final class Connector implements Runnable {
+
+            private final DirectSocketAddress address;
+
+            Connector(DirectSocketAddress address) {
+                this.address = address;
+            }
+
+            public void run() {
+
+                DirectSocket s = null;
+
+                try {
+                    s = createHubSocket(address);
+                } catch (IOException e) {
+                    logger.info("Connection setup to hub at " + address
+                            + " failed: ", e);
+                }
+
+                connectorDone(address, s);
+            }
+        }
+
+        // Starts a connection setup to each address that we haven't tried
+        // yet.
+        synchronized void start(List<DirectSocketAddress> addresses) {
+
+            for (DirectSocketAddress a : addresses) {
+
+                if (done || started.contains(a)) {
+                    continue;
+                }
+
+                started.add(a);
+                pending++;
+
+                ThreadPool.createNew(new Connector(a),
+                        "ServiceLink Hub Connector");
+            }
+        }
+
+        private void connectorDone(DirectSocketAddress a, DirectSocket s) {
+
+            synchronized (this) {
+                pending--;
+
+                if (s != null && !done) {
+                    readyAddress.addLast(a);
+                    readySocket.addLast(s);
+                    s = null;
+                }
+
+                notifyAll();
+            }
+
+            // We are too late.
+            if (s != null) {
+                DirectSocketFactory.close(s, null, null);
+            }
+        }
+
+        synchronized void hubsAdded() {
+            changed = true;
+            notifyAll();
+        }
+
+        synchronized boolean hasPending() {
+            return pending > 0;
+        }
+
+        // Waits until a connection is ready (which is returned), or until
+        // new hubs have been added or all connection setups have failed
+        // (in which case null is returned).
+        synchronized DirectSocketAddress next() {
+
+            while (readySocket.isEmpty() && pending > 0 && !changed) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    // ignore
+                }
+            }
+
+            changed = false;
+
+            return readyAddress.isEmpty() ? null : readyAddress.getFirst();
+        }
+
+        synchronized DirectSocket take() {
+            readyAddress.removeFirst();
+            return readySocket.removeFirst();
+        }
+
+        // Closes all connections that are not used.
+        void finish() {
+
+            LinkedList<DirectSocket> unused;
+
+            synchronized (this) {
+                done = true;
+                unused = new LinkedList<DirectSocket>(readySocket);
+                readyAddress.clear();
+                readySocket.clear();
+            }
+
+            for (DirectSocket s : unused) {
+                DirectSocketFactory.close(s, null, null);
+            }
+        }
+    }
+
+    private synchronized void setRace(HubRace r) {
+        race = r;
+    }
+
+    // Connects to all candidate hubs at once, and uses the first one that
+    // accepts us. This way, unreachable hubs do not delay the startup. Hubs
+    // that are added while we are busy join the race.
+    private DirectSocketAddress connectToFirstHub() {
+
+        HubRace r = new HubRace();
+
+        setRace(r);
+
+        try {
+            while (!getDone()) {
+
+                r.start(getCandidateHubs());
+
+                DirectSocketAddress a = r.next();
+
+                if (a == null) {
+                    if (r.hasPending()) {
+                        continue;
+                    }
+
+                    // Check for hubs that were added just now.
+                    r.start(getCandidateHubs());
+
+                    if (r.hasPending()) {
+                        continue;
+                    }
+
+                    return null;
+                }
+
+                try {
+                    connectToHub(a, r.take());
+                    return a;
+                } catch (IOException e) {
+                    logger.info("Failed to connect to hub: " + a);
+                }
+            }
+
+            return null;
+
+        } finally {
+            setRace(null);
+            r.finish();
+        }
+    }
+
     private synchronized boolean getConnected() {
         return connected;
     }
@@ -287,37 +795,69 @@ public class ServiceLink implements Runnable {
         }
     }
 
-    private synchronized void closeConnectionToHub() {
+    private synchronized boolean disconnectFromHub() {
 
         // TODO: is the synchronization OK here ???
         if (!getConnected()) {
-            return;
+            return false;
         }
 
         setConnected(false);
 
         DirectSocketFactory.close(hub, out, in);
+        return true;
+    }
 
-        // Should close virtual connections here ?
+    private void closeConnectionToHub() {
 
-        /*      Long [] tmp = credits.keySet().toArray(new Long[0]);
+        if (!disconnectFromHub()) {
+            return;
+        }
 
-         for (long l : tmp) {
-         closeConnection(l);
-         }
-         */
+        // Tell the owners of the virtual connections right away, instead of
+        // letting them wait for data that will never arrive. Note that this
+        // must be done without holding our lock.
+        VirtualConnectionCallBack vcb = getVCCallBack();
+
+        if (vcb != null) {
+            vcb.hubConnectionLost();
+        }
+    }
+
+    private DirectSocket createHubSocket(DirectSocketAddress address)
+        throws IOException {
+
+        if (logger.isInfoEnabled()) {
+            logger.info("Service link attempting to connect to hub: "
+                    + address);
+        }
+
+        return factory.createSocket(address, TIMEOUT, 0, sendBuffer,
+                receiveBuffer, null, false, virtualHubPort);
     }
 
     private void connectToHub(DirectSocketAddress address) throws IOException {
+
+        DirectSocket s;
+
         try {
-            if (logger.isInfoEnabled()) {
-                logger.info("Service link attempting to connect to hub: "
-                        + address);
-            }
+            s = createHubSocket(address);
+        } catch (IOException e) {
+            logger.info("Connection setup to hub at " + address + " failed: ",
+                    e);
+            throw e;
+        }
+
+        connectToHub(address, s);
+    }
+
+    // Asks the hub at the other side of the socket if we may join.
+    private void connectToHub(DirectSocketAddress address, DirectSocket s)
+        throws IOException {
 
-            // Create a connection to the hub
-            hub = factory.createSocket(address, TIMEOUT, 0, sendBuffer,
-                    receiveBuffer, null, false, virtualHubPort);
+        try {
+            hub = s;
+            hubContact = address;
 
             hub.setTcpNoDelay(true);
 
@@ -363,6 +903,11 @@ public class ServiceLink implements Runnable {
         } catch (IOException e) {
             logger.info("Connection setup to hub at " + address + " failed: ",
                     e);
+
+            if (!getConnected()) {
+                DirectSocketFactory.close(s, null, null);
+            }
+
             closeConnectionToHub();
             throw e;
         }
@@ -703,10 +1248,15 @@ public class ServiceLink implements Runnable {
         disconnectCallback(index);
     }
 
-    private void handleIncomingMessage() throws IOException {
+    private void handleIncomingMessage(boolean piggyback) throws IOException {
 
         long index = in.readLong();
         int len = in.readInt();
+        int ack = 0;
+
+        if (piggyback) {
+            ack = in.readInt();
+        }
 
         if (logger.isDebugEnabled()) {
             logger.debug("Reading virtual message(" + len
@@ -733,6 +1283,12 @@ public class ServiceLink implements Runnable {
                     + " connection: " + index);
         }
 
+        // Deliver the piggybacked ACK first, so the credits are available
+        // before the message is processed.
+        if (ack > 0) {
+            vcb.gotMessageACK(index, ack);
+        }
+
         if (!vcb.gotMessage(index, len, in)) {
             if (logger.isInfoEnabled()) {
                 logger.debug("Message for " + index + " not read!");
@@ -772,6 +1328,8 @@ public class ServiceLink implements Runnable {
             try {
                 int header = in.read();
 
+                gotTraffic();
+
                 if (logger.isDebugEnabled()) {
                     logger.debug("Servicelink got message (type: " + header
                             + ")");
@@ -807,7 +1365,11 @@ public class ServiceLink implements Runnable {
                     break;
 
                 case MessageForwarderProtocol.MESSAGE_VIRTUAL:
-                    handleIncomingMessage();
+                    handleIncomingMessage(false);
+                    break;
+
+                case MessageForwarderProtocol.MESSAGE_VIRTUAL_PIGGYBACK:
+                    handleIncomingMessage(true);
                     break;
 
                 case MessageForwarderProtocol.MESSAGE_VIRTUAL_ACK:
@@ -822,6 +1384,10 @@ public class ServiceLink implements Runnable {
                     handlePropertyAck();
                     break;
 
+                case ServiceLinkProtocol.HEARTBEAT_ACK:
+                    // Only used to update the time we last heard from the hub.
+                    break;
+
                 default:
                     logger.warn("ServiceLink: Received unknown opcode!: "
                             + header);
@@ -1056,6 +1622,9 @@ public class ServiceLink implements Runnable {
             }
 
             return convertToClientInfo((String[]) getInfoReply(id));
+        } catch (SocketTimeoutException e) {
+            // The hub is slow, but the connection may still be fine.
+            throw e;
         } catch (IOException e) {
             logger.warn("ServiceLink: Exception while writing to hub!", e);
             closeConnectionToHub();
@@ -1090,6 +1659,9 @@ public class ServiceLink implements Runnable {
             }
 
             return convertToClientInfo((String[]) getInfoReply(id));
+        } catch (SocketTimeoutException e) {
+            // The hub is slow, but the connection may still be fine.
+            throw e;
         } catch (IOException e) {
             logger.warn("ServiceLink: Exception while writing to hub!", e);
             closeConnectionToHub();
@@ -1121,6 +1693,9 @@ public class ServiceLink implements Runnable {
             return DirectSocketAddress
                     .convertToSocketAddressSet((String[]) getInfoReply(id));
 
+        } catch (SocketTimeoutException e) {
+            // The hub is slow, but the connection may still be fine.
+            throw e;
         } catch (IOException e) {
             logger.warn("ServiceLink: Exception while writing to hub!", e);
             closeConnectionToHub();
@@ -1130,12 +1705,53 @@ public class ServiceLink implements Runnable {
         }
     }
 
+    /**
+     * Adds hubs to the list of hubs this ServiceLink may connect to. If the
+     * ServiceLink is still setting up its first connection, it will also try
+     * these hubs right away.
+     *
+     * @param hubs The hub addresses.
+     */
     public void addHubs(DirectSocketAddress... hubs) {
-        // TODO: implement!
+
+        HubRace r;
+
+        synchronized (this) {
+            for (DirectSocketAddress a : hubs) {
+                if (a != null && !this.hubs.contains(a)) {
+                    this.hubs.add(a);
+                }
+            }
+
+            r = race;
+        }
+
+        if (r != null) {
+            r.hubsAdded();
+        }
     }
 
+    /**
+     * Adds hubs to the list of hubs this ServiceLink may connect to.
+     *
+     * @param hubs The hub addresses.
+     * @see #addHubs(DirectSocketAddress...)
+     */
     public void addHubs(String... hubs) {
-        // TODO: implement!
+
+        LinkedList<DirectSocketAddress> tmp =
+            new LinkedList<DirectSocketAddress>();
+
+        for (String h : hubs) {
+            try {
+                tmp.add(DirectSocketAddress.getByAddress(h));
+            } catch (Exception e) {
+                logger.warn("ServiceLink: failed to understand hub address: "
+                        + h, e);
+            }
+        }
+
+        addHubs(tmp.toArray(new DirectSocketAddress[tmp.size()]));
     }
 
     public HubInfo[] hubDetails() throws IOException {
@@ -1159,6 +1775,9 @@ public class ServiceLink implements Runnable {
 
             return convertToHubInfo((String[]) getInfoReply(id));
 
+        } catch (SocketTimeoutException e) {
+            // The hub is slow, but the connection may still be fine.
+            throw e;
         } catch (IOException e) {
             logger.warn("ServiceLink: Exception while writing to hub!", e);
             closeConnectionToHub();
@@ -1191,6 +1810,9 @@ public class ServiceLink implements Runnable {
             return DirectSocketAddress
                     .convertToSocketAddressSet((String[]) getInfoReply(id));
 
+        } catch (SocketTimeoutException e) {
+            // The hub is slow, but the connection may still be fine.
+            throw e;
         } catch (IOException e) {
             logger.warn("ServiceLink: Exception while writing to hub!", e);
             closeConnectionToHub();
@@ -1207,6 +1829,50 @@ public class ServiceLink implements Runnable {
         return hubAddress;
     }
 
+    /**
+     * Returns the address of the hub we are currently connected to, without
+     * waiting for a connection to be established.
+     *
+     * @return the current hub, or null if we are not connected.
+     */
+    public synchronized DirectSocketAddress getCurrentHub() {
+
+        if (!connected) {
+            return null;
+        }
+
+        return hubAddress;
+    }
+
+    /**
+     * Changes the address under which this ServiceLink is registered at the
+     * hub. The hub knows its clients by their address, so the link
+     * reconnects to the current hub to register the new address. As with a
+     * failover, hub routed connections through the link are closed.
+     *
+     * @param address the new local address.
+     * @return if the address was changed.
+     */
+    public boolean updateAddress(DirectSocketAddress address) {
+
+        synchronized (this) {
+            if (address.equals(myAddress)) {
+                return false;
+            }
+
+            myAddress = address;
+            reregister = true;
+        }
+
+        if (logger.isInfoEnabled()) {
+            logger.info("ServiceLink: registering new address " + address
+                    + " at hub " + hubAddress);
+        }
+
+        closeConnectionToHub();
+        return true;
+    }
+
     /*
      private void registerConnectionACK(long index) {
      synchronized (connectionACKs) {
@@ -1487,6 +2153,24 @@ public class ServiceLink implements Runnable {
 
     public void sendVirtualMessage(long index, byte[] message, int off,
             int len, int timeout) throws IOException {
+        sendVirtualMessage(index, message, off, len, 0, timeout);
+    }
+
+    /**
+     * Sends a virtual message that also carries an ACK of <code>ack</code>
+     * bytes for the reverse direction of the connection. This requires all
+     * hubs on the path to support piggybacked ACKs.
+     *
+     * @param index the virtual connection.
+     * @param message the data to send.
+     * @param off the offset of the data.
+     * @param len the length of the data.
+     * @param ack the number of bytes to acknowledge (0 for none).
+     * @param timeout the timeout
+     * @throws IOException if there is no connection to the hub.
+     */
+    public void sendVirtualMessage(long index, byte[] message, int off,
+            int len, int ack, int timeout) throws IOException {
 
         if (!getConnected()) {
             throw new IOException("No connection to hub!");
@@ -1498,9 +2182,16 @@ public class ServiceLink implements Runnable {
 
         try {
             synchronized (out) {
-                out.write(MessageForwarderProtocol.MESSAGE_VIRTUAL);
-                out.writeLong(index);
-                out.writeInt(len);
+                if (ack > 0) {
+                    out.write(MessageForwarderProtocol.MESSAGE_VIRTUAL_PIGGYBACK);
+                    out.writeLong(index);
+                    out.writeInt(len);
+                    out.writeInt(ack);
+                } else {
+                    out.write(MessageForwarderProtocol.MESSAGE_VIRTUAL);
+                    out.writeLong(index);
+                    out.writeInt(len);
+                }
                 out.write(message, off, len);
                 out.flush();
             }
@@ -1566,6 +2257,9 @@ public class ServiceLink implements Runnable {
             }
 
             return getInfoReply(id, ServiceLinkProtocol.PROPERTY_ACCEPTED);
+        } catch (SocketTimeoutException e) {
+            // The hub is slow, but the connection may still be fine.
+            throw e;
         } catch (IOException e) {
             logger.warn("ServiceLink: Exception while writing to hub!", e);
             closeConnectionToHub();
@@ -1601,6 +2295,9 @@ public class ServiceLink implements Runnable {
             }
 
             return getInfoReply(id, ServiceLinkProtocol.PROPERTY_ACCEPTED);
+        } catch (SocketTimeoutException e) {
+            // The hub is slow, but the connection may still be fine.
+            throw e;
         } catch (IOException e) {
             logger.warn("ServiceLink: Exception while writing to hub!", e);
             closeConnectionToHub();
@@ -1631,6 +2328,9 @@ public class ServiceLink implements Runnable {
             }
 
             return getInfoReply(id, ServiceLinkProtocol.PROPERTY_ACCEPTED);
+        } catch (SocketTimeoutException e) {
+            // The hub is slow, but the connection may still be fine.
+            throw e;
         } catch (IOException e) {
             logger.warn("ServiceLink: Exception while writing to hub!", e);
             closeConnectionToHub();
@@ -1671,37 +2371,41 @@ public class ServiceLink implements Runnable {
             int sleep = 1000;
             long end = System.currentTimeMillis() + maxReconnect;
 
+            DirectSocketAddress previous = hubAddress;
+
             do {
                 if (hubAddress == null) {
-                    // This is the initial connect, where we haven't found a working hub yet....
-                    for (DirectSocketAddress a : hubs) {
+                    // This is the initial connect, where we haven't found a
+                    // working hub yet. We try all candidates at once.
+                    DirectSocketAddress a = connectToFirstHub();
+
+                    if (a != null) {
+                        hubAddress = a;
+                    }
+                } else {
+                    // We've lost contact with the hub. We try all candidates
+                    // in order of preference before backing off, so a dead
+                    // hub immediately results in a failover to the next one.
+                    for (DirectSocketAddress a :
+                            getCandidateHubs(takeReregister())) {
                         try {
                             connectToHub(a);
-                            hubAddress = a;
                             break;
                         } catch (IOException e) {
                             // Connection setup failed..
                             logger.info("Failed to connect to hub: " + a);
                         }
                     }
+                }
+
+                if (!getConnected()) {
+
+                    setStandbyHub(null);
 
-                    if (!getConnected()) {
-                        try {
-                            Thread.sleep(sleep);
-                        } catch (InterruptedException ie) {
-                            // ignore
-                        }
-                    }
-                } else {
-                    // This happens when we've lost contact with the hub and try to reconnect.
                     try {
-                        connectToHub(hubAddress);
-                    } catch (IOException e) {
-                        try {
-                            Thread.sleep(sleep);
-                        } catch (InterruptedException ie) {
-                            // ignore
-                        }
+                        Thread.sleep(sleep);
+                    } catch (InterruptedException ie) {
+                        // ignore
                     }
                 }
 
@@ -1715,7 +2419,20 @@ public class ServiceLink implements Runnable {
                     System.exit(1);
                 }
 
-            } while (!getConnected());
+            } while (!getConnected() && !getDone());
+
+            // Users of the link include the hub in their own addresses, so
+            // they must be told when we failed over to another hub. Note that
+            // this must be done without holding our lock.
+            if (previous != null && getConnected()
+                    && !previous.equals(hubAddress)) {
+
+                HubChangeCallBack cb = getHubChangeCallBack();
+
+                if (cb != null) {
+                    cb.hubChanged(previous, hubAddress);
+                }
+            }
 
             sleep = 1000;
             receiveMessages();
@@ -1744,12 +2461,24 @@ public class ServiceLink implements Runnable {
         boolean force = true;
         long maxReconnect = 0;
 
+        int heartbeatInterval = 0;
+        int heartbeatTimeout = 0;
+        boolean standby = false;
+
         if (p != null) {
             sendBuffer = p.getIntProperty(SmartSocketsProperties.SL_SEND_BUFFER, -1);
             receiveBuffer = p.getIntProperty(SmartSocketsProperties.SL_RECEIVE_BUFFER, -1);
             virtualHubPort = p.getIntProperty(SmartSocketsProperties.HUB_VIRTUAL_PORT, 42);
             force = p.booleanProperty(SmartSocketsProperties.SL_FORCE);
 
+            heartbeatInterval = p.getIntProperty(
+                    SmartSocketsProperties.SL_HEARTBEAT_INTERVAL, 0);
+            heartbeatTimeout = p.getIntProperty(
+                    SmartSocketsProperties.SL_HEARTBEAT_TIMEOUT,
+                    3 * heartbeatInterval);
+            standby = p.booleanProperty(SmartSocketsProperties.SL_STANDBY,
+                    false);
+
             if (force) {
                 maxReconnect = ((long) p.getIntProperty(SmartSocketsProperties.SL_RETRIES)) *
                 ((long) p.getIntProperty(SmartSocketsProperties.SL_TIMEOUT));
@@ -1758,7 +2487,8 @@ public class ServiceLink implements Runnable {
 
         try {
             return new ServiceLink(hubs, myAddress, sendBuffer,
-                    receiveBuffer, virtualHubPort, maxReconnect, force);
+                    receiveBuffer, virtualHubPort, maxReconnect, force,
+                    heartbeatInterval, heartbeatTimeout, standby);
 
         } catch (Exception e) {
             logger.warn("ServiceLink: Failed to connect to hub!", e);
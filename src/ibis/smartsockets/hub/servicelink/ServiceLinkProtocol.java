@@ -22,6 +22,10 @@ public interface ServiceLinkProtocol extends MessageForwarderProtocol {
     public static final byte DIRECTION         = 45;
     public static final byte INFO_REPLY        = 49;
 
+    // Liveness opcodes
+    public static final byte HEARTBEAT         = 50;
+    public static final byte HEARTBEAT_ACK     = 51;
+
     // Virtual connection error codes (only used in combination with opcode)
     public static final byte ERROR_NO_CALLBACK        = 1;
     public static final byte ERROR_PORT_NOT_FOUND     = 2;
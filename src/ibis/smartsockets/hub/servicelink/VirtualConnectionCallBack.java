@@ -20,4 +20,11 @@ public interface VirtualConnectionCallBack {
     boolean gotMessage(long index, int len, DataInputStream in) throws IOException ;
     void gotMessageACK(long index, int data);
 
+    /**
+     * Invoked when the connection to the hub is lost. The virtual
+     * connections routed through that hub are not resumed when the
+     * servicelink fails over to another hub, so they should all be failed.
+     */
+    void hubConnectionLost();
+
 }
@@ -1,7 +1,8 @@
 package ibis.smartsockets.naming;
 
+import ibis.smartsockets.SmartSocketsProperties;
 import ibis.smartsockets.util.MalformedAddressException;
-import ibis.smartsockets.util.ThreadPool;
+import ibis.smartsockets.util.TypedProperties;
 import ibis.smartsockets.virtual.InitializationException;
 import ibis.smartsockets.virtual.VirtualSocketAddress;
 import ibis.smartsockets.virtual.VirtualSocketFactory;
@@ -10,9 +11,12 @@ import java.io.IOException;
 import java.net.UnknownHostException;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.Timer;
+import java.util.TimerTask;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -21,6 +25,12 @@ import org.slf4j.LoggerFactory;
  * This class presents a resolver interface which can be used to register
  * and resolve names to smart socket addresses.
  *
+ * Names learned from other processes are cached for a limited time, and are
+ * refreshed in the background when they are used shortly before they expire.
+ * At most one query per name is in flight at any time; all callers waiting
+ * for the name share its answer. A query that is not answered is remembered
+ * for a while, so the name is not queried again right away.
+ *
  * @author nick <palmer@cs.vu.nl>
  *
  */
@@ -67,6 +77,25 @@ public final class NameResolver {
         void onLocalNameRemoved(String name);
     }
 
+    /**
+     * The interface used to deliver the result of
+     * {@link NameResolver#resolveAsync(String, int, ResolveListener)}.
+     * @author nick
+     *
+     */
+    public static interface ResolveListener {
+        /**
+         * Called when a name has been resolved, or could not be resolved in
+         * time. This is called by one of the threads of the resolver (or by
+         * the caller of resolveAsync if the name is known already), and
+         * should therefore return quickly.
+         * @param name the name that was resolved
+         * @param address the address of the name, or null if the name could
+         *      not be resolved in time
+         */
+        void onResolved(String name, VirtualSocketAddress address);
+    }
+
     /**
      * Represents a name record in the system.
      * @author nick <palmer@cs.vu.nl>
@@ -78,11 +107,16 @@ public final class NameResolver {
          * @param name the name of the socket
          * @param address the address of the socket
          * @param data application specific data for the service
+         * @param expires the time at which this record expires
+         * @param refresh the time after which this record is refreshed
          */
         NameRecord(final String name, final VirtualSocketAddress address,
-                final Map<String, String>data) {
+                final Map<String, String>data, final long expires,
+                final long refresh) {
             mAddress = address;
             mSocketInfo = data;
+            mExpires = expires;
+            mRefresh = refresh;
         }
 
         /**
@@ -94,14 +128,88 @@ public final class NameResolver {
          * The app specific info for this record.
          */
         private final Map<String, String> mSocketInfo;
+
+        /**
+         * The time at which this record expires.
+         */
+        private final long mExpires;
+
+        /**
+         * The time after which this record is refreshed when it is used.
+         */
+        private final long mRefresh;
+    }
+
+    /**
+     * A query for a name which is in flight. Sends the query using each of
+     * the resolver methods when it is run.
+     */
+    private final class Query extends TimerTask {
+
+        /**
+         * The name being queried.
+         */
+        private final String mName;
+
+        /**
+         * Constructs a new query.
+         * @param name the name to query for
+         */
+        Query(final String name) {
+            mName = name;
+        }
+
+        @Override
+        public void run() {
+            for (NameResolverMethod method : mResolverMethods) {
+                try {
+                    method.query(mName);
+                } catch (Exception e) {
+                    LOGGER.error("Exception while querying with " + method, e);
+                }
+            }
+        }
+    }
+
+    /**
+     * A caller of resolveAsync which is waiting for a name. Gives up when it
+     * is run.
+     */
+    private final class AsyncRequest extends TimerTask {
+
+        /**
+         * The name being resolved.
+         */
+        private final String mName;
+
+        /**
+         * The listener to inform.
+         */
+        private final ResolveListener mListener;
+
+        /**
+         * Constructs a new request.
+         * @param name the name being resolved
+         * @param listener the listener to inform
+         */
+        AsyncRequest(final String name, final ResolveListener listener) {
+            mName = name;
+            mListener = listener;
+        }
+
+        @Override
+        public void run() {
+            if (removeRequest(this)) {
+                LOGGER.debug("Timeout. Unable to resolve: {}", mName);
+                mListener.onResolved(mName, null);
+            }
+        }
     }
 
     /* TODO: Combine the following three data structures into one
-     * using flags on the NameRecord and add TTL values to the
-     * registered names. Then add a GC thread
-     * which expires names which are beyond the TTL that we are not
-     * authoritative for and re-registers names that we are authoritative
-     * for shortly before they are set to expire.
+     * using flags on the NameRecord. Then re-register names that we are
+     * authoritative for shortly before they are set to expire at the
+     * other processes.
      */
 
     /**
@@ -109,6 +217,44 @@ public final class NameResolver {
      */
     private Map<String, NameRecord>mNames = new HashMap<String, NameRecord>();
 
+    /**
+     * The names for which a query was not answered, and the time until
+     * which they should not be queried again.
+     */
+    private Map<String, Long> mMisses = new HashMap<String, Long>();
+
+    /**
+     * The queries which are in flight.
+     */
+    private Map<String, Query> mQueries = new HashMap<String, Query>();
+
+    /**
+     * The callers of resolveAsync waiting for a name.
+     */
+    private Map<String, List<AsyncRequest>> mRequests =
+            new HashMap<String, List<AsyncRequest>>();
+
+    /**
+     * Sends the queries and handles all timeouts.
+     */
+    private final Timer mTimer = new Timer("NameResolver", true);
+
+    /**
+     * The time for which names learned from other processes are used.
+     */
+    private final long mTTL;
+
+    /**
+     * The time after which an unanswered query is given up.
+     */
+    private final long mQueryTimeout;
+
+    /**
+     * The time during which a name is not queried again after a query for it
+     * was not answered.
+     */
+    private final long mNegativeTTL;
+
     /**
      * The names that are "local" names
      */
@@ -127,13 +273,31 @@ public final class NameResolver {
     /** Constructs a new name resolver.
      *
      * @param factory the socket factory to use
+     * @param props the properties to use
      * @throws InitializationException if something goes wrong
      */
-    private NameResolver(final String name, final VirtualSocketFactory factory)
+    private NameResolver(final String name, final VirtualSocketFactory factory,
+            final TypedProperties props)
             throws InitializationException {
         mFactory = factory;
+        mTTL = props.getLongProperty(SmartSocketsProperties.NAMING_TTL,
+                300000);
+        mQueryTimeout = props.getLongProperty(
+                SmartSocketsProperties.NAMING_QUERY_TIMEOUT, 2000);
+        mNegativeTTL = props.getLongProperty(
+                SmartSocketsProperties.NAMING_NEGATIVE_TTL, 5000);
+
+        // Periodically drop the names and misses which have expired.
+        mTimer.schedule(new TimerTask() {
+            @Override
+            public void run() {
+                purge();
+            }
+        }, mNegativeTTL, Math.max(1000, mNegativeTTL));
+
         mResolverMethods = NameResolverMethod.initMethodsForResolver(this);
         if (mResolverMethods.size() == 0) {
+            mTimer.cancel();
             throw new InitializationException(
                     "Unable to initialize any resolver methods.");
         }
@@ -152,11 +316,17 @@ public final class NameResolver {
     }
 
     private void close() {
+        mTimer.cancel();
         for (NameResolverMethod method : mResolverMethods) {
             method.stop();
         }
         mListeners.clear();
-        mNames.clear();
+        synchronized (mNames) {
+            mNames.clear();
+            mMisses.clear();
+            mQueries.clear();
+            mRequests.clear();
+        }
         mFactory.end();
     }
 
@@ -181,7 +351,15 @@ public final class NameResolver {
                 resolver = sResolvers.get(name);
             } else {
                 VirtualSocketFactory factory = VirtualSocketFactory.getOrCreateSocketFactory(name, props, addDefaults);
-                resolver = new NameResolver(name, factory);
+                TypedProperties typedProps = new TypedProperties();
+                if (addDefaults) {
+                    typedProps.putAll(
+                            SmartSocketsProperties.getDefaultProperties());
+                }
+                if (props != null) {
+                    typedProps.putAll(props);
+                }
+                resolver = new NameResolver(name, factory, typedProps);
                 sResolvers.put(name, resolver);
             }
         }
@@ -207,23 +385,19 @@ public final class NameResolver {
         VirtualSocketAddress address = null;
         long finish = System.currentTimeMillis() + timeout;
         synchronized (mNames) {
+            LOGGER.debug("Attempting to resolve: {}", name);
             while (address == null) {
-                LOGGER.debug("Attempting to resolve: {}", name);
-                if (mNames.containsKey(name)) {
-                    NameRecord record = mNames.get(name);
+                long now = System.currentTimeMillis();
+                NameRecord record = getRecord(name, now);
+                if (record != null) {
                     address = record.mAddress;
                     LOGGER.debug("Resolved: {} {}", name, address);
-                } else {
-                    // Spawn threads to handle the query with each method.
-                    for (final NameResolverMethod method : mResolverMethods) {
-                        ThreadPool.createNew(new Runnable() {
-                            @Override
-                            public void run() {
-                                method.query(name);
-                            }
-                        }, "query " + name + " " + method);
+                    if (now >= record.mRefresh) {
+                        startQuery(name, now);
                     }
-                    long now = System.currentTimeMillis();
+                } else {
+                    // Does nothing if a query is in flight already.
+                    startQuery(name, now);
                     if (timeout > 0 && now < finish) {
                         try {
                             mNames.wait(finish - now);
@@ -243,6 +417,197 @@ public final class NameResolver {
         return address;
     }
 
+    /**
+     * Resolves a name without blocking. The listener is called once the name
+     * is resolved, or when the timeout expires.
+     * @param name The name to be resolved
+     * @param timeout The maximum time to wait for resolution
+     * @param listener The listener to inform
+     */
+    public void resolveAsync(final String name, final int timeout,
+            final ResolveListener listener) {
+        VirtualSocketAddress address = null;
+        synchronized (mNames) {
+            long now = System.currentTimeMillis();
+            NameRecord record = getRecord(name, now);
+            if (record != null) {
+                address = record.mAddress;
+                if (now >= record.mRefresh) {
+                    startQuery(name, now);
+                }
+            } else {
+                startQuery(name, now);
+                if (timeout > 0) {
+                    AsyncRequest request = new AsyncRequest(name, listener);
+                    List<AsyncRequest> requests = mRequests.get(name);
+                    if (requests == null) {
+                        requests = new ArrayList<AsyncRequest>();
+                        mRequests.put(name, requests);
+                    }
+                    requests.add(request);
+                    mTimer.schedule(request, timeout);
+                    return;
+                }
+            }
+        }
+        listener.onResolved(name, address);
+    }
+
+    /**
+     * Returns the record for a name if it is valid. Removes the record if it
+     * has expired. Must be called while holding mNames.
+     * @param name The name to look up
+     * @param now The current time
+     * @return the record or null
+     */
+    private NameRecord getRecord(final String name, final long now) {
+        NameRecord record = mNames.get(name);
+        if (record != null && now >= record.mExpires) {
+            LOGGER.debug("Expired: {}", name);
+            mNames.remove(name);
+            record = null;
+        }
+        return record;
+    }
+
+    /**
+     * Starts a query for a name, unless one is in flight already, or a query
+     * for the name recently went unanswered. Must be called while holding
+     * mNames.
+     * @param name The name to query for
+     * @param now The current time
+     */
+    private void startQuery(final String name, final long now) {
+        if (mQueries.containsKey(name)) {
+            return;
+        }
+
+        Long miss = mMisses.get(name);
+
+        if (miss != null) {
+            if (now < miss) {
+                return;
+            }
+            mMisses.remove(name);
+        }
+
+        LOGGER.debug("Querying for: {}", name);
+
+        final Query query = new Query(name);
+        mQueries.put(name, query);
+
+        // The timer sends the query, so we don't block while holding mNames.
+        mTimer.schedule(query, 0);
+        mTimer.schedule(new TimerTask() {
+            @Override
+            public void run() {
+                queryDone(query);
+            }
+        }, mQueryTimeout);
+    }
+
+    /**
+     * Called when a query has not been answered in time.
+     * @param query The query
+     */
+    private void queryDone(final Query query) {
+        synchronized (mNames) {
+            if (mQueries.get(query.mName) != query) {
+                return;
+            }
+
+            mQueries.remove(query.mName);
+
+            long now = System.currentTimeMillis();
+
+            if (getRecord(query.mName, now) == null) {
+                LOGGER.debug("No answer for: {}", query.mName);
+                mMisses.put(query.mName, now + mNegativeTTL);
+            }
+        }
+    }
+
+    /**
+     * Removes a waiting caller of resolveAsync.
+     * @param request The request to remove
+     * @return true if the request was still waiting
+     */
+    private boolean removeRequest(final AsyncRequest request) {
+        synchronized (mNames) {
+            List<AsyncRequest> requests = mRequests.get(request.mName);
+            if (requests == null || !requests.remove(request)) {
+                return false;
+            }
+            if (requests.isEmpty()) {
+                mRequests.remove(request.mName);
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Stores a record, and wakes up everyone waiting for it. Must be called
+     * while holding mNames.
+     * @param name The name of the record
+     * @param record The record
+     * @return the callers of resolveAsync which must be informed
+     */
+    private List<AsyncRequest> addRecord(final String name,
+            final NameRecord record) {
+        mNames.put(name, record);
+        mMisses.remove(name);
+        mQueries.remove(name);
+        mNames.notifyAll();
+
+        List<AsyncRequest> requests = mRequests.remove(name);
+
+        if (requests != null) {
+            for (AsyncRequest request : requests) {
+                request.cancel();
+            }
+        }
+
+        return requests;
+    }
+
+    /**
+     * Informs the callers of resolveAsync. Must be called without holding
+     * mNames.
+     * @param requests The requests to inform (may be null)
+     * @param address The address to pass
+     */
+    private void inform(final List<AsyncRequest> requests,
+            final VirtualSocketAddress address) {
+        if (requests != null) {
+            for (AsyncRequest request : requests) {
+                request.mListener.onResolved(request.mName, address);
+            }
+        }
+    }
+
+    /**
+     * Drops all names and misses which have expired.
+     */
+    private void purge() {
+        synchronized (mNames) {
+            long now = System.currentTimeMillis();
+
+            Iterator<NameRecord> records = mNames.values().iterator();
+            while (records.hasNext()) {
+                if (now >= records.next().mExpires) {
+                    records.remove();
+                }
+            }
+
+            Iterator<Long> misses = mMisses.values().iterator();
+            while (misses.hasNext()) {
+                if (now >= misses.next()) {
+                    misses.remove();
+                }
+            }
+        }
+    }
+
     /**
      * @return the socket factory being used by this resolver
      */
@@ -259,15 +624,16 @@ public final class NameResolver {
             mNames.remove(socketName);
             mLocalNames.remove(socketName);
             mAuthorityFor.remove(socketName);
-            for (NameResolverMethod method : mResolverMethods) {
-                try {
-                    method.unregister(socketName);
-                } catch (IOException e) {
-                    LOGGER.error("Exception while unregistering with " + method, e);
-                }
-            }
             mNames.notifyAll();
         }
+        // This may take a while, so we don't hold mNames.
+        for (NameResolverMethod method : mResolverMethods) {
+            try {
+                method.unregister(socketName);
+            } catch (IOException e) {
+                LOGGER.error("Exception while unregistering with " + method, e);
+            }
+        }
     }
 
     /**
@@ -277,7 +643,7 @@ public final class NameResolver {
      */
     public boolean hasName(final String socketName) {
         synchronized (mNames) {
-            return mNames.containsKey(socketName);
+            return getRecord(socketName, System.currentTimeMillis()) != null;
         }
     }
 
@@ -308,19 +674,22 @@ public final class NameResolver {
     public void register(final String socketName,
             final VirtualSocketAddress address,
             final Map<String, String> serviceInfo) {
+        List<AsyncRequest> requests;
         synchronized (mNames) {
-            mNames.put(socketName,
-                    new NameRecord(socketName, address, serviceInfo));
+            // We are the authority for this name, so it never expires.
+            requests = addRecord(socketName, new NameRecord(socketName,
+                    address, serviceInfo, Long.MAX_VALUE, Long.MAX_VALUE));
             mLocalNames.add(socketName);
             mAuthorityFor.add(socketName);
-            for (NameResolverMethod method : mResolverMethods) {
-                try {
-                    method.register(socketName, address.toString(), serviceInfo);
-                } catch (IOException e) {
-                    LOGGER.error("Exception while registering with " + method, e);
-                }
+        }
+        inform(requests, address);
+        // This may take a while, so we don't hold mNames.
+        for (NameResolverMethod method : mResolverMethods) {
+            try {
+                method.register(socketName, address.toString(), serviceInfo);
+            } catch (IOException e) {
+                LOGGER.error("Exception while registering with " + method, e);
             }
-            mNames.notifyAll();
         }
     }
 
@@ -332,10 +701,14 @@ public final class NameResolver {
      */
     public Map<String, String> resolveInfo(final String serviceName,
             final int timeout) {
-        synchronized (mNames) {
-            // Make sure the name resolves
-            if (resolve(serviceName, timeout) != null) {
-                return mNames.get(serviceName).mSocketInfo;
+        // Make sure the name resolves
+        if (resolve(serviceName, timeout) != null) {
+            synchronized (mNames) {
+                NameRecord record = getRecord(serviceName,
+                        System.currentTimeMillis());
+                if (record != null) {
+                    return record.mSocketInfo;
+                }
             }
         }
         return null;
@@ -380,14 +753,29 @@ public final class NameResolver {
     void handleAdd(boolean local, String name, String address,
             Map<String, String>props)
             throws UnknownHostException, MalformedAddressException {
+        VirtualSocketAddress virtual = new VirtualSocketAddress(address);
+        List<AsyncRequest> requests;
         synchronized (mNames) {
-            mNames.put(name, new NameRecord(name,
-                    new VirtualSocketAddress(address), props));
+            if (mAuthorityFor.contains(name)) {
+                // Our own registration takes precedence.
+                return;
+            }
+            NameRecord record;
             if (local) {
-                mLocalNames.add(name);
+                // The method tells us when a local name is removed.
+                record = new NameRecord(name, virtual, props, Long.MAX_VALUE,
+                        Long.MAX_VALUE);
+                if (!mLocalNames.contains(name)) {
+                    mLocalNames.add(name);
+                }
+            } else {
+                long now = System.currentTimeMillis();
+                record = new NameRecord(name, virtual, props, now + mTTL,
+                        now + mTTL - mTTL / 4);
             }
-            mNames.notifyAll();
+            requests = addRecord(name, record);
         }
+        inform(requests, virtual);
         if (local) {
             for (LocalNamingListener listener : mListeners) {
                 listener.onLocalNameDiscovered(name);
@@ -283,54 +283,41 @@ public class NameResolverServiceLink extends NameResolverMethod {
 
     @Override
     public void query(final String name) {
+        // The resolver sends at most one query per name at a time, so a
+        // single thread which visits the hubs one by one is enough.
         ThreadPool.createNew(new Runnable() {
             @Override
             public void run() {
+                // TODO: Service link should have a broadcast primitive
+                final DirectSocketAddress[] hubs;
                 try {
-                    // TODO: Service link should have a broadcast primitive
-                    final DirectSocketAddress[] hubs = mServiceLink.hubs();
-                    LOGGER.debug("Have: {} hubs", hubs.length);
-                    for (final DirectSocketAddress hub : hubs) {
-                        ThreadPool.createNew(new Runnable() {
-
-                            @Override
-                            public void run() {
-                                LOGGER.debug("Checking hub: {}", hub);
-                                // And look at all of their clients
-                                try {
-                                    final ClientInfo[] clients = mServiceLink.clients(hub);
-                                    LOGGER.debug("Hub has {} clients.", clients.length);
-                                    for (final ClientInfo client : clients) {
-                                        // Send a query message to each naming client
-                                        LOGGER.debug("Checking client: {}", client.getClientAddress());
-                                        if (client.hasProperty("naming")) {
-                                            ThreadPool.createNew(new Runnable() {
-
-                                                @Override
-                                                public void run() {
-                                                    LOGGER.info("Querying for: {} to: {}", name, client.getClientAddress());
-                                                    mServiceLink.send(client.getClientAddress(), null,
-                                                            NAMING_MODULE, NAME_QUERY, buildNameMessage(name));
-                                                    LOGGER.debug("Query sent.");
-                                                }
-
-                                            },
-                                            "query-naming-client: " + name +
-                                            " " + client.getClientAddress());
-                                        } else {
-                                            LOGGER.debug("Not a naming client.");
-                                        }
-                                    }
-                                } catch (Exception e) {
-                                    LOGGER.error("Error asking for clients", e);
-                                }
-                            }
-
-                        }, "query-service-link: " +
-                                name + " : " + hub);
-                    }
+                    hubs = mServiceLink.hubs();
                 } catch (Exception e) {
                     LOGGER.error("Error while querying for name", e);
+                    return;
+                }
+                LOGGER.debug("Have: {} hubs", hubs.length);
+                for (final DirectSocketAddress hub : hubs) {
+                    LOGGER.debug("Checking hub: {}", hub);
+                    // And look at all of their clients
+                    try {
+                        final ClientInfo[] clients = mServiceLink.clients(hub);
+                        LOGGER.debug("Hub has {} clients.", clients.length);
+                        for (final ClientInfo client : clients) {
+                            // Send a query message to each naming client
+                            if (client.hasProperty("naming")) {
+                                LOGGER.info("Querying for: {} to: {}", name,
+                                        client.getClientAddress());
+                                mServiceLink.send(client.getClientAddress(),
+                                        null, NAMING_MODULE, NAME_QUERY,
+                                        buildNameMessage(name));
+                            } else {
+                                LOGGER.debug("Not a naming client.");
+                            }
+                        }
+                    } catch (Exception e) {
+                        LOGGER.error("Error asking for clients", e);
+                    }
                 }
             }
         }, "query-service-link: " + name);
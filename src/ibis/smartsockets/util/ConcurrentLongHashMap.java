@@ -0,0 +1,280 @@
+package ibis.smartsockets.util;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A thread safe hash map with primitive long keys.
+ *
+ * The map is split into a number of stripes, each of which is an open
+ * addressing (linear probing) hash table protected by its own lock. Lookups,
+ * insertions and removals do not allocate any objects (apart from the
+ * occasional resize), and threads using keys in different stripes do not
+ * contend with each other.
+ *
+ * Null values are not allowed.
+ */
+public class ConcurrentLongHashMap<V> {
+
+    private static final int DEFAULT_STRIPES = 16;
+
+    private static final int INITIAL_STRIPE_CAPACITY = 16;
+
+    private static final class Stripe {
+
+        private long [] keys;
+        private Object [] values;
+        private int mask;
+        private int size;
+
+        Stripe(int capacity) {
+            keys = new long[capacity];
+            values = new Object[capacity];
+            mask = capacity-1;
+        }
+
+        private int find(long key, int hash) {
+
+            int i = hash & mask;
+
+            while (values[i] != null) {
+                if (keys[i] == key) {
+                    return i;
+                }
+
+                i = (i+1) & mask;
+            }
+
+            return -1;
+        }
+
+        synchronized Object get(long key, int hash) {
+
+            int i = find(key, hash);
+
+            return i == -1 ? null : values[i];
+        }
+
+        synchronized Object put(long key, int hash, Object value) {
+
+            int i = hash & mask;
+
+            while (values[i] != null) {
+
+                if (keys[i] == key) {
+                    Object old = values[i];
+                    values[i] = value;
+                    return old;
+                }
+
+                i = (i+1) & mask;
+            }
+
+            keys[i] = key;
+            values[i] = value;
+            size++;
+
+            // Keep the load factor below 0.75
+            if (4*size > 3*keys.length) {
+                resize();
+            }
+
+            return null;
+        }
+
+        synchronized Object remove(long key, int hash) {
+
+            int i = find(key, hash);
+
+            if (i == -1) {
+                return null;
+            }
+
+            Object old = values[i];
+            values[i] = null;
+            size--;
+
+            // Shift back any entries in the same cluster that can no longer be
+            // found now that slot 'i' is empty.
+            int j = i;
+
+            while (true) {
+                j = (j+1) & mask;
+
+                if (values[j] == null) {
+                    break;
+                }
+
+                int k = hash(keys[j]) & mask;
+
+                // Only move the entry if its home slot is not in (i, j]
+                boolean stay = (i <= j) ? (i < k && k <= j) : (i < k || k <= j);
+
+                if (!stay) {
+                    keys[i] = keys[j];
+                    values[i] = values[j];
+                    values[j] = null;
+                    i = j;
+                }
+            }
+
+            return old;
+        }
+
+        synchronized int size() {
+            return size;
+        }
+
+        synchronized void values(List<Object> result, boolean clear) {
+
+            for (int i=0;i<values.length;i++) {
+                if (values[i] != null) {
+                    result.add(values[i]);
+
+                    if (clear) {
+                        values[i] = null;
+                    }
+                }
+            }
+
+            if (clear) {
+                size = 0;
+            }
+        }
+
+        private void resize() {
+
+            long [] oldKeys = keys;
+            Object [] oldValues = values;
+
+            keys = new long[oldKeys.length*2];
+            values = new Object[oldValues.length*2];
+            mask = keys.length-1;
+
+            for (int i=0;i<oldKeys.length;i++) {
+
+                if (oldValues[i] != null) {
+
+                    int j = hash(oldKeys[i]) & mask;
+
+                    while (values[j] != null) {
+                        j = (j+1) & mask;
+                    }
+
+                    keys[j] = oldKeys[i];
+                    values[j] = oldValues[i];
+                }
+            }
+        }
+    }
+
+    private final Stripe [] stripes;
+    private final int stripeShift;
+
+    public ConcurrentLongHashMap() {
+        this(DEFAULT_STRIPES);
+    }
+
+    /**
+     * Creates a new map with (at least) the given number of stripes.
+     *
+     * @param stripes the number of independently locked parts of the map.
+     */
+    public ConcurrentLongHashMap(int stripes) {
+
+        int bits = 0;
+
+        while ((1 << bits) < stripes) {
+            bits++;
+        }
+
+        this.stripes = new Stripe[1 << bits];
+        this.stripeShift = 32 - bits;
+
+        for (int i=0;i<this.stripes.length;i++) {
+            this.stripes[i] = new Stripe(INITIAL_STRIPE_CAPACITY);
+        }
+    }
+
+    private static int hash(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    private Stripe stripe(int hash) {
+        // The stripe uses the high bits of the hash, the slot the low bits.
+        return stripeShift == 32 ? stripes[0] : stripes[hash >>> stripeShift];
+    }
+
+    @SuppressWarnings("unchecked")
+    public V get(long key) {
+        int h = hash(key);
+        return (V) stripe(h).get(key, h);
+    }
+
+    @SuppressWarnings("unchecked")
+    public V put(long key, V value) {
+
+        if (value == null) {
+            throw new NullPointerException("Null values not allowed");
+        }
+
+        int h = hash(key);
+        return (V) stripe(h).put(key, h, value);
+    }
+
+    @SuppressWarnings("unchecked")
+    public V remove(long key) {
+        int h = hash(key);
+        return (V) stripe(h).remove(key, h);
+    }
+
+    public int size() {
+
+        int result = 0;
+
+        for (Stripe s : stripes) {
+            result += s.size();
+        }
+
+        return result;
+    }
+
+    /**
+     * Returns a snapshot of the values in the map.
+     *
+     * @return the values currently in the map.
+     */
+    @SuppressWarnings("unchecked")
+    public List<V> values() {
+
+        ArrayList<Object> result = new ArrayList<Object>();
+
+        for (Stripe s : stripes) {
+            s.values(result, false);
+        }
+
+        return (List<V>) (List<?>) result;
+    }
+
+    /**
+     * Removes all values from the map.
+     *
+     * Each stripe is cleared atomically, so every value that was in the map is
+     * returned exactly once, even if other threads are removing values
+     * concurrently.
+     *
+     * @return the values that were removed.
+     */
+    @SuppressWarnings("unchecked")
+    public List<V> removeAll() {
+
+        ArrayList<Object> result = new ArrayList<Object>();
+
+        for (Stripe s : stripes) {
+            s.values(result, true);
+        }
+
+        return (List<V>) (List<?>) result;
+    }
+}
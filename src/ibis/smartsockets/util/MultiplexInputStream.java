@@ -1,87 +1,198 @@
 package ibis.smartsockets.util;
 
-import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.SocketTimeoutException;
-import java.util.LinkedList;
 
 public class MultiplexInputStream extends InputStream {
 
     private final int stream;
 
-    private LinkedList<byte []> buffers = new LinkedList<byte []>();
-    private byte [] buffer;
+    // Received frames that have not been consumed yet, in a ring buffer. The
+    // first frame is partially consumed up to offset.
+    private byte [][] frames = new byte[8][];
+    private int [] lengths = new int[8];
+    private int first = 0;
+    private int count = 0;
 
     private int offset;
-    private int length;
 
- //   private boolean eos = false;
+    // Number of bytes received, but not consumed.
+    private int queued = 0;
+
+    // The window we have given the sender, and the number of bytes that can
+    // be added to it with the next WINDOW frame.
+    private int window;
+    private final int maxWindow;
+    private int unacked = 0;
+
+    // Set when the remote side has closed its output stream.
+    private boolean eos = false;
+
+    // Set when the underlying connection is lost.
+    private boolean lost = false;
+
     private boolean closed = false;
 
     private int timeout;
 
     private final MultiplexStreamFactory owner;
 
-    MultiplexInputStream(MultiplexStreamFactory owner, int stream) {
+    MultiplexInputStream(MultiplexStreamFactory owner, int stream, int window,
+            int maxWindow) {
         this.owner = owner;
         this.stream = stream;
+        this.window = window;
+        this.maxWindow = maxWindow;
+    }
+
+    final int getStream() {
+        return stream;
     }
 
     public synchronized void setTimeout(int timeout) {
         this.timeout = timeout;
     }
 
-    public synchronized void addBuffer(byte [] buf) {
-        buffers.add(buf);
-        notifyAll();
-    }
+    // Returns false if the stream was closed, in which case the buffer must
+    // be released by the caller. The sender sets blocked when it had to wait
+    // for window before sending this frame.
+    synchronized boolean addFrame(byte [] buf, int length, boolean blocked) {
 
-    private synchronized byte [] nextBuffer(boolean block) throws IOException {
+        if (closed) {
+            return false;
+        }
 
-        while (buffers.size() == 0) {
+        if (count == frames.length) {
+            byte [][] tmpFrames = new byte[count*2][];
+            int [] tmpLengths = new int[count*2];
 
-            if (!block) {
-                return null;
+            for (int i=0;i<count;i++) {
+                int index = (first + i) % count;
+                tmpFrames[i] = frames[index];
+                tmpLengths[i] = lengths[index];
             }
 
-            try {
-                wait(timeout);
-            } catch (InterruptedException e) {
-                // ignore
-            }
+            frames = tmpFrames;
+            lengths = tmpLengths;
+            first = 0;
+        }
 
-            if (timeout > 0 && buffers.size() == 0) {
-                // A timout has occurred
-                throw new SocketTimeoutException("Timeout occurred while "
-                        + "waiting for data");
-            }
+        int last = (first + count) % frames.length;
+
+        frames[last] = buf;
+        lengths[last] = length;
+        count++;
+
+        queued += length;
+
+        // The window is too small for the path if the sender runs out of it
+        // while we keep up with the data. Double it, and give the sender the
+        // extra room with the next WINDOW frame.
+        if (blocked && window < maxWindow && queued <= window / 2) {
+            unacked += window;
+            window *= 2;
         }
 
-        return buffers.removeFirst();
+        notifyAll();
+        return true;
     }
 
-    private void getBuffer() throws IOException {
+    /**
+     * Signals that the remote side will not send any more data on this
+     * stream. Reads return -1 once all buffered data has been consumed.
+     */
+    public synchronized void endOfStream() {
+        eos = true;
+        notifyAll();
+    }
+
+    synchronized void connectionLost() {
+        lost = true;
+        notifyAll();
+    }
+
+    // Waits until there is data. Returns false if the end of the stream has
+    // been reached.
+    private boolean waitForData() throws IOException {
 
         if (closed) {
             throw new IOException("Stream already closed");
         }
 
-        if (offset == length) {
+        if (count > 0) {
+            return true;
+        }
+
+        long deadline = (timeout > 0) ?
+                System.currentTimeMillis() + timeout : 0;
+
+        while (count == 0) {
 
-            if (buffer != null) {
-                owner.returnBuffer(buffer, stream);
-                buffer = null;
+            if (eos) {
+                return false;
             }
 
-            buffer = nextBuffer(true);
+            if (lost) {
+                throw new IOException("Connection lost");
+            }
+
+            if (closed) {
+                throw new IOException("Stream already closed");
+            }
+
+            long left = 0;
+
+            if (deadline > 0) {
+                left = deadline - System.currentTimeMillis();
 
-            if (buffer == null) {
-                throw new EOFException("Trying to read past the end of stream");
+                if (left <= 0) {
+                    // A timout has occurred
+                    throw new SocketTimeoutException("Timeout occurred while "
+                            + "waiting for data");
+                }
+            }
+
+            try {
+                wait(left);
+            } catch (InterruptedException e) {
+                // ignore
             }
+        }
+
+        return true;
+    }
+
+    // Removes len bytes from the first frame, recycling it when empty.
+    // Returns the number of bytes to return to the sender (if any).
+    private int consume(int len) {
+
+        offset += len;
+        queued -= len;
+
+        if (offset == lengths[first]) {
+            owner.releaseBuffer(frames[first]);
+            frames[first] = null;
+            first = (first + 1) % frames.length;
+            count--;
+            offset = 0;
+        }
+
+        unacked += len;
+
+        // Batch the window updates, so we do not send a frame for every read.
+        if (unacked < window / 4) {
+            return 0;
+        }
 
-            offset = 8;
-            length = MultiplexStreamFactory.readLength(buffer);
+        int tmp = unacked;
+        unacked = 0;
+        return tmp;
+    }
+
+    private void ack(int bytes) {
+        if (bytes > 0) {
+            owner.sendWindow(stream, bytes);
         }
     }
 
@@ -89,8 +200,21 @@ public class MultiplexInputStream extends InputStream {
      * @see java.io.InputStream#read()
      */
     public int read() throws IOException {
-        getBuffer();
-        return buffer[offset++];
+
+        int result;
+        int ack;
+
+        synchronized (this) {
+            if (!waitForData()) {
+                return -1;
+            }
+
+            result = frames[first][offset] & 0xff;
+            ack = consume(1);
+        }
+
+        ack(ack);
+        return result;
     }
 
     /* (non-Javadoc)
@@ -102,11 +226,7 @@ public class MultiplexInputStream extends InputStream {
             throw new IOException("Stream already closed");
         }
 
-        if (buffer == null) {
-            return 0;
-        } else {
-            return buffer.length - offset;
-        }
+        return queued;
     }
 
     /* (non-Javadoc)
@@ -114,26 +234,27 @@ public class MultiplexInputStream extends InputStream {
      */
     public void close() throws IOException {
 
-        closed = true;
-
-        // Return any buffers we may still have ...
-        if (buffer != null) {
-            owner.returnBuffer(buffer, stream);
-        }
-
-        owner.deleteInputStream(stream);
-
-        if (buffers.size() != 0) {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
 
-            byte [] buf = nextBuffer(false);
+            closed = true;
 
-            while (buf != null) {
-                owner.returnBuffer(buf, stream);
-                buf = nextBuffer(false);
+            // The sender stops when it gets our STOP frame, so it does not
+            // need the window of the unread data back.
+            while (count > 0) {
+                owner.releaseBuffer(frames[first]);
+                frames[first] = null;
+                first = (first + 1) % frames.length;
+                count--;
             }
 
-            throw new IOException("Closing stream that still contains data!");
+            offset = queued = 0;
+            notifyAll();
         }
+
+        owner.inputClosed(this);
     }
 
     /* (non-Javadoc)
@@ -155,15 +276,29 @@ public class MultiplexInputStream extends InputStream {
      */
     public int read(byte[] b, int off, int len) throws IOException {
 
-        getBuffer();
+        if (len == 0) {
+            return 0;
+        }
 
-        int leftOver = (len < (length-offset)) ? len : (length-offset);
-        System.arraycopy(buffer, offset, b, off, leftOver);
-        offset += leftOver;
+        int read = 0;
+        int ack = 0;
 
-      //  System.out.println("Length = " + length + " Offset = " + offset);
+        synchronized (this) {
+            if (!waitForData()) {
+                return -1;
+            }
 
-        return leftOver;
+            // Copy as much as we have without blocking.
+            while (read < len && count > 0) {
+                int n = Math.min(len - read, lengths[first] - offset);
+                System.arraycopy(frames[first], offset, b, off + read, n);
+                read += n;
+                ack += consume(n);
+            }
+        }
+
+        ack(ack);
+        return read;
     }
 
     /* (non-Javadoc)
@@ -185,9 +320,22 @@ public class MultiplexInputStream extends InputStream {
      */
     public long skip(long n) throws IOException {
 
-        while (n-- > 0) {
-            read();
+        long skipped = 0;
+        int ack = 0;
+
+        synchronized (this) {
+            if (n <= 0 || !waitForData()) {
+                return 0;
+            }
+
+            while (skipped < n && count > 0) {
+                int m = (int) Math.min(n - skipped, lengths[first] - offset);
+                skipped += m;
+                ack += consume(m);
+            }
         }
-        return n;
+
+        ack(ack);
+        return skipped;
     }
 }
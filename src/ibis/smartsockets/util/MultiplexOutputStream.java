@@ -5,134 +5,214 @@ import java.io.OutputStream;
 
 public class MultiplexOutputStream extends OutputStream {
 
-    private final OutputStream out;
     private final int stream;
 
-    private final byte [] buffer;
+    // Buffer with room for a frame header, followed by count bytes of data.
+    private byte [] buffer;
+    private int count = 0;
 
-    private int offset;
     private boolean closed = false;
 
-    private final boolean flowControl;
-    private int credits;
+    // The window is protected by its own lock, so the reader thread can add
+    // to it while a writer is blocked on the connection.
+    private final Object windowLock = new Object();
+    private int window;
+    private boolean lost = false;
+    private boolean stopped = false;
 
     private final MultiplexStreamFactory owner;
 
-    public MultiplexOutputStream(MultiplexStreamFactory owner, OutputStream out,
-            int stream, int bufsize, int credits) {
+    MultiplexOutputStream(MultiplexStreamFactory owner, int stream,
+            int window) {
 
         this.owner = owner;
-        this.out = out;
         this.stream = stream;
-        this.credits = credits;
-        this.buffer = new byte[bufsize];
-
-        flowControl = (credits > 0);
+        this.window = window;
+    }
 
-        // Write the DATA opcode and stream number into bytes 0...3 of the
-        // buffer and reserve 4 bytes for the length field.
-        MultiplexStreamFactory.writeDataOpcode(buffer);
-        MultiplexStreamFactory.writeStream(buffer, stream);
-        offset = 8;
+    final int getStream() {
+        return stream;
     }
 
-    public void write(int b) throws IOException {
+    private void checkOpen() throws IOException {
 
         if (closed) {
             throw new IOException("Stream already closed");
         }
 
-        if (offset >= buffer.length) {
-            localFlush();
+        if (buffer == null) {
+            buffer = owner.getBuffer(owner.getBufferSize());
+        }
+    }
+
+    public synchronized void write(int b) throws IOException {
+
+        checkOpen();
+
+        if (MultiplexStreamFactory.HEADER + count == buffer.length) {
+            send();
         }
 
-        buffer[offset++] = (byte)(0xff & b);
+        buffer[MultiplexStreamFactory.HEADER + count++] = (byte)(0xff & b);
     }
 
     public void write(byte [] b) throws IOException {
         write(b, 0, b.length);
     }
 
-    public void write(byte [] b, int off, int len) throws IOException {
+    public synchronized void write(byte [] b, int off, int len)
+        throws IOException {
 
-        if (closed) {
-            throw new IOException("Stream already closed");
-        }
+        checkOpen();
+
+        while (len > 0) {
+
+            int room = buffer.length - MultiplexStreamFactory.HEADER - count;
 
-        if (offset >= buffer.length) {
-            localFlush();
+            if (room == 0) {
+                send();
+                continue;
+            }
+
+            int n = (len < room) ? len : room;
+
+            System.arraycopy(b, off, buffer,
+                    MultiplexStreamFactory.HEADER + count, n);
+
+            count += n;
+            off += n;
+            len -= n;
         }
+    }
 
-        while (true) {
+    // Waits until the window is open. Returns the number of bytes that may be
+    // sent (at most max). The sign of the result tells if we had to wait.
+    private int getWindow(int max) throws IOException {
 
-            int leftover = buffer.length - offset;
+        synchronized (windowLock) {
 
-            if (len <= leftover) {
-                System.arraycopy(b, off, buffer, offset, len);
-                offset += len;
-               // System.out.println("New offset " + offset);
-                return;
+            boolean blocked = false;
+
+            while (window == 0 && !lost && !stopped) {
+
+                blocked = true;
+
+                try {
+                    windowLock.wait();
+                } catch (InterruptedException e) {
+                    // ignore
+                }
+            }
+
+            if (lost) {
+                throw new IOException("Connection lost");
+            }
+
+            if (stopped) {
+                throw new IOException("Stream closed by peer");
             }
 
-            System.arraycopy(b, off, buffer, offset, leftover);
-            offset += leftover;
-           // System.out.println("New offset " + offset);
-            off += leftover;
-            len -= leftover;
-            localFlush();
+            int n = (window < max) ? window : max;
+            window -= n;
+            return blocked ? -n : n;
         }
     }
 
-    private synchronized void getCredit() {
+    // Sends the buffered data, split into multiple frames if the window is
+    // smaller than the data.
+    private void send() throws IOException {
 
-        while (credits == 0) {
-            try {
-                wait();
-            } catch (InterruptedException e) {
-                // ignore
+        int sent = 0;
+
+        while (sent < count) {
+
+            int n = getWindow(count - sent);
+
+            int opcode = MultiplexStreamFactory.DATA;
+
+            if (n < 0) {
+                opcode = MultiplexStreamFactory.DATA_BLOCKED;
+                n = -n;
             }
+
+            // The header goes right before the data. This overwrites data
+            // that has already been sent.
+            MultiplexStreamFactory.writeHeader(buffer, sent, opcode, stream, n);
+            owner.writeFrame(buffer, sent, MultiplexStreamFactory.HEADER + n);
+            sent += n;
         }
-        credits--;
+
+        count = 0;
     }
 
-    private void localFlush() throws IOException {
+    public synchronized void flush() throws IOException {
+
+        checkOpen();
+
+        if (count > 0) {
+            send();
+        }
+
+        owner.flush();
+    }
 
-        // Only flush if we have data, or if the stream is closed.
-        if (offset > 8) {
+    public void close() throws IOException {
 
-            // Wait for credits if neccesary.
-            if (flowControl) {
-                getCredit();
+        synchronized (this) {
+            if (closed) {
+                return;
             }
 
-            // Write the size of the buffer to position 4...7.
-            MultiplexStreamFactory.writeLength(buffer, offset);
+            closed = true;
 
-            synchronized (out) {
-               // System.out.println("Writing " + offset + " bytes to stream");
-                out.write(buffer, 0, offset);
+            try {
+                if (count > 0 && !isStopped()) {
+                    send();
+                }
+            } finally {
+                if (buffer != null) {
+                    owner.releaseBuffer(buffer);
+                    buffer = null;
+                }
+
+                count = 0;
             }
+        }
+
+        // Sent after the last data, so the other side sees the end of the
+        // stream after all data has been delivered.
+        owner.outputClosed(this);
+    }
+
+    public synchronized boolean isClosed() {
+        return closed;
+    }
 
-            offset = 8;
+    private boolean isStopped() {
+        synchronized (windowLock) {
+            return stopped || lost;
         }
     }
 
-    public void flush() throws IOException {
-        localFlush();
-        out.flush();
+    void addWindow(int bytes) {
+        synchronized (windowLock) {
+            window += bytes;
+            windowLock.notifyAll();
+        }
     }
 
-    public void close() throws IOException {
-        localFlush();
-        out.flush();
-        owner.deleteOutputStream(stream);
-        closed = true;
+    // Called when the other side has closed its input stream.
+    void stop() {
+        synchronized (windowLock) {
+            stopped = true;
+            windowLock.notifyAll();
+        }
     }
 
-    synchronized void addCredits(int creditsToAdd) {
-        if (flowControl) {
-            credits += creditsToAdd;
-            notifyAll();
+    void connectionLost() {
+        synchronized (windowLock) {
+            lost = true;
+            windowLock.notifyAll();
         }
     }
 }
@@ -3,114 +3,235 @@ package ibis.smartsockets.util;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.util.HashMap;
-
+import java.net.SocketTimeoutException;
+import java.util.LinkedList;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Carries many independent streams over a single connection.
+ *
+ * All data is sent in frames with an 8 byte header: 1 byte opcode, 3 bytes
+ * stream number and a 4 byte value. For DATA frames the value is the length of
+ * the payload that follows the header.
+ *
+ * Each stream has its own byte based flow control window. The receiver
+ * returns the window in WINDOW frames as the application consumes the data.
+ * Windows start small and grow (up to a maximum) whenever the sender runs out
+ * of window while the receiving application keeps up, so they end up sized to
+ * the bandwidth-delay product of the path instead of a fixed number of
+ * buffers.
+ *
+ * Streams can either be created explicitly on both sides using a well known
+ * stream number (createInputStream and createOutputStream), or be opened by
+ * one side using {@link #open(int)}, which sends an OPEN frame. The other side
+ * is notified through its {@link Listener}, and must accept or reject the
+ * stream. Opened streams are finished (and their number can be reused) once
+ * both sides have closed both directions.
+ *
+ * Stream 0 is created by the constructor, and is available through getBaseIn
+ * and getBaseOut.
+ */
 public final class MultiplexStreamFactory {
 
-    private final static int ACK   = 42;
-    private final static int DATA  = 43;
+    private static final Logger logger =
+        LoggerFactory.getLogger("ibis.smartsockets.util.multiplex");
+
+    /**
+     * Notified of new streams and when the connection used by a
+     * MultiplexStreamFactory is lost.
+     */
+    public interface Listener {
+
+        /**
+         * The other side opened a stream. The listener must either accept or
+         * reject the stream, but may do so later from another thread.
+         *
+         * This method is called by the thread that reads the connection, so
+         * it should not block.
+         *
+         * @param f the factory.
+         * @param stream the number of the new stream.
+         * @param data the data passed to open by the other side.
+         */
+        void streamOpened(MultiplexStreamFactory f, int stream, int data);
+
+        /**
+         * The connection was lost, or closed by the other side. All streams
+         * of the factory have been notified.
+         *
+         * @param f the factory.
+         * @param cause the exception that was thrown, or null at the end of
+         * the stream.
+         */
+        void connectionLost(MultiplexStreamFactory f, IOException cause);
+    }
+
+    /** Reply returned by waitForReply when the stream was accepted. */
+    public static final int ACCEPTED = 0;
+
+    /** Reason used to reject streams that are opened without a listener. */
+    public static final int REFUSED = -1;
+
+    static final int HEADER = 8;
+
+    static final int WINDOW  = 42;
+    static final int DATA    = 43;
+    static final int OPEN    = 44;
+    static final int ACCEPT  = 45;
+    static final int REJECT  = 46;
+    static final int CLOSE   = 47;
+    static final int STOP    = 48;
+
+    // DATA frame sent after the sender had to wait for window.
+    static final int DATA_BLOCKED = 49;
+
+    private static final int DEFAULT_BUFFER_SIZE = HEADER + 16*1024;
+
+    // Initial window of a stream. Both sides must use the same value.
+    static final int INITIAL_WINDOW = 64*1024;
+
+    // Largest window a stream may grow to.
+    private static final int MAX_WINDOW = 4*1024*1024;
+
+    // Largest DATA frame we accept from the other side.
+    private static final int MAX_FRAME = 1024*1024;
+
+    // Number of free buffers kept for reuse.
+    private static final int MAX_FREE_BUFFERS = 256;
+
+    private static final int MAX_STREAM = 0xFFFFFF;
+
+    private static final int NO_REPLY = Integer.MIN_VALUE;
+
+    // The state of a single stream number.
+    private static final class Stream {
+
+        final int id;
+        final boolean opened;
+
+        MultiplexInputStream in;
+        MultiplexOutputStream out;
 
-    private final static int DEFAULT_BUFFER_SIZE = 8 + 16*1024;
-    private final static int DEFAULT_CREDITS = 16;
+        // Reply to an OPEN frame sent by us.
+        int reply = NO_REPLY;
+
+        boolean inClosed;
+        boolean outClosed;
+        boolean remoteClosed;
+        boolean remoteStopped;
+
+        Stream(int id, boolean opened) {
+            this.id = id;
+            this.opened = opened;
+        }
+
+        // An opened stream is finished when neither side will send any more
+        // frames for it. Other streams are finished when closed locally.
+        boolean isFinished() {
+            if (opened) {
+                return inClosed && outClosed && remoteClosed && remoteStopped;
+            }
+
+            return (in == null || inClosed) && (out == null || outClosed);
+        }
+
+        boolean isOpen() {
+            return (in != null && !inClosed) || (out != null && !outClosed);
+        }
+    }
 
     private final int bufferSize;
 
+    private final boolean initiator;
+
     private final InputStream in;
     private final OutputStream out;
 
-    private final HashMap<Integer, MultiplexInputStream> inputs =
-        new HashMap<Integer, MultiplexInputStream>();
+    private final ConcurrentLongHashMap<Stream> streams =
+        new ConcurrentLongHashMap<Stream>();
+
+    // Free buffers of bufferSize bytes.
+    private final byte [][] free = new byte[MAX_FREE_BUFFERS][];
+    private int freeCount = 0;
+
+    // Frames sent by the reader thread, which are written by another thread.
+    private final LinkedList<byte []> deferred = new LinkedList<byte []>();
+    private boolean flushing = false;
 
-    private final HashMap<Integer, MultiplexOutputStream> outputs =
-        new HashMap<Integer, MultiplexOutputStream>();
+    // Header of control frames, protected by the lock on out.
+    private final byte [] control = new byte[HEADER];
 
     private final InputReader reader;
 
-    private boolean closed = false;
+    private Listener listener;
+
+    private int nextStream;
+
+    private volatile boolean lost = false;
+    private volatile boolean closed = false;
 
     private class InputReader extends Thread {
 
-        private final int read(InputStream in, byte [] buffer, int offset,
-                int len) throws IOException {
+        private final byte [] header = new byte[HEADER];
+
+        InputReader() {
+            super("MultiplexStreamFactory reader");
+            setDaemon(true);
+        }
+
+        private boolean readFully(byte [] buffer, int len) throws IOException {
 
             int read = 0;
 
             while (read < len) {
-                int bytes = in.read(buffer, offset+read, len-read);
+                int bytes = in.read(buffer, read, len-read);
 
                 if (bytes == -1) {
-                    return read;
-                } else {
-                    read += bytes;
+                    return false;
                 }
 
-               // System.out.println("Read " + read);
+                read += bytes;
             }
 
-            return read;
+            return true;
         }
 
         public void run() {
 
+            IOException cause = null;
+
             try {
-                byte [] buffer = null;
-                int read = 0;
-                int length = 0;
-                int target = 0;
-                int opcode = 0;
+                while (readFully(header, HEADER)) {
 
-                while (true) {
+                    int opcode = readOpcode(header);
+                    int id = readStream(header);
+                    int value = readValue(header);
 
-                    if (buffer == null) {
-                        buffer = getBuffer();
-                    }
+                    if (opcode == DATA || opcode == DATA_BLOCKED) {
 
-                   // System.out.println("Reader: Waiting for data...");
+                        if (value <= 0 || value > MAX_FRAME) {
+                            throw new IOException("Received DATA frame of "
+                                    + "illegal length " + value);
+                        }
 
-                    // We should read 8 bytes here.
-                    // 1 byte  - opcode
-                    // 3 bytes - target
-                    // 4 bytes - buffer length
-                    read = read(in, buffer, 0, 8);
+                        byte [] buffer = getBuffer(value);
 
-                    if (read != 8) {
-                        // end of stream ?
-                        System.out.println("Reader: Stream closed");
-                        return;
-                    }
+                        if (!readFully(buffer, value)) {
+                            // end of stream
+                            break;
+                        }
 
-                    opcode = readOpcode(buffer);
-                    target = readStream(buffer);
-                    length = readLength(buffer);
-
-                    switch (opcode) {
-                    case ACK:
-                       // System.out.println("Reader: Got ACK");
-                        deliverACK(target, length);
-                        break;
-
-                    case DATA:
-                        // read the rest of the data and deliver the buffer
-                        //System.out.println("Reader: Got DATA");
-                        read(in, buffer, read, length-read);
-                        deliverBuffer(target, buffer);
-                        buffer = null;
-                        break;
-
-                    default:
-                        System.out.println("Reader: Got UNKNOWN OPCODE!");
-                        // TODO: print error
+                        deliverData(id, buffer, value, opcode == DATA_BLOCKED);
+                    } else {
+                        deliverControl(opcode, id, value);
                     }
                 }
             } catch (IOException e) {
-
-                if (closed) {
-                    System.out.println("Reader: Stream closed");
-                    return;
-                } else {
-                    System.out.println("Reader: got exception " + e);
-                    // TODO: handle exception ?
-                }
+                cause = e;
+            } finally {
+                connectionLost(cause);
             }
         }
     }
@@ -121,186 +242,709 @@ public final class MultiplexStreamFactory {
 
     public MultiplexStreamFactory(InputStream in, OutputStream out,
             int bufferSize) {
+        this(in, out, bufferSize, true, null);
+    }
+
+    /**
+     * Creates a MultiplexStreamFactory on the given connection.
+     *
+     * @param in the input stream of the connection.
+     * @param out the output stream of the connection.
+     * @param bufferSize the size of the frame buffers (including the 8 byte
+     * header).
+     * @param initiator true on the side that created the connection. The
+     * sides use separate ranges of stream numbers for open, so it must be
+     * false on the other side.
+     * @param listener the listener that is notified of new streams and when
+     * the connection is lost (may be null). Passing it here ensures that no
+     * streams are opened before the listener is installed.
+     */
+    public MultiplexStreamFactory(InputStream in, OutputStream out,
+            int bufferSize, boolean initiator, Listener listener) {
+
+        if (bufferSize <= HEADER) {
+            throw new IllegalArgumentException("Illegal buffer size "
+                    + bufferSize);
+        }
 
         this.in = in;
         this.out = out;
         this.bufferSize = bufferSize;
+        this.initiator = initiator;
+        this.listener = listener;
 
-        outputs.put(Integer.valueOf(0), new MultiplexOutputStream(this, out,
-                0, bufferSize, DEFAULT_CREDITS));
+        nextStream = initiator ? 1 : 2;
 
-        inputs.put(Integer.valueOf(0), new MultiplexInputStream(this, 0));
+        Stream base = new Stream(0, false);
+        base.in = new MultiplexInputStream(this, 0, INITIAL_WINDOW, MAX_WINDOW);
+        base.out = new MultiplexOutputStream(this, 0, INITIAL_WINDOW);
+        streams.put(0, base);
 
         reader = new InputReader();
         reader.start();
+    }
+
+    /**
+     * Sets the listener that is notified of new streams and when the
+     * connection is lost.
+     *
+     * @param l the listener.
+     */
+    public synchronized void setListener(Listener l) {
+        listener = l;
+    }
+
+    private synchronized Listener getListener() {
+        return listener;
+    }
 
-        System.out.println("Factory started");
+    /**
+     * Returns if this factory was created on the side that initiated the
+     * connection.
+     *
+     * @return if this factory is the initiator.
+     */
+    public boolean isInitiator() {
+        return initiator;
     }
 
-    private final MultiplexInputStream findInput(int target) {
-        synchronized (inputs) {
-            return inputs.get(Integer.valueOf(target));
+    private void connectionLost(IOException cause) {
+
+        lost = true;
+
+        if (closed) {
+            if (logger.isDebugEnabled()) {
+                logger.debug("Reader: Stream closed");
+            }
+            return;
+        }
+
+        if (logger.isDebugEnabled()) {
+            logger.debug("Reader: connection lost", cause);
+        }
+
+        for (Stream s : streams.values()) {
+
+            synchronized (s) {
+                s.notifyAll();
+            }
+
+            if (s.in != null) {
+                s.in.connectionLost();
+            }
+
+            if (s.out != null) {
+                s.out.connectionLost();
+            }
+        }
+
+        Listener l = getListener();
+
+        if (l != null) {
+            l.connectionLost(this, cause);
         }
     }
 
-    private final MultiplexOutputStream findOutput(int target) {
-        synchronized (outputs) {
-            return outputs.get(Integer.valueOf(target));
+    private void deliverData(int id, byte [] buffer, int length,
+            boolean blocked) {
+
+        Stream s = streams.get(id);
+
+        MultiplexInputStream min = (s == null) ? null : s.in;
+
+        if (min == null || !min.addFrame(buffer, length, blocked)) {
+            // The stream was closed locally. The sender will stop once it
+            // sees our STOP frame.
+            if (logger.isDebugEnabled()) {
+                logger.debug("Received data for closed stream " + id);
+            }
+
+            releaseBuffer(buffer);
         }
     }
 
-    final void deliverBuffer(int target, byte [] buffer) throws IOException {
+    private void deliverControl(int opcode, int id, int value)
+        throws IOException {
 
-        MultiplexInputStream min = findInput(target);
+        if (opcode == OPEN) {
+            handleOpen(id, value);
+            return;
+        }
 
-        if (min != null) {
-            min.addBuffer(buffer);
-        } else {
-            // TODO: print error using logger !
-            System.err.println("Warning received data for unknown stream!");
-            returnBuffer(buffer, target);
+        Stream s = streams.get(id);
+
+        if (s == null) {
+            if (logger.isDebugEnabled()) {
+                logger.debug("Received frame " + opcode + " for unknown "
+                        + "stream " + id);
+            }
+            return;
+        }
+
+        switch (opcode) {
+        case WINDOW:
+            if (s.out != null) {
+                s.out.addWindow(value);
+            }
+            break;
+
+        case ACCEPT:
+            setReply(s, ACCEPTED);
+            break;
+
+        case REJECT:
+            // The other side has already forgotten about this stream.
+            synchronized (s) {
+                s.remoteClosed = true;
+                s.remoteStopped = true;
+            }
+
+            if (s.in != null) {
+                s.in.endOfStream();
+            }
+
+            if (s.out != null) {
+                s.out.stop();
+            }
+
+            setReply(s, value);
+            finish(s);
+            break;
+
+        case CLOSE:
+            synchronized (s) {
+                s.remoteClosed = true;
+            }
+
+            if (s.in != null) {
+                s.in.endOfStream();
+            }
+
+            finish(s);
+            break;
+
+        case STOP:
+            synchronized (s) {
+                s.remoteStopped = true;
+            }
+
+            if (s.out != null) {
+                s.out.stop();
+            }
+
+            finish(s);
+            break;
+
+        default:
+            throw new IOException("Received unknown opcode " + opcode);
         }
     }
 
-    final void deliverACK(int target, int credits) {
+    private void handleOpen(int id, int data) throws IOException {
+
+        if (streams.get(id) != null) {
+            throw new IOException("Received OPEN for stream " + id
+                    + " which is in use");
+        }
+
+        streams.put(id, createStream(id, true));
 
-        MultiplexOutputStream min = findOutput(target);
+        Listener l = getListener();
 
-        if (min != null) {
-            min.addCredits(credits);
+        if (l == null) {
+            reject(id, REFUSED);
         } else {
-            // TODO: print error using logger !
-            System.err.println("Warning received ack for unknown stream!");
+            l.streamOpened(this, id, data);
         }
     }
 
-    final byte [] getBuffer() {
-        // TODO: create some cache here ?
-        return new byte[bufferSize];
+    private Stream createStream(int id, boolean opened) {
+        Stream s = new Stream(id, opened);
+        s.in = new MultiplexInputStream(this, id, INITIAL_WINDOW, MAX_WINDOW);
+        s.out = new MultiplexOutputStream(this, id, INITIAL_WINDOW);
+        return s;
     }
 
-    static final void writeDataOpcode(byte [] buffer) {
-        buffer[0] = (byte)(0xff & DATA);
+    private void setReply(Stream s, int reply) {
+        synchronized (s) {
+            if (s.reply == NO_REPLY) {
+                s.reply = reply;
+                s.notifyAll();
+            }
+        }
     }
 
-    private static final void writeACK(byte [] buffer, int stream) {
-        buffer[0] = (byte)(0xff & ACK);
-        buffer[1] = (byte)(0xff & (stream >> 16));
-        buffer[2] = (byte)(0xff & (stream >> 8));
-        buffer[3] = (byte)(0xff & stream);
-        buffer[4] = (byte)0;
-        buffer[5] = (byte)0;
-        buffer[6] = (byte)0;
-        buffer[7] = (byte)8;
+    // Forgets the stream if neither side will use it anymore.
+    private void finish(Stream s) {
+
+        synchronized (s) {
+            if (!s.isFinished()) {
+                return;
+            }
+        }
+
+        if (streams.get(s.id) == s) {
+            streams.remove(s.id);
+        }
     }
 
-    static final void writeStream(byte [] buffer, int stream) {
-        buffer[1] = (byte)(0xff & (stream >> 16));
-        buffer[2] = (byte)(0xff & (stream >> 8));
-        buffer[3] = (byte)(0xff & stream);
+    /**
+     * Opens a new stream. The other side is notified through its listener,
+     * and must accept or reject the stream.
+     *
+     * The streams can be used immediately, but data written before the other
+     * side accepts the stream is discarded if it rejects it.
+     *
+     * @param data an int that is passed to the listener on the other side.
+     * @return the number of the new stream.
+     * @throws IOException the connection is lost, or there are no free stream
+     * numbers.
+     */
+    public int open(int data) throws IOException {
+
+        if (lost || closed) {
+            throw new IOException("Connection lost");
+        }
+
+        Stream s = null;
+
+        synchronized (this) {
+            for (int i=0;i<MAX_STREAM/2;i++) {
+
+                int id = nextStream;
+
+                nextStream += 2;
+
+                if (nextStream > MAX_STREAM) {
+                    nextStream = initiator ? 1 : 2;
+                }
+
+                if (streams.get(id) == null) {
+                    s = createStream(id, true);
+                    streams.put(id, s);
+                    break;
+                }
+            }
+        }
+
+        if (s == null) {
+            throw new IOException("No free stream numbers");
+        }
+
+        try {
+            writeControl(OPEN, s.id, data);
+        } catch (IOException e) {
+            streams.remove(s.id);
+            throw e;
+        }
+
+        return s.id;
     }
 
-    static final void writeLength(byte [] buffer, int length) {
-        buffer[4]   = (byte)(0xff & (length >> 24));
-        buffer[5] = (byte)(0xff & (length >> 16));
-        buffer[6] = (byte)(0xff & (length >> 8));
-        buffer[7] = (byte)(0xff & length);
+    /**
+     * Waits for the reply of the other side to a stream that was opened
+     * with {@link #open(int)}.
+     *
+     * @param stream the stream number.
+     * @param timeout the timeout in milliseconds (0 is infinite).
+     * @return ACCEPTED if the stream was accepted, or the reason passed to
+     * reject by the other side.
+     * @throws SocketTimeoutException no reply was received in time.
+     * @throws IOException the connection was lost, or the stream is unknown.
+     */
+    public int waitForReply(int stream, int timeout) throws IOException {
+
+        Stream s = streams.get(stream);
+
+        if (s == null || !s.opened) {
+            throw new IOException("Unknown stream " + stream);
+        }
+
+        long deadline = System.currentTimeMillis() + timeout;
+
+        synchronized (s) {
+            while (s.reply == NO_REPLY) {
+
+                if (lost) {
+                    throw new IOException("Connection lost");
+                }
+
+                long left = 0;
+
+                if (timeout > 0) {
+                    left = deadline - System.currentTimeMillis();
+
+                    if (left <= 0) {
+                        throw new SocketTimeoutException("Timeout while "
+                                + "waiting for reply");
+                    }
+                }
+
+                try {
+                    s.wait(left);
+                } catch (InterruptedException e) {
+                    // ignore
+                }
+            }
+
+            return s.reply;
+        }
     }
 
-    static final int readOpcode(byte [] buffer) {
-        return (buffer[0] & 0xff);
+    /**
+     * Accepts a stream that was opened by the other side.
+     *
+     * @param stream the stream number.
+     * @throws IOException the connection is lost.
+     */
+    public void accept(int stream) throws IOException {
+        writeControl(ACCEPT, stream, 0);
     }
 
-    static final int readLength(byte [] buffer) {
-        return (((buffer[4] & 0xff) << 24)   |
-                ((buffer[5] & 0xff) << 16) |
-                ((buffer[6] & 0xff) << 8)  |
-                 (buffer[7] & 0xff));
+    /**
+     * Rejects a stream that was opened by the other side. The stream is
+     * forgotten on both sides.
+     *
+     * @param stream the stream number.
+     * @param reason the reason returned by waitForReply on the other side.
+     * Must not be ACCEPTED.
+     */
+    public void reject(int stream, int reason) {
+
+        if (reason == ACCEPTED) {
+            throw new IllegalArgumentException("Illegal reason " + reason);
+        }
+
+        Stream s = streams.get(stream);
+
+        if (s == null) {
+            return;
+        }
+
+        // Forget the stream first, so closing it does not send any frames.
+        streams.remove(stream);
+
+        discard(s);
+
+        try {
+            writeControl(REJECT, stream, reason);
+        } catch (IOException e) {
+            // The connection is lost, which is handled by the reader.
+        }
     }
 
-    static final int readStream(byte [] buf) {
-        return (((buf[1] & 0xff) << 16) |
-                ((buf[2] & 0xff) << 8)  |
-                (buf[3] & 0xff));
+    private void discard(Stream s) {
+
+        try {
+            s.in.close();
+        } catch (IOException e) {
+            // ignore
+        }
+
+        try {
+            s.out.close();
+        } catch (IOException e) {
+            // ignore
+        }
     }
 
-    final void returnBuffer(byte [] buffer, int stream) throws IOException {
+    // Called when an input stream is closed by the application.
+    final void inputClosed(MultiplexInputStream min) {
+
+        Stream s = streams.get(min.getStream());
+
+        if (s == null || s.in != min) {
+            return;
+        }
+
+        synchronized (s) {
+            s.inClosed = true;
+        }
 
-        writeACK(buffer, stream);
+        try {
+            writeControl(STOP, s.id, 0);
+        } catch (IOException e) {
+            // handled by the reader
+        }
+
+        finish(s);
+    }
+
+    // Called when an output stream is closed by the application, after the
+    // remaining data has been sent.
+    final void outputClosed(MultiplexOutputStream mout) {
+
+        Stream s = streams.get(mout.getStream());
+
+        if (s == null || s.out != mout) {
+            return;
+        }
+
+        synchronized (s) {
+            s.outClosed = true;
+        }
+
+        try {
+            writeControl(CLOSE, s.id, 0);
+        } catch (IOException e) {
+            // handled by the reader
+        }
+
+        finish(s);
+    }
+
+    final void sendWindow(int stream, int bytes) {
+
+        try {
+            writeControl(WINDOW, stream, bytes);
+        } catch (IOException e) {
+            // handled by the reader
+        }
+    }
+
+    // Writes a frame that consists of a header only.
+    private void writeControl(int opcode, int stream, int value)
+        throws IOException {
+
+        if (lost) {
+            throw new IOException("Connection lost");
+        }
+
+        if (Thread.currentThread() == reader) {
+            // The reader must never block on the connection, as the other
+            // side may be waiting for us to read before it can read itself.
+            byte [] frame = new byte[HEADER];
+            writeHeader(frame, 0, opcode, stream, value);
+            defer(frame);
+            return;
+        }
 
-        // use the buffer the write an ACK before returning it
         synchronized (out) {
-            out.write(buffer, 0, 8);
+            writeHeader(control, 0, opcode, stream, value);
+            out.write(control);
+            out.flush();
+        }
+    }
+
+    private void defer(byte [] frame) {
+
+        synchronized (deferred) {
+            deferred.addLast(frame);
+
+            if (flushing) {
+                return;
+            }
+
+            flushing = true;
         }
 
-        // TODO: create some cache here ?
+        ThreadPool.createNew(new Runnable() {
+            public void run() {
+                flushDeferred();
+            }
+        }, "MultiplexStreamFactory deferred writer");
     }
 
-    final void deleteOutputStream(int number) {
-        synchronized (outputs) {
-            outputs.remove(Integer.valueOf(number));
+    private void flushDeferred() {
+
+        while (true) {
+
+            byte [] frame;
+
+            synchronized (deferred) {
+                if (deferred.isEmpty()) {
+                    flushing = false;
+                    return;
+                }
+
+                frame = deferred.removeFirst();
+            }
+
+            try {
+                synchronized (out) {
+                    out.write(frame);
+                    out.flush();
+                }
+            } catch (IOException e) {
+                // The connection is lost, which is handled by the reader.
+                synchronized (deferred) {
+                    deferred.clear();
+                    flushing = false;
+                }
+                return;
+            }
+        }
+    }
+
+    // Writes a frame from a buffer that already contains its header.
+    final void writeFrame(byte [] buffer, int offset, int length)
+        throws IOException {
+
+        synchronized (out) {
+            out.write(buffer, offset, length);
+        }
+    }
+
+    final void flush() throws IOException {
+        synchronized (out) {
+            out.flush();
         }
     }
 
-    final void deleteInputStream(int number) {
-        synchronized (inputs) {
-            inputs.remove(Integer.valueOf(number));
+    final boolean isLost() {
+        return lost;
+    }
+
+    final int getBufferSize() {
+        return bufferSize;
+    }
+
+    /**
+     * Returns a buffer of at least the given size. Buffers of the default
+     * size are recycled.
+     */
+    final byte [] getBuffer(int size) {
+
+        if (size > bufferSize) {
+            return new byte[size];
+        }
+
+        synchronized (free) {
+            if (freeCount > 0) {
+                byte [] tmp = free[--freeCount];
+                free[freeCount] = null;
+                return tmp;
+            }
+        }
+
+        return new byte[bufferSize];
+    }
+
+    final void releaseBuffer(byte [] buffer) {
+
+        if (buffer.length != bufferSize) {
+            return;
+        }
+
+        synchronized (free) {
+            if (freeCount < free.length) {
+                free[freeCount++] = buffer;
+            }
         }
     }
 
+    static final void writeHeader(byte [] buffer, int off, int opcode,
+            int stream, int value) {
+        buffer[off]   = (byte)(0xff & opcode);
+        buffer[off+1] = (byte)(0xff & (stream >> 16));
+        buffer[off+2] = (byte)(0xff & (stream >> 8));
+        buffer[off+3] = (byte)(0xff & stream);
+        buffer[off+4] = (byte)(0xff & (value >> 24));
+        buffer[off+5] = (byte)(0xff & (value >> 16));
+        buffer[off+6] = (byte)(0xff & (value >> 8));
+        buffer[off+7] = (byte)(0xff & value);
+    }
+
+    static final int readOpcode(byte [] buffer) {
+        return (buffer[0] & 0xff);
+    }
+
+    static final int readValue(byte [] buffer) {
+        return (((buffer[4] & 0xff) << 24) |
+                ((buffer[5] & 0xff) << 16) |
+                ((buffer[6] & 0xff) << 8)  |
+                 (buffer[7] & 0xff));
+    }
+
+    static final int readStream(byte [] buf) {
+        return (((buf[1] & 0xff) << 16) |
+                ((buf[2] & 0xff) << 8)  |
+                (buf[3] & 0xff));
+    }
+
     public OutputStream getBaseOut() {
-        return findOutput(0);
+        return getOutputStream(0);
     }
 
     public InputStream getBaseIn() {
-        return findInput(0);
+        return getInputStream(0);
+    }
+
+    public MultiplexOutputStream getOutputStream(int number) {
+        Stream s = streams.get(number);
+        return s == null ? null : s.out;
     }
 
-    public OutputStream getOutputStream(int number) {
-        return findOutput(number);
+    public MultiplexInputStream getInputStream(int number) {
+        Stream s = streams.get(number);
+        return s == null ? null : s.in;
     }
 
-    public InputStream getInputStream(int number) {
-        return findInput(number);
+    // Returns the stream with the given number, creating it if needed.
+    private synchronized Stream getStream(int number) {
+
+        Stream s = streams.get(number);
+
+        if (s == null) {
+            s = new Stream(number, false);
+            streams.put(number, s);
+        }
+
+        return s;
     }
 
     public MultiplexOutputStream createOutputStream(int number) {
-        synchronized (outputs) {
-            MultiplexOutputStream mos =
-                new MultiplexOutputStream(this, out, number, bufferSize,
-                        DEFAULT_CREDITS);
 
-            outputs.put(Integer.valueOf(number), mos);
-            return mos;
+        Stream s = getStream(number);
+
+        synchronized (s) {
+            s.out = new MultiplexOutputStream(this, number, INITIAL_WINDOW);
+            s.outClosed = false;
+            return s.out;
         }
     }
 
     public MultiplexInputStream createInputStream(int number) {
-        synchronized (inputs) {
-            MultiplexInputStream mis = new MultiplexInputStream(this, number);
-            inputs.put(Integer.valueOf(number), mis);
-            return mis;
+
+        Stream s = getStream(number);
+
+        synchronized (s) {
+            s.in = new MultiplexInputStream(this, number, INITIAL_WINDOW,
+                    MAX_WINDOW);
+            s.inClosed = false;
+            return s.in;
         }
     }
 
+    /**
+     * Returns the number of streams that are in use, including stream 0.
+     *
+     * @return the number of streams.
+     */
+    public int getStreamCount() {
+        return streams.size();
+    }
+
     public void close() throws IOException {
 
-        synchronized (inputs) {
-            if (inputs.size() > 0) {
-                throw new IOException("Attempting to close MultiplexFactory, "
-                        + "but there are " + inputs.size() + " inputs active!");
+        int open = 0;
+
+        for (Stream s : streams.values()) {
+            synchronized (s) {
+                if (s.isOpen()) {
+                    open++;
+                }
             }
         }
 
-        synchronized (outputs) {
-            if (outputs.size() > 0) {
-                throw new IOException("Attempting to close MultiplexFactory, "
-                        + "but there are " + outputs.size()
-                        + " outputs active!");
-            }
+        if (open > 0) {
+            throw new IOException("Attempting to close MultiplexFactory, "
+                    + "but there are " + open + " streams active!");
         }
 
-        System.out.println("Closing factory");
+        if (logger.isDebugEnabled()) {
+            logger.debug("Closing factory");
+        }
 
         closed = true;
 
@@ -2,14 +2,34 @@ package ibis.smartsockets.util;
 
 import ibis.smartsockets.util.ThreadPool;
 
+import java.io.IOException;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Arrays;
+import java.util.Random;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import de.javawi.jstun.test.DiscoveryInfo;
-import de.javawi.jstun.test.DiscoveryTest;
-
+/**
+ * Finds the external address of this machine using STUN servers.
+ *
+ * A binding request is sent to all servers at once, from a single UDP
+ * socket, and the mapped address in the first response is used. An
+ * unreachable server therefore does not delay the result. Requests are
+ * retransmitted with an exponential backoff until the timeout expires.
+ *
+ * Both classic (RFC 3489) and current (RFC 5389) servers are supported. A
+ * server is specified as host or host:port (the default port is 3478).
+ *
+ * The result is cached for a while, as long as the local addresses of this
+ * machine do not change.
+ */
 public class STUN {
 
     private static Logger logger =
@@ -22,161 +42,393 @@ public class STUN {
                         "stun.xten.net",
                         "stun.fwdnet.net" };
 
-    private static InetAddress external;
+    private static final int DEFAULT_PORT = 3478;
+
+    // Used when no timeout is specified.
+    private static final int DEFAULT_TIMEOUT = 5000;
+
+    // Initial retransmission timeout, doubled after every retransmission.
+    private static final int RTO = 100;
+
+    // Time a result is reused.
+    private static final long CACHE_TTL = 10 * 60 * 1000;
+
+    private static final int HEADER_SIZE = 20;
+
+    private static final int BINDING_REQUEST = 0x0001;
+    private static final int BINDING_RESPONSE = 0x0101;
+
+    private static final int MAPPED_ADDRESS = 0x0001;
+    private static final int XOR_MAPPED_ADDRESS = 0x0020;
+
+    // Used by some servers before RFC 5389 was finished.
+    private static final int XOR_MAPPED_ADDRESS_OLD = 0x8020;
 
-    static class Discovery implements Runnable {
+    private static final int MAGIC_COOKIE = 0x2112A442;
 
-        private final InetAddress iaddress;
-        private final int port;
-        private final String server;
+    private static final Random random = new Random();
 
-        private boolean done = false;
-        private DiscoveryInfo result;
+    // The last result, and the local addresses for which it is valid.
+    private static String cachedFor;
+    private static InetAddress cached;
+    private static long cachedTime;
 
+    // A binding request to a single server.
+    private static final class Request implements Runnable {
 
-        public Discovery(InetAddress iaddress, int port, String server) {
-            this.iaddress = iaddress;
-            this.port = port;
+        final String server;
+
+        // The transaction id, including the magic cookie.
+        final byte [] id = new byte[16];
+
+        // Set by the resolver thread.
+        private InetSocketAddress address;
+        private boolean failed = false;
+
+        private Selector selector;
+
+        int sent = 0;
+        long next = 0;
+
+        Request(String server, Selector selector) {
             this.server = server;
+            this.selector = selector;
+
+            synchronized (random) {
+                random.nextBytes(id);
+            }
+
+            id[0] = (byte) (MAGIC_COOKIE >>> 24);
+            id[1] = (byte) (MAGIC_COOKIE >>> 16);
+            id[2] = (byte) (MAGIC_COOKIE >>> 8);
+            id[3] = (byte) MAGIC_COOKIE;
         }
 
-        public synchronized DiscoveryInfo getResult() {
+        // Resolves the server address. This may take a while, so it is done
+        // in a separate thread for each server.
+        public void run() {
+
+            InetSocketAddress tmp = null;
+
+            try {
+                String host = server;
+                int port = DEFAULT_PORT;
+
+                int colon = server.lastIndexOf(':');
+
+                if (colon > 0 && server.indexOf(':') == colon) {
+                    host = server.substring(0, colon);
+                    port = Integer.parseInt(server.substring(colon + 1));
+                }
 
-            while (!done) {
-                try {
-                    wait();
-                } catch (InterruptedException e) {
-                    // ignore
+                tmp = new InetSocketAddress(InetAddressCache.getByName(host),
+                        port);
+            } catch (Exception e) {
+                if (logger.isInfoEnabled()) {
+                    logger.info("Failed to resolve STUN server " + server
+                            + ": " + e);
                 }
             }
 
-            return result;
+            Selector s;
+
+            synchronized (this) {
+                address = tmp;
+                failed = (tmp == null);
+                s = selector;
+            }
+
+            if (s != null) {
+                s.wakeup();
+            }
         }
 
-        public synchronized boolean done() {
-            return done;
+        synchronized InetSocketAddress getAddress() {
+            return address;
         }
 
-        public void run() {
-            try {
-                logger.info("STUN discovery initiated on: " + iaddress
-                        + ":" + port);
+        synchronized boolean failed() {
+            return failed;
+        }
 
-                DiscoveryTest test = new DiscoveryTest(iaddress, server, port);
+        synchronized void done() {
+            selector = null;
+        }
 
-                synchronized (this) {
-                    result = test.test();
+        byte [] getBytes() {
+            ByteBuffer b = ByteBuffer.allocate(HEADER_SIZE);
+            b.putShort((short) BINDING_REQUEST);
+            b.putShort((short) 0);
+            b.put(id);
+            return b.array();
+        }
+    }
 
-                    logger.info("STUN discovery done on: " + iaddress + ":" + port
-                            + "\n" + result);
+    private static String getLocalAddresses() {
 
-                    done = true;
-                    notifyAll();
-                }
+        InetAddress [] ads = NetworkUtils.getAllHostAddresses();
 
+        String [] tmp = new String[ads.length];
 
-            } catch (Exception e) {
-                logger.warn("STUN discovery on " + iaddress + " failed!", e);
+        for (int i = 0; i < ads.length; i++) {
+            tmp[i] = NetworkUtils.ipToString(ads[i]);
+        }
+
+        Arrays.sort(tmp);
+
+        return Arrays.toString(tmp);
+    }
+
+    private static InetAddress getAddress(ByteBuffer b, int len, byte [] mask)
+        throws IOException {
+
+        b.get(); // reserved
+        int family = b.get();
+        b.getShort(); // port
+
+        byte [] tmp;
+
+        if (family == 1 && len >= 8) {
+            tmp = new byte[4];
+        } else if (family == 2 && len >= 20) {
+            tmp = new byte[16];
+        } else {
+            return null;
+        }
+
+        b.get(tmp);
+
+        if (mask != null) {
+            for (int i = 0; i < tmp.length; i++) {
+                tmp[i] ^= mask[i];
             }
         }
+
+        return InetAddress.getByAddress(tmp);
     }
 
-    private static void getExternalAddress(String server, int timeout) {
+    // Returns the mapped address in a binding response, or null if it is
+    // not a response to the request.
+    private static InetAddress parse(ByteBuffer b, Request r) {
+
+        try {
+            if (b.remaining() < HEADER_SIZE
+                    || (b.getShort() & 0xffff) != BINDING_RESPONSE) {
+                return null;
+            }
+
+            int length = b.getShort() & 0xffff;
 
-        logger.info("Trying to determine external address using "
-                + "STUN server:" + server);
+            byte [] id = new byte[16];
+            b.get(id);
 
-        InetAddress [] addresses = NetworkUtils.getAllHostAddresses();
-        Discovery [] tmp = new Discovery[addresses.length];
+            if (!Arrays.equals(id, r.id) || b.remaining() < length) {
+                return null;
+            }
+
+            InetAddress mapped = null;
+            InetAddress xorMapped = null;
 
-        logger.info("Network addresses available: " + addresses.length);
+            while (b.remaining() >= 4) {
 
-        int wait = 25;
-        int count = 0;
+                int type = b.getShort() & 0xffff;
+                int len = b.getShort() & 0xffff;
+
+                if (b.remaining() < len) {
+                    break;
+                }
 
-        int port = 3478;
+                int next = b.position() + ((len + 3) & ~3);
 
-        // For each network address (except loopback) we start a thread that
-        // tries to find the external address using STUN.
-        for (int i=0;i<addresses.length;i++) {
-            if (!addresses[i].isLoopbackAddress()) {
-                count++;
-                tmp[i] = new Discovery(addresses[i], port + i, server);
-                ThreadPool.createNew(tmp[i], "STUN " + addresses[i]);
+                if (type == MAPPED_ADDRESS) {
+                    mapped = getAddress(b, len, null);
+                } else if (type == XOR_MAPPED_ADDRESS
+                        || type == XOR_MAPPED_ADDRESS_OLD) {
+                    xorMapped = getAddress(b, len, id);
+                }
+
+                b.position(Math.min(next, b.limit()));
             }
+
+            // NAT boxes may rewrite the plain mapped address.
+            return xorMapped != null ? xorMapped : mapped;
+
+        } catch (Exception e) {
+            if (logger.isDebugEnabled()) {
+                logger.debug("Failed to parse STUN response from "
+                        + r.server, e);
+            }
+
+            return null;
         }
+    }
+
+    private static InetAddress query(String [] servers, int timeout)
+        throws IOException {
+
+        long start = System.currentTimeMillis();
+        long end = start + timeout;
+
+        Selector selector = Selector.open();
+        DatagramChannel channel = null;
 
-        long end = System.currentTimeMillis() + timeout;
+        Request [] requests = new Request[servers.length];
 
-        while (true) {
+        try {
+            channel = DatagramChannel.open();
+            channel.configureBlocking(false);
+            channel.socket().bind(new InetSocketAddress(0));
+            channel.register(selector, SelectionKey.OP_READ);
+
+            for (int i = 0; i < servers.length; i++) {
+                requests[i] = new Request(servers[i], selector);
+                ThreadPool.createNew(requests[i], "STUN " + servers[i]);
+            }
+
+            ByteBuffer buffer = ByteBuffer.allocate(1024);
+
+            while (true) {
+
+                long now = System.currentTimeMillis();
+
+                if (now >= end) {
+                    return null;
+                }
 
-            // Next, we gather the results and try to find an external address.
-            for (int i=0;i<tmp.length;i++) {
-                if (tmp[i] != null && tmp[i].done()) {
-                    DiscoveryInfo info = tmp[i].getResult();
-                    tmp[i] = null;
-                    count--;
+                long wakeup = end;
+                boolean pending = false;
 
-                    if (info == null) {
-                        logger.info("STUN failed for " + addresses[i]);
-                    } else {
-                        logger.info("STUN result for " + addresses[i] + ":\n" + info);
+                // Send (or resend) all requests that are due.
+                for (Request r : requests) {
 
-                        if (info.isOpenAccess()) {
-                            external = addresses[i];
-                        } else {
-                            external = info.getPublicIP();
+                    InetSocketAddress a = r.getAddress();
+
+                    if (a == null) {
+                        pending |= !r.failed();
+                        continue;
+                    }
+
+                    pending = true;
+
+                    if (now >= r.next) {
+                        try {
+                            channel.send(ByteBuffer.wrap(r.getBytes()), a);
+                        } catch (IOException e) {
+                            if (logger.isDebugEnabled()) {
+                                logger.debug("Failed to send STUN request to "
+                                        + r.server + ": " + e);
+                            }
                         }
 
-                        logger.info("Found external address: " + external
-                                + " using server " + server);
-                        return;
+                        r.next = now + ((long) RTO << Math.min(r.sent, 10));
+                        r.sent++;
                     }
+
+                    wakeup = Math.min(wakeup, r.next);
                 }
-            }
 
-            if (count == 0) {
-                // No more results to wait for....
-                return;
-            }
+                if (!pending) {
+                    // None of the servers could be resolved.
+                    return null;
+                }
 
-            if (timeout > 0 && System.currentTimeMillis() > end) {
-                // Time has exceeded (threads should die automatically)....
-                return;
-            }
+                selector.select(Math.max(1, wakeup - now));
+                selector.selectedKeys().clear();
 
-            // Sleep for half a second to prevent busy waiting.
-            try {
-                Thread.sleep(wait);
-            } catch (Exception e) {
-                // ignore
+                SocketAddress from;
+
+                while ((from = channel.receive(buffer)) != null) {
+
+                    buffer.flip();
+
+                    for (Request r : requests) {
+
+                        if (!from.equals(r.getAddress())) {
+                            continue;
+                        }
+
+                        InetAddress result = parse(buffer.duplicate(), r);
+
+                        if (result != null && !result.isAnyLocalAddress()) {
+
+                            if (logger.isInfoEnabled()) {
+                                logger.info("Found external address "
+                                        + NetworkUtils.ipToString(result)
+                                        + " using STUN server " + r.server
+                                        + " in " + (System.currentTimeMillis()
+                                                - start) + " ms.");
+                            }
+
+                            return result;
+                        }
+                    }
+
+                    buffer.clear();
+                }
+            }
+        } finally {
+            for (Request r : requests) {
+                if (r != null) {
+                    r.done();
+                }
             }
 
-            if (wait < 1000) {
-                wait *= 2;
+            if (channel != null) {
+                channel.close();
             }
+
+            selector.close();
         }
     }
 
     public static InetAddress getExternalAddress(String [] servers, int timeout) {
 
-        if (external != null) {
-            return external;
-        }
-
         if (servers == null || servers.length == 0) {
             servers = DEFAULT_SERVERS;
         }
 
-        for (int i=0;i<servers.length;i++) {
-            getExternalAddress(servers[i], 0);
+        if (timeout <= 0) {
+            timeout = DEFAULT_TIMEOUT;
+        }
+
+        String local = getLocalAddresses();
+
+        synchronized (STUN.class) {
+            if (cached != null && local.equals(cachedFor)
+                    && System.currentTimeMillis() - cachedTime < CACHE_TTL) {
+                return cached;
+            }
+        }
+
+        if (logger.isInfoEnabled()) {
+            logger.info("Trying to determine external address using STUN "
+                    + "servers: " + Arrays.toString(servers));
+        }
+
+        InetAddress result = null;
+
+        try {
+            result = query(servers, timeout);
+        } catch (IOException e) {
+            logger.warn("STUN discovery failed!", e);
+        }
 
-            if (external != null) {
-                break;
+        if (result == null) {
+            if (logger.isInfoEnabled()) {
+                logger.info("No STUN server replied within " + timeout
+                        + " ms.");
             }
+
+            return null;
+        }
+
+        synchronized (STUN.class) {
+            cachedFor = local;
+            cached = result;
+            cachedTime = System.currentTimeMillis();
         }
 
-        return external;
+        return result;
     }
 
     public static InetAddress getExternalAddress(int timeout) {
@@ -197,7 +449,7 @@ public class STUN {
 
         long start = System.currentTimeMillis();
 
-        InetAddress ad = getExternalAddress();
+        InetAddress ad = getExternalAddress(args.length > 0 ? args : null);
 
         long end = System.currentTimeMillis();
 
@@ -0,0 +1,246 @@
+package ibis.smartsockets.util;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+
+import org.slf4j.Logger;
+
+/**
+ * Stores string values in a properties file, together with the time at which
+ * they were stored, so a restarted process can reuse the results of an
+ * expensive lookup. Values expire after a fixed time.
+ *
+ * The file is read and written as a whole. Unless the values are replaced
+ * all at once, the valid values of other processes that share the file are
+ * kept.
+ */
+public final class TimedFileCache {
+
+    /**
+     * A stored value and the time at which it was stored.
+     */
+    public static final class Entry {
+
+        public final String value;
+
+        public final long time;
+
+        public Entry(String value, long time) {
+            this.value = value;
+            this.time = time;
+        }
+    }
+
+    private final File file;
+
+    private final long ttl;
+
+    private final Logger logger;
+
+    private final String what;
+
+    /**
+     * Creates a cache that uses the given file, or nothing at all if file is
+     * null or empty. Values expire ttl milliseconds after they were stored.
+     * If ttl is 0 or less, stored values are never used.
+     *
+     * What describes the values in log messages and in the file header.
+     */
+    public TimedFileCache(String file, long ttl, Logger logger, String what) {
+        this.file = (file == null || file.length() == 0) ? null
+                : new File(file);
+        this.ttl = ttl;
+        this.logger = logger;
+        this.what = what;
+    }
+
+    public boolean isEnabled() {
+        return file != null;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Returns true if a value stored at the given time has expired.
+     */
+    public boolean expired(long time, long now) {
+        return ttl <= 0 || now - time > ttl || time > now;
+    }
+
+    private Properties read() {
+
+        Properties p = new Properties();
+
+        if (file == null || !file.exists()) {
+            return p;
+        }
+
+        FileInputStream in = null;
+
+        try {
+            in = new FileInputStream(file);
+            p.load(in);
+        } catch (IOException e) {
+            logger.warn("Failed to load " + what + " from " + file, e);
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    // ignored
+                }
+            }
+        }
+
+        return p;
+    }
+
+    private void write(Properties p) {
+
+        FileOutputStream out = null;
+
+        try {
+            out = new FileOutputStream(file);
+            p.store(out, "SmartSockets " + what);
+        } catch (IOException e) {
+            logger.warn("Failed to store " + what + " in " + file, e);
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    // ignored
+                }
+            }
+        }
+    }
+
+    // Format: time value
+    private static Entry parse(String s) {
+
+        if (s == null) {
+            return null;
+        }
+
+        s = s.trim();
+
+        int space = s.indexOf(' ');
+
+        try {
+            if (space < 0) {
+                return new Entry("", Long.parseLong(s));
+            }
+
+            return new Entry(s.substring(space + 1).trim(),
+                    Long.parseLong(s.substring(0, space)));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Returns the value stored for key, or null if there is no valid value.
+     */
+    public synchronized Entry get(String key) {
+
+        if (file == null) {
+            return null;
+        }
+
+        Entry e = parse(read().getProperty(key));
+
+        if (e == null || expired(e.time, System.currentTimeMillis())) {
+            return null;
+        }
+
+        return e;
+    }
+
+    /**
+     * Returns all valid values.
+     */
+    public synchronized Map<String, Entry> getAll() {
+
+        HashMap<String, Entry> result = new HashMap<String, Entry>();
+
+        if (file == null) {
+            return result;
+        }
+
+        Properties p = read();
+
+        long now = System.currentTimeMillis();
+
+        for (Object o : p.keySet()) {
+
+            String key = (String) o;
+
+            Entry e = parse(p.getProperty(key));
+
+            if (e == null) {
+                if (logger.isInfoEnabled()) {
+                    logger.info("Ignoring " + what + " for " + key + " in "
+                            + file);
+                }
+            } else if (!expired(e.time, now)) {
+                result.put(key, e);
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Stores value for key. Valid values for other keys that are found in
+     * the file are kept, others are removed.
+     */
+    public synchronized void put(String key, String value) {
+
+        if (file == null) {
+            return;
+        }
+
+        long now = System.currentTimeMillis();
+
+        Properties p = read();
+
+        for (Object o : p.keySet().toArray()) {
+
+            Entry e = parse(p.getProperty((String) o));
+
+            if (e == null || expired(e.time, now)) {
+                p.remove(o);
+            }
+        }
+
+        p.setProperty(key, now + " " + value);
+
+        write(p);
+    }
+
+    /**
+     * Replaces the contents of the file with the given values.
+     */
+    public synchronized void putAll(Map<String, Entry> entries) {
+
+        if (file == null) {
+            return;
+        }
+
+        Properties p = new Properties();
+
+        for (Map.Entry<String, Entry> e : entries.entrySet()) {
+            p.setProperty(e.getKey(), e.getValue().time + " "
+                    + e.getValue().value);
+        }
+
+        write(p);
+    }
+}
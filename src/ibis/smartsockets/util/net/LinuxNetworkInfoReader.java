@@ -0,0 +1,273 @@
+package ibis.smartsockets.util.net;
+
+import ibis.smartsockets.util.NetworkUtils;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.net.Inet4Address;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.NetworkInterface;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.StringTokenizer;
+
+/**
+ * Retrieves the network configuration on Linux without starting any
+ * processes.
+ *
+ * The addresses of each interface are obtained using NetworkInterface, the
+ * MAC address is read from /sys/class/net/[interface]/address, and the
+ * netmask is taken from the route to the directly connected network in
+ * /proc/net/route. The broadcast address is derived from the address and
+ * netmask.
+ */
+final class LinuxNetworkInfoReader {
+
+    private static final String SYS_NET = "/sys/class/net/";
+
+    private static final String PROC_ROUTE = "/proc/net/route";
+
+    // Route flag indicating the route goes through a gateway.
+    private static final int RTF_GATEWAY = 0x2;
+
+    private static final int LOOPBACK_MASK = 0xFF000000;
+
+    private static final class Route {
+
+        final String device;
+        final int destination;
+        final int mask;
+
+        Route(String device, int destination, int mask) {
+            this.device = device;
+            this.destination = destination;
+            this.mask = mask;
+        }
+    }
+
+    private LinuxNetworkInfoReader() {
+        // prevent construction
+    }
+
+    private static String readLine(String file) {
+
+        BufferedReader r = null;
+
+        try {
+            r = new BufferedReader(new FileReader(file));
+            return r.readLine();
+        } catch (IOException e) {
+            return null;
+        } finally {
+            if (r != null) {
+                try {
+                    r.close();
+                } catch (IOException e) {
+                    // ignored
+                }
+            }
+        }
+    }
+
+    // Addresses in /proc/net/route are printed as a hexadecimal int in host
+    // byte order.
+    private static int parseAddress(String hex) {
+
+        int result = (int) Long.parseLong(hex, 16);
+
+        if (ByteOrder.nativeOrder() == ByteOrder.LITTLE_ENDIAN) {
+            result = Integer.reverseBytes(result);
+        }
+
+        return result;
+    }
+
+    // Returns the routes to directly connected networks.
+    private static List<Route> readRoutes() throws IOException {
+
+        ArrayList<Route> result = new ArrayList<Route>();
+
+        BufferedReader r = new BufferedReader(new FileReader(PROC_ROUTE));
+
+        try {
+            // Skip the header.
+            String line = r.readLine();
+
+            while ((line = r.readLine()) != null) {
+
+                // Format: Iface Destination Gateway Flags RefCnt Use Metric
+                //         Mask MTU Window IRTT
+                StringTokenizer tok = new StringTokenizer(line);
+
+                if (tok.countTokens() < 8) {
+                    continue;
+                }
+
+                try {
+                    String device = tok.nextToken();
+                    int destination = parseAddress(tok.nextToken());
+                    tok.nextToken();
+                    int flags = Integer.parseInt(tok.nextToken(), 16);
+                    tok.nextToken();
+                    tok.nextToken();
+                    tok.nextToken();
+                    int mask = parseAddress(tok.nextToken());
+
+                    if ((flags & RTF_GATEWAY) == 0 && mask != 0) {
+                        result.add(new Route(device, destination, mask));
+                    }
+                } catch (NumberFormatException e) {
+                    // ignore this line
+                }
+            }
+        } finally {
+            r.close();
+        }
+
+        return result;
+    }
+
+    private static byte [] readMAC(String device) {
+
+        String mac = readLine(SYS_NET + device + "/address");
+
+        if (mac == null || !NetworkInfoParser.isMacAddress(mac.trim())) {
+            return null;
+        }
+
+        byte [] result = NetworkUtils.MACStringToBytes(mac.trim());
+
+        for (byte b : result) {
+            if (b != 0) {
+                return result;
+            }
+        }
+
+        // The loopback device has an all zero address.
+        return null;
+    }
+
+    private static int toInt(byte [] b) {
+        return ((b[0] & 0xff) << 24) | ((b[1] & 0xff) << 16)
+            | ((b[2] & 0xff) << 8) | (b[3] & 0xff);
+    }
+
+    private static byte [] toBytes(int v) {
+        return new byte [] { (byte) (v >>> 24), (byte) (v >>> 16),
+                (byte) (v >>> 8), (byte) v };
+    }
+
+    // Returns the netmask of the most specific network that contains the
+    // address and is directly connected to the device, or 0 if there is none.
+    private static int getMask(List<Route> routes, String device, int ip) {
+
+        int result = 0;
+
+        for (Route r : routes) {
+            if (r.device.equals(device) && (ip & r.mask) == r.destination
+                    && Integer.bitCount(r.mask) > Integer.bitCount(result)) {
+                result = r.mask;
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Adds the configuration of all network interfaces to the list.
+     *
+     * @param info the list to add to.
+     * @return if any configuration was found.
+     */
+    static boolean read(List<NetworkInfo> info) {
+
+        List<Route> routes;
+        Enumeration<NetworkInterface> interfaces;
+
+        try {
+            routes = readRoutes();
+            interfaces = NetworkInterface.getNetworkInterfaces();
+        } catch (IOException e) {
+            return false;
+        }
+
+        if (interfaces == null) {
+            return false;
+        }
+
+        boolean result = false;
+
+        while (interfaces.hasMoreElements()) {
+
+            NetworkInterface nw = interfaces.nextElement();
+
+            // Aliases (like eth0:1) share the device of their interface.
+            String device = nw.getName();
+
+            int colon = device.indexOf(':');
+
+            if (colon > 0) {
+                device = device.substring(0, colon);
+            }
+
+            ArrayList<Inet4Address> ipv4 = new ArrayList<Inet4Address>();
+            ArrayList<Inet6Address> ipv6 = new ArrayList<Inet6Address>();
+
+            Enumeration<InetAddress> ads = nw.getInetAddresses();
+
+            while (ads.hasMoreElements()) {
+
+                InetAddress a = ads.nextElement();
+
+                if (a instanceof Inet4Address) {
+                    ipv4.add((Inet4Address) a);
+                } else if (a instanceof Inet6Address) {
+                    ipv6.add((Inet6Address) a);
+                }
+            }
+
+            byte [] mac = readMAC(device);
+
+            // Like ifconfig, we combine the n-th IPv4 and IPv6 address.
+            for (int i = 0; i < Math.max(ipv4.size(), ipv6.size()); i++) {
+
+                NetworkInfo tmp = new NetworkInfo();
+                tmp.mac = mac;
+
+                if (i < ipv4.size()) {
+
+                    Inet4Address a = ipv4.get(i);
+
+                    int ip = toInt(a.getAddress());
+                    int mask = getMask(routes, device, ip);
+
+                    if (mask == 0 && a.isLoopbackAddress()) {
+                        // Routes to the loopback device are in the local
+                        // routing table, which is not in /proc/net/route.
+                        mask = LOOPBACK_MASK;
+                    }
+
+                    tmp.ipv4 = a;
+
+                    if (mask != 0) {
+                        tmp.netmask = toBytes(mask);
+                        tmp.broadcast = toBytes(ip | ~mask);
+                    }
+                }
+
+                if (i < ipv6.size()) {
+                    tmp.ipv6 = ipv6.get(i);
+                }
+
+                info.add(tmp);
+                result = true;
+            }
+        }
+
+        return result;
+    }
+}
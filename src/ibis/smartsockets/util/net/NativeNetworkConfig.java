@@ -6,6 +6,12 @@ package ibis.smartsockets.util.net;
 
  <p>
 
+ On Linux, the configuration is read directly from /proc and /sys
+ instead, which avoids starting a process. Running ifconfig is only used
+ as a fallback.
+
+ <p>
+
  To run the whole thing, just type java NetworkInfo
 
  <p>
@@ -29,6 +35,7 @@ package ibis.smartsockets.util.net;
 
  */
 
+import ibis.smartsockets.SmartSocketsProperties;
 import ibis.smartsockets.util.NetworkUtils;
 import ibis.smartsockets.util.RunProcess;
 
@@ -62,6 +69,15 @@ public final class NativeNetworkConfig {
     private final static void getNetworkInfo() throws IOException {
         String os = System.getProperty("os.name");
 
+        if (os.startsWith("Linux") && SmartSocketsProperties
+                .getDefaultProperties().booleanProperty(
+                        SmartSocketsProperties.NETWORKINFO_NATIVE, true)) {
+
+            if (LinuxNetworkInfoReader.read(info)) {
+                return;
+            }
+        }
+
         for (NetworkInfoParser parser : parsers) {
             if (os.startsWith(parser.osName)) {
 
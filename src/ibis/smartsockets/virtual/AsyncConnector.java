@@ -0,0 +1,485 @@
+package ibis.smartsockets.virtual;
+
+import ibis.smartsockets.util.ThreadPool;
+import ibis.smartsockets.virtual.modules.ConnectModule;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.Random;
+import java.util.Timer;
+import java.util.TimerTask;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs the connection setups started with
+ * {@link VirtualSocketFactory#createClientSocketAsync}.
+ *
+ * Each connection setup is split into steps, one for each module attempt. The
+ * steps are run by a bounded number of worker threads, so many concurrent
+ * connection setups do not result in many threads. No thread is blocked
+ * during a backoff: both the retry of a module after the target was
+ * overloaded and the next round over all modules are scheduled on a timer.
+ * If connection setups are coalesced, a connection setup that waits for a
+ * concurrent one to the same machine does not block a thread either.
+ */
+final class AsyncConnector {
+
+    private static final Logger logger =
+        LoggerFactory.getLogger("ibis.smartsockets.virtual.connect");
+
+    private final VirtualSocketFactory factory;
+
+    private final int maxThreads;
+
+    private final LinkedList<Connect> queue = new LinkedList<Connect>();
+
+    private final Timer timer = new Timer("AsyncConnector backoff", true);
+
+    private final Random random = new Random();
+
+    private int threads = 0;
+
+    private boolean done = false;
+
+    /**
+     * The state of a single asynchronous connection setup.
+     */
+    private final class Connect {
+
+        private final VirtualSocketAddress target;
+        private final int timeout;
+        private final Map<String, Object> prop;
+        private final VirtualConnectFuture future;
+
+        private ConnectModule [] order;
+
+        private boolean fillTimeout;
+
+        private int [] timeouts = null;
+        private int timeLeft;
+
+        // The state of the current round.
+        private int index = 0;
+        private long roundStart;
+        private int roundLeft;
+        private Throwable [] exceptions;
+
+        // The attempt of the current module, which may be retried a few
+        // times if the target is overloaded.
+        private VirtualSocketFactory.ModuleConnect attempt = null;
+        private long attemptStart;
+
+        private boolean lastAttempt = false;
+        private int backoff = 250;
+
+        private NoSuitableModuleException exception = null;
+        private LinkedList<NoSuitableModuleException> detailed = null;
+
+        // The search for a module shared with concurrent connection setups
+        // to the same machine (null if not coalesced), and our state in it.
+        private VirtualSocketFactory.ConnectProbe probe;
+        private int probeState = -1;
+        private final int [] probeSeen = new int [] { -1 };
+        private final long created;
+        private final long probeDeadline;
+        private boolean waiting = false;
+
+        Connect(VirtualSocketAddress target, int timeout, boolean fillTimeout,
+                Map<String, Object> prop, VirtualConnectFuture future) {
+
+            this.target = target;
+            this.timeout = timeout;
+            this.fillTimeout = fillTimeout;
+            this.prop = prop;
+            this.future = future;
+
+            order = factory.getOrder(target);
+            timeLeft = timeout;
+
+            probe = factory.joinProbe(target.machine());
+            created = System.currentTimeMillis();
+            probeDeadline = created + timeout / 2;
+
+            if (factory.useDetailedExceptions()) {
+                detailed = new LinkedList<NoSuitableModuleException>();
+            }
+        }
+
+        // Performs a single module attempt. Returns true if the connection
+        // setup is finished.
+        boolean step() {
+
+            if (future.isDone()) {
+                // Cancelled
+                leaveProbe(null, null);
+                return true;
+            }
+
+            if (probe != null && probeState == -1 && !waitForTurn()) {
+                return true;
+            }
+
+            if (index == 0) {
+                if (timeLeft <= factory.getDefaultTimeout()) {
+                    // See createClientSocket: only distribute once.
+                    timeouts = factory.distributesTimeout(target, timeLeft,
+                            timeouts, order);
+                    fillTimeout = false;
+                }
+
+                roundStart = System.currentTimeMillis();
+                roundLeft = timeLeft;
+                exceptions = new Throwable[order.length];
+            }
+
+            ConnectModule m = order[index];
+
+            if (attempt == null) {
+                int t = (timeouts != null ? timeouts[index] : m.getTimeout());
+
+                attempt = factory.new ModuleConnect(m, target, t, roundLeft,
+                        fillTimeout, prop);
+                attemptStart = System.currentTimeMillis();
+
+                if (probeState == VirtualSocketFactory.ConnectProbe.SEARCH) {
+                    probe.moduleTried(m);
+                }
+            }
+
+            long start = attemptStart;
+
+            VirtualSocket vs = null;
+
+            try {
+                if (!attempt.step()) {
+                    // The target refused the connection, so we retry this
+                    // module after the backoff.
+                    schedule(this, attempt.getRetryDelay());
+                    return true;
+                }
+
+                vs = attempt.getSocket();
+            } catch (NonFatalIOException e) {
+                exceptions[index] = e;
+                factory.connectFailed(target, m,
+                        System.currentTimeMillis() - start);
+            } catch (IOException e) {
+                failed(e);
+                return true;
+            }
+
+            attempt = null;
+
+            if (vs != null) {
+                factory.connectSucces(target, m,
+                        System.currentTimeMillis() - start);
+
+                leaveProbe(m, null);
+                future.succeeded(vs);
+                return true;
+            }
+
+            index++;
+
+            if (index < order.length) {
+
+                roundLeft -= System.currentTimeMillis() - start;
+
+                if (roundLeft > 0) {
+                    return false;
+                }
+
+                // Some module broke the rules.
+                endRound(new NoSuitableModuleException("Timeout during "
+                        + " connect to " + target, factory.getNames(order),
+                        exceptions));
+            } else {
+                endRound(new NoSuitableModuleException("No suitable module "
+                        + "found to connect to " + target + " (timeouts="
+                        + Arrays.toString(timeouts) + ", fillTimeout="
+                        + fillTimeout + ")", factory.getNames(order),
+                        exceptions));
+            }
+
+            return true;
+        }
+
+        // All modules have been tried. Either schedule the next round or
+        // report the failure.
+        private void endRound(NoSuitableModuleException e) {
+
+            if (detailed != null) {
+                detailed.add(e);
+            } else {
+                exception = e;
+            }
+
+            index = 0;
+            timeLeft -= System.currentTimeMillis() - roundStart;
+
+            if (!lastAttempt && fillTimeout && timeLeft > 0) {
+
+                int sleeptime = 0;
+
+                if (backoff < timeLeft) {
+                    synchronized (random) {
+                        sleeptime = random.nextInt(backoff);
+                    }
+                } else {
+                    sleeptime = timeLeft;
+                    lastAttempt = true;
+                }
+
+                if (sleeptime >= timeLeft) {
+                    if (sleeptime > 500) {
+                        sleeptime -= 500;
+                    } else {
+                        sleeptime = 0;
+                        fillTimeout = false;
+                    }
+                }
+
+                backoff *= 2;
+
+                if (fillTimeout) {
+                    schedule(this, sleeptime);
+                    return;
+                }
+            }
+
+            if (logger.isDebugEnabled()) {
+                logger.debug("createClientSocketAsync to " + target
+                        + " failed.");
+            }
+
+            if (detailed != null) {
+                failed(new NoSuitableModuleException("No suitable "
+                        + "module found to connect to " + target + "(timeout="
+                        + timeout + ", fillTimeout=" + fillTimeout + ")",
+                        detailed));
+            } else {
+                failed(exception);
+            }
+        }
+
+        // Waits (without blocking the thread) while a concurrent connection
+        // setup to the same machine searches for a module, but for at most
+        // half of our timeout (unless the search covers us). Returns false if
+        // we must wait, in which case we are enqueued again when the search
+        // ends or the wait expires, or if we got the failure of the search.
+        // See VirtualSocketFactory.createCoalescedClientSocket.
+        private boolean waitForTurn() {
+
+            long end = created + timeout;
+
+            synchronized (this) {
+                waiting = true;
+            }
+
+            int state = probe.poll(new Runnable() {
+                public void run() {
+                    wakeup();
+                }
+            }, probeSeen);
+
+            long now = System.currentTimeMillis();
+            long wait = probeDeadline - now;
+
+            if (wait <= 0 && probe.covers(order)) {
+                wait = end - now;
+            }
+
+            if (state == VirtualSocketFactory.ConnectProbe.WAIT && wait > 0) {
+
+                try {
+                    timer.schedule(new TimerTask() {
+                        public void run() {
+                            wakeup();
+                        }
+                    }, wait);
+                } catch (IllegalStateException e) {
+                    // Timer was cancelled by end()
+                    failed(new IOException("Socket factory has been closed"));
+                }
+
+                return false;
+            }
+
+            synchronized (this) {
+                waiting = false;
+                probeState = state;
+            }
+
+            if (state == VirtualSocketFactory.ConnectProbe.FAILED) {
+                failed(probe.getFailure(target));
+                return false;
+            }
+
+            timeLeft -= now - created;
+
+            order = probe.reorder(target, order, state);
+
+            return true;
+        }
+
+        private void wakeup() {
+
+            synchronized (this) {
+                if (!waiting) {
+                    return;
+                }
+
+                waiting = false;
+            }
+
+            enqueue(this);
+        }
+
+        // Releases the probe. If we were searching for a module, m is the
+        // module we found, or e the exception the search failed with.
+        private void leaveProbe(ConnectModule m, IOException e) {
+
+            VirtualSocketFactory.ConnectProbe p;
+            int state;
+
+            synchronized (this) {
+                p = probe;
+                state = probeState;
+                probe = null;
+            }
+
+            if (p == null) {
+                return;
+            }
+
+            if (state == VirtualSocketFactory.ConnectProbe.SEARCH) {
+                p.searchDone(m, e);
+            }
+
+            factory.leaveProbe(target.machine(), p);
+        }
+
+        void failed(IOException e) {
+            leaveProbe(null, e);
+            future.failed(e);
+        }
+    }
+
+    private final class Worker implements Runnable {
+
+        public void run() {
+
+            while (true) {
+
+                Connect c = next();
+
+                if (c == null) {
+                    return;
+                }
+
+                boolean finished;
+
+                try {
+                    finished = c.step();
+                } catch (Throwable e) {
+                    // Make sure a broken module does not kill the thread.
+                    logger.warn("Asynchronous connection setup to " + c.target
+                            + " failed unexpectedly", e);
+
+                    c.failed(new IOException("Connection setup failed: " + e));
+                    finished = true;
+                }
+
+                if (!finished) {
+                    enqueue(c);
+                }
+            }
+        }
+    }
+
+    AsyncConnector(VirtualSocketFactory factory, int maxThreads) {
+        this.factory = factory;
+        this.maxThreads = maxThreads < 1 ? 1 : maxThreads;
+    }
+
+    VirtualConnectFuture connect(VirtualSocketAddress target, int timeout,
+            boolean fillTimeout, Map<String, Object> prop,
+            VirtualConnectCallback callback) {
+
+        VirtualConnectFuture f = new VirtualConnectFuture(target, callback);
+        enqueue(new Connect(target, timeout, fillTimeout, prop, f));
+        return f;
+    }
+
+    private void enqueue(Connect c) {
+
+        synchronized (this) {
+            if (!done) {
+                queue.addLast(c);
+
+                if (threads < maxThreads && threads < queue.size()) {
+                    threads++;
+                    ThreadPool.createNew(new Worker(), "AsyncConnector");
+                }
+
+                return;
+            }
+        }
+
+        c.failed(new IOException("Socket factory has been closed"));
+    }
+
+    private synchronized Connect next() {
+
+        if (queue.isEmpty() || done) {
+            threads--;
+            return null;
+        }
+
+        return queue.removeFirst();
+    }
+
+    private void schedule(final Connect c, int delay) {
+
+        if (delay <= 0) {
+            enqueue(c);
+            return;
+        }
+
+        try {
+            timer.schedule(new TimerTask() {
+                public void run() {
+                    enqueue(c);
+                }
+            }, delay);
+        } catch (IllegalStateException e) {
+            // Timer was cancelled by end()
+            c.failed(new IOException("Socket factory has been closed"));
+        }
+    }
+
+    void end() {
+
+        Connect [] tmp;
+
+        synchronized (this) {
+            if (done) {
+                return;
+            }
+
+            done = true;
+            tmp = queue.toArray(new Connect[queue.size()]);
+            queue.clear();
+        }
+
+        timer.cancel();
+
+        for (Connect c : tmp) {
+            c.failed(new IOException("Socket factory has been closed"));
+        }
+    }
+}
@@ -0,0 +1,101 @@
+package ibis.smartsockets.virtual;
+
+import ibis.smartsockets.direct.DirectSocketAddress;
+import ibis.smartsockets.util.TimedFileCache;
+
+import java.util.LinkedList;
+import java.util.List;
+import java.util.StringTokenizer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Stores the hubs the VirtualSocketFactory was connected to in a file, so
+ * that a restarted process can try them right away, instead of waiting for
+ * hub discovery.
+ *
+ * Hubs are stored per cluster, since processes in different clusters usually
+ * use different hubs. Entries expire after a fixed time.
+ */
+final class HubAddressCache {
+
+    private static final Logger logger =
+        LoggerFactory.getLogger("ibis.smartsockets.virtual.misc");
+
+    // Key used for processes that are not part of a cluster.
+    private static final String NO_CLUSTER = "-";
+
+    private final TimedFileCache cache;
+
+    HubAddressCache(String file, long ttl) {
+        cache = new TimedFileCache(file, ttl, logger, "hub addresses");
+    }
+
+    private static String key(String cluster) {
+        return cluster == null ? NO_CLUSTER : cluster;
+    }
+
+    /**
+     * Returns the hubs stored for the given cluster (which may be null). The
+     * result is empty if there are no valid hubs.
+     */
+    List<DirectSocketAddress> load(String cluster) {
+
+        LinkedList<DirectSocketAddress> result =
+            new LinkedList<DirectSocketAddress>();
+
+        TimedFileCache.Entry e = cache.get(key(cluster));
+
+        if (e == null) {
+            return result;
+        }
+
+        try {
+            // Format: hub [hub ...]
+            StringTokenizer tok = new StringTokenizer(e.value);
+
+            while (tok.hasMoreTokens()) {
+                result.add(DirectSocketAddress.getByAddress(tok.nextToken()));
+            }
+
+        } catch (Exception x) {
+            if (logger.isInfoEnabled()) {
+                logger.info("Ignoring hubs for cluster " + key(cluster)
+                        + " in " + cache.getFile() + ": " + x);
+            }
+
+            result.clear();
+        }
+
+        if (logger.isInfoEnabled()) {
+            logger.info("Loaded " + result.size() + " hubs from "
+                    + cache.getFile());
+        }
+
+        return result;
+    }
+
+    /**
+     * Stores the hubs for the given cluster (which may be null). Valid hubs
+     * of other clusters that are found in the file are kept.
+     */
+    void save(String cluster, DirectSocketAddress [] hubs) {
+
+        if (hubs == null || hubs.length == 0) {
+            return;
+        }
+
+        StringBuilder b = new StringBuilder();
+
+        for (DirectSocketAddress a : hubs) {
+            if (b.length() > 0) {
+                b.append(' ');
+            }
+
+            b.append(a.toString());
+        }
+
+        cache.put(key(cluster), b.toString());
+    }
+}
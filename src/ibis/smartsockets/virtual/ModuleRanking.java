@@ -0,0 +1,238 @@
+package ibis.smartsockets.virtual;
+
+import ibis.smartsockets.virtual.modules.ConnectModule;
+
+import java.util.IdentityHashMap;
+import java.util.Random;
+
+/**
+ * Orders the modules used to connect to a single cluster by their expected
+ * connection setup time.
+ *
+ * For each module we keep the number of successful and failed connection
+ * setups and the time they took. Older observations slowly lose their
+ * weight, so the ranking follows changes in the network. A module with
+ * success probability p, average success time s and average failure time f
+ * costs p*s + (1-p)*f per attempt and needs 1/p attempts on average. Trying
+ * the modules in increasing order of (p*s + (1-p)*f) / p minimizes the
+ * expected time needed to connect.
+ *
+ * When there are few observations for a cluster, the global statistics of
+ * the module are used as a prior. In a small fraction of the connection
+ * setups, a random module is tried first, so that a module that performed
+ * badly in the past gets a chance to show it has improved.
+ */
+final class ModuleRanking {
+
+    // Weight of the old statistics when a new observation is added.
+    private static final double DECAY = 0.95;
+
+    // Weight (in observations) of the global statistics of a module.
+    private static final double PRIOR_WEIGHT = 2.0;
+
+    // Minimal success probability used in the cost estimate.
+    private static final double MIN_PROBABILITY = 0.01;
+
+    private static final class Statistics {
+        double succes;
+        double succesTime;
+        double failed;
+        double failedTime;
+    }
+
+    private final IdentityHashMap<ConnectModule, Statistics> stats =
+        new IdentityHashMap<ConnectModule, Statistics>();
+
+    private final Random random;
+
+    private final int explore;
+
+    private long samples = 0;
+
+    ModuleRanking(Random random, int explore) {
+        this.random = random;
+        this.explore = explore;
+    }
+
+    private Statistics get(ConnectModule m) {
+
+        Statistics s = stats.get(m);
+
+        if (s == null) {
+            s = new Statistics();
+            stats.put(m, s);
+        }
+
+        return s;
+    }
+
+    synchronized void succes(ConnectModule m, long time) {
+        Statistics s = get(m);
+        s.succes = DECAY * s.succes + 1;
+        s.succesTime = DECAY * s.succesTime + time;
+        s.failed *= DECAY;
+        s.failedTime *= DECAY;
+        samples++;
+    }
+
+    synchronized void failed(ConnectModule m, long time) {
+        Statistics s = get(m);
+        s.failed = DECAY * s.failed + 1;
+        s.failedTime = DECAY * s.failedTime + time;
+        s.succes *= DECAY;
+        s.succesTime *= DECAY;
+        samples++;
+    }
+
+    synchronized long samples() {
+        return samples;
+    }
+
+    private double averageSuccesTime(ConnectModule m, Statistics s) {
+
+        if (s != null && s.succes >= 0.5) {
+            return s.succesTime / s.succes;
+        }
+
+        long count = m.getConnectSuccesCount();
+
+        if (count > 0) {
+            return ((double) m.getConnectSuccesTime()) / count;
+        }
+
+        // Optimistic guess
+        return m.getTimeout() / 2.0;
+    }
+
+    private double averageFailedTime(ConnectModule m, Statistics s) {
+
+        if (s != null && s.failed >= 0.5) {
+            return s.failedTime / s.failed;
+        }
+
+        long count = m.getConnectFailedCount();
+
+        if (count > 0) {
+            return ((double) m.getConnectFailedTime()) / count;
+        }
+
+        return m.getTimeout();
+    }
+
+    private double expectedTime(ConnectModule m) {
+
+        Statistics s = stats.get(m);
+
+        // Global success rate of this module (with a uniform prior).
+        double prior = (m.getConnectSuccesCount() + 1.0)
+            / (m.getConnectSuccesCount() + m.getConnectFailedCount() + 2.0);
+
+        double succes = (s == null ? 0 : s.succes);
+        double failed = (s == null ? 0 : s.failed);
+
+        double p = (succes + PRIOR_WEIGHT * prior)
+            / (succes + failed + PRIOR_WEIGHT);
+
+        double cost = p * averageSuccesTime(m, s)
+            + (1.0 - p) * averageFailedTime(m, s);
+
+        return cost / Math.max(p, MIN_PROBABILITY);
+    }
+
+    /**
+     * Returns a new array containing the modules in the order in which they
+     * should be tried. Modules with equal expected times keep their relative
+     * order.
+     *
+     * @param order the configured order.
+     * @return the modules sorted by expected connection setup time.
+     */
+    synchronized ConnectModule [] order(ConnectModule [] order) {
+
+        ConnectModule [] result = order.clone();
+
+        double [] cost = new double[result.length];
+
+        for (int i=0;i<result.length;i++) {
+            cost[i] = expectedTime(result[i]);
+        }
+
+        // Insertion sort (stable, and there are only a few modules).
+        for (int i=1;i<result.length;i++) {
+
+            ConnectModule m = result[i];
+            double c = cost[i];
+
+            int j = i-1;
+
+            while (j >= 0 && cost[j] > c) {
+                result[j+1] = result[j];
+                cost[j+1] = cost[j];
+                j--;
+            }
+
+            result[j+1] = m;
+            cost[j+1] = c;
+        }
+
+        if (result.length > 1 && explore > 0) {
+
+            int index = -1;
+
+            synchronized (random) {
+                if (random.nextInt(100) < explore) {
+                    index = 1 + random.nextInt(result.length-1);
+                }
+            }
+
+            if (index > 0) {
+                ConnectModule m = result[index];
+                System.arraycopy(result, 0, result, 1, index);
+                result[0] = m;
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Distributes timeout over the modules. A module that has connected
+     * before gets three times its average success time (but never more than
+     * its own timeout), since it is unlikely to succeed if it takes much
+     * longer than that. The remaining modules get their own timeout. The
+     * result is scaled to fit the total timeout.
+     *
+     * @param timeout the total timeout.
+     * @param modules the modules in the order in which they will be tried.
+     * @return the timeout for each of the modules.
+     */
+    synchronized int [] distributeTimeout(int timeout,
+            ConnectModule [] modules) {
+
+        double [] weight = new double[modules.length];
+        double total = 0;
+
+        for (int i=0;i<modules.length;i++) {
+
+            ConnectModule m = modules[i];
+            Statistics s = stats.get(m);
+
+            weight[i] = m.getTimeout();
+
+            if (s != null && s.succes >= 0.5) {
+                double t = 3.0 * s.succesTime / s.succes;
+                weight[i] = Math.max(weight[i] / 10.0, Math.min(weight[i], t));
+            }
+
+            total += weight[i];
+        }
+
+        int [] result = new int[modules.length];
+
+        for (int i=0;i<modules.length;i++) {
+            result[i] = (int) (timeout * weight[i] / total);
+        }
+
+        return result;
+    }
+}
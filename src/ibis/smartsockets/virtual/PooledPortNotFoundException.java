@@ -0,0 +1,23 @@
+package ibis.smartsockets.virtual;
+
+import java.net.SocketException;
+
+/**
+ * Thrown when the target of a pooled connection replies that the port was
+ * not found. Servers that do not support pooled connections do not recognize
+ * the port of a pooled connection request, so the connection may still
+ * succeed without pooling.
+ */
+public class PooledPortNotFoundException extends SocketException {
+
+    private static final long serialVersionUID = 4211830542719637208L;
+
+    public PooledPortNotFoundException() {
+        super();
+    }
+
+    public PooledPortNotFoundException(String message) {
+        super(message);
+    }
+
+}
@@ -0,0 +1,238 @@
+package ibis.smartsockets.virtual;
+
+import ibis.smartsockets.direct.DirectSocketAddress;
+import ibis.smartsockets.direct.DirectSocketFactory;
+import ibis.smartsockets.util.TimedFileCache;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.StringTokenizer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Remembers, for each target machine, which module created the last
+ * connection, the address it connected to, and how long the connection setup
+ * took on average. The average is used to limit the time the module gets
+ * when it is tried first, so a route that stopped working is abandoned
+ * quickly.
+ *
+ * The cache is bounded (least recently used entries are dropped), entries
+ * expire after a fixed time, and an entry is dropped as soon as its module
+ * fails. The cache can be stored in a file, so that a restarted process can
+ * use the route that worked before right away.
+ */
+final class RouteCache {
+
+    private static final Logger logger =
+        LoggerFactory.getLogger("ibis.smartsockets.virtual.clustering");
+
+    // Weight of the old average when a new setup time is added.
+    private static final double DECAY = 0.75;
+
+    static final class Route {
+
+        final String module;
+
+        InetSocketAddress address;
+
+        // Decaying average of the setup time in milliseconds.
+        double latency;
+
+        long time;
+
+        Route(String module, double latency, long time) {
+            this.module = module;
+            this.latency = latency;
+            this.time = time;
+        }
+
+        public String toString() {
+            return module + " (" + (long) latency + " ms.)";
+        }
+    }
+
+    private final LinkedHashMap<DirectSocketAddress, Route> routes;
+
+    private final long ttl;
+
+    private final TimedFileCache file;
+
+    private final DirectSocketFactory direct;
+
+    RouteCache(final int maxSize, long ttl, String file,
+            DirectSocketFactory direct) {
+
+        this.ttl = ttl;
+        this.direct = direct;
+
+        // Routes that were not used for ttl ms. are dropped, here a ttl of 0
+        // or less means routes never expire.
+        this.file = new TimedFileCache(file, ttl > 0 ? ttl : Long.MAX_VALUE,
+                logger, "routes");
+
+        routes = new LinkedHashMap<DirectSocketAddress, Route>(16, 0.75f,
+                true) {
+
+            private static final long serialVersionUID = 1L;
+
+            protected boolean removeEldestEntry(
+                    Map.Entry<DirectSocketAddress, Route> eldest) {
+                return size() > maxSize;
+            }
+        };
+
+        if (this.file.isEnabled()) {
+            load();
+        }
+    }
+
+    private boolean expired(Route r, long now) {
+        return ttl > 0 && now - r.time > ttl;
+    }
+
+    synchronized Route get(DirectSocketAddress machine) {
+
+        Route r = routes.get(machine);
+
+        if (r != null && expired(r, System.currentTimeMillis())) {
+            routes.remove(machine);
+            return null;
+        }
+
+        return r;
+    }
+
+    /**
+     * Returns the average connection setup time to machine using module, or
+     * -1 if module is not the cached route to machine.
+     */
+    synchronized double latency(DirectSocketAddress machine, String module) {
+
+        Route r = get(machine);
+
+        if (r == null || !r.module.equals(module)) {
+            return -1;
+        }
+
+        return r.latency;
+    }
+
+    synchronized void succes(DirectSocketAddress machine, String module,
+            long time) {
+
+        Route r = routes.get(machine);
+
+        if (r == null || !r.module.equals(module)) {
+            r = new Route(module, time, 0);
+            routes.put(machine, r);
+        } else {
+            r.latency = DECAY * r.latency + (1.0 - DECAY) * time;
+        }
+
+        r.time = System.currentTimeMillis();
+
+        if (direct != null) {
+            InetSocketAddress a = direct.getPreferredAddress(machine);
+
+            if (a != null) {
+                r.address = a;
+            }
+        }
+    }
+
+    synchronized void failed(DirectSocketAddress machine, String module) {
+
+        Route r = routes.get(machine);
+
+        if (r != null && r.module.equals(module)) {
+            if (logger.isInfoEnabled()) {
+                logger.info("Dropping route to " + machine + ": " + r);
+            }
+
+            routes.remove(machine);
+        }
+    }
+
+    synchronized int size() {
+        return routes.size();
+    }
+
+    private void load() {
+
+        for (Map.Entry<String, TimedFileCache.Entry> e :
+                file.getAll().entrySet()) {
+
+            String key = e.getKey();
+
+            try {
+                DirectSocketAddress machine =
+                    DirectSocketAddress.getByAddress(key);
+
+                // Format: module latency [address port]
+                StringTokenizer tok = new StringTokenizer(e.getValue().value);
+
+                Route r = new Route(tok.nextToken(),
+                        Double.parseDouble(tok.nextToken()),
+                        e.getValue().time);
+
+                if (tok.hasMoreTokens()) {
+                    InetAddress a = InetAddress.getByName(tok.nextToken());
+                    int port = Integer.parseInt(tok.nextToken());
+
+                    r.address = new InetSocketAddress(a, port);
+
+                    if (direct != null) {
+                        direct.setPreferredAddress(machine, r.address);
+                    }
+                }
+
+                routes.put(machine, r);
+
+            } catch (Exception x) {
+                if (logger.isInfoEnabled()) {
+                    logger.info("Ignoring route to " + key + " in "
+                            + file.getFile() + ": " + x);
+                }
+            }
+        }
+
+        if (logger.isInfoEnabled()) {
+            logger.info("Loaded " + routes.size() + " routes from "
+                    + file.getFile());
+        }
+    }
+
+    synchronized void save() {
+
+        if (!file.isEnabled()) {
+            return;
+        }
+
+        HashMap<String, TimedFileCache.Entry> tmp =
+            new HashMap<String, TimedFileCache.Entry>();
+
+        for (Map.Entry<DirectSocketAddress, Route> e : routes.entrySet()) {
+
+            Route r = e.getValue();
+
+            StringBuilder b = new StringBuilder();
+            b.append(r.module).append(' ');
+            b.append((long) r.latency);
+
+            if (r.address != null) {
+                b.append(' ').append(r.address.getAddress().getHostAddress());
+                b.append(' ').append(r.address.getPort());
+            }
+
+            tmp.put(e.getKey().toString(),
+                    new TimedFileCache.Entry(b.toString(), r.time));
+        }
+
+        file.putAll(tmp);
+    }
+}
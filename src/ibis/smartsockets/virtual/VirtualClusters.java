@@ -7,6 +7,7 @@ import ibis.smartsockets.virtual.modules.ConnectModule;
 
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.Random;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -21,6 +22,9 @@ public class VirtualClusters {
         final String name;
         final ConnectModule [] order;
 
+        // Only used when the order is adaptive.
+        ModuleRanking ranking;
+
         ClusterDefinition(String name, ConnectModule [] order) {
             this.name = name;
             this.order = order;
@@ -56,19 +60,38 @@ public class VirtualClusters {
         }
     }
 
+    // Minimal number of observations for a cluster before the adaptive order
+    // overrules the route cache.
+    private static final int MIN_SAMPLES = 4;
+
     private final boolean reorder;
+    private final boolean adaptive;
+    private final int explore;
+    private final Random random = new Random();
     private final String localCluster;
     private final ClusterDefinition defaultOrder;
     private final HashMap<String, ClusterDefinition> clusters =
         new HashMap<String, ClusterDefinition>();
 
-    private final HashMap<VirtualSocketAddress, ClusterDefinition> orphans =
-        new HashMap<VirtualSocketAddress, ClusterDefinition>();
+    // Remembers the module that worked for each individual machine.
+    private final RouteCache routes;
 
     VirtualClusters(VirtualSocketFactory parent,
             TypedProperties properties, ConnectModule [] order) {
 
         reorder = properties.booleanProperty(SmartSocketsProperties.CLUSTER_REORDER, true);
+        adaptive = reorder && properties.booleanProperty(
+                SmartSocketsProperties.CLUSTER_ADAPTIVE, false);
+        explore = properties.getIntProperty(
+                SmartSocketsProperties.CLUSTER_EXPLORE, 5);
+
+        routes = new RouteCache(
+                properties.getIntProperty(
+                        SmartSocketsProperties.ROUTE_CACHE_SIZE, 1024),
+                properties.getLongProperty(
+                        SmartSocketsProperties.ROUTE_CACHE_TTL, 3600000L),
+                properties.getProperty(SmartSocketsProperties.ROUTE_CACHE_FILE),
+                parent.getDirectSocketFactory());
         String myc = properties.getProperty(SmartSocketsProperties.CLUSTER_MEMBER, null);
 
         if (myc == null || myc.length() == 0) {
@@ -154,31 +177,153 @@ public class VirtualClusters {
         return localCluster;
     }
 
-    private ConnectModule[] getSingleNodeOrder(VirtualSocketAddress target) {
+    // Returns a copy of order in which the module that last worked for this
+    // particular machine comes first, or order itself if there is none.
+    private ConnectModule[] applyRoute(VirtualSocketAddress target,
+            ConnectModule[] order) {
+
+        RouteCache.Route r = routes.get(target.machine());
+
+        if (r == null || order[0].getName().equals(r.module)) {
+            return order;
+        }
+
+        for (int i=1;i<order.length;i++) {
+            if (order[i].getName().equals(r.module)) {
+
+                if (logger.isInfoEnabled()) {
+                    logger.info("Using cached route to " + target.machine()
+                            + ": " + r);
+                }
+
+                ConnectModule [] result = new ConnectModule[order.length];
+                result[0] = order[i];
+                System.arraycopy(order, 0, result, 1, i);
+                System.arraycopy(order, i+1, result, i+1, order.length-i-1);
+                return result;
+            }
+        }
+
+        return order;
+    }
+
+    private ModuleRanking getRanking(ClusterDefinition d) {
+
+        if (d.ranking == null) {
+            d.ranking = new ModuleRanking(random, explore);
+        }
+
+        return d.ranking;
+    }
+
+    public synchronized ConnectModule[] getOrder(VirtualSocketAddress target) {
+
+        ClusterDefinition d = getDefinition(target);
 
         if (!reorder) {
-            return defaultOrder.order;
+            return d.order;
         }
 
-        if (logger.isInfoEnabled()) {
-            logger.info("Determine connect order for node: " + target.toString());
+        if (adaptive) {
+            ModuleRanking r = getRanking(d);
+
+            ConnectModule [] order = r.order(d.order);
+
+            if (logger.isInfoEnabled()) {
+                logger.info("Adaptive order for cluster: " + d.name + " -> "
+                        + Arrays.deepToString(order));
+            }
+
+            if (r.samples() >= MIN_SAMPLES) {
+                return order;
+            }
+
+            return applyRoute(target, order);
         }
 
-        ClusterDefinition d = orphans.get(target);
+        return applyRoute(target, d.order);
+    }
 
-        if (d == null) {
-            d = new ClusterDefinition("orphan", defaultOrder.order.clone());
-            orphans.put(target, d);
+    /**
+     * Distributes timeout over the modules based on the connection setup
+     * times observed for the cluster of target or, if the first module is
+     * the cached route to target, on the setup time of that route.
+     *
+     * @param target the target of the connection.
+     * @param timeout the total timeout.
+     * @param order the modules in the order in which they will be tried.
+     * @return the timeout for each module, or null if there is nothing to
+     * base the timeouts on.
+     */
+    public synchronized int[] distributeTimeout(VirtualSocketAddress target,
+            int timeout, ConnectModule[] order) {
+
+        ModuleRanking r = null;
+
+        if (adaptive) {
+            r = getRanking(getDefinition(target));
+
+            // Like getOrder, the cluster statistics overrule the route.
+            if (r.samples() >= MIN_SAMPLES) {
+                return r.distributeTimeout(timeout, order);
+            }
         }
 
-        if (logger.isInfoEnabled()) {
-            logger.info("Connect order: " + Arrays.deepToString(d.order));
+        int [] result = distributeRouteTimeout(target, timeout, order);
+
+        if (result == null && r != null) {
+            result = r.distributeTimeout(timeout, order);
         }
 
-        return d.order;
+        return result;
     }
 
-    public ConnectModule[] getOrder(VirtualSocketAddress target) {
+    // Gives the first module a share of the timeout based on the setup time
+    // of the cached route to target (like ModuleRanking does for a cluster),
+    // and the other modules a share based on their default timeouts. Returns
+    // null if the first module is not the cached route.
+    private int[] distributeRouteTimeout(VirtualSocketAddress target,
+            int timeout, ConnectModule[] order) {
+
+        if (order.length < 2) {
+            return null;
+        }
+
+        double latency = routes.latency(target.machine(), order[0].getName());
+
+        if (latency < 0) {
+            return null;
+        }
+
+        double [] weight = new double[order.length];
+        double total = 0;
+
+        for (int i=0;i<order.length;i++) {
+            weight[i] = order[i].getTimeout();
+
+            if (i == 0) {
+                double t = 3.0 * latency;
+                weight[i] = Math.max(weight[i] / 10.0, Math.min(weight[i], t));
+            }
+
+            total += weight[i];
+        }
+
+        int [] result = new int[order.length];
+
+        for (int i=0;i<order.length;i++) {
+            result[i] = (int) (timeout * weight[i] / total);
+        }
+
+        if (logger.isDebugEnabled()) {
+            logger.debug("Timeouts for route to " + target.machine() + " ("
+                    + (long) latency + " ms.): " + Arrays.toString(result));
+        }
+
+        return result;
+    }
+
+    private ClusterDefinition getDefinition(VirtualSocketAddress target) {
 
         // Get the cluster of the target machine
         String c = target.cluster();
@@ -193,12 +338,8 @@ public class VirtualClusters {
         }
 
         if (c == null || c.length() == 0) {
-            // Handle 'orphan' nodes (without cluster or hub) seperately...
-            ConnectModule[] result = getSingleNodeOrder(target);
-
-            if (result == null) {
-                return defaultOrder.order;
-            }
+            // Nodes without cluster or hub only use the route cache.
+            return defaultOrder;
         }
 
         if (logger.isInfoEnabled()) {
@@ -213,7 +354,7 @@ public class VirtualClusters {
             if (!reorder) {
                 // We are not allowed to create new clusters, so we just return
                 // the default order
-                return defaultOrder.order;
+                return defaultOrder;
             }
 
             if (logger.isInfoEnabled()) {
@@ -231,16 +372,31 @@ public class VirtualClusters {
                     + Arrays.deepToString(d.order));
         }
 
-        return d.order;
+        return d;
     }
 
 
-    public void succes(VirtualSocketAddress target, ConnectModule m) {
+    /**
+     * Records that module m created a connection to target.
+     *
+     * @param target the target of the connection.
+     * @param m the module that created the connection.
+     * @param time the connection setup time in milliseconds.
+     */
+    public synchronized void succes(VirtualSocketAddress target,
+            ConnectModule m, long time) {
 
         if (!reorder) {
             return;
         }
 
+        routes.succes(target.machine(), m.getName(), time);
+
+        if (adaptive) {
+            getRanking(getDefinition(target)).succes(m, time);
+            return;
+        }
+
         String c = target.cluster();
 
         ClusterDefinition d = null;
@@ -255,12 +411,8 @@ public class VirtualClusters {
         }
 
         if (c == null || c.length() == 0) {
-            // Handle 'orphan' nodes seperately...
-            if (logger.isInfoEnabled()) {
-                logger.info("Caching connect order for node: "
-                        + target.toString());
-            }
-            d = orphans.get(target);
+            // Orphan nodes are only kept in the route cache.
+            return;
         } else {
             //  Get the cluster definition of the target cluster...
             if (logger.isInfoEnabled()) {
@@ -273,5 +425,28 @@ public class VirtualClusters {
             d.reorder(m);
         }
     }
-}
 
+    /**
+     * Records that module m failed to create a connection to target.
+     *
+     * @param target the target of the connection.
+     * @param m the module that failed.
+     * @param time the time spent by the module in milliseconds.
+     */
+    public synchronized void failed(VirtualSocketAddress target,
+            ConnectModule m, long time) {
+
+        routes.failed(target.machine(), m.getName());
+
+        if (adaptive) {
+            getRanking(getDefinition(target)).failed(m, time);
+        }
+    }
+
+    /**
+     * Stores the route cache, if a file was specified.
+     */
+    public void end() {
+        routes.save();
+    }
+}
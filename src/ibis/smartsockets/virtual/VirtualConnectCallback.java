@@ -0,0 +1,29 @@
+package ibis.smartsockets.virtual;
+
+import java.io.IOException;
+
+/**
+ * Callback interface for connections set up with
+ * {@link VirtualSocketFactory#createClientSocketAsync}.
+ *
+ * The callbacks are invoked by one of the threads of the factory, and should
+ * therefore return quickly.
+ */
+public interface VirtualConnectCallback {
+
+    /**
+     * The connection to target has been established.
+     *
+     * @param target the target of the connection.
+     * @param s the new socket.
+     */
+    void connected(VirtualSocketAddress target, VirtualSocket s);
+
+    /**
+     * The connection to target could not be established.
+     *
+     * @param target the target of the connection.
+     * @param e the reason of the failure.
+     */
+    void failed(VirtualSocketAddress target, IOException e);
+}
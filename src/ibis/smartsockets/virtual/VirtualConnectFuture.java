@@ -0,0 +1,150 @@
+package ibis.smartsockets.virtual;
+
+import java.io.IOException;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * The result of a connection setup started with
+ * {@link VirtualSocketFactory#createClientSocketAsync}.
+ *
+ * If the connection setup fails, get throws an ExecutionException whose
+ * cause is the IOException that createClientSocket would have thrown.
+ */
+public class VirtualConnectFuture implements Future<VirtualSocket> {
+
+    private final VirtualSocketAddress target;
+    private final VirtualConnectCallback callback;
+
+    private VirtualSocket result;
+    private IOException exception;
+
+    private boolean done = false;
+    private boolean cancelled = false;
+
+    VirtualConnectFuture(VirtualSocketAddress target,
+            VirtualConnectCallback callback) {
+        this.target = target;
+        this.callback = callback;
+    }
+
+    public VirtualSocketAddress getTarget() {
+        return target;
+    }
+
+    void succeeded(VirtualSocket s) {
+
+        synchronized (this) {
+            if (!done) {
+                result = s;
+                done = true;
+                notifyAll();
+                s = null;
+            }
+        }
+
+        if (s != null) {
+            // We were cancelled in the mean time.
+            try {
+                s.close();
+            } catch (Exception e) {
+                // ignore
+            }
+            return;
+        }
+
+        if (callback != null) {
+            callback.connected(target, result);
+        }
+    }
+
+    void failed(IOException e) {
+
+        synchronized (this) {
+            if (done) {
+                return;
+            }
+
+            exception = e;
+            done = true;
+            notifyAll();
+        }
+
+        if (callback != null) {
+            callback.failed(target, e);
+        }
+    }
+
+    public boolean cancel(boolean mayInterruptIfRunning) {
+
+        synchronized (this) {
+            if (done) {
+                return false;
+            }
+
+            cancelled = true;
+            done = true;
+            notifyAll();
+        }
+
+        if (callback != null) {
+            callback.failed(target, new IOException("Connection setup to "
+                    + target + " cancelled"));
+        }
+
+        return true;
+    }
+
+    public synchronized boolean isCancelled() {
+        return cancelled;
+    }
+
+    public synchronized boolean isDone() {
+        return done;
+    }
+
+    private VirtualSocket getResult() throws ExecutionException {
+
+        if (cancelled) {
+            throw new CancellationException();
+        }
+
+        if (exception != null) {
+            throw new ExecutionException(exception);
+        }
+
+        return result;
+    }
+
+    public synchronized VirtualSocket get() throws InterruptedException,
+            ExecutionException {
+
+        while (!done) {
+            wait();
+        }
+
+        return getResult();
+    }
+
+    public synchronized VirtualSocket get(long timeout, TimeUnit unit)
+        throws InterruptedException, ExecutionException, TimeoutException {
+
+        long timeleft = unit.toMillis(timeout);
+        long deadline = System.currentTimeMillis() + timeleft;
+
+        while (!done) {
+
+            if (timeleft <= 0) {
+                throw new TimeoutException();
+            }
+
+            wait(timeleft);
+            timeleft = deadline - System.currentTimeMillis();
+        }
+
+        return getResult();
+    }
+}
@@ -0,0 +1,190 @@
+package ibis.smartsockets.virtual;
+
+import ibis.smartsockets.virtual.modules.hubrouted.HubRoutedChannel;
+
+import java.nio.channels.ByteChannel;
+import java.nio.channels.SelectionKey;
+
+/**
+ * A token representing the registration of a VirtualSocket or
+ * VirtualServerSocket with a {@link VirtualSelector}.
+ *
+ * The interest and ready sets use the constants of
+ * {@link java.nio.channels.SelectionKey}.
+ */
+public final class VirtualSelectionKey {
+
+    private final VirtualSelector selector;
+
+    private final VirtualSocket socket;
+    private final VirtualServerSocket serverSocket;
+
+    // The channel used for I/O on a socket (null for server sockets).
+    private final ByteChannel channel;
+
+    // Set for hub routed sockets, whose readiness is not known to NIO.
+    private final HubRoutedChannel hubRouted;
+
+    // The registration with the underlying NIO selector (null for server
+    // sockets).
+    SelectionKey key;
+
+    private int interestOps;
+    private int readyOps;
+
+    private volatile Object attachment;
+    private volatile boolean valid = true;
+
+    VirtualSelectionKey(VirtualSelector selector, VirtualSocket socket,
+            ByteChannel channel, HubRoutedChannel hubRouted, int ops,
+            Object attachment) {
+
+        this.selector = selector;
+        this.socket = socket;
+        this.serverSocket = null;
+        this.channel = channel;
+        this.hubRouted = hubRouted;
+        this.interestOps = ops;
+        this.attachment = attachment;
+    }
+
+    VirtualSelectionKey(VirtualSelector selector, VirtualServerSocket ss,
+            Object attachment) {
+
+        this.selector = selector;
+        this.socket = null;
+        this.serverSocket = ss;
+        this.channel = null;
+        this.hubRouted = null;
+        this.interestOps = SelectionKey.OP_ACCEPT;
+        this.attachment = attachment;
+    }
+
+    public VirtualSelector selector() {
+        return selector;
+    }
+
+    /**
+     * Returns the socket of this key, or null if this key belongs to a
+     * VirtualServerSocket.
+     *
+     * @return the socket
+     */
+    public VirtualSocket socket() {
+        return socket;
+    }
+
+    /**
+     * Returns the server socket of this key, or null if this key belongs to
+     * a VirtualSocket.
+     *
+     * @return the server socket
+     */
+    public VirtualServerSocket serverSocket() {
+        return serverSocket;
+    }
+
+    /**
+     * Returns the non-blocking channel that must be used for I/O on the
+     * socket of this key, or null if this key belongs to a
+     * VirtualServerSocket.
+     *
+     * @return the channel of the socket.
+     */
+    public ByteChannel channel() {
+        return channel;
+    }
+
+    public synchronized int interestOps() {
+        return interestOps;
+    }
+
+    public VirtualSelectionKey interestOps(int ops) {
+
+        if (!valid) {
+            throw new IllegalStateException("Key cancelled");
+        }
+
+        synchronized (this) {
+            interestOps = ops;
+        }
+
+        if (hubRouted != null) {
+            hubRouted.interestOps(ops);
+        } else if (key != null) {
+            key.interestOps(ops);
+        }
+
+        return this;
+    }
+
+    public synchronized int readyOps() {
+        return readyOps;
+    }
+
+    public boolean isReadable() {
+        return (readyOps() & SelectionKey.OP_READ) != 0;
+    }
+
+    public boolean isWritable() {
+        return (readyOps() & SelectionKey.OP_WRITE) != 0;
+    }
+
+    public boolean isAcceptable() {
+        return (readyOps() & SelectionKey.OP_ACCEPT) != 0;
+    }
+
+    public Object attach(Object o) {
+        Object old = attachment;
+        attachment = o;
+        return old;
+    }
+
+    public Object attachment() {
+        return attachment;
+    }
+
+    public boolean isValid() {
+        return valid;
+    }
+
+    public void cancel() {
+
+        if (!valid) {
+            return;
+        }
+
+        valid = false;
+
+        if (key != null) {
+            key.cancel();
+        }
+
+        selector.cancelled(this);
+    }
+
+    // Determines the ready set after a select. Returns if any operation of
+    // interest is ready.
+    boolean update() {
+
+        int ready = 0;
+
+        synchronized (this) {
+
+            if (serverSocket != null) {
+                if ((interestOps & SelectionKey.OP_ACCEPT) != 0
+                        && serverSocket.hasPendingConnections()) {
+                    ready = SelectionKey.OP_ACCEPT;
+                }
+            } else if (hubRouted != null) {
+                ready = hubRouted.readyOps() & interestOps;
+            } else if (key != null && key.isValid()) {
+                ready = key.readyOps() & interestOps;
+            }
+
+            readyOps = ready;
+        }
+
+        return ready != 0;
+    }
+}
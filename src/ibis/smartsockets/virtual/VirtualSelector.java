@@ -0,0 +1,282 @@
+package ibis.smartsockets.virtual;
+
+import ibis.smartsockets.virtual.modules.direct.DirectVirtualSocket;
+import ibis.smartsockets.virtual.modules.direct.PooledVirtualSocket;
+import ibis.smartsockets.virtual.modules.hubrouted.HubRoutedChannel;
+import ibis.smartsockets.virtual.modules.hubrouted.HubRoutedVirtualSocket;
+import ibis.smartsockets.virtual.modules.reverse.ReverseVirtualSocket;
+import ibis.smartsockets.virtual.modules.splice.SplicedVirtualSocket;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
+
+/**
+ * A multiplexor for VirtualSockets and VirtualServerSockets, allowing a single
+ * thread to handle many virtual connections, whatever module they were
+ * created by.
+ *
+ * Sockets that are backed by a real socket (direct, reverse and spliced
+ * connections) are registered with an underlying NIO Selector. This requires
+ * the direct sockets to be created as NIO sockets (smartsockets.nio=true).
+ * Hub routed sockets use a {@link HubRoutedChannel}, whose readiness events
+ * are delivered to the same Selector. Server sockets report pending
+ * connections directly. Sockets of the other modules (such as mux, shm,
+ * unix, loopback, udp and pooled connections) cannot be registered.
+ *
+ * Once a socket is registered, all I/O must be done through the non-blocking
+ * channel returned by {@link VirtualSelectionKey#channel()}; the streams of
+ * the socket can no longer be used.
+ *
+ * Like NIO, readiness is level triggered. Unlike NIO, the set of selected
+ * keys is replaced on every select, so keys need not be removed from it.
+ */
+public class VirtualSelector {
+
+    private final Selector selector;
+
+    private final HashSet<VirtualSelectionKey> keys =
+        new HashSet<VirtualSelectionKey>();
+
+    private final HashSet<VirtualSelectionKey> serverKeys =
+        new HashSet<VirtualSelectionKey>();
+
+    private final HashSet<VirtualSelectionKey> selected =
+        new HashSet<VirtualSelectionKey>();
+
+    private boolean closed = false;
+
+    public VirtualSelector() throws IOException {
+        selector = Selector.open();
+    }
+
+    /**
+     * Registers a socket with this selector.
+     *
+     * @param s the socket to register.
+     * @param ops the interest set (OP_READ and/or OP_WRITE).
+     * @param attachment the attachment of the key (may be null).
+     * @return the key representing the registration.
+     * @throws IOException if the socket cannot be used with a selector.
+     */
+    public VirtualSelectionKey register(VirtualSocket s, int ops,
+            Object attachment) throws IOException {
+
+        checkClosed();
+
+        VirtualSelectionKey result;
+
+        if (s instanceof HubRoutedVirtualSocket) {
+
+            HubRoutedChannel c = ((HubRoutedVirtualSocket) s).getHubRoutedChannel();
+
+            result = new VirtualSelectionKey(this, s, c, c, ops, attachment);
+            result.key = c.register(selector, ops, result);
+
+        } else {
+
+            SocketChannel c = null;
+
+            try {
+                c = s.getChannel();
+            } catch (RuntimeException e) {
+                // Not implemented by this socket.
+            }
+
+            if (c == null) {
+                if (hasRealSocket(s)) {
+                    throw new IOException("Cannot register " + s + " with a "
+                            + "selector: no channel available (are NIO "
+                            + "sockets enabled?)");
+                }
+
+                throw new IOException("Cannot register " + s + " with a "
+                        + "selector: its module does not support selection");
+            }
+
+            c.configureBlocking(false);
+
+            result = new VirtualSelectionKey(this, s, c, null, ops, attachment);
+            result.key = c.register(selector, ops, result);
+        }
+
+        synchronized (this) {
+            keys.add(result);
+        }
+
+        return result;
+    }
+
+    // Returns if the socket is backed by a real socket, which has a channel
+    // if NIO sockets are enabled.
+    private static boolean hasRealSocket(VirtualSocket s) {
+        return (s instanceof DirectVirtualSocket
+                && !(s instanceof PooledVirtualSocket))
+            || s instanceof ReverseVirtualSocket
+            || s instanceof SplicedVirtualSocket;
+    }
+
+    /**
+     * Registers a server socket with this selector. Its key becomes
+     * acceptable when an incoming connection is pending. Note that accept
+     * may still briefly block to complete the connection handshake.
+     *
+     * @param ss the server socket to register.
+     * @param attachment the attachment of the key (may be null).
+     * @return the key representing the registration.
+     * @throws IOException if this selector is closed.
+     */
+    public VirtualSelectionKey register(VirtualServerSocket ss,
+            Object attachment) throws IOException {
+
+        checkClosed();
+
+        VirtualSelectionKey result =
+            new VirtualSelectionKey(this, ss, attachment);
+
+        synchronized (this) {
+            keys.add(result);
+            serverKeys.add(result);
+        }
+
+        ss.setSelector(this);
+
+        // A connection may already be waiting.
+        wakeup();
+
+        return result;
+    }
+
+    synchronized void cancelled(VirtualSelectionKey key) {
+
+        keys.remove(key);
+        selected.remove(key);
+
+        if (serverKeys.remove(key)) {
+            key.serverSocket().setSelector(null);
+        }
+    }
+
+    private synchronized void checkClosed() throws IOException {
+        if (closed) {
+            throw new IOException("Selector closed");
+        }
+    }
+
+    private synchronized boolean serverSocketsReady() {
+
+        for (VirtualSelectionKey k : serverKeys) {
+            if ((k.interestOps() & SelectionKey.OP_ACCEPT) != 0
+                    && k.serverSocket().hasPendingConnections()) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    public int selectNow() throws IOException {
+        return doSelect(-1);
+    }
+
+    public int select() throws IOException {
+        return doSelect(0);
+    }
+
+    public int select(long timeout) throws IOException {
+
+        if (timeout < 0) {
+            throw new IllegalArgumentException("Negative timeout");
+        }
+
+        return doSelect(timeout);
+    }
+
+    private int doSelect(long timeout) throws IOException {
+
+        checkClosed();
+
+        if (timeout < 0 || serverSocketsReady()) {
+            selector.selectNow();
+        } else if (timeout == 0) {
+            selector.select();
+        } else {
+            selector.select(timeout);
+        }
+
+        synchronized (this) {
+
+            selected.clear();
+
+            Iterator<SelectionKey> itt = selector.selectedKeys().iterator();
+
+            while (itt.hasNext()) {
+
+                SelectionKey k = itt.next();
+                itt.remove();
+
+                VirtualSelectionKey v = (VirtualSelectionKey) k.attachment();
+
+                if (v.isValid() && v.update()) {
+                    selected.add(v);
+                }
+            }
+
+            for (VirtualSelectionKey v : serverKeys) {
+                if (v.update()) {
+                    selected.add(v);
+                }
+            }
+
+            return selected.size();
+        }
+    }
+
+    /**
+     * Returns the keys that were found ready by the last select.
+     *
+     * @return the selected keys.
+     */
+    public synchronized Set<VirtualSelectionKey> selectedKeys() {
+        return Collections.unmodifiableSet(
+                new HashSet<VirtualSelectionKey>(selected));
+    }
+
+    public synchronized Set<VirtualSelectionKey> keys() {
+        return Collections.unmodifiableSet(
+                new HashSet<VirtualSelectionKey>(keys));
+    }
+
+    public void wakeup() {
+        selector.wakeup();
+    }
+
+    public synchronized boolean isOpen() {
+        return !closed;
+    }
+
+    public void close() throws IOException {
+
+        VirtualSelectionKey [] tmp;
+
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+
+            closed = true;
+            tmp = keys.toArray(new VirtualSelectionKey[keys.size()]);
+        }
+
+        for (VirtualSelectionKey k : tmp) {
+            k.cancel();
+        }
+
+        selector.close();
+    }
+}
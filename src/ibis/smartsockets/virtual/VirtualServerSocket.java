@@ -28,13 +28,16 @@ public class VirtualServerSocket {
     private boolean reuseAddress = true;
     private boolean closed = false;
 
-    private VirtualSocketAddress localAddress;
+    private volatile VirtualSocketAddress localAddress;
 
     private Map<String, Object> properties;
 
     private boolean bound;
     private int receiveBufferSize = -1;
 
+    // Selector to wake up when a connection comes in (may be null).
+    private VirtualSelector selector;
+
     // Create unbound port
     protected VirtualServerSocket(VirtualSocketFactory parent,
             int defaultTimeout, Map<String, Object> p) {
@@ -67,6 +70,7 @@ public class VirtualServerSocket {
         if (incoming.size() < backlog) {
             incoming.addLast(s);
             notifyAll();
+            wakeupSelector();
             return 0;
         }
 
@@ -85,6 +89,7 @@ public class VirtualServerSocket {
         if (incoming.size() < backlog) {
             incoming.addLast(s);
             notifyAll();
+            wakeupSelector();
             return 0;
         }
 
@@ -98,6 +103,26 @@ public class VirtualServerSocket {
         return 1;
     }
 
+    private void wakeupSelector() {
+        if (selector != null) {
+            selector.wakeup();
+        }
+    }
+
+    synchronized void setSelector(VirtualSelector selector) {
+        this.selector = selector;
+    }
+
+    /**
+     * Returns if a call to accept will find a pending connection (or fail
+     * because the socket has been closed).
+     *
+     * @return if an incoming connection is pending.
+     */
+    public synchronized boolean hasPendingConnections() {
+        return incoming.size() > 0 || closed;
+    }
+
     private synchronized VirtualSocket getConnection()
         throws SocketTimeoutException {
 
@@ -160,6 +185,7 @@ public class VirtualServerSocket {
 
         closed = true;
         notifyAll();   // wakes up any waiting accept
+        wakeupSelector();
 
         while (incoming.size() != 0) {
             incoming.removeFirst().connectionRejected(1000);
@@ -188,6 +214,12 @@ public class VirtualServerSocket {
         return localAddress;
     }
 
+    // Called by the factory when the hubs that are part of our address
+    // change.
+    void setLocalSocketAddress(VirtualSocketAddress address) {
+        localAddress = address;
+    }
+
     public int getSoTimeout() throws IOException {
         return timeout;
     }
@@ -12,6 +12,7 @@ import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.SocketAddress;
 import java.net.UnknownHostException;
+import java.util.ArrayList;
 
 
 public class VirtualSocketAddress extends SocketAddress implements Serializable {
@@ -26,6 +27,10 @@ public class VirtualSocketAddress extends SocketAddress implements Serializable
     // at another hub).
     private final DirectSocketAddress hub;
 
+    // All hubs the machine is registered at (the first one being 'hub'). May
+    // be null if the machine is registered at a single hub only.
+    private final DirectSocketAddress [] hubs;
+
     // This field indicates which 'virtual cluster' the machine is part of.
     private final String cluster;
 
@@ -48,8 +53,10 @@ public class VirtualSocketAddress extends SocketAddress implements Serializable
         if (hlen > 0) {
             byte [] h = new byte[hlen];
             in.readFully(h);
-            hub = DirectSocketAddress.fromBytes(h);
+            hubs = decodeHubs(h, 0, hlen);
+            hub = hubs[0];
         } else {
+            hubs = null;
             hub = null;
         }
 
@@ -63,27 +70,54 @@ public class VirtualSocketAddress extends SocketAddress implements Serializable
     }
 
     public VirtualSocketAddress(DirectSocketAddress machine, int port) {
-        this(machine, port, null, null);
+        this(machine, port, (DirectSocketAddress) null, null);
     }
 
     public VirtualSocketAddress(DirectSocketAddress machine,
             int port, DirectSocketAddress hub, String cluster) {
 
         this.hub = hub;
+        this.hubs = null;
+        this.machine = machine;
+        this.port = port;
+        this.cluster = cluster;
+    }
+
+    /**
+     * Construct a new VirtualSocketAddress for a machine that is registered
+     * at several hubs. The first hub is the preferred one.
+     *
+     * @param machine the address of the machine.
+     * @param port the virtual port.
+     * @param hubs the hubs at which the machine is registered (may be null).
+     * @param cluster the virtual cluster of the machine (may be null).
+     */
+    public VirtualSocketAddress(DirectSocketAddress machine,
+            int port, DirectSocketAddress [] hubs, String cluster) {
+
         this.machine = machine;
         this.port = port;
         this.cluster = cluster;
+
+        if (hubs == null || hubs.length == 0) {
+            this.hub = null;
+            this.hubs = null;
+        } else {
+            this.hub = hubs[0];
+            this.hubs = (hubs.length == 1 ? null : hubs.clone());
+        }
     }
 
     /**
      * Construct a new VirtualSocketAddress starting from a String with the
      * following format:
      *
-     *   MACHINEADDRESS:PORT[@MACHINEADDRESS][#CLUSTER]
+     *   MACHINEADDRESS:PORT[@MACHINEADDRESS[,MACHINEADDRESS]*][#CLUSTER]
      *
-     * The '@MACHINEADDRESS' part is optional and indicates the hub where the
-     * machine can be found. The '#CLUSTER' part is also optional and indicates
-     * which virtual cluster the machine belongs to.
+     * The '@MACHINEADDRESS' part is optional and indicates the hub (or comma
+     * separated list of hubs) where the machine can be found. The '#CLUSTER'
+     * part is also optional and indicates which virtual cluster the machine
+     * belongs to.
      *
      * @param address
      * @throws UnknownHostException
@@ -96,7 +130,8 @@ public class VirtualSocketAddress extends SocketAddress implements Serializable
 
         if (index2 < index1) {
             // The hub is after the cluster (or cluster does not exist).
-            hub = DirectSocketAddress.getByAddress(address.substring(index1+1));
+            hubs = parseHubs(address.substring(index1+1));
+            hub = hubs[0];
 
             if (index2 != -1) {
                 cluster = address.substring(index2+1, index1);
@@ -111,15 +146,18 @@ public class VirtualSocketAddress extends SocketAddress implements Serializable
             cluster = address.substring(index2+1);
 
             if (index1 != -1) {
-                hub = DirectSocketAddress.getByAddress(address.substring(index1+1, index2));
+                hubs = parseHubs(address.substring(index1+1, index2));
+                hub = hubs[0];
                 address = address.substring(0, index1);
             } else {
                 address = address.substring(0, index2);
+                hubs = null;
                 hub = null;
             }
         } else {
             // both index1 and index2 are '-1'
             cluster = null;
+            hubs = null;
             hub = null;
         }
 
@@ -141,10 +179,75 @@ public class VirtualSocketAddress extends SocketAddress implements Serializable
         }
     }
 
+    private static DirectSocketAddress [] parseHubs(String s)
+        throws UnknownHostException, MalformedAddressException {
+
+        String [] tmp = s.split(",");
+
+        DirectSocketAddress [] result = new DirectSocketAddress[tmp.length];
+
+        for (int i=0;i<tmp.length;i++) {
+            result[i] = DirectSocketAddress.getByAddress(tmp[i]);
+        }
+
+        return result;
+    }
+
+    // Multiple hubs are stored back to back in the hub part of the coded form.
+    // Older versions simply decode the first one and ignore the rest.
+    private static DirectSocketAddress [] decodeHubs(byte [] source, int off,
+            int len) throws UnknownHostException, MalformedAddressException {
+
+        final int end = off + len;
+
+        DirectSocketAddress first = DirectSocketAddress.fromBytes(source, off);
+        off += first.getAddress().length;
+
+        if (off >= end) {
+            return new DirectSocketAddress [] { first };
+        }
+
+        ArrayList<DirectSocketAddress> tmp = new ArrayList<DirectSocketAddress>();
+        tmp.add(first);
+
+        while (off < end) {
+            DirectSocketAddress a = DirectSocketAddress.fromBytes(source, off);
+            off += a.getAddress().length;
+            tmp.add(a);
+        }
+
+        return tmp.toArray(new DirectSocketAddress[tmp.size()]);
+    }
+
+    private byte [] encodeHubs() {
+
+        if (hubs == null) {
+            return hub.getAddress();
+        }
+
+        byte [][] tmp = new byte[hubs.length][];
+        int len = 0;
+
+        for (int i=0;i<hubs.length;i++) {
+            tmp[i] = hubs[i].getAddress();
+            len += tmp[i].length;
+        }
+
+        byte [] result = new byte[len];
+        int off = 0;
+
+        for (int i=0;i<tmp.length;i++) {
+            System.arraycopy(tmp[i], 0, result, off, tmp[i].length);
+            off += tmp[i].length;
+        }
+
+        return result;
+    }
+
     public VirtualSocketAddress(String machine, int port)
         throws UnknownHostException, MalformedAddressException {
 
-        this(DirectSocketAddress.getByAddress(machine), port, null, null);
+        this(DirectSocketAddress.getByAddress(machine), port, (DirectSocketAddress) null, null);
     }
 
     public VirtualSocketAddress(String hub, String machine, int port)
@@ -161,7 +264,7 @@ public class VirtualSocketAddress extends SocketAddress implements Serializable
         byte [] h = null;
 
         if (hub != null) {
-            h = hub.getAddress();
+            h = encodeHubs();
         }
 
         byte [] c = null;
@@ -190,6 +293,25 @@ public class VirtualSocketAddress extends SocketAddress implements Serializable
         return hub;
     }
 
+    /**
+     * Returns all hubs at which the machine is registered, starting with the
+     * preferred one.
+     *
+     * @return the hubs of the machine (may be empty, but never null).
+     */
+    public DirectSocketAddress [] hubs() {
+
+        if (hubs != null) {
+            return hubs.clone();
+        }
+
+        if (hub != null) {
+            return new DirectSocketAddress [] { hub };
+        }
+
+        return new DirectSocketAddress[0];
+    }
+
     public DirectSocketAddress machine() {
         return machine;
     }
@@ -207,7 +329,7 @@ public class VirtualSocketAddress extends SocketAddress implements Serializable
         if (codedForm == null) {
 
              byte [] m = machine.getAddress();
-             byte [] h = hub == null ? new byte[0] : hub.getAddress();
+             byte [] h = hub == null ? new byte[0] : encodeHubs();
              byte [] c = cluster == null ? new byte[0] : cluster.getBytes();
 
              int len = 3*2 + 4  + m.length;
@@ -244,9 +366,25 @@ public class VirtualSocketAddress extends SocketAddress implements Serializable
 
 
 
+    private String hubsToString() {
+
+        if (hubs == null) {
+            return hub.toString();
+        }
+
+        StringBuilder b = new StringBuilder(hubs[0].toString());
+
+        for (int i=1;i<hubs.length;i++) {
+            b.append(',');
+            b.append(hubs[i].toString());
+        }
+
+        return b.toString();
+    }
+
     public String toString() {
         return machine.toString() + ":" + port
-            + (hub == null ? "" : ("@" + hub.toString()))
+            + (hub == null ? "" : ("@" + hubsToString()))
             + (cluster == null ? "" : ("#" + cluster));
     }
 
@@ -298,10 +436,10 @@ public class VirtualSocketAddress extends SocketAddress implements Serializable
         int port = TransferUtils.readInt(source, off);
         off += 4;
 
-        DirectSocketAddress hub = null;
+        DirectSocketAddress [] hubs = null;
 
         if (hlen > 0) {
-            hub = DirectSocketAddress.fromBytes(source, off);
+            hubs = decodeHubs(source, off, hlen);
             off += hlen;
         }
 
@@ -312,7 +450,7 @@ public class VirtualSocketAddress extends SocketAddress implements Serializable
             // off += clen;
         }
 
-        return new VirtualSocketAddress(machine, port, hub, cluster);
+        return new VirtualSocketAddress(machine, port, hubs, cluster);
     }
 
     public static VirtualSocketAddress partialAddress(InetAddress host,
@@ -4,8 +4,10 @@ import ibis.smartsockets.SmartSocketsProperties;
 import ibis.smartsockets.direct.DirectSocket;
 import ibis.smartsockets.direct.DirectSocketAddress;
 import ibis.smartsockets.direct.DirectSocketFactory;
+import ibis.smartsockets.direct.DiscoveryCallBack;
 import ibis.smartsockets.discovery.Discovery;
 import ibis.smartsockets.hub.Hub;
+import ibis.smartsockets.hub.servicelink.HubChangeCallBack;
 import ibis.smartsockets.hub.servicelink.ServiceLink;
 import ibis.smartsockets.util.TypedProperties;
 import ibis.smartsockets.virtual.modules.AbstractDirectModule;
@@ -23,6 +25,7 @@ import java.nio.channels.SocketChannel;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
@@ -76,6 +79,240 @@ import org.slf4j.LoggerFactory;
  */
 public final class VirtualSocketFactory {
 
+    /**
+     * An inner class that allows concurrent connection setups to the same
+     * machine to share the search for a working module.
+     *
+     * One of the connection setups searches for a module while the others
+     * wait. When the search succeeds, the others start with the module that
+     * worked. When no module could reach the machine, the failure is handed
+     * to the others that were waiting for the search. When the search fails
+     * otherwise, one of the others continues the search on behalf of the
+     * rest. Asynchronous connection setups register a listener instead of
+     * waiting.
+     */
+    static final class ConnectProbe {
+
+        /** The caller must search for a module. */
+        static final int SEARCH = 0;
+
+        /** A module was found. */
+        static final int FOUND = 1;
+
+        /** The search failed, see {@link #getFailure}. */
+        static final int FAILED = 2;
+
+        /** Another caller is still searching. */
+        static final int WAIT = 3;
+
+        private ConnectModule result = null;
+
+        private boolean found = false;
+        private boolean searching = false;
+
+        // The number of searches started, and the number of the last one
+        // that failed because no module could reach the machine.
+        private int searches = 0;
+        private int failedSearch = -1;
+
+        private NoSuitableModuleException failure = null;
+
+        // The modules that the search has tried.
+        private final LinkedList<ConnectModule> tried =
+            new LinkedList<ConnectModule>();
+
+        private final LinkedList<Runnable> listeners =
+            new LinkedList<Runnable>();
+
+        // The number of connection setups using this probe. Protected by the
+        // lock on probes.
+        private int users = 0;
+
+        // Returns the state of a caller. The number of the search it waits
+        // for is stored in seen[0] (-1 if it did not wait yet).
+        private int state(int [] seen) {
+
+            if (found) {
+                return FOUND;
+            }
+
+            if (seen[0] != -1 && seen[0] == failedSearch) {
+                return FAILED;
+            }
+
+            if (!searching) {
+                searching = true;
+                searches++;
+                tried.clear();
+                return SEARCH;
+            }
+
+            seen[0] = searches;
+            return WAIT;
+        }
+
+        /**
+         * Returns the state of a caller whose connection setup must end at
+         * end. If it is WAIT, waits until the search ends, but not beyond
+         * waitUntil, unless the search covers the caller.
+         */
+        synchronized int waitForTurn(long waitUntil, long end,
+                ConnectModule[] order) {
+
+            int [] seen = new int [] { -1 };
+
+            int state = state(seen);
+
+            while (state == WAIT) {
+
+                long left = waitUntil - System.currentTimeMillis();
+
+                if (left <= 0 && covers(order)) {
+                    left = end - System.currentTimeMillis();
+                }
+
+                if (left <= 0) {
+                    break;
+                }
+
+                try {
+                    wait(left);
+                } catch (InterruptedException e) {
+                    // ignored
+                }
+
+                state = state(seen);
+            }
+
+            return state;
+        }
+
+        /**
+         * Returns the state without waiting. If it is WAIT, the listener is
+         * run once the search ends. The caller must pass the same seen array
+         * on every call (see {@link #state}).
+         */
+        synchronized int poll(Runnable listener, int [] seen) {
+
+            int state = state(seen);
+
+            if (state == WAIT) {
+                listeners.add(listener);
+            }
+
+            return state;
+        }
+
+        synchronized NoSuitableModuleException getFailure(
+                VirtualSocketAddress target) {
+
+            LinkedList<NoSuitableModuleException> tmp =
+                new LinkedList<NoSuitableModuleException>();
+
+            tmp.add(failure);
+
+            return new NoSuitableModuleException("Concurrent connection setup"
+                    + " to " + target + " failed", tmp);
+        }
+
+        synchronized void moduleTried(ConnectModule m) {
+            if (!tried.contains(m)) {
+                tried.add(m);
+            }
+        }
+
+        /**
+         * Returns true if the search is busy and has already tried all
+         * modules in order, so there is no use in trying them ourselves.
+         */
+        synchronized boolean covers(ConnectModule[] order) {
+
+            if (!searching) {
+                return false;
+            }
+
+            for (ConnectModule m : order) {
+                if (!tried.contains(m)) {
+                    return false;
+                }
+            }
+
+            return true;
+        }
+
+        // Returns the order in which a caller in the given state should try
+        // the modules. If a module was found, it is tried first. Otherwise,
+        // the modules the search has not tried yet are tried first.
+        synchronized ConnectModule[] reorder(VirtualSocketAddress target,
+                ConnectModule[] order, int state) {
+
+            if (state == SEARCH || (state == WAIT && tried.isEmpty())) {
+                return order;
+            }
+
+            ConnectModule[] tmp = new ConnectModule[order.length];
+            int next = 0;
+
+            if (state == FOUND) {
+                if (conlogger.isDebugEnabled()) {
+                    conlogger.debug("Reusing module " + result.module
+                            + " found by concurrent connection setup to "
+                            + target);
+                }
+
+                for (ConnectModule m : order) {
+                    if (m == result) {
+                        tmp[next++] = m;
+                    }
+                }
+            }
+
+            for (ConnectModule m : order) {
+                if (m != result && !tried.contains(m)) {
+                    tmp[next++] = m;
+                }
+            }
+
+            for (ConnectModule m : order) {
+                if (m != result && tried.contains(m)) {
+                    tmp[next++] = m;
+                }
+            }
+
+            return tmp;
+        }
+
+        /**
+         * Ends the search of the caller that got SEARCH, with the module it
+         * found, or with the exception it failed with.
+         */
+        void searchDone(ConnectModule m, IOException e) {
+
+            Runnable [] tmp;
+
+            synchronized (this) {
+                searching = false;
+
+                if (m != null) {
+                    result = m;
+                    found = true;
+                } else if (e instanceof NoSuitableModuleException) {
+                    failure = (NoSuitableModuleException) e;
+                    failedSearch = searches;
+                }
+
+                notifyAll();
+
+                tmp = listeners.toArray(new Runnable[listeners.size()]);
+                listeners.clear();
+            }
+
+            for (Runnable r : tmp) {
+                r.run();
+            }
+        }
+    }
+
     /**
      * An inner class the prints connection statistics at a regular interval.
      */
@@ -160,6 +397,8 @@ public final class VirtualSocketFactory {
 
     private final boolean DETAILED_EXCEPTIONS;
 
+    private final boolean COALESCE_CONNECTS;
+
     private final Random random;
 
     private final HashMap<Integer, VirtualServerSocket> serverSockets =
@@ -167,26 +406,49 @@ public final class VirtualSocketFactory {
 
     private int nextPort = 3000;
 
-    private DirectSocketAddress myAddresses;
+    private volatile DirectSocketAddress myAddresses;
 
-    private DirectSocketAddress hubAddress;
+    // The addresses of the modules other than the direct module.
+    private DirectSocketAddress moduleAddresses;
 
-    private VirtualSocketAddress localVirtualAddress;
+    // The following fields are set later when the service link is started
+    // lazily.
+    private volatile DirectSocketAddress hubAddress;
 
-    private String localVirtualAddressAsString;
+    private volatile VirtualSocketAddress localVirtualAddress;
 
-    private ServiceLink serviceLink;
+    private volatile String localVirtualAddressAsString;
+
+    private volatile ServiceLink serviceLink;
+
+    private final ArrayList<ServiceLink> additionalLinks =
+        new ArrayList<ServiceLink>();
 
     private Hub hub;
 
     private VirtualClusters clusters;
 
+    private HubAddressCache hubCache;
+
+    // Modules that have been loaded, but cannot be used (yet).
+    private final HashSet<ConnectModule> inactiveModules =
+        new HashSet<ConnectModule>();
+
+    private boolean ended = false;
+
     private boolean printStatistics = false;
 
     private String statisticPrefix = null;
 
     private StatisticsPrinter printer = null;
 
+    private AsyncConnector asyncConnector = null;
+
+    private VirtualSocketPool socketPool = null;
+
+    private final HashMap<DirectSocketAddress, ConnectProbe> probes =
+        new HashMap<DirectSocketAddress, ConnectProbe>();
+
     /**
      * An inner class that accepts incoming connections for a hub.
      *
@@ -223,6 +485,9 @@ public final class VirtualSocketFactory {
         DETAILED_EXCEPTIONS = p.booleanProperty(
                 SmartSocketsProperties.DETAILED_EXCEPTIONS, false);
 
+        COALESCE_CONNECTS = p.booleanProperty(
+                SmartSocketsProperties.CONNECT_COALESCE, false);
+
         DEFAULT_BACKLOG = p.getIntProperty(SmartSocketsProperties.BACKLOG, 50);
 
         DEFAULT_ACCEPT_TIMEOUT = p.getIntProperty(
@@ -248,13 +513,47 @@ public final class VirtualSocketFactory {
 
         // We now create the service link. This may connect to the hub that we
         // have just started.
-        String localCluster = p.getProperty(
+        final String localCluster = p.getProperty(
                 SmartSocketsProperties.CLUSTER_MEMBER, null);
 
-        createServiceLink(localCluster);
+        boolean lazy = p.booleanProperty(SmartSocketsProperties.SL_LAZY,
+                false);
+
+        final ArrayList<ConnectModule> linked = new ArrayList<ConnectModule>();
+
+        if (lazy) {
+            // Only start the modules that don't need the service link. The
+            // others are started once the service link is connected, which
+            // is done in the background.
+            ArrayList<ConnectModule> unlinked = new ArrayList<ConnectModule>();
+
+            for (ConnectModule c : modules) {
+                if (c.requiresServiceLink) {
+                    linked.add(c);
+                } else {
+                    unlinked.add(c);
+                }
+            }
+
+            synchronized (inactiveModules) {
+                inactiveModules.addAll(linked);
+            }
+
+            modules.removeAll(startModules(unlinked));
+        } else {
+            createServiceLink(localCluster);
+
+            createAdditionalServiceLinks();
+
+            if (hubAddress != null) {
+                hubCache.save(localCluster, getLocalHubs());
+            }
 
-        // Once the servicelink is up and running, we can start the modules.
-        startModules();
+            // Once the servicelink is up and running, we can start the
+            // modules.
+            modules.removeAll(startModules(
+                    new ArrayList<ConnectModule>(modules)));
+        }
 
         if (modules.size() == 0) {
             logger.info("Failed to start any modules!");
@@ -264,7 +563,7 @@ public final class VirtualSocketFactory {
         loadClusterDefinitions();
 
         localVirtualAddress = new VirtualSocketAddress(myAddresses, 0,
-                hubAddress, clusters.localCluster());
+                getLocalHubs(), clusters.localCluster());
 
         localVirtualAddressAsString = localVirtualAddress.toString();
 
@@ -285,6 +584,149 @@ public final class VirtualSocketFactory {
                         .createNew(printer, "SmartSockets Statistics Printer");
             }
         }
+
+        if (lazy) {
+            ThreadPool.createNew(new Runnable() {
+                public void run() {
+                    startServiceLink(localCluster, linked);
+                }
+            }, "ServiceLink Startup");
+        }
+
+        // The external address of the direct module may be found after we
+        // copied its addresses. Once it is, our addresses must be updated.
+        directSocketFactory.registerDiscoveryCallBack(new DiscoveryCallBack() {
+            public void discoveryDone() {
+                updateDirectAddresses();
+            }
+        });
+    }
+
+    // Connects the service link and starts the modules that need it. Used
+    // when the service link is started lazily.
+    private void startServiceLink(String localCluster,
+            List<ConnectModule> linked) {
+
+        long start = System.currentTimeMillis();
+
+        createServiceLink(localCluster);
+
+        createAdditionalServiceLinks();
+
+        if (hubAddress != null) {
+            hubCache.save(localCluster, getLocalHubs());
+            updateLocalAddresses();
+
+            // Our addresses may have changed while the links were created.
+            if (registerAddresses()) {
+                registerUserProperty();
+            }
+        }
+
+        List<ConnectModule> failed = startModules(linked);
+
+        synchronized (inactiveModules) {
+            inactiveModules.removeAll(linked);
+            inactiveModules.addAll(failed);
+        }
+
+        if (logger.isInfoEnabled()) {
+            logger.info("Service link started in "
+                    + (System.currentTimeMillis() - start) + " ms.");
+        }
+
+        boolean stop;
+
+        synchronized (this) {
+            stop = ended;
+        }
+
+        if (stop) {
+            // The factory was ended while we were busy.
+            if (serviceLink != null) {
+                serviceLink.setDone();
+            }
+
+            for (ServiceLink link : getAdditionalServiceLinks()) {
+                link.setDone();
+            }
+
+            for (ConnectModule m : linked) {
+                m.end();
+            }
+        }
+    }
+
+    // The local hubs are part of our addresses, so these must be updated
+    // when the service link is connected after the factory was created.
+    private void updateLocalAddresses() {
+
+        DirectSocketAddress [] hubs = getLocalHubs();
+        String cluster = clusters.localCluster();
+
+        localVirtualAddress = new VirtualSocketAddress(myAddresses, 0, hubs,
+                cluster);
+
+        localVirtualAddressAsString = localVirtualAddress.toString();
+
+        synchronized (serverSockets) {
+            for (VirtualServerSocket vss : serverSockets.values()) {
+
+                VirtualSocketAddress a = vss.getLocalSocketAddress();
+
+                if (a != null) {
+                    vss.setLocalSocketAddress(new VirtualSocketAddress(
+                            myAddresses, a.port(), hubs, cluster));
+                }
+            }
+        }
+    }
+
+    // Merges the current addresses of the direct module with those of the
+    // other modules. If this changes our addresses, they are updated and
+    // registered at the hubs again.
+    private void updateDirectAddresses() {
+
+        DirectSocketAddress tmp = direct.getAddresses();
+
+        if (moduleAddresses != null) {
+            tmp = DirectSocketAddress.merge(tmp, moduleAddresses);
+        }
+
+        synchronized (this) {
+            if (tmp.equals(myAddresses)) {
+                return;
+            }
+
+            myAddresses = tmp;
+        }
+
+        if (logger.isInfoEnabled()) {
+            logger.info("Local addresses changed to " + tmp);
+        }
+
+        updateLocalAddresses();
+
+        if (registerAddresses()) {
+            registerUserProperty();
+        }
+    }
+
+    // Registers our current addresses at the hubs. Returns true if the
+    // primary service link had to register again.
+    private boolean registerAddresses() {
+
+        boolean result = false;
+
+        if (serviceLink != null) {
+            result = serviceLink.updateAddress(myAddresses);
+        }
+
+        for (ServiceLink link : getAdditionalServiceLinks()) {
+            link.updateAddress(myAddresses);
+        }
+
+        return result;
     }
 
     private void startHub(TypedProperties p)
@@ -393,7 +835,7 @@ public final class VirtualSocketFactory {
         return address;
     }
 
-    private void createServiceLink(String localCluster) {
+    private void createServiceLink(final String localCluster) {
 
         List<DirectSocketAddress> hubs = new LinkedList<DirectSocketAddress>();
 
@@ -417,6 +859,8 @@ public final class VirtualSocketFactory {
         }
 
         // If we don't have a hub address, we try to find one ourselves
+        boolean discover = false;
+
         if (hubs.size() == 0) {
             boolean useDiscovery = properties.booleanProperty(
                     SmartSocketsProperties.DISCOVERY_ALLOWED, false);
@@ -424,11 +868,27 @@ public final class VirtualSocketFactory {
             boolean discoveryPreferred = properties.booleanProperty(
                     SmartSocketsProperties.DISCOVERY_PREFERRED, false);
 
-            DirectSocketAddress address = null;
+            discover = useDiscovery && (discoveryPreferred || hub == null);
+        }
 
-            if (useDiscovery && (discoveryPreferred || hub == null)) {
-                address = discoverHub(localCluster);
+        // Add the hubs we used last time. The service link tries all hubs
+        // at once, and uses the first one that accepts it.
+        hubCache = new HubAddressCache(
+                properties.getProperty(SmartSocketsProperties.HUB_CACHE_FILE),
+                properties.getLongProperty(
+                        SmartSocketsProperties.HUB_CACHE_TTL, 86400000L));
+
+        for (DirectSocketAddress a : hubCache.load(localCluster)) {
+            if (!hubs.contains(a)) {
+                hubs.add(a);
             }
+        }
+
+        if (discover && hubs.size() == 0) {
+            // Nothing to try in the mean time, so we wait for the discovery.
+            discover = false;
+
+            DirectSocketAddress address = discoverHub(localCluster);
 
             if (address != null) {
                 hubs.add(address);
@@ -451,8 +911,40 @@ public final class VirtualSocketFactory {
             serviceLink = ServiceLink.getServiceLink(properties, hubs,
                     myAddresses);
 
+            if (discover) {
+                // Race the discovery against the hubs we used last time.
+                final ServiceLink link = serviceLink;
+
+                ThreadPool.createNew(new Runnable() {
+                    public void run() {
+                        DirectSocketAddress address = discoverHub(localCluster);
+
+                        if (address != null) {
+                            link.addHubs(address);
+                        }
+                    }
+                }, "HubDiscovery");
+            }
+
             hubAddress = serviceLink.getAddress();
 
+            // After a failover our addresses must name the new hub, or
+            // nobody can reach us through the hubs anymore.
+            serviceLink.registerHubChangeCallBack(new HubChangeCallBack() {
+                public void hubChanged(DirectSocketAddress oldHub,
+                        DirectSocketAddress newHub) {
+
+                    if (logger.isInfoEnabled()) {
+                        logger.info("Hub changed from " + oldHub + " to "
+                                + newHub + ", updating local addresses");
+                    }
+
+                    hubAddress = newHub;
+                    updateLocalAddresses();
+                    hubCache.save(localCluster, getLocalHubs());
+                }
+            });
+
         } catch (Exception e) {
             logger.warn("Failed to obtain service link to hub!", e);
 
@@ -500,7 +992,13 @@ public final class VirtualSocketFactory {
             }
         }
 
-        // Check if the users want us to register any properties with the hub.
+        registerUserProperty();
+    }
+
+    // Registers the property the user wants us to register with the hub, if
+    // any.
+    private void registerUserProperty() {
+
         String[] props = properties.getStringList(
                 "smartsockets.register.property", ",", null);
 
@@ -525,6 +1023,85 @@ public final class VirtualSocketFactory {
         }
     }
 
+    private void createAdditionalServiceLinks() {
+
+        if (serviceLink == null || hubAddress == null) {
+            return;
+        }
+
+        String[] tmp = properties
+                .getStringList(SmartSocketsProperties.SL_ADDITIONAL_HUBS);
+
+        if (tmp == null || tmp.length == 0) {
+            return;
+        }
+
+        int timeout = properties.getIntProperty(
+                SmartSocketsProperties.SL_TIMEOUT);
+
+        for (String a : tmp) {
+
+            DirectSocketAddress address;
+
+            try {
+                address = DirectSocketAddress.getByAddress(a);
+            } catch (Exception e) {
+                logger.warn("Failed to understand additional hub address: "
+                        + a, e);
+                continue;
+            }
+
+            if (address.sameProcess(hubAddress)) {
+                // Already connected to this hub.
+                continue;
+            }
+
+            List<DirectSocketAddress> hubs =
+                new LinkedList<DirectSocketAddress>();
+            hubs.add(address);
+
+            try {
+                ServiceLink link = ServiceLink.getServiceLink(properties, hubs,
+                        myAddresses);
+
+                link.waitConnected(timeout);
+
+                synchronized (additionalLinks) {
+                    additionalLinks.add(link);
+                }
+
+                if (logger.isInfoEnabled()) {
+                    logger.info("Attached to additional hub "
+                            + link.getAddress());
+                }
+            } catch (Exception e) {
+                logger.warn("Failed to attach to additional hub " + address, e);
+            }
+        }
+    }
+
+    private DirectSocketAddress [] getLocalHubs() {
+
+        if (hubAddress == null) {
+            return null;
+        }
+
+        ArrayList<DirectSocketAddress> result =
+            new ArrayList<DirectSocketAddress>();
+
+        result.add(hubAddress);
+
+        for (ServiceLink link : getAdditionalServiceLinks()) {
+            DirectSocketAddress a = link.getCurrentHub();
+
+            if (a != null && !result.contains(a)) {
+                result.add(a);
+            }
+        }
+
+        return result.toArray(new DirectSocketAddress[result.size()]);
+    }
+
     private ConnectModule instantiateModule(String name) {
 
         if (logger.isInfoEnabled()) {
@@ -579,10 +1156,64 @@ public final class VirtualSocketFactory {
         return null;
     }
 
-    private void loadModule(final String name) throws Exception {
+    /**
+     * Instantiates and initializes a single module. This may be done in a
+     * separate thread, so several modules can be initialized at the same
+     * time.
+     */
+    private final class ModuleLoader implements Runnable {
+
+        private final String name;
+
+        private ConnectModule module;
+
+        private Exception exception;
+
+        private boolean done = false;
+
+        private ModuleLoader(String name) {
+            this.name = name;
+        }
+
+        public void run() {
+
+            ConnectModule m = null;
+            Exception e = null;
+
+            try {
+                m = instantiateModule(name);
+                m.init(VirtualSocketFactory.this, name, properties, logger);
+            } catch (Exception ex) {
+                e = ex;
+            }
+
+            synchronized (this) {
+                module = m;
+                exception = e;
+                done = true;
+                notifyAll();
+            }
+        }
+
+        private synchronized ConnectModule getModule() throws Exception {
+
+            while (!done) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    // ignore
+                }
+            }
+
+            if (exception != null) {
+                throw exception;
+            }
+
+            return module;
+        }
+    }
 
-        ConnectModule m = instantiateModule(name);
-        m.init(this, name, properties, logger);
+    private void addModule(ConnectModule m) {
 
         DirectSocketAddress tmp = m.getAddresses();
 
@@ -592,6 +1223,13 @@ public final class VirtualSocketFactory {
             } else {
                 myAddresses = DirectSocketAddress.merge(myAddresses, tmp);
             }
+
+            if (moduleAddresses == null) {
+                moduleAddresses = tmp;
+            } else {
+                moduleAddresses = DirectSocketAddress.merge(moduleAddresses,
+                        tmp);
+            }
         }
 
         modules.add(m);
@@ -670,6 +1308,24 @@ public final class VirtualSocketFactory {
                     "Failed to retrieve local address!");
         }
 
+        // The other modules do not depend on each other, so they may be
+        // initialized at the same time.
+        boolean parallel = properties.booleanProperty(
+                SmartSocketsProperties.MODULES_PARALLEL, false);
+
+        ModuleLoader[] loaders = new ModuleLoader[mods.length];
+
+        for (int i = 0; i < mods.length; i++) {
+            if (mods[i] != null && !mods[i].equals("direct")) {
+                loaders[i] = new ModuleLoader(mods[i]);
+
+                if (parallel) {
+                    ThreadPool.createNew(loaders[i], "ModuleLoader "
+                            + mods[i]);
+                }
+            }
+        }
+
         for (int i = 0; i < mods.length; i++) {
 
             if (mods[i] != null) {
@@ -677,7 +1333,11 @@ public final class VirtualSocketFactory {
                     modules.add(direct);
                 } else {
                     try {
-                        loadModule(mods[i]);
+                        if (!parallel) {
+                            loaders[i].run();
+                        }
+
+                        addModule(loaders[i].getModule());
                     } catch (Exception e) {
                         if (logger.isInfoEnabled()) {
                             logger.info("Failed to load module: " + mods[i], e);
@@ -779,46 +1439,42 @@ public final class VirtualSocketFactory {
         return tmp.toArray(new ConnectModule[tmp.size()]);
     }
 
-    private void startModules() {
+    // Starts the modules, and returns the ones that could not be started.
+    // These must no longer be used.
+    private List<ConnectModule> startModules(List<ConnectModule> list) {
 
         ArrayList<ConnectModule> failed = new ArrayList<ConnectModule>();
 
-        if (serviceLink == null) {
-            // No servicelink, so remove all modules that depend on it....
-            for (ConnectModule c : modules) {
-                if (c.requiresServiceLink) {
-                    failed.add(c);
-                }
-            }
+        for (ConnectModule c : list) {
 
-            for (ConnectModule c : failed) {
-                logger
-                        .info("Module " + c.module
-                                + " removed (no serviceLink)!");
-                modules.remove(c);
+            if (c.requiresServiceLink && serviceLink == null) {
+                // No servicelink, so remove all modules that depend on it....
+                logger.info("Module " + c.module + " removed (no serviceLink)!");
+                failed.add(c);
+                continue;
             }
 
-            failed.clear();
-        }
-
-        for (ConnectModule c : modules) {
             try {
                 c.startModule(serviceLink);
+
+                // Make sure the module also receives messages that are
+                // routed to us through any of the additional hubs.
+                if (c.requiresServiceLink) {
+                    for (ServiceLink link : getAdditionalServiceLinks()) {
+                        link.register(c.module, c);
+                    }
+                }
             } catch (Exception e) {
                 // Remove all modules that fail to start...
                 logger.warn("Module " + c.module
                         + " did not accept serviceLink!", e);
+                logger.warn("Module " + c.module
+                        + " removed (exception during setup)!");
                 failed.add(c);
             }
         }
 
-        for (ConnectModule c : failed) {
-            logger.warn("Module " + c.module
-                    + " removed (exception during setup)!");
-            modules.remove(c);
-        }
-
-        failed.clear();
+        return failed;
     }
 
     /**
@@ -919,9 +1575,9 @@ public final class VirtualSocketFactory {
     }
 
     /**
-     * This method implements a connect using a specific module.
+     * A connection setup using a specific module.
      *
-     * This method will return null when:
+     * The connection setup ends without a connection when:
      * <p>
      * - runtime requirements do not match
      * - the module throws a NonFatalIOException
@@ -939,62 +1595,126 @@ public final class VirtualSocketFactory {
      * specified by the user) is spend. Each new try behaves exactly the same as
      * the previous attempts.
      *
-     * @param m ConnectModule to use in connection attempt.
-     * @param target Target VirtualServerSocket.
-     * @param timeout Timeout to use for this specific attempt.
-     * @param timeLeft Total timeout left.
-     * @param fillTimeout Should we retry until the timeout expires ?
-     * @param properties Properties to use in connection setup.
-     * @return a VirtualSocket if the connection setup succeeded, null
-     * otherwise.
-     * @throws IOException a non-transient error occured (i.e., target port does
-     * not exist).
-     * @throws NonFatalIOException a transient error occured (i.e., timeout).
+     * Every call to {@link #step()} performs a single try, so the caller
+     * decides how to wait for the next one. This allows asynchronous
+     * connection setups to use a timer instead of a sleeping thread.
      */
-    private VirtualSocket createClientSocket(ConnectModule m,
-            VirtualSocketAddress target, int timeout, int timeLeft,
-            boolean fillTimeout, Map<String, Object> properties)
-            throws IOException, NonFatalIOException {
+    final class ModuleConnect {
 
-        int backoff = 1000;
+        private final ConnectModule m;
+        private final VirtualSocketAddress target;
+        private final int timeout;
+        private final boolean fillTimeout;
+        private final Map<String, Object> properties;
 
-        if (!m.matchRuntimeRequirements(properties)) {
-            if (conlogger.isInfoEnabled()) {
-                conlogger.warn("Failed: module " + m.module
-                        + " may not be used to set " + "up connection to "
-                        + target);
-            }
+        private final long start = System.currentTimeMillis();
 
-            m.connectNotAllowed();
-            return null;
+        private int timeLeft;
+
+        private int overloaded = 0;
+        private int backoff = 1000;
+        private boolean lastAttempt = false;
+
+        private boolean first = true;
+
+        private int retryDelay = 0;
+        private VirtualSocket socket = null;
+
+        /**
+         * @param m ConnectModule to use in connection attempt.
+         * @param target Target VirtualServerSocket.
+         * @param timeout Timeout to use for this specific attempt.
+         * @param timeLeft Total timeout left.
+         * @param fillTimeout Should we retry until the timeout expires ?
+         * @param properties Properties to use in connection setup.
+         */
+        ModuleConnect(ConnectModule m, VirtualSocketAddress target,
+                int timeout, int timeLeft, boolean fillTimeout,
+                Map<String, Object> properties) {
+
+            this.m = m;
+            this.target = target;
+            this.timeout = timeout;
+            this.timeLeft = timeLeft;
+            this.fillTimeout = fillTimeout;
+            this.properties = properties;
         }
 
-        if (conlogger.isDebugEnabled()) {
-            conlogger.debug("Using module " + m.module + " to set up "
-                    + "connection to " + target + " timeout = " + timeout
-                    + " timeleft = " + timeLeft);
+        /**
+         * Returns the socket created by the connection setup.
+         *
+         * @return the socket, or null if the module could not be used.
+         */
+        VirtualSocket getSocket() {
+            return socket;
+        }
+
+        /**
+         * Returns the time to wait before the next call to {@link #step()}.
+         *
+         * @return the delay in milliseconds.
+         */
+        int getRetryDelay() {
+            return retryDelay;
         }
 
-        // We now try to set up a connection. Normally we may not exceed the
-        // timeout, but when we succesfully create a connection we are allowed
-        // to extend this time to timeLeft (either to wait for an accept, or to
-        // retry after a TargetOverLoaded exception). Note that any exception
-        // other than ModuleNotSuitable or TargetOverloaded is passed to the
-        // user.
-        VirtualSocket vs = null;
-        int overloaded = 0;
+        /**
+         * Performs a single connection attempt.
+         *
+         * @return true if the connection setup has ended, false if it must
+         * be retried after {@link #getRetryDelay()} milliseconds.
+         * @throws IOException a non-transient error occured (i.e., target port
+         * does not exist).
+         * @throws NonFatalIOException a transient error occured (i.e.,
+         * timeout).
+         */
+        boolean step() throws IOException, NonFatalIOException {
+
+            retryDelay = 0;
 
-        long start = System.currentTimeMillis();
+            if (first) {
+                first = false;
 
-        boolean lastAttempt = false;
+                synchronized (inactiveModules) {
+                    if (inactiveModules.contains(m)) {
+                        if (conlogger.isDebugEnabled()) {
+                            conlogger.debug("Skipping module " + m.module
+                                    + " (not started)");
+                        }
+
+                        return true;
+                    }
+                }
+
+                if (!m.matchRuntimeRequirements(properties)) {
+                    if (conlogger.isInfoEnabled()) {
+                        conlogger.warn("Failed: module " + m.module
+                                + " may not be used to set "
+                                + "up connection to " + target);
+                    }
+
+                    m.connectNotAllowed();
+                    return true;
+                }
 
-        while (true) {
+                if (conlogger.isDebugEnabled()) {
+                    conlogger.debug("Using module " + m.module + " to set up "
+                            + "connection to " + target + " timeout = "
+                            + timeout + " timeleft = " + timeLeft);
+                }
+            }
 
+            // We now try to set up a connection. Normally we may not exceed
+            // the timeout, but when we succesfully create a connection we are
+            // allowed to extend this time to timeLeft (either to wait for an
+            // accept, or to retry after a TargetOverLoaded exception). Note
+            // that any exception other than ModuleNotSuitable or
+            // TargetOverloaded is passed to the user.
             long t = System.currentTimeMillis() - start;
 
-            // Check if we ran out of time. If so, the throw a target overloaded
-            // exception or a timeout exception depending on the value of the
-            // overloaded counter.
+            // Check if we ran out of time. If so, the throw a target
+            // overloaded exception or a timeout exception depending on the
+            // value of the overloaded counter.
             if (t >= timeLeft) {
                 if (conlogger.isDebugEnabled()) {
                     conlogger.debug("Timeout while using module " + m.module
@@ -1016,6 +1736,8 @@ public final class VirtualSocketFactory {
                 }
             }
 
+            VirtualSocket vs = null;
+
             try {
                 vs = m.connect(target, timeout, properties);
             } catch (NonFatalIOException e) {
@@ -1037,125 +1759,156 @@ public final class VirtualSocketFactory {
                 // forwarded to the user.
             }
 
+            if (vs == null) {
+                // Try again right away.
+                return false;
+            }
+
             t = System.currentTimeMillis() - start;
 
-            if (vs != null) {
-                // We now have a connection to the correct machine and must wait
-                // for an accept from the serversocket. Since we don't have to
-                // try any other modules, we are allowed to spend all of the
-                // time that is left. Therefore, we start by calculating a new
-                // timeout here, which is based on the left over time for the
-                // entire connect call, minus the time we have spend so far in
-                // this connect. This is the timeout we pass to 'waitForAccept'.
-                int newTimeout = (int) (timeLeft - t);
-
-                if (newTimeout <= 0) {
-                    // Bit of a hack. If we run out of time at the last moment
-                    // we allow some extra time to finish the connection setup.
-                    // TODO: should we do this ?
-                    newTimeout = 1000;
-                }
+            // We now have a connection to the correct machine and must wait
+            // for an accept from the serversocket. Since we don't have to try
+            // any other modules, we are allowed to spend all of the time that
+            // is left. Therefore, we start by calculating a new timeout here,
+            // which is based on the left over time for the entire connect
+            // call, minus the time we have spend so far in this connect. This
+            // is the timeout we pass to 'waitForAccept'.
+            int newTimeout = (int) (timeLeft - t);
+
+            if (newTimeout <= 0) {
+                // Bit of a hack. If we run out of time at the last moment we
+                // allow some extra time to finish the connection setup.
+                // TODO: should we do this ?
+                newTimeout = 1000;
+            }
+
+            if (conlogger.isInfoEnabled()) {
+                conlogger.info(getVirtualAddressAsString() + ": Success "
+                        + m.module + " connected to " + target
+                        + " now waiting for accept (for max. " + newTimeout
+                        + " ms.)");
+            }
+
+            try {
+                vs.waitForAccept(newTimeout);
+                vs.setTcpNoDelay(false);
+
+                long end = System.currentTimeMillis();
 
                 if (conlogger.isInfoEnabled()) {
                     conlogger.info(getVirtualAddressAsString() + ": Success "
                             + m.module + " connected to " + target
-                            + " now waiting for accept (for max. " + newTimeout
-                            + " ms.)");
+                            + " (time = " + (end - start) + " ms.)");
                 }
 
-                try {
-                    vs.waitForAccept(newTimeout);
-                    vs.setTcpNoDelay(false);
+                m.connectSucces(end - start);
 
-                    long end = System.currentTimeMillis();
+                socket = vs;
+                return true;
 
-                    if (conlogger.isInfoEnabled()) {
-                        conlogger.info(getVirtualAddressAsString()
-                                + ": Success " + m.module + " connected to "
-                                + target + " (time = " + (end - start)
-                                + " ms.)");
-                    }
+            } catch (TargetOverloadedException e) {
+                // This is always allowed.
+                if (conlogger.isDebugEnabled()) {
+                    conlogger.debug("Connection failed, target " + target
+                            + " overloaded (" + overloaded
+                            + ") while using " + " module " + m.module);
+                }
 
-                    m.connectSucces(end - start);
-                    return vs;
+                overloaded++;
 
-                } catch (TargetOverloadedException e) {
-                    // This is always allowed.
-                    if (conlogger.isDebugEnabled()) {
-                        conlogger.debug("Connection failed, target " + target
-                                + " overloaded (" + overloaded
-                                + ") while using " + " module " + m.module);
-                    }
+            } catch (IOException e) {
 
-                    overloaded++;
+                if (conlogger.isDebugEnabled()) {
+                    conlogger.debug("Connection failed, target " + target
+                            + ", got exception (" + e.getMessage()
+                            + ") while using " + " module " + m.module);
+                }
 
-                } catch (IOException e) {
+                if (!fillTimeout) {
+                    m.connectFailed(System.currentTimeMillis() - start);
 
-                    if (conlogger.isDebugEnabled()) {
-                        conlogger.debug("Connection failed, target " + target
-                                + ", got exception (" + e.getMessage()
-                                + ") while using " + " module " + m.module);
-                    }
+                    // We'll only retry if 'fillTimeout' is true
+                    throw e;
+                }
+            }
 
-                    if (!fillTimeout) {
-                        m.connectFailed(System.currentTimeMillis() - start);
+            // The target has refused our connection. Since we have obviously
+            // found a working module, we will not return. Instead we will
+            // retry using a backoff algorithm until we run out of time...
+            t = System.currentTimeMillis() - start;
 
-                        // We'll only retry if 'fillTimeout' is true
-                        throw e;
-                    }
-                }
+            m.connectRejected(t);
 
-                // The target has refused our connection. Since we have
-                // obviously found a working module, we will not return.
-                // Instead we will retry using a backoff algorithm until
-                // we run out of time...
-                t = System.currentTimeMillis() - start;
+            int leftover = (int) (timeLeft - t);
 
-                m.connectRejected(t);
+            if (!lastAttempt && leftover > 0) {
 
-                int leftover = (int) (timeLeft - t);
+                if (backoff < leftover) {
+                    // Use a randomized sleep value to ensure the attempts are
+                    // distributed.
+                    retryDelay = random.nextInt(backoff);
+                } else {
+                    retryDelay = leftover;
+                    lastAttempt = true;
+                }
+
+                if (leftover < 500) {
+                    // We're done!
+                    timeLeft = 0;
+                } else {
+                    backoff *= 2;
+                }
 
-                if (!lastAttempt && leftover > 0) {
+            } else {
+                // We're done
+                timeLeft = 0;
+            }
 
-                    int sleeptime = 0;
+            return false;
+        }
+    }
 
-                    if (backoff < leftover) {
-                        // Use a randomized sleep value to ensure the attempts
-                        // are distributed.
-                        sleeptime = random.nextInt(backoff);
-                    } else {
-                        sleeptime = leftover;
-                        lastAttempt = true;
-                    }
+    /**
+     * This method implements a connect using a specific module. It waits
+     * between the retries of the {@link ModuleConnect}.
+     *
+     * @param m ConnectModule to use in connection attempt.
+     * @param target Target VirtualServerSocket.
+     * @param timeout Timeout to use for this specific attempt.
+     * @param timeLeft Total timeout left.
+     * @param fillTimeout Should we retry until the timeout expires ?
+     * @param properties Properties to use in connection setup.
+     * @return a VirtualSocket if the connection setup succeeded, null
+     * otherwise.
+     * @throws IOException a non-transient error occured (i.e., target port does
+     * not exist).
+     * @throws NonFatalIOException a transient error occured (i.e., timeout).
+     */
+    VirtualSocket createClientSocket(ConnectModule m,
+            VirtualSocketAddress target, int timeout, int timeLeft,
+            boolean fillTimeout, Map<String, Object> properties)
+            throws IOException, NonFatalIOException {
 
-                    // System.err.println("Backoff = " + backoff +
-                    // " Leftover = " + leftover + " Sleep time = " +
-                    // sleeptime);
+        ModuleConnect c = new ModuleConnect(m, target, timeout, timeLeft,
+                fillTimeout, properties);
 
-                    if (sleeptime > 0) {
-                        try {
-                            Thread.sleep(sleeptime);
-                        } catch (Exception x) {
-                            // ignored
-                        }
-                    }
+        while (!c.step()) {
 
-                    if (leftover < 500) {
-                        // We're done!
-                        timeLeft = 0;
-                    } else {
-                        backoff *= 2;
-                    }
+            int sleeptime = c.getRetryDelay();
 
-                } else {
-                    // We're done
-                    timeLeft = 0;
+            if (sleeptime > 0) {
+                try {
+                    Thread.sleep(sleeptime);
+                } catch (Exception x) {
+                    // ignored
                 }
             }
         }
+
+        return c.getSocket();
     }
 
-    private String[] getNames(ConnectModule[] modules) {
+    String[] getNames(ConnectModule[] modules) {
         String[] names = new String[modules.length];
 
         for (int n = 0; n < modules.length; n++) {
@@ -1180,6 +1933,10 @@ public final class VirtualSocketFactory {
      * @param timeouts Timeouts for each of the modules.
      * @param totalTimeout Total timeout for the connection setup.
      * @param timing Array in which to record the time required by each module.
+     * @param used Array in which to record the module that created the
+     * connection (may be null).
+     * @param probe Probe to report the modules that are tried to (may be
+     * null).
      * @param fillTimeout Should we retry until the timeout expires ?
      * @param properties Properties to use in connection setup.
      * @return a VirtualSocket if the connection setup succeeded, null
@@ -1190,7 +1947,8 @@ public final class VirtualSocketFactory {
      */
     private VirtualSocket createClientSocket(VirtualSocketAddress target,
             ConnectModule[] order, int[] timeouts, int totalTimeout,
-            long[] timing, boolean fillTimeout, Map<String, Object> prop)
+            long[] timing, ConnectModule[] used, ConnectProbe probe,
+            boolean fillTimeout, Map<String, Object> prop)
             throws IOException, NoSuitableModuleException {
 
         Throwable[] exceptions = new Throwable[order.length];
@@ -1216,12 +1974,18 @@ public final class VirtualSocketFactory {
                  * } }
                  */
 
+                if (probe != null) {
+                    probe.moduleTried(m);
+                }
+
                 try {
                     vs = createClientSocket(m, target, timeout, timeLeft,
                             fillTimeout, prop);
                 } catch (NonFatalIOException e) {
                     // Store the exeception and continue with the next module
                     exceptions[i] = e;
+                    clusters.failed(target, m,
+                            System.currentTimeMillis() - start);
                 }
 
                 /*
@@ -1230,11 +1994,15 @@ public final class VirtualSocketFactory {
                  */
 
                 if (vs != null) {
-                    if (i > 0) {
-                        // We managed to connect, but not with the first module,
-                        // so we remember this to speed up later connections.
-                        clusters.succes(target, m);
+                    // Remember which module worked to speed up later
+                    // connections.
+                    clusters.succes(target, m,
+                            System.currentTimeMillis() - start);
+
+                    if (used != null) {
+                        used[0] = m;
                     }
+
                     return vs;
                 }
 
@@ -1271,9 +2039,17 @@ public final class VirtualSocketFactory {
     }
 
     // Distribute a given timeout over a number of modules, taking the relative
-    // sizes of the default module timeouts into account.
-    private int[] distributesTimeout(int timeout, int[] timeouts,
-            ConnectModule[] modules) {
+    // sizes of the default module timeouts (or the observed connection setup
+    // times of the cluster or of the cached route to the target) into
+    // account.
+    int[] distributesTimeout(VirtualSocketAddress target, int timeout,
+            int[] timeouts, ConnectModule[] modules) {
+
+        int[] adaptive = clusters.distributeTimeout(target, timeout, modules);
+
+        if (adaptive != null) {
+            return adaptive;
+        }
 
         if (timeouts == null) {
             timeouts = new int[modules.length];
@@ -1351,7 +2127,124 @@ public final class VirtualSocketFactory {
             timeout = DEFAULT_TIMEOUT;
         }
 
-        ConnectModule[] order = clusters.getOrder(target);
+        if (COALESCE_CONNECTS) {
+            return createCoalescedClientSocket(target, timeout, fillTimeout,
+                    prop);
+        }
+
+        return createClientSocket(target, clusters.getOrder(target), timeout,
+                fillTimeout, prop, null, null);
+    }
+
+    /**
+     * Create a connection to the VirtualServerSocket at target, sharing the
+     * search for a working module with concurrent connection setups to the
+     * same machine (see {@link ConnectProbe}).
+     *
+     * Callers that arrive while another one is searching wait for it, but
+     * for at most half of their timeout, so they always have time left to try
+     * the modules themselves. They then start with the modules that the
+     * search has not tried yet. If the search has already tried all modules,
+     * they keep waiting.
+     *
+     * If no module could reach the machine, the callers that waited for the
+     * search get its failure without searching again.
+     */
+    private VirtualSocket createCoalescedClientSocket(
+            VirtualSocketAddress target, int timeout, boolean fillTimeout,
+            Map<String, Object> prop) throws IOException {
+
+        DirectSocketAddress machine = target.machine();
+
+        ConnectProbe probe = joinProbe(machine);
+
+        try {
+            long start = System.currentTimeMillis();
+
+            ConnectModule[] order = clusters.getOrder(target);
+
+            int state = probe.waitForTurn(start + timeout / 2,
+                    start + timeout, order);
+
+            if (state == ConnectProbe.FAILED) {
+                throw probe.getFailure(target);
+            }
+
+            int timeLeft = (int) (timeout - (System.currentTimeMillis() - start));
+
+            if (timeLeft <= 0) {
+                throw new SocketTimeoutException("Timeout while waiting for "
+                        + "concurrent connection setup to " + target);
+            }
+
+            order = probe.reorder(target, order, state);
+
+            if (state != ConnectProbe.SEARCH) {
+                return createClientSocket(target, order, timeLeft, fillTimeout,
+                        prop, null, null);
+            }
+
+            ConnectModule[] used = new ConnectModule[1];
+            IOException failure = null;
+
+            try {
+                return createClientSocket(target, order, timeLeft, fillTimeout,
+                        prop, used, probe);
+            } catch (IOException e) {
+                failure = e;
+                throw e;
+            } finally {
+                probe.searchDone(used[0], failure);
+            }
+        } finally {
+            leaveProbe(machine, probe);
+        }
+    }
+
+    /**
+     * Returns the probe shared by the connection setups to machine, or null
+     * if connection setups are not coalesced. Every probe returned must be
+     * released with {@link #leaveProbe}.
+     */
+    ConnectProbe joinProbe(DirectSocketAddress machine) {
+
+        if (!COALESCE_CONNECTS) {
+            return null;
+        }
+
+        synchronized (probes) {
+            ConnectProbe probe = probes.get(machine);
+
+            if (probe == null) {
+                probe = new ConnectProbe();
+                probes.put(machine, probe);
+            }
+
+            probe.users++;
+            return probe;
+        }
+    }
+
+    void leaveProbe(DirectSocketAddress machine, ConnectProbe probe) {
+
+        synchronized (probes) {
+            probe.users--;
+
+            if (probe.users == 0 && probes.get(machine) == probe) {
+                probes.remove(machine);
+            }
+        }
+    }
+
+    /**
+     * Create a connection to the VirtualServerSocket at target, trying the
+     * modules in the given order (repeatedly if fillTimeout is set). If probe
+     * is not null, the modules that are tried are reported to it.
+     */
+    private VirtualSocket createClientSocket(VirtualSocketAddress target,
+            ConnectModule[] order, int timeout, boolean fillTimeout,
+            Map<String, Object> prop, ConnectModule[] used,
+            ConnectProbe probe) throws IOException {
 
         int timeLeft = timeout;
         int[] timeouts = null;
@@ -1370,7 +2263,8 @@ public final class VirtualSocketFactory {
             if (timeLeft <= DEFAULT_TIMEOUT) {
                 // determine timeout for each module. We assume that this time
                 // is used completely and therefore only do this once.
-                timeouts = distributesTimeout(timeLeft, timeouts, order);
+                timeouts = distributesTimeout(target, timeLeft, timeouts,
+                        order);
                 fillTimeout = false;
             }
 
@@ -1378,7 +2272,7 @@ public final class VirtualSocketFactory {
 
             try {
                 return createClientSocket(target, order, timeouts, timeLeft,
-                /* timing */null, fillTimeout, prop);
+                /* timing */null, used, probe, fillTimeout, prop);
             } catch (NoSuitableModuleException e) {
                 // All modules where tried and failed. It now depends on the
                 // user if he would like to try another round or give up.
@@ -1443,6 +2337,118 @@ public final class VirtualSocketFactory {
         }
     }
 
+    ConnectModule[] getOrder(VirtualSocketAddress target) {
+        return clusters.getOrder(target);
+    }
+
+    void connectSucces(VirtualSocketAddress target, ConnectModule m,
+            long time) {
+        clusters.succes(target, m, time);
+    }
+
+    void connectFailed(VirtualSocketAddress target, ConnectModule m,
+            long time) {
+        clusters.failed(target, m, time);
+    }
+
+    /**
+     * Returns the DirectSocketFactory used by this factory.
+     *
+     * @return the DirectSocketFactory.
+     */
+    public DirectSocketFactory getDirectSocketFactory() {
+        return directSocketFactory;
+    }
+
+    int getDefaultTimeout() {
+        return DEFAULT_TIMEOUT;
+    }
+
+    boolean useDetailedExceptions() {
+        return DETAILED_EXCEPTIONS;
+    }
+
+    private synchronized AsyncConnector getAsyncConnector() {
+
+        if (asyncConnector == null) {
+            asyncConnector = new AsyncConnector(this,
+                    properties.getIntProperty(
+                            SmartSocketsProperties.CONNECT_ASYNC_THREADS, 8));
+        }
+
+        return asyncConnector;
+    }
+
+    /**
+     * Returns the pool of reusable connections of this factory. The pool is
+     * created on first use.
+     *
+     * @return the socket pool.
+     */
+    public synchronized VirtualSocketPool getSocketPool() {
+
+        if (socketPool == null) {
+            socketPool = new VirtualSocketPool(this, properties);
+        }
+
+        return socketPool;
+    }
+
+    /**
+     * Start a connection setup to the VirtualServerSocket at target, without
+     * waiting for it to complete.
+     *
+     * The connection setup behaves exactly like
+     * {@link #createClientSocket(VirtualSocketAddress, int, Map)}, but is
+     * performed by a small pool of threads shared by all asynchronous
+     * connection setups of this factory.
+     *
+     * @param target Address of target VirtualServerSocket.
+     * @param timeout The maximum timeout for the connection setup in
+     * milliseconds. A timeout of zero or less will revert to the default value.
+     * @param prop Properties that modify the connection setup behavior (may be
+     *        null).
+     * @return a future that produces the VirtualSocket when the connection
+     * setup completes.
+     */
+    public VirtualConnectFuture createClientSocketAsync(
+            VirtualSocketAddress target, int timeout,
+            Map<String, Object> prop) {
+        return createClientSocketAsync(target, timeout, false, prop, null);
+    }
+
+    /**
+     * Start a connection setup to the VirtualServerSocket at target, without
+     * waiting for it to complete.
+     *
+     * @param target Address of target VirtualServerSocket.
+     * @param timeout The maximum timeout for the connection setup in
+     * milliseconds. A timeout of zero or less will revert to the default value.
+     * @param fillTimeout Should we retry until the timeout expires ?
+     * @param prop Properties that modify the connection setup behavior (may be
+     *        null).
+     * @param callback Callback to invoke when the connection setup completes
+     *        (may be null).
+     * @return a future that produces the VirtualSocket when the connection
+     * setup completes.
+     */
+    public VirtualConnectFuture createClientSocketAsync(
+            VirtualSocketAddress target, int timeout, boolean fillTimeout,
+            Map<String, Object> prop, VirtualConnectCallback callback) {
+
+        if (conlogger.isDebugEnabled()) {
+            conlogger.debug("createClientSocketAsync(" + target + ", "
+                    + timeout + ", " + fillTimeout + ", " + prop + ")");
+        }
+
+        if (timeout <= 0) {
+            timeout = DEFAULT_TIMEOUT;
+        }
+
+        return getAsyncConnector().connect(target, timeout, fillTimeout, prop,
+                callback);
+    }
+
     private int getPort() {
 
         // TODO: should this be random ?
@@ -1590,7 +2596,7 @@ public final class VirtualSocketFactory {
             }
 
             VirtualSocketAddress a = new VirtualSocketAddress(myAddresses,
-                    port, hubAddress, clusters.localCluster());
+                    port, getLocalHubs(), clusters.localCluster());
 
             VirtualServerSocket vss = new VirtualServerSocket(this, a, port,
                     backlog, DEFAULT_ACCEPT_TIMEOUT, properties);
@@ -1609,6 +2615,19 @@ public final class VirtualSocketFactory {
         return serviceLink;
     }
 
+    /**
+     * Retrieve the ServiceLinks to the additional hubs this
+     * VirtualSocketFactory is attached to (in addition to the primary hub).
+     *
+     * @return the additional ServiceLinks (may be empty).
+     */
+    public ServiceLink [] getAdditionalServiceLinks() {
+        synchronized (additionalLinks) {
+            return additionalLinks.toArray(
+                    new ServiceLink[additionalLinks.size()]);
+        }
+    }
+
     /**
      * Retrieve the DirectSocketAddress of this machine.
      * @return the DirectSocketAddress of this machine.
@@ -1691,10 +2710,34 @@ public final class VirtualSocketFactory {
             printStatistics(statisticPrefix + " [EXIT]");
         }
 
+        synchronized (this) {
+            ended = true;
+
+            if (asyncConnector != null) {
+                asyncConnector.end();
+            }
+
+            if (socketPool != null) {
+                socketPool.end();
+            }
+        }
+
+        if (clusters != null) {
+            clusters.end();
+        }
+
         if (serviceLink != null) {
             serviceLink.setDone();
         }
 
+        for (ServiceLink link : getAdditionalServiceLinks()) {
+            link.setDone();
+        }
+
+        for (ConnectModule m : modules) {
+            m.end();
+        }
+
         if (hub != null) {
             hub.end();
         }
@@ -0,0 +1,375 @@
+package ibis.smartsockets.virtual;
+
+import ibis.smartsockets.SmartSocketsProperties;
+import ibis.smartsockets.util.TypedProperties;
+import ibis.smartsockets.virtual.modules.direct.PooledConnection;
+import ibis.smartsockets.virtual.modules.direct.PooledVirtualSocket;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Reuses virtual connections for applications that create many short lived
+ * connections to the same targets.
+ *
+ * Sockets created by this pool look like normal VirtualSockets, but closing
+ * one only ends the current session. The underlying connection is returned
+ * to the pool, and the next call to createClientSocket for the same target
+ * starts a new session on it, which only costs a single round trip. This
+ * round trip also serves as a check that the connection is still alive.
+ *
+ * Only connections created by the direct module can be pooled. If the
+ * connection is created by another module, or the target does not support
+ * pooled connections, a normal VirtualSocket is returned.
+ *
+ * The number of connections to a single target is bounded. When the bound is
+ * reached, createClientSocket waits for a connection to become idle. Idle
+ * connections are closed after a while.
+ */
+public final class VirtualSocketPool implements PooledConnection.Listener {
+
+    private static final Logger logger =
+        LoggerFactory.getLogger("ibis.smartsockets.virtual.pool");
+
+    private static final class Idle {
+
+        final PooledConnection connection;
+        final long time;
+
+        Idle(PooledConnection connection, long time) {
+            this.connection = connection;
+            this.time = time;
+        }
+    }
+
+    private static final class Target {
+
+        // Most recently used connection last.
+        final LinkedList<Idle> idle = new LinkedList<Idle>();
+
+        int open = 0;
+    }
+
+    private final VirtualSocketFactory factory;
+
+    private final int max;
+
+    private final long maxIdle;
+
+    private final HashMap<VirtualSocketAddress, Target> targets =
+        new HashMap<VirtualSocketAddress, Target>();
+
+    // Targets that do not support pooled connections.
+    private final HashSet<VirtualSocketAddress> unsupported =
+        new HashSet<VirtualSocketAddress>();
+
+    private final Timer timer = new Timer("VirtualSocketPool eviction", true);
+
+    private boolean done = false;
+
+    VirtualSocketPool(VirtualSocketFactory factory, TypedProperties p) {
+
+        this.factory = factory;
+
+        max = Math.max(1, p.getIntProperty(SmartSocketsProperties.POOL_MAX, 8));
+        maxIdle = Math.max(1, p.getIntProperty(SmartSocketsProperties.POOL_IDLE,
+                30000));
+
+        timer.schedule(new TimerTask() {
+            public void run() {
+                evict();
+            }
+        }, maxIdle, Math.max(100, maxIdle / 2));
+    }
+
+    private Target getTarget(VirtualSocketAddress target) {
+
+        Target t = targets.get(target);
+
+        if (t == null) {
+            t = new Target();
+            targets.put(target, t);
+        }
+
+        return t;
+    }
+
+    private synchronized void release(VirtualSocketAddress target) {
+
+        Target t = targets.get(target);
+
+        if (t != null) {
+            t.open--;
+
+            if (t.open == 0 && t.idle.isEmpty()) {
+                targets.remove(target);
+            }
+        }
+
+        notifyAll();
+    }
+
+    private synchronized boolean isUnsupported(VirtualSocketAddress target) {
+        return unsupported.contains(target);
+    }
+
+    /**
+     * Returns a connection to the VirtualServerSocket at target, reusing an
+     * idle pooled connection when possible.
+     *
+     * @param target Address of target VirtualServerSocket.
+     * @param timeout The maximum timeout for the connection setup in
+     * milliseconds. A timeout of zero or less will revert to the default value.
+     * @param prop Properties that modify the connection setup behavior (may be
+     *        null).
+     * @return a VirtualSocket when the connection setup was successful.
+     * @throws IOException when the connection setup failed.
+     */
+    public VirtualSocket createClientSocket(VirtualSocketAddress target,
+            int timeout, Map<String, Object> prop) throws IOException {
+
+        if (timeout <= 0) {
+            timeout = factory.getDefaultTimeout();
+        }
+
+        long deadline = System.currentTimeMillis() + timeout;
+
+        while (true) {
+
+            PooledConnection c = null;
+
+            synchronized (this) {
+
+                if (done) {
+                    throw new IOException("Socket pool has been closed");
+                }
+
+                if (unsupported.contains(target)) {
+                    break;
+                }
+
+                Target t = getTarget(target);
+
+                if (!t.idle.isEmpty()) {
+                    c = t.idle.removeLast().connection;
+                } else if (t.open < max) {
+                    t.open++;
+                } else {
+                    long left = deadline - System.currentTimeMillis();
+
+                    if (left <= 0) {
+                        throw new SocketTimeoutException("Timeout while "
+                                + "waiting for a pooled connection to "
+                                + target);
+                    }
+
+                    try {
+                        wait(left);
+                    } catch (InterruptedException e) {
+                        // ignored
+                    }
+
+                    continue;
+                }
+            }
+
+            int left = (int) Math.max(1, deadline - System.currentTimeMillis());
+
+            if (c == null) {
+                return connect(target, left, prop);
+            }
+
+            try {
+                return c.reset(left);
+            } catch (IOException e) {
+                if (!c.isClosed()) {
+                    // The session was rejected by the server, but the
+                    // connection is still fine.
+                    throw e;
+                }
+
+                if (logger.isDebugEnabled()) {
+                    logger.debug("Discarding broken pooled connection to "
+                            + target + ": " + e);
+                }
+            }
+        }
+
+        return factory.createClientSocket(target,
+                (int) Math.max(1, deadline - System.currentTimeMillis()), prop);
+    }
+
+    // Creates a new pooled connection. The caller has reserved a slot for it.
+    private VirtualSocket connect(VirtualSocketAddress target, int timeout,
+            Map<String, Object> prop) throws IOException {
+
+        HashMap<String, Object> p = new HashMap<String, Object>();
+
+        if (prop != null) {
+            p.putAll(prop);
+        }
+
+        p.put(PooledConnection.PROPERTY, "true");
+
+        long start = System.currentTimeMillis();
+
+        VirtualSocket vs;
+
+        try {
+            vs = factory.createClientSocket(target, timeout, p);
+        } catch (PooledPortNotFoundException e) {
+
+            release(target);
+
+            if (isUnsupported(target)) {
+                throw e;
+            }
+
+            // The target may not support pooled connections. Retry without.
+            timeout -= System.currentTimeMillis() - start;
+
+            vs = factory.createClientSocket(target, Math.max(1, timeout), prop);
+
+            if (logger.isInfoEnabled()) {
+                logger.info("Target " + target + " does not support pooled "
+                        + "connections");
+            }
+
+            synchronized (this) {
+                unsupported.add(target);
+                notifyAll();
+            }
+
+            return vs;
+
+        } catch (IOException e) {
+            release(target);
+            throw e;
+        }
+
+        if (!(vs instanceof PooledVirtualSocket)) {
+            // Created by a module that does not support pooling.
+            release(target);
+            return vs;
+        }
+
+        ((PooledVirtualSocket) vs).getConnection().setListener(this);
+        return vs;
+    }
+
+    public void idle(PooledConnection c) {
+
+        synchronized (this) {
+            if (!done) {
+                getTarget(c.getTarget()).idle.addLast(
+                        new Idle(c, System.currentTimeMillis()));
+                notifyAll();
+                return;
+            }
+        }
+
+        c.close();
+    }
+
+    public void closed(PooledConnection c) {
+        release(c.getTarget());
+    }
+
+    private void evict() {
+
+        LinkedList<PooledConnection> old = new LinkedList<PooledConnection>();
+
+        long limit = System.currentTimeMillis() - maxIdle;
+
+        synchronized (this) {
+            for (Target t : targets.values()) {
+                Iterator<Idle> itt = t.idle.iterator();
+
+                while (itt.hasNext()) {
+                    Idle i = itt.next();
+
+                    if (i.time > limit) {
+                        // The rest of the list is newer.
+                        break;
+                    }
+
+                    itt.remove();
+                    old.add(i.connection);
+                }
+            }
+        }
+
+        if (logger.isDebugEnabled() && old.size() > 0) {
+            logger.debug("Closing " + old.size() + " idle pooled connections");
+        }
+
+        for (PooledConnection c : old) {
+            c.close();
+        }
+    }
+
+    /**
+     * Returns the number of open pooled connections to target.
+     *
+     * @param target the target.
+     * @return the number of open pooled connections (idle or in use).
+     */
+    public synchronized int getOpenConnections(VirtualSocketAddress target) {
+        Target t = targets.get(target);
+        return t == null ? 0 : t.open;
+    }
+
+    /**
+     * Returns the number of idle pooled connections to target.
+     *
+     * @param target the target.
+     * @return the number of idle pooled connections.
+     */
+    public synchronized int getIdleConnections(VirtualSocketAddress target) {
+        Target t = targets.get(target);
+        return t == null ? 0 : t.idle.size();
+    }
+
+    /**
+     * Closes all idle connections. Connections that are in use are closed
+     * when their session ends.
+     */
+    public void end() {
+
+        LinkedList<PooledConnection> tmp = new LinkedList<PooledConnection>();
+
+        synchronized (this) {
+            if (done) {
+                return;
+            }
+
+            done = true;
+
+            for (Target t : targets.values()) {
+                for (Idle i : t.idle) {
+                    tmp.add(i.connection);
+                }
+
+                t.idle.clear();
+            }
+
+            notifyAll();
+        }
+
+        timer.cancel();
+
+        for (PooledConnection c : tmp) {
+            c.close();
+        }
+    }
+}
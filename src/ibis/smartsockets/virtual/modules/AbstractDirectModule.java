@@ -6,6 +6,8 @@ import ibis.smartsockets.direct.DirectSocketFactory;
 import ibis.smartsockets.virtual.VirtualServerSocket;
 import ibis.smartsockets.virtual.VirtualSocket;
 import ibis.smartsockets.virtual.VirtualSocketAddress;
+import ibis.smartsockets.virtual.modules.direct.PooledConnection;
+import ibis.smartsockets.virtual.modules.direct.PooledVirtualSocket;
 
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -18,9 +20,16 @@ public abstract class AbstractDirectModule extends MessagingModule implements Ac
     public static final byte PORT_NOT_FOUND      = 2;
     public static final byte CONNECTION_REJECTED = 4;
     public static final byte SERVER_OVERLOAD     = 5;
+    public static final byte ACCEPT_POOLED       = 6;
+
+    // Set in the target port when the client asks for a pooled connection.
+    public static final int POOLED = 0x40000000;
 
     protected DirectSocketFactory direct;
 
+    // Time a pooled connection may stay idle before it is closed.
+    protected int poolTimeout = 30000;
+
     private HashMap<Integer, AcceptHandler> handlers = null;
 
     protected AbstractDirectModule(String name, boolean requiresServiceLink) {
@@ -132,6 +141,52 @@ public abstract class AbstractDirectModule extends MessagingModule implements Ac
         }
     }
 
+    // Same as accept, but the connection will be kept open after the first
+    // virtual connection, so it can be reused by the client.
+    private void acceptPooled(DirectSocket ds, int targetPort, long time) {
+
+        OutputStream out = null;
+
+        try {
+            VirtualServerSocket vss = parent.getServerSocket(targetPort);
+
+            if (vss == null) {
+                out = ds.getOutputStream();
+                out.write(PORT_NOT_FOUND);
+                out.flush();
+                DirectSocketFactory.close(ds, out, null);
+
+                if (logger.isDebugEnabled()) {
+                    logger.debug(module + ": Pooled connection failed, PORT "
+                            + "not found!");
+                }
+
+                return;
+            }
+
+            PooledVirtualSocket vs = PooledConnection.createServer(
+                    parent.getLocalVirtual(), ds, vss, poolTimeout);
+
+            int accept = vss.incomingConnection(vs);
+
+            if (accept != 0) {
+
+                vs.connectionRejected(0, accept == -1 ? CONNECTION_REJECTED
+                        : SERVER_OVERLOAD);
+
+                if (logger.isInfoEnabled()) {
+                    logger.info(module + ": Pooled connection failed for port "
+                            + targetPort + ": "
+                            + (accept < 0 ? "REFUSED" : "OVERLOAD")) ;
+                }
+            }
+
+        } catch (Exception e) {
+            logger.warn(module + ": Got exception during connection setup!", e);
+            DirectSocketFactory.close(ds, out, null);
+        }
+    }
+
     protected void handleAccept(DirectSocket ds) {
      //   incomingConnections++;
 
@@ -150,7 +205,23 @@ public abstract class AbstractDirectModule extends MessagingModule implements Ac
                 logger.debug(module + ": Target port " + targetPort);
             }
 
-            findAcceptHandler(targetPort).accept(ds, targetPort, start);
+            boolean pooled = (targetPort & POOLED) != 0;
+
+            targetPort &= ~POOLED;
+
+            AcceptHandler h = findAcceptHandler(targetPort);
+
+            if (!pooled) {
+                h.accept(ds, targetPort, start);
+            } else if (h == this) {
+                acceptPooled(ds, targetPort, start);
+            } else {
+                // A custom handler does not know about pooling.
+                OutputStream out = ds.getOutputStream();
+                out.write(PORT_NOT_FOUND);
+                out.flush();
+                DirectSocketFactory.close(ds, out, null);
+            }
 
         } catch (Exception e) {
             logger.warn(module + ": Got exception during connection setup!", e);
@@ -332,6 +332,15 @@ public abstract class ConnectModule implements CallBack {
             int timeout, Map<String, Object> properties)
         throws NonFatalIOException, IOException;
 
+    /**
+     * Called when the VirtualSocketFactory is shut down. Modules that hold
+     * resources outside of the process (such as files) should release them
+     * here. The default implementation does nothing.
+     */
+    public void end() {
+        // nothing to do here...
+    }
+
     public void printStatistics(String prefix) {
 
         if (statslogger.isInfoEnabled()) {
@@ -358,6 +367,22 @@ public abstract class ConnectModule implements CallBack {
         return timeout;
     }
 
+    public long getConnectSuccesCount() {
+        return connectSuccesCount;
+    }
+
+    public long getConnectSuccesTime() {
+        return connectSuccesTime;
+    }
+
+    public long getConnectFailedCount() {
+        return connectFailedCount;
+    }
+
+    public long getConnectFailedTime() {
+        return connectFailedTime;
+    }
+
     public void setTimeout(int timeout) {
         this.timeout = timeout;
     }
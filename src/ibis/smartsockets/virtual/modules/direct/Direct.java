@@ -76,6 +76,9 @@ public class Direct extends AbstractDirectModule {
         defaultSendBuffer = p.getIntProperty(
                 SmartSocketsProperties.DIRECT_SEND_BUFFER, -1);
 
+        poolTimeout = p.getIntProperty(SmartSocketsProperties.POOL_IDLE,
+                poolTimeout);
+
         // Create a server socket to accept incoming connections.
         HashMap <String, String> prop = new HashMap<String, String>(3);
         prop.put("PortForwarding", "yes");
@@ -242,10 +245,23 @@ public class Direct extends AbstractDirectModule {
             }
         }
 
+        boolean pooled = properties != null
+            && properties.containsKey(PooledConnection.PROPERTY);
+
         try {
             DirectSocket s = direct.createSocket(target.machine(), timeout, 0,
                     sendBuffer, receiveBuffer, properties, false,
-                    target.port());
+                    pooled ? (target.port() | POOLED) : target.port());
+
+            if (pooled) {
+                try {
+                    return PooledConnection.createClient(target, s,
+                            poolTimeout);
+                } catch (IOException e) {
+                    DirectSocketFactory.close(s, null, null);
+                    throw e;
+                }
+            }
 
             // Next, we wrap the direct socket in a virtual socket and return it.
             // Any exceptions thrown here are forwarded to the user. Note that
@@ -0,0 +1,510 @@
+package ibis.smartsockets.virtual.modules.direct;
+
+import ibis.smartsockets.direct.DirectSocket;
+import ibis.smartsockets.direct.DirectSocketFactory;
+import ibis.smartsockets.util.ThreadPool;
+import ibis.smartsockets.virtual.TargetOverloadedException;
+import ibis.smartsockets.virtual.VirtualServerSocket;
+import ibis.smartsockets.virtual.VirtualSocketAddress;
+import ibis.smartsockets.virtual.modules.AbstractDirectModule;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.SocketException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A direct connection that can carry several consecutive virtual
+ * connections (sessions), so that short lived connections to the same
+ * target do not each pay for a new connection setup.
+ *
+ * The client requests a pooled connection by setting the POOLED bit in the
+ * target port sent during the connection setup, and the server confirms it by
+ * replying ACCEPT_POOLED instead of ACCEPT. From then on, all data is sent in
+ * frames. Each frame starts with an int. A positive value is the length of
+ * the data that follows. Other values are control frames:
+ *
+ * END: the sender has closed its side of the session (EOF for the reader).
+ * RESET: (client to server) start a new session on this connection.
+ * ACCEPT: (server to client) the new session was accepted.
+ * REJECT: (server to client) the new session was rejected. It is followed by
+ * an int containing the reason (CONNECTION_REJECTED or SERVER_OVERLOAD).
+ *
+ * A session ends once both sides have sent END. Between sessions, the server
+ * waits for a RESET on a pool thread and offers each new session to the
+ * VirtualServerSocket as a new incoming connection. The client side waits for
+ * the END of the server on a pool thread, and then hands the idle connection
+ * to its {@link Listener}.
+ */
+public final class PooledConnection {
+
+    private static final Logger logger =
+        LoggerFactory.getLogger("ibis.smartsockets.virtual.pool");
+
+    /** Connection property used to request a pooled connection. */
+    public static final String PROPERTY = "connect.pooled";
+
+    static final int END = 0;
+    static final int RESET = -1;
+    static final int ACCEPT = -2;
+    static final int REJECT = -3;
+
+    private static final int BUFFER_SIZE = 8*1024;
+
+    /**
+     * Notified by the client side of a pooled connection.
+     */
+    public interface Listener {
+
+        /**
+         * The session on c has ended and c may be used for a new session.
+         *
+         * @param c the connection
+         */
+        void idle(PooledConnection c);
+
+        /**
+         * Connection c has been closed.
+         *
+         * @param c the connection
+         */
+        void closed(PooledConnection c);
+    }
+
+    private final DirectSocket s;
+    private final DataInputStream in;
+    private final DataOutputStream out;
+
+    private final VirtualSocketAddress target;
+    private final VirtualServerSocket serverSocket;
+    private final boolean server;
+
+    // Time to wait for the other side to end a session or (on the server
+    // side) to start a new one.
+    private final int timeout;
+
+    private final Object inputLock = new Object();
+    private final Object outputLock = new Object();
+
+    private Listener listener;
+
+    private boolean closed = false;
+    private int sessions = 0;
+
+    // Protected by inputLock
+    private int remaining = 0;
+    private boolean inputEnded = false;
+
+    // Protected by outputLock
+    private boolean outputEnded = false;
+
+    private PooledConnection(DirectSocket s, VirtualSocketAddress target,
+            VirtualServerSocket serverSocket, int timeout) throws IOException {
+
+        this.s = s;
+        this.target = target;
+        this.serverSocket = serverSocket;
+        this.server = (serverSocket != null);
+        this.timeout = timeout;
+
+        in = new DataInputStream(new BufferedInputStream(s.getInputStream(),
+                BUFFER_SIZE));
+        out = new DataOutputStream(new BufferedOutputStream(
+                s.getOutputStream(), BUFFER_SIZE));
+    }
+
+    /**
+     * Creates the client side of a pooled connection, and returns the first
+     * session. The connection setup is completed by waitForAccept.
+     */
+    static PooledVirtualSocket createClient(VirtualSocketAddress target,
+            DirectSocket s, int timeout) throws IOException {
+
+        PooledConnection c = new PooledConnection(s, target, null, timeout);
+        return c.newSession();
+    }
+
+    /**
+     * Creates the server side of a pooled connection, and returns the first
+     * session. The connection setup is completed when the session is
+     * accepted by the server socket.
+     *
+     * @param local the address to use for the sessions.
+     * @param s the direct connection.
+     * @param ss the server socket to offer the sessions to.
+     * @param timeout the maximum idle time in milliseconds.
+     * @return the first session.
+     * @throws IOException if the streams of the connection cannot be created.
+     */
+    public static PooledVirtualSocket createServer(VirtualSocketAddress local,
+            DirectSocket s, VirtualServerSocket ss, int timeout)
+        throws IOException {
+
+        PooledConnection c = new PooledConnection(s, local, ss, timeout);
+        return c.newSession();
+    }
+
+    private PooledVirtualSocket newSession() {
+
+        synchronized (inputLock) {
+            remaining = 0;
+            inputEnded = false;
+        }
+
+        synchronized (outputLock) {
+            outputEnded = false;
+        }
+
+        synchronized (this) {
+            sessions++;
+        }
+
+        return new PooledVirtualSocket(target, this, s);
+    }
+
+    public synchronized void setListener(Listener l) {
+        listener = l;
+    }
+
+    public VirtualSocketAddress getTarget() {
+        return target;
+    }
+
+    synchronized boolean isFirstSession() {
+        return sessions == 1;
+    }
+
+    public synchronized boolean isClosed() {
+        return closed;
+    }
+
+    // Raw access to the streams, used for the handshake of the first session.
+    DataInputStream rawInput() {
+        return in;
+    }
+
+    DataOutputStream rawOutput() {
+        return out;
+    }
+
+    int read(byte[] b, int off, int len) throws IOException {
+
+        synchronized (inputLock) {
+
+            if (inputEnded) {
+                return -1;
+            }
+
+            while (remaining == 0) {
+
+                int header = in.readInt();
+
+                if (header > 0) {
+                    remaining = header;
+                } else if (header == END) {
+                    inputEnded = true;
+                    return -1;
+                } else {
+                    throw new IOException("Unexpected control frame ("
+                            + header + ") in pooled connection");
+                }
+            }
+
+            int n = in.read(b, off, Math.min(len, remaining));
+
+            if (n == -1) {
+                throw new EOFException("Unexpected EOF in pooled connection");
+            }
+
+            remaining -= n;
+            return n;
+        }
+    }
+
+    int available() throws IOException {
+        synchronized (inputLock) {
+            if (inputEnded || remaining == 0) {
+                return 0;
+            }
+
+            return Math.min(remaining, in.available());
+        }
+    }
+
+    void write(byte[] b, int off, int len, boolean flush) throws IOException {
+
+        synchronized (outputLock) {
+
+            if (outputEnded) {
+                throw new SocketException("Socket output is shutdown");
+            }
+
+            if (len > 0) {
+                out.writeInt(len);
+                out.write(b, off, len);
+            }
+
+            if (flush) {
+                out.flush();
+            }
+        }
+    }
+
+    void endOutput() throws IOException {
+
+        synchronized (outputLock) {
+            if (!outputEnded) {
+                outputEnded = true;
+                out.writeInt(END);
+                out.flush();
+            }
+        }
+    }
+
+    private void writeControl(int opcode, int data) throws IOException {
+
+        synchronized (outputLock) {
+            out.writeInt(opcode);
+
+            if (opcode == REJECT) {
+                out.writeInt(data);
+            }
+
+            out.flush();
+        }
+    }
+
+    // Skip any remaining data of the current session, until END.
+    private void drainInput() throws IOException {
+
+        byte [] tmp = new byte[BUFFER_SIZE];
+
+        s.setSoTimeout(timeout);
+
+        try {
+            while (read(tmp, 0, tmp.length) != -1) {
+                // ignored
+            }
+        } finally {
+            s.setSoTimeout(0);
+        }
+    }
+
+    /**
+     * Starts a new session on an idle client connection. This also serves as
+     * a check that the connection is still alive.
+     *
+     * @param timeout the time to wait for the server in milliseconds.
+     * @return the new session.
+     * @throws TargetOverloadedException if the server is overloaded.
+     * @throws SocketException if the server refused the session.
+     * @throws IOException if the connection is broken.
+     */
+    public PooledVirtualSocket reset(int timeout) throws IOException {
+
+        int reply;
+        int reason = 0;
+
+        try {
+            writeControl(RESET, 0);
+
+            s.setSoTimeout(timeout);
+
+            try {
+                synchronized (inputLock) {
+                    reply = in.readInt();
+
+                    if (reply == REJECT) {
+                        reason = in.readInt();
+                    }
+                }
+            } finally {
+                s.setSoTimeout(0);
+            }
+
+            if (reply != ACCEPT && reply != REJECT) {
+                throw new IOException("Unexpected reply (" + reply
+                        + ") to pooled connection reset");
+            }
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+
+        if (reply == ACCEPT) {
+            return newSession();
+        }
+
+        // The connection itself is fine.
+        idle();
+
+        if (reason == AbstractDirectModule.SERVER_OVERLOAD) {
+            throw new TargetOverloadedException("Connection rejected "
+                    + "(server overloaded)");
+        }
+
+        throw new SocketException("Connection rejected");
+    }
+
+    private void idle() {
+
+        Listener l;
+
+        synchronized (this) {
+            l = listener;
+        }
+
+        if (l != null) {
+            l.idle(this);
+        } else {
+            close();
+        }
+    }
+
+    // Called when the local side closes a session.
+    void sessionClosed() {
+
+        try {
+            endOutput();
+        } catch (IOException e) {
+            close();
+            return;
+        }
+
+        if (server) {
+            ThreadPool.createNew(new Runnable() {
+                public void run() {
+                    waitForReset();
+                }
+            }, "PooledConnection");
+        } else {
+            // The server may not have ended its side of the session yet, so
+            // we wait for its END in the background instead of blocking the
+            // close. The connection is only reused once the END has arrived.
+            ThreadPool.createNew(new Runnable() {
+                public void run() {
+                    waitForEnd();
+                }
+            }, "PooledConnection");
+        }
+    }
+
+    // Client side: wait for the server to end the session.
+    private void waitForEnd() {
+
+        try {
+            drainInput();
+        } catch (IOException e) {
+            if (logger.isDebugEnabled()) {
+                logger.debug("Failed to end session to " + target, e);
+            }
+
+            close();
+            return;
+        }
+
+        idle();
+    }
+
+    // Called on the server side when a new session was rejected.
+    void sessionRejected(byte opcode) {
+
+        try {
+            writeControl(REJECT, opcode);
+        } catch (IOException e) {
+            close();
+            return;
+        }
+
+        ThreadPool.createNew(new Runnable() {
+            public void run() {
+                waitForReset();
+            }
+        }, "PooledConnection");
+    }
+
+    // Server side: wait for the client to start a new session.
+    private void waitForReset() {
+
+        try {
+            drainInput();
+
+            while (true) {
+
+                int header;
+
+                s.setSoTimeout(timeout);
+
+                try {
+                    synchronized (inputLock) {
+                        header = in.readInt();
+                    }
+                } finally {
+                    s.setSoTimeout(0);
+                }
+
+                if (header != RESET) {
+                    throw new IOException("Unexpected frame (" + header
+                            + ") in idle pooled connection");
+                }
+
+                PooledVirtualSocket vs = newSession();
+
+                int accept = serverSocket.incomingConnection(vs);
+
+                if (accept == 0) {
+                    // The server socket will accept (or reject) the session.
+                    return;
+                }
+
+                writeControl(REJECT, accept == -1
+                        ? AbstractDirectModule.CONNECTION_REJECTED
+                        : AbstractDirectModule.SERVER_OVERLOAD);
+            }
+
+        } catch (IOException e) {
+            // Timeout, or the client closed the connection.
+            if (logger.isDebugEnabled()) {
+                logger.debug("Closing idle pooled connection: " + e);
+            }
+
+            close();
+        }
+    }
+
+    // Server side: a new (non-first) session was accepted.
+    void sessionAccepted() throws IOException {
+        writeControl(ACCEPT, 0);
+    }
+
+    public void close() {
+
+        Listener l;
+
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+
+            closed = true;
+            l = listener;
+        }
+
+        DirectSocketFactory.close(s, out, in);
+
+        if (l != null) {
+            l.closed(this);
+        }
+    }
+
+    public String toString() {
+        return "PooledConnection(" + target + ", " + (server ? "server" :
+            "client") + ")";
+    }
+}
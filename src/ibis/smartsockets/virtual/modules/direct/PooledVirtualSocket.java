@@ -0,0 +1,324 @@
+package ibis.smartsockets.virtual.modules.direct;
+
+import ibis.smartsockets.direct.DirectSocket;
+import ibis.smartsockets.virtual.PooledPortNotFoundException;
+import ibis.smartsockets.virtual.TargetOverloadedException;
+import ibis.smartsockets.virtual.VirtualSocketAddress;
+import ibis.smartsockets.virtual.modules.AbstractDirectModule;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ConnectException;
+import java.net.SocketException;
+import java.nio.channels.SocketChannel;
+
+/**
+ * A single virtual connection (session) on a {@link PooledConnection}.
+ *
+ * Closing this socket only ends the session. The underlying connection is
+ * kept open for the next session.
+ */
+public class PooledVirtualSocket extends DirectVirtualSocket {
+
+    private static final int BUFFER_SIZE = 8*1024;
+
+    private static class SessionInputStream extends InputStream {
+
+        private final PooledConnection c;
+        private boolean closed = false;
+
+        SessionInputStream(PooledConnection c) {
+            this.c = c;
+        }
+
+        public int read() throws IOException {
+
+            byte [] tmp = new byte[1];
+
+            int n = read(tmp, 0, 1);
+
+            if (n == -1) {
+                return -1;
+            }
+
+            return tmp[0] & 0xff;
+        }
+
+        public int read(byte[] b, int off, int len) throws IOException {
+
+            if (closed) {
+                throw new SocketException("Socket closed");
+            }
+
+            if (len == 0) {
+                return 0;
+            }
+
+            return c.read(b, off, len);
+        }
+
+        public int available() throws IOException {
+            return closed ? 0 : c.available();
+        }
+
+        public void close() {
+            closed = true;
+        }
+    }
+
+    private static class SessionOutputStream extends OutputStream {
+
+        private final PooledConnection c;
+
+        private final byte [] buffer = new byte[BUFFER_SIZE];
+        private int used = 0;
+
+        private boolean closed = false;
+
+        SessionOutputStream(PooledConnection c) {
+            this.c = c;
+        }
+
+        private void checkClosed() throws IOException {
+            if (closed) {
+                throw new SocketException("Socket closed");
+            }
+        }
+
+        public synchronized void write(int b) throws IOException {
+
+            checkClosed();
+
+            if (used == buffer.length) {
+                c.write(buffer, 0, used, false);
+                used = 0;
+            }
+
+            buffer[used++] = (byte) b;
+        }
+
+        public synchronized void write(byte[] b, int off, int len)
+            throws IOException {
+
+            checkClosed();
+
+            if (used + len <= buffer.length) {
+                System.arraycopy(b, off, buffer, used, len);
+                used += len;
+                return;
+            }
+
+            if (used > 0) {
+                c.write(buffer, 0, used, false);
+                used = 0;
+            }
+
+            c.write(b, off, len, false);
+        }
+
+        public synchronized void flush() throws IOException {
+
+            checkClosed();
+
+            c.write(buffer, 0, used, true);
+            used = 0;
+        }
+
+        synchronized void end() throws IOException {
+
+            if (closed) {
+                return;
+            }
+
+            if (used > 0) {
+                c.write(buffer, 0, used, false);
+                used = 0;
+            }
+
+            closed = true;
+            c.endOutput();
+        }
+
+        public void close() throws IOException {
+            end();
+        }
+    }
+
+    private final PooledConnection connection;
+
+    private boolean closed = false;
+
+    PooledVirtualSocket(VirtualSocketAddress target, PooledConnection c,
+            DirectSocket s) {
+
+        super(target, s, new SessionOutputStream(c), new SessionInputStream(c),
+                false, null);
+
+        this.connection = c;
+    }
+
+    /**
+     * Returns the pooled connection that carries this session.
+     *
+     * @return the connection.
+     */
+    public PooledConnection getConnection() {
+        return connection;
+    }
+
+    protected void connectionAccepted(int timeout) throws IOException {
+
+        if (!connection.isFirstSession()) {
+            try {
+                connection.sessionAccepted();
+            } catch (IOException e) {
+                connection.close();
+                throw e;
+            }
+            return;
+        }
+
+        try {
+            s.setSoTimeout(timeout);
+            s.setTcpNoDelay(true);
+
+            connection.rawOutput().write(AbstractDirectModule.ACCEPT_POOLED);
+            connection.rawOutput().flush();
+
+            int ack = connection.rawInput().read();
+
+            if (ack == -1) {
+                throw new EOFException("Unexpected EOF during handshake");
+            } else if (ack != AbstractDirectModule.ACCEPT) {
+                throw new ConnectException("Client disconnected");
+            }
+
+            s.setSoTimeout(0);
+
+        } catch (IOException e) {
+            connection.close();
+            throw e;
+        }
+    }
+
+    public void connectionRejected(int timeout, byte opcode) {
+
+        synchronized (this) {
+            closed = true;
+        }
+
+        if (!connection.isFirstSession()) {
+            connection.sessionRejected(opcode);
+            return;
+        }
+
+        try {
+            connection.rawOutput().write(opcode);
+            connection.rawOutput().flush();
+        } catch (Exception e) {
+            // ignore ?
+        } finally {
+            connection.close();
+        }
+    }
+
+    public void waitForAccept(int timeout) throws IOException {
+
+        if (!connection.isFirstSession()) {
+            // Accepted during the reset.
+            return;
+        }
+
+        try {
+            s.setSoTimeout(timeout);
+            s.setTcpNoDelay(true);
+
+            int result = connection.rawInput().read();
+
+            switch (result) {
+            case AbstractDirectModule.ACCEPT_POOLED:
+                connection.rawOutput().write(AbstractDirectModule.ACCEPT);
+                connection.rawOutput().flush();
+                s.setSoTimeout(0);
+                return;
+
+            case AbstractDirectModule.PORT_NOT_FOUND:
+                // Also the reply of servers that do not support pooling.
+                throw new PooledPortNotFoundException("Remote port not found");
+
+            case AbstractDirectModule.SERVER_OVERLOAD:
+                throw new TargetOverloadedException("Connection rejected (server overloaded)");
+
+            case AbstractDirectModule.CONNECTION_REJECTED:
+                throw new SocketException("Connection rejected");
+
+            case -1:
+                throw new EOFException("Unexpected EOF while waiting for accept");
+
+            default:
+                throw new SocketException("Got unknown reply (" + result
+                        + ") during connect!");
+            }
+        } catch (IOException e) {
+            connection.close();
+            throw e;
+        }
+    }
+
+    public void close() throws IOException {
+
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+
+            closed = true;
+        }
+
+        try {
+            ((SessionOutputStream) out).end();
+        } catch (IOException e) {
+            connection.close();
+            return;
+        }
+
+        in.close();
+        connection.sessionClosed();
+    }
+
+    public synchronized boolean isClosed() {
+        return closed || connection.isClosed();
+    }
+
+    public void shutdownOutput() throws IOException {
+        ((SessionOutputStream) out).end();
+    }
+
+    public void shutdownInput() throws IOException {
+        // The remaining input is skipped when the session is closed.
+    }
+
+    public boolean isOutputShutdown() {
+        return ((SessionOutputStream) out).closed;
+    }
+
+    public void setTcpNoDelay(boolean on) {
+        // Ignored. The session streams do their own buffering, and the
+        // control frames must not be delayed, so Nagle stays disabled.
+    }
+
+    public boolean getTcpNoDelay() {
+        return true;
+    }
+
+    public SocketChannel getChannel() {
+        // The data is framed, so the channel cannot be used directly.
+        return null;
+    }
+
+    public String toString() {
+        return "PooledVirtualSocket(" + connection + ")";
+    }
+}
@@ -0,0 +1,345 @@
+package ibis.smartsockets.virtual.modules.hubrouted;
+
+import ibis.smartsockets.direct.DirectSocketAddress;
+import ibis.smartsockets.hub.servicelink.ServiceLink;
+import ibis.smartsockets.hub.servicelink.ServiceLinkProtocol;
+import ibis.smartsockets.hub.servicelink.VirtualConnectionCallBack;
+import ibis.smartsockets.util.ConcurrentLongHashMap;
+import ibis.smartsockets.virtual.NonFatalIOException;
+import ibis.smartsockets.virtual.VirtualServerSocket;
+import ibis.smartsockets.virtual.VirtualSocket;
+import ibis.smartsockets.virtual.VirtualSocketAddress;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.util.List;
+import java.util.TimerTask;
+
+import org.slf4j.Logger;
+
+/**
+ * Handles the hub routed connections that run over a single ServiceLink.
+ *
+ * Each ServiceLink has its own space of virtual connection indices, so a
+ * client that is attached to several hubs uses one HubLink per hub.
+ */
+class HubLink implements VirtualConnectionCallBack {
+
+    private final Hubrouted module;
+    private final ServiceLink serviceLink;
+    private final Logger logger;
+
+    // Looked up by the ServiceLink reader for every message and ACK, so this
+    // should neither allocate nor contend with threads opening/closing sockets.
+    private final ConcurrentLongHashMap<HubRoutedVirtualSocket> sockets =
+        new ConcurrentLongHashMap<HubRoutedVirtualSocket>();
+
+    HubLink(Hubrouted module, ServiceLink serviceLink, Logger logger) {
+        this.module = module;
+        this.serviceLink = serviceLink;
+        this.logger = logger;
+    }
+
+    boolean usePiggyback() {
+        return module.usePiggyback();
+    }
+
+    int getACKDelay() {
+        return module.getACKDelay();
+    }
+
+    void scheduleACK(TimerTask task, int delay) {
+        module.scheduleACK(task, delay);
+    }
+
+    DirectSocketAddress getCurrentHub() {
+        return serviceLink.getCurrentHub();
+    }
+
+    VirtualSocket connect(VirtualSocketAddress target,
+            DirectSocketAddress hub, int timeout) throws NonFatalIOException,
+            IOException {
+
+        DirectSocketAddress tm = target.machine();
+
+        final int localFragmentation = module.getLocalFragmentation();
+        final int localBufferSize = module.getLocalBufferSize();
+
+        final long deadline = System.currentTimeMillis() + timeout;
+        int timeleft = timeout;
+
+        // Create a socket first. Since this is a wrapper anyway, we can reuse
+        // it until we get a connection.
+        HubRoutedVirtualSocket s = new HubRoutedVirtualSocket(this,
+                 localFragmentation, localBufferSize,
+                 module.getLocalMinimalACKSize(), target, serviceLink, null);
+
+        while (true) {
+
+            long index = serviceLink.getConnectionNumber();
+
+            s.reset(index);
+            sockets.put(index, s);
+
+            try {
+          //      outgoingConnectionAttempts++;
+
+                serviceLink.createVirtualConnection(index, tm, hub,
+                        target.port(), localFragmentation, localBufferSize,
+                        timeleft);
+
+             //   return s;
+            } catch (IOException e) {
+                // No connection to hub, or the send failed. Just retry ?
+           //     failedOutgoingConnections++;
+                sockets.remove(index);
+
+                if (logger.isInfoEnabled()) {
+                    logger.info("Failed to create virtual connection to "
+                            + target + " (unknown host -> will retry)!");
+                }
+
+                try {
+                    // TODO: deadline + exp backoff ?
+                    Thread.sleep(1000);
+                } catch (Exception x) {
+                    // ignored
+                }
+
+                timeleft = (int) (deadline - System.currentTimeMillis());
+
+                if (timeleft <= 0)  {
+                    throw new NonFatalIOException(
+                            new SocketTimeoutException("Failed to create "
+                            + "virtual connection within "
+                            + timeout + " ms. (" + e + ")"));
+                }
+
+                index = -1;
+            }
+
+            if (index != -1) {
+                int result = s.waitForACK(timeout);
+
+                switch (result) {
+
+                case 0: // success
+            //        acceptedOutgoingConnections++;
+                    return s;
+
+                case ServiceLinkProtocol.ERROR_SERVER_OVERLOAD:
+                    // This one should be handled on a higher level, where we
+                    // have a clue about timeouts
+                    s.setTargetOverload();
+                    return s;
+
+                case -1:
+                    // Timeout. Assume it is this module's fault
+          //          failedOutgoingConnections++;
+                    throw new NonFatalIOException(
+                            new SocketTimeoutException("Failed to create "
+                            + "virtual connection within " + timeout + " ms."));
+
+                case ServiceLinkProtocol.ERROR_UNKNOWN_HOST:
+                    // We couldn't find the machine. Assume its our own fault.
+               //     failedOutgoingConnections++;
+                    throw new NonFatalIOException(
+                            new UnknownHostException("Failed to find host"
+                                    + " within " + timeout + " ms."));
+
+                case ServiceLinkProtocol.ERROR_PORT_NOT_FOUND:
+                    // User error
+             //       failedOutgoingConnections++;
+                    throw new ConnectException("Remote port not found!");
+
+                case ServiceLinkProtocol.ERROR_CONNECTION_REFUSED:
+                    // User error
+              //      failedOutgoingConnections++;
+                    throw new ConnectException("Connection refused by server!");
+
+                case ServiceLinkProtocol.ERROR_ILLEGAL_TARGET:
+                    // User error
+             //       failedOutgoingConnections++;
+                    throw new NonFatalIOException("Attempting to connect to " +
+                            "illegal target! (" + target + ")");
+                }
+            }
+        }
+    }
+
+    public void connect(DirectSocketAddress src, DirectSocketAddress srcHub,
+            int port, int remoteFragmentation, int remoteBufferSize,
+            int timeout, long index) {
+
+        // Incoming connection...
+      //  incomingConnections++;
+
+        // Get the serversocket (if it exists).
+        VirtualServerSocket ss = module.getServerSocket(port);
+
+        // Could not find it, so send a 'port not found' error back
+        if (ss == null) {
+            logger.info("Failed find VirtualServerSocket(" + port + ")");
+       //     rejectedIncomingConnections++;
+
+            serviceLink.nackVirtualConnection(index,
+                    ServiceLinkProtocol.ERROR_PORT_NOT_FOUND);
+            return;
+        }
+
+        if (logger.isInfoEnabled()) {
+            logger.info("Hubrouted got new connection: " + index);
+        }
+
+        // Create a new socket
+        VirtualSocketAddress sa = new VirtualSocketAddress(src, 0, srcHub, null);
+
+        HubRoutedVirtualSocket s = new HubRoutedVirtualSocket(this,
+                module.getLocalFragmentation(), module.getLocalBufferSize(),
+                module.getLocalMinimalACKSize(), remoteFragmentation,
+                remoteBufferSize, sa, serviceLink, index, null);
+
+        sockets.put(index, s);
+
+        int accept = ss.incomingConnection(s);
+
+        if (accept != 0) {
+            sockets.remove(index);
+        //    rejectedIncomingConnections++;
+
+            if (accept == -1) {
+                serviceLink.nackVirtualConnection(index,
+                        ServiceLinkProtocol.ERROR_CONNECTION_REFUSED);
+            } else {
+                serviceLink.nackVirtualConnection(index,
+                        ServiceLinkProtocol.ERROR_SERVER_OVERLOAD);
+            }
+        }
+    }
+
+    public void disconnect(long vc) {
+
+        HubRoutedVirtualSocket s = sockets.remove(vc);
+
+        if (s == null) {
+            // This can happen if we have just closed the socket...
+            return;
+        }
+
+        try {
+            s.close(false);
+        } catch (Exception e) {
+            logger.warn("Failed to close socket!", e);
+        }
+    }
+
+    void close(long vc) {
+
+        HubRoutedVirtualSocket s = sockets.remove(vc);
+
+        // logger.warn("Got close for socket!: " + vc);
+
+        if (s == null) {
+            // This can happen if we have just been closed by the other side...
+            return;
+        }
+
+        try {
+            serviceLink.closeVirtualConnection(vc);
+        } catch (Exception e) {
+            logger.warn("Failed to forward close for virtual socket: " + vc, e);
+        }
+    }
+
+    public void connectACK(long index, int fragment, int buffer) {
+
+        HubRoutedVirtualSocket s = sockets.get(index);
+
+        if (s == null) {
+            serviceLink.ackAckVirtualConnection(index, false);
+            return;
+        }
+
+        s.connectACK(fragment, buffer);
+    }
+
+    void sendAckAck(long index, boolean result) {
+        serviceLink.ackAckVirtualConnection(index, result);
+    }
+
+    public void connectNACK(long index, byte reason) {
+
+        HubRoutedVirtualSocket s = sockets.remove(index);
+
+        if (s != null) {
+            s.connectNACK(reason);
+        }
+    }
+
+    public void connectACKACK(long index, boolean succes) {
+
+        HubRoutedVirtualSocket s = sockets.get(index);
+
+        boolean result = false;
+
+        if (s != null) {
+            result = s.connectACKACK(succes);
+        }
+
+        // If the handshake failed and someone is waiting, we need to send a
+        // close back.
+        if (succes && !result) {
+            try {
+                serviceLink.closeVirtualConnection(index);
+            } catch (Exception e) {
+                logger.info("Failed to process ACKACK for socket!: "
+                        + index, e);
+            }
+        }
+    }
+
+    public boolean gotMessage(long index, int len, DataInputStream in)
+        throws IOException {
+
+        HubRoutedVirtualSocket s = sockets.get(index);
+
+        // This can happen if we have just closed the socket.
+        if (s == null) {
+            logger.warn("BAD!! Got message for already closed socket!: "
+                    + index + " size = " + len);
+            return false;
+        }
+
+        s.message(len, in);
+        return true;
+    }
+
+    public void gotMessageACK(long index, int data) {
+
+        HubRoutedVirtualSocket s = sockets.get(index);
+
+        // This can happen if we have just closed the socket.
+        if (s == null) {
+            return;
+        }
+
+        s.messageACK(data);
+    }
+
+    public void hubConnectionLost() {
+
+        List<HubRoutedVirtualSocket> tmp = sockets.removeAll();
+
+        if (tmp.size() > 0 && logger.isInfoEnabled()) {
+            logger.info("Lost connection to hub, failing " + tmp.size()
+                    + " hub routed connections");
+        }
+
+        for (HubRoutedVirtualSocket s : tmp) {
+            s.connectionLost();
+        }
+    }
+}
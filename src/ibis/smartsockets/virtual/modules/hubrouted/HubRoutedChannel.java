@@ -0,0 +1,188 @@
+package ibis.smartsockets.virtual.modules.hubrouted;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.Pipe;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+
+/**
+ * A non-blocking channel for a hub routed virtual socket that can be used
+ * with a standard NIO Selector.
+ *
+ * Since the data of a hub routed connection arrives through the ServiceLink,
+ * there is no file descriptor a Selector could wait on. Instead, this channel
+ * uses a Pipe as a readiness signal: the source end of the pipe contains a
+ * byte whenever one of the operations of interest (OP_READ and/or OP_WRITE)
+ * is ready. The source end is registered with the Selector for OP_READ. When
+ * its key is selected, {@link #readyOps()} tells which operations are ready.
+ *
+ * Reads and writes are always non-blocking: read returns 0 if no data is
+ * available and write returns 0 if the receiver has no buffer space left.
+ */
+public class HubRoutedChannel implements ByteChannel {
+
+    private final HubRoutedVirtualSocket socket;
+    private final HubRoutedInputStream in;
+    private final HubRoutedOutputStream out;
+
+    private final Pipe pipe;
+    private final ByteBuffer signal = ByteBuffer.allocate(1);
+
+    private int interest = 0;
+    private boolean signalled = false;
+    private boolean closed = false;
+
+    HubRoutedChannel(HubRoutedVirtualSocket socket, HubRoutedInputStream in,
+            HubRoutedOutputStream out) throws IOException {
+
+        this.socket = socket;
+        this.in = in;
+        this.out = out;
+
+        pipe = Pipe.open();
+        pipe.source().configureBlocking(false);
+        pipe.sink().configureBlocking(false);
+    }
+
+    /**
+     * Returns the channel that becomes readable whenever one of the
+     * operations of interest is ready. Register it for OP_READ.
+     *
+     * @return the channel to register with a Selector.
+     */
+    public SelectableChannel selectableChannel() {
+        return pipe.source();
+    }
+
+    /**
+     * Sets the interest set and registers this channel with a Selector.
+     *
+     * @param selector the selector to register with.
+     * @param ops the interest set (OP_READ and/or OP_WRITE).
+     * @param attachment the attachment for the resulting key.
+     * @return the key representing the registration.
+     * @throws ClosedChannelException if the channel is closed.
+     */
+    public SelectionKey register(Selector selector, int ops, Object attachment)
+        throws ClosedChannelException {
+
+        interestOps(ops);
+        return pipe.source().register(selector, SelectionKey.OP_READ,
+                attachment);
+    }
+
+    public void interestOps(int ops) {
+
+        synchronized (this) {
+            interest = ops & (SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+        }
+
+        update();
+    }
+
+    public synchronized int interestOps() {
+        return interest;
+    }
+
+    /**
+     * Returns the operations that are currently ready. A channel is readable
+     * if data or end-of-stream is available, and writable if the receiver has
+     * buffer space left (or if the connection failed, so that the error can be
+     * reported by write). Once the socket has been closed locally, nothing
+     * is ready anymore.
+     *
+     * @return the ready operations.
+     */
+    public int readyOps() {
+
+        if (in.closed()) {
+            return 0;
+        }
+
+        int result = 0;
+
+        if (in.isReadable()) {
+            result |= SelectionKey.OP_READ;
+        }
+
+        if (out.isWritable()) {
+            result |= SelectionKey.OP_WRITE;
+        }
+
+        return result;
+    }
+
+    public int read(ByteBuffer dst) throws IOException {
+
+        if (closed) {
+            throw new ClosedChannelException();
+        }
+
+        int result = in.readNonBlocking(dst);
+        update();
+        return result;
+    }
+
+    public int write(ByteBuffer src) throws IOException {
+
+        if (closed) {
+            throw new ClosedChannelException();
+        }
+
+        int result = out.writeNonBlocking(src);
+        update();
+        return result;
+    }
+
+    public synchronized boolean isOpen() {
+        return !closed;
+    }
+
+    public void close() throws IOException {
+
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+
+            closed = true;
+        }
+
+        socket.close();
+
+        pipe.sink().close();
+        pipe.source().close();
+    }
+
+    // Called whenever the state of the connection may have changed. Must not
+    // be called while holding the lock of one of the streams.
+    synchronized void update() {
+
+        if (closed) {
+            return;
+        }
+
+        boolean ready = (interest & readyOps()) != 0;
+
+        try {
+            if (ready && !signalled) {
+                signal.clear();
+                signalled = pipe.sink().write(signal) == 1;
+            } else if (!ready && signalled) {
+                signal.clear();
+
+                while (pipe.source().read(signal) > 0) {
+                    signal.clear();
+                }
+
+                signalled = false;
+            }
+        } catch (IOException e) {
+            // Only happens if the pipe was closed.
+        }
+    }
+}
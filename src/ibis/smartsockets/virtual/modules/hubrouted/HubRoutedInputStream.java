@@ -4,6 +4,7 @@ import java.io.DataInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
 
 public class HubRoutedInputStream extends InputStream {
 
@@ -26,16 +27,24 @@ public class HubRoutedInputStream extends InputStream {
     // Amount of data which still needs to be acked.
     private int pendingACK = 0;
 
+    // Time a pending ACK may wait to be piggybacked (0 = send immediately).
+    private final int ackDelay;
+    private boolean ackScheduled = false;
+
     // To indicate if we are (about to be) closed.
     private boolean closePending = false;
     private boolean closed = false;
 
+    // To indicate that the connection to the hub was lost.
+    private boolean lost = false;
+
     HubRoutedInputStream(HubRoutedVirtualSocket parent, int fragmentation,
             int bufferSize, int ackSize) {
 
         this.parent = parent;
         this.buffer = new byte[bufferSize];
         this.MINIMAL_ACK_SIZE = ackSize;
+        this.ackDelay = parent.getACKDelay();
 
     //    System.err.println("Buffer = " + bufferSize + ")");
     }
@@ -107,17 +116,62 @@ public class HubRoutedInputStream extends InputStream {
 
     private void decreaseAvailableAndACK(int amount) throws IOException {
 
+        int ack = 0;
+        boolean schedule = false;
+
         synchronized (this) {
        //     System.err.println("SEND ACK Available -= " + amount + "(" + (available - amount) + ")");
             available -= amount;
+            pendingACK += amount;
+
+            if (pendingACK > MINIMAL_ACK_SIZE) {
+                // If allowed, give the ACK some time to be piggybacked on
+                // outgoing data, unless the sender is running out of credits.
+                if (ackDelay <= 0 || pendingACK > 2*MINIMAL_ACK_SIZE) {
+                    ack = pendingACK;
+                    pendingACK = 0;
+                } else if (!ackScheduled) {
+                    ackScheduled = true;
+                    schedule = true;
+                }
+            }
+        }
+
+        if (ack > 0) {
+            parent.sendACK(ack);
+        } else if (schedule) {
+            parent.scheduleACK(ackDelay);
         }
+    }
+
+    protected synchronized int takePendingACK() {
+        int ack = pendingACK;
+        pendingACK = 0;
+        return ack;
+    }
+
+    protected void sendDelayedACK() {
 
-        pendingACK += amount;
+        int ack;
 
-        if (pendingACK > MINIMAL_ACK_SIZE) {
-            parent.sendACK(pendingACK);
+        synchronized (this) {
+            ackScheduled = false;
+
+            if (closed || lost) {
+                return;
+            }
+
+            ack = pendingACK;
             pendingACK = 0;
         }
+
+        if (ack > 0) {
+            try {
+                parent.sendACK(ack);
+            } catch (IOException e) {
+                // The connection is gone, so the ACK is no longer needed.
+            }
+        }
     }
 
     private synchronized int waitAvailable() throws IOException {
@@ -138,6 +192,10 @@ public class HubRoutedInputStream extends InputStream {
 
         while (available == 0) {
 
+            if (lost) {
+                throw new IOException("Connection to hub lost!");
+            }
+
             if (closePending || closed) {
                 return -1;
             }
@@ -165,6 +223,64 @@ public class HubRoutedInputStream extends InputStream {
         return available;
     }
 
+    // A stream that was closed locally is never readable again, so a
+    // selector does not keep reporting it.
+    protected synchronized boolean isReadable() {
+        return !closed && (available > 0 || closePending || lost);
+    }
+
+    /**
+     * Reads as much data as is available into the buffer, without blocking.
+     *
+     * @return the number of bytes read, 0 if no data is available, or -1 if
+     * the end of the stream has been reached (on every call from then on).
+     */
+    protected int readNonBlocking(ByteBuffer dst) throws IOException {
+
+        int avail;
+
+        synchronized (this) {
+
+            if (closed) {
+                throw new IOException("Stream closed!");
+            }
+
+            avail = available;
+
+            if (avail == 0) {
+                if (lost) {
+                    throw new IOException("Connection to hub lost!");
+                }
+
+                if (closePending) {
+                    return -1;
+                }
+
+                return 0;
+            }
+        }
+
+        int toRead = avail < dst.remaining() ? avail : dst.remaining();
+
+        if (toRead == 0) {
+            return 0;
+        }
+
+        if (startRead + toRead <= buffer.length) {
+            dst.put(buffer, startRead, toRead);
+            startRead = (startRead + toRead) % buffer.length;
+        } else {
+            int part = buffer.length - startRead;
+            dst.put(buffer, startRead, part);
+            dst.put(buffer, 0, toRead-part);
+            startRead = toRead-part;
+        }
+
+        decreaseAvailableAndACK(toRead);
+
+        return toRead;
+    }
+
     public synchronized void close() {
         closePending = true;
 
@@ -174,11 +290,16 @@ public class HubRoutedInputStream extends InputStream {
         }
     }
 
-    private synchronized void doClose() {
+    protected synchronized void connectionLost() {
+        lost = true;
+        notifyAll();
+    }
+
+    protected synchronized void doClose() {
         closed = true;
     }
 
-    public boolean closed() {
+    public synchronized boolean closed() {
         return closed;
     }
 
@@ -3,6 +3,7 @@ package ibis.smartsockets.virtual.modules.hubrouted;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
 
 public class HubRoutedOutputStream extends OutputStream {
 
@@ -15,6 +16,7 @@ public class HubRoutedOutputStream extends OutputStream {
 
     private int used = 0;
     private boolean closed = false;
+    private boolean lost = false;
 
     HubRoutedOutputStream(HubRoutedVirtualSocket parent, int fragmentation,
             int bufferSize) {
@@ -33,9 +35,17 @@ public class HubRoutedOutputStream extends OutputStream {
         write(b, 0, b.length);
     }
 
-    public void write(int arg0) throws IOException {
-        // TODO: very inefficient;
-        write(new byte [] { (byte) arg0 });
+    public void write(int b) throws IOException {
+
+        if (closed) {
+            throw new IOException("Stream closed!");
+        }
+
+        if (used == size) {
+            flush();
+        }
+
+        buffer[used++] = (byte) b;
     }
 
     public void write(byte[] b, int off, int len) throws IOException {
@@ -44,6 +54,148 @@ public class HubRoutedOutputStream extends OutputStream {
             throw new IOException("Stream closed!");
         }
 
+        // Small writes are staged in the fragment buffer.
+        if (len < size) {
+            stage(b, off, len);
+            return;
+        }
+
+        // Large writes bypass the buffer. We first flush whatever is staged
+        // to preserve the order of the data, and then send full fragments
+        // directly from the user's array.
+        flush();
+
+        while (len >= size) {
+            send(b, off, size);
+            off += size;
+            len -= size;
+        }
+
+        if (len > 0) {
+            stage(b, off, len);
+        }
+    }
+
+    /**
+     * Writes the remaining bytes of the ByteBuffer to the stream. Heap
+     * buffers are written without intermediate copies. When this method
+     * returns, the position of the buffer is equal to its limit.
+     *
+     * @param b the buffer to write.
+     * @return the number of bytes written.
+     * @throws IOException if the write failed.
+     */
+    public int write(ByteBuffer b) throws IOException {
+
+        int len = b.remaining();
+
+        if (b.hasArray()) {
+            write(b.array(), b.arrayOffset() + b.position(), len);
+            b.position(b.limit());
+            return len;
+        }
+
+        if (closed) {
+            throw new IOException("Stream closed!");
+        }
+
+        // Direct buffers can only be copied into the fragment buffer.
+        while (b.hasRemaining()) {
+
+            if (used == size) {
+                flush();
+            }
+
+            int tmp = Math.min(size-used, b.remaining());
+            b.get(buffer, used, tmp);
+            used += tmp;
+        }
+
+        return len;
+    }
+
+    /**
+     * Gathering write. Writes the remaining bytes of each of the ByteBuffers
+     * to the stream, in order.
+     *
+     * @param b the buffers to write.
+     * @return the number of bytes written.
+     * @throws IOException if the write failed.
+     */
+    public long write(ByteBuffer [] b) throws IOException {
+
+        long total = 0;
+
+        for (int i=0;i<b.length;i++) {
+            total += write(b[i]);
+        }
+
+        return total;
+    }
+
+    /**
+     * Writes as much of the ByteBuffer as the receiver has buffer space for,
+     * without blocking.
+     *
+     * @param src the data to write.
+     * @return the number of bytes written (may be 0).
+     * @throws IOException if the stream is closed or the connection is lost.
+     */
+    protected int writeNonBlocking(ByteBuffer src) throws IOException {
+
+        if (closed) {
+            throw new IOException("Stream closed!");
+        }
+
+        if (getLost()) {
+            throw new IOException("Connection to hub lost!");
+        }
+
+        // Data staged by the blocking write methods goes first.
+        if (used > 0) {
+            if (getRemoteBufferFree() < used) {
+                return 0;
+            }
+
+            send(buffer, 0, used);
+            used = 0;
+        }
+
+        int total = 0;
+
+        while (src.hasRemaining()) {
+
+            int len = Math.min(Math.min(src.remaining(), size),
+                    getRemoteBufferFree());
+
+            if (len <= 0) {
+                break;
+            }
+
+            if (src.hasArray()) {
+                send(src.array(), src.arrayOffset() + src.position(), len);
+                src.position(src.position() + len);
+            } else {
+                src.get(buffer, 0, len);
+                send(buffer, 0, len);
+            }
+
+            total += len;
+        }
+
+        return total;
+    }
+
+    private synchronized int getRemoteBufferFree() {
+        return remoteBufferFree;
+    }
+
+    protected synchronized boolean isWritable() {
+        return remoteBufferFree - used > 0 || lost || closed;
+    }
+
+    private void stage(byte[] b, int off, int len) throws IOException {
+
         while (len > 0) {
 
             int space = size-used;
@@ -67,7 +219,23 @@ public class HubRoutedOutputStream extends OutputStream {
         }
     }
 
-    private synchronized void waitForBufferSpace() throws IOException {
+    private void send(byte [] b, int off, int len) throws IOException {
+
+        if (getLost()) {
+            throw new IOException("Connection to hub lost!");
+        }
+
+        // Will throw an exception on timeout!
+        waitForBufferSpace(len);
+
+        parent.flush(b, off, len);
+
+        synchronized (this) {
+            remoteBufferFree -= len;
+        }
+    }
+
+    private synchronized void waitForBufferSpace(int len) throws IOException {
 
         long timeleft = parent.getSoTimeout();
         long deadline = 0;
@@ -76,19 +244,26 @@ public class HubRoutedOutputStream extends OutputStream {
             deadline = System.currentTimeMillis() + timeleft;
         }
 
-        while (remoteBufferFree-used < 0) {
-            try {
-        //        System.err.println("@@@@ Waiting for RemoteBuffer (" + remoteBufferFree + " - " + used + " < 0)");
+        while (remoteBufferFree-len < 0) {
 
+            if (lost) {
+                throw new IOException("Connection to hub lost!");
+            }
+
+            try {
                 wait(timeleft);
             } catch (InterruptedException e) {
                 // ignore
             }
 
-            if (remoteBufferFree-used >= 0) {
+            if (remoteBufferFree-len >= 0) {
                 return;
             }
 
+            if (lost) {
+                throw new IOException("Connection to hub lost!");
+            }
+
             if (deadline > 0) {
                 // Still no room, and we are on a tight schedule!
                 timeleft = deadline - System.currentTimeMillis();
@@ -101,6 +276,15 @@ public class HubRoutedOutputStream extends OutputStream {
         }
     }
 
+    protected synchronized void connectionLost() {
+        lost = true;
+        notifyAll();
+    }
+
+    private synchronized boolean getLost() {
+        return lost;
+    }
+
     protected synchronized void messageACK(int data) {
 
     //    System.err.println("ACK -> RemoteBuffer += " + data + "(" + (remoteBufferFree + data) + ")");
@@ -115,18 +299,12 @@ public class HubRoutedOutputStream extends OutputStream {
             return;
         }
 
-        if (used > 0) {
-
-            // Will throw an exception on timeout!
-            waitForBufferSpace();
-
-            parent.flush(buffer, 0, used);
-
-            synchronized (this) {
-           //     System.err.println("FLUSH -> RemoteBuffer -= " + used + "(" + (remoteBufferFree - used) + ")");
-                remoteBufferFree -= used;
-            }
+        if (getLost()) {
+            throw new IOException("Connection to hub lost!");
+        }
 
+        if (used > 0) {
+            send(buffer, 0, used);
             used = 0;
         }
     }
@@ -137,7 +315,10 @@ public class HubRoutedOutputStream extends OutputStream {
             return;
         }
 
-        flush();
+        if (!getLost()) {
+            flush();
+        }
+
         closed = true;
     }
 
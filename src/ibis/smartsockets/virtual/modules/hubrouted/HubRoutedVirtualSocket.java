@@ -15,12 +15,14 @@ import java.net.SocketException;
 import java.net.SocketTimeoutException;
 import java.nio.channels.SocketChannel;
 import java.util.Map;
+import java.util.TimerTask;
 
 
 public class HubRoutedVirtualSocket extends VirtualSocket {
 
-    private final Hubrouted parent;
+    private final HubLink parent;
     private final ServiceLink serviceLink;
+    private final boolean piggyback;
     private long connectionIndex;
 
     private int timeout = 0;
@@ -30,6 +32,8 @@ public class HubRoutedVirtualSocket extends VirtualSocket {
     private HubRoutedOutputStream out;
     private HubRoutedInputStream in;
 
+    private HubRoutedChannel channel;
+
  //   private boolean closeInPending = false;
 
     private final int localFragmentation;
@@ -50,7 +54,7 @@ public class HubRoutedVirtualSocket extends VirtualSocket {
 
     private boolean gotTargetOverload = false;
 
-    protected HubRoutedVirtualSocket(Hubrouted parent, int localFragmentation,
+    protected HubRoutedVirtualSocket(HubLink parent, int localFragmentation,
             int localBufferSize, int localMinimalACKSize,
             int remoteFragmentation, int remoteBufferSize,
             VirtualSocketAddress target, ServiceLink serviceLink,
@@ -60,6 +64,7 @@ public class HubRoutedVirtualSocket extends VirtualSocket {
 
         this.parent = parent;
         this.serviceLink = serviceLink;
+        this.piggyback = parent.usePiggyback();
         this.connectionIndex = connectionIndex;
 
         this.localFragmentation = localFragmentation;
@@ -76,7 +81,7 @@ public class HubRoutedVirtualSocket extends VirtualSocket {
                 localBufferSize, localMinimalACKSize);
     }
 
-    protected HubRoutedVirtualSocket(Hubrouted parent, int localFragmentation,
+    protected HubRoutedVirtualSocket(HubLink parent, int localFragmentation,
             int localBufferSize, int localMinimalACKSize,
             VirtualSocketAddress target, ServiceLink serviceLink, Map<String, ?> p) {
 
@@ -84,6 +89,7 @@ public class HubRoutedVirtualSocket extends VirtualSocket {
 
         this.parent = parent;
         this.serviceLink = serviceLink;
+        this.piggyback = parent.usePiggyback();
 
         this.localFragmentation = localFragmentation;
         this.localBufferSize = localBufferSize;
@@ -151,8 +157,17 @@ public class HubRoutedVirtualSocket extends VirtualSocket {
 
     protected void close(boolean local) {
 
+        if (local && in != null) {
+            // Reads fail from now on, and the channel is no longer ready.
+            // This is also needed if the peer closed the connection first.
+            in.doClose();
+        }
+
         synchronized (this) {
             if (closed) {
+                if (local) {
+                    updateChannel();
+                }
                 return;
             }
 
@@ -174,6 +189,8 @@ public class HubRoutedVirtualSocket extends VirtualSocket {
         if (local) {
             parent.close(connectionIndex);
         }
+
+        updateChannel();
     }
 
 
@@ -317,14 +334,67 @@ public class HubRoutedVirtualSocket extends VirtualSocket {
     protected final void message(int len, DataInputStream dis) throws IOException {
         // invoker (servicelink) is single threaded, so no need to synchronize
         in.add(len, dis);
+        updateChannel();
+    }
+
+    /**
+     * Returns a non-blocking channel for this socket, which can be used with
+     * a Selector.
+     *
+     * @return the channel for this socket.
+     * @throws IOException if the socket is not connected.
+     */
+    public synchronized HubRoutedChannel getHubRoutedChannel()
+        throws IOException {
+
+        if (channel == null) {
+
+            if (in == null || out == null) {
+                throw new SocketException("Socket not connected");
+            }
+
+            channel = new HubRoutedChannel(this, in, out);
+        }
+
+        return channel;
+    }
+
+    private void updateChannel() {
+
+        HubRoutedChannel tmp;
+
+        synchronized (this) {
+            tmp = channel;
+        }
+
+        if (tmp != null) {
+            tmp.update();
+        }
     }
 
     protected void sendACK(int data) throws IOException {
         serviceLink.ackVirtualMessage(connectionIndex, data);
     }
 
+    protected int getACKDelay() {
+        return parent.getACKDelay();
+    }
+
+    protected void scheduleACK(int delay) {
+        parent.scheduleACK(new TimerTask() {
+            public void run() {
+                in.sendDelayedACK();
+            }
+        }, delay);
+    }
+
     public void flush(byte[] buffer, int off, int len) throws IOException {
-        serviceLink.sendVirtualMessage(connectionIndex, buffer, off, len,
+
+        // Any data we have read but not yet acknowledged can travel along
+        // with this message.
+        int ack = piggyback ? in.takePendingACK() : 0;
+
+        serviceLink.sendVirtualMessage(connectionIndex, buffer, off, len, ack,
                 timeout);
     }
 
@@ -425,5 +495,27 @@ public class HubRoutedVirtualSocket extends VirtualSocket {
 
     protected void messageACK(int data) {
         out.messageACK(data);
+        updateChannel();
+    }
+
+    protected void connectionLost() {
+
+        synchronized (this) {
+            if (waitingForACK && !gotACK) {
+                // Still in the handshake, so the connect will simply time out
+                // (or be retried on the next hub).
+                return;
+            }
+
+            if (closed || out == null) {
+                return;
+            }
+
+            closed = true;
+        }
+
+        out.connectionLost();
+        in.connectionLost();
+        updateChannel();
     }
 }
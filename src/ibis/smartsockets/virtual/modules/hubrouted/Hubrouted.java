@@ -2,8 +2,9 @@ package ibis.smartsockets.virtual.modules.hubrouted;
 
 import ibis.smartsockets.SmartSocketsProperties;
 import ibis.smartsockets.direct.DirectSocketAddress;
-import ibis.smartsockets.hub.servicelink.ServiceLinkProtocol;
-import ibis.smartsockets.hub.servicelink.VirtualConnectionCallBack;
+import ibis.smartsockets.hub.servicelink.HubInfo;
+import ibis.smartsockets.hub.servicelink.ServiceLink;
+import ibis.smartsockets.util.ThreadPool;
 import ibis.smartsockets.util.TypedProperties;
 import ibis.smartsockets.virtual.NonFatalIOException;
 import ibis.smartsockets.virtual.VirtualServerSocket;
@@ -11,24 +12,37 @@ import ibis.smartsockets.virtual.VirtualSocket;
 import ibis.smartsockets.virtual.VirtualSocketAddress;
 import ibis.smartsockets.virtual.modules.ConnectModule;
 
-import java.io.DataInputStream;
 import java.io.IOException;
-import java.net.ConnectException;
-import java.net.SocketTimeoutException;
-import java.net.UnknownHostException;
-import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
 import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
 
 
-public class Hubrouted extends ConnectModule
-    implements VirtualConnectionCallBack {
+public class Hubrouted extends ConnectModule {
 
     private static final int DEFAULT_CONNECT_TIMEOUT = 5000;
    // private static final int DEFAULT_CLOSED_CONNECTION_CACHE = 10000;
 
-    private final Map<Long, HubRoutedVirtualSocket> sockets =
-       Collections.synchronizedMap(new HashMap<Long, HubRoutedVirtualSocket>());
+    // One link for the primary hub, followed by one for each additional hub.
+    private HubLink [] links;
+
+    private Map<DirectSocketAddress, DirectSocketAddress []> hubGraph;
+    private long hubGraphExpires = 0;
+    private int hubGraphRefresh = 30000;
+    private boolean hubGraphPending = false;
+
+    private final Runnable hubGraphUpdater = new Runnable() {
+        public void run() {
+            updateHubGraph();
+        }
+    };
+
+    private boolean piggyback = false;
+    private int ackDelay = 10;
+    private Timer ackTimer;
 
     private int localFragmentation = 8*1024-16;
     private int localBufferSize = 1024*1024;
@@ -48,6 +62,15 @@ public class Hubrouted extends ConnectModule
         localMinimalACKSize = properties.getIntProperty(
                 SmartSocketsProperties.ROUTED_MIN_ACK, localBufferSize/4);
 
+        piggyback = properties.booleanProperty(
+                SmartSocketsProperties.ROUTED_PIGGYBACK, piggyback);
+
+        ackDelay = properties.getIntProperty(
+                SmartSocketsProperties.ROUTED_ACK_DELAY, ackDelay);
+
+        hubGraphRefresh = properties.getIntProperty(
+                SmartSocketsProperties.SL_HUB_GRAPH_REFRESH, hubGraphRefresh);
+
         if (localFragmentation > localBufferSize) {
 
             logger.warn("Fragment size (" + localFragmentation
@@ -79,6 +102,8 @@ public class Hubrouted extends ConnectModule
             logger.info("Using local fragment size: " + localFragmentation);
             logger.info("Using local buffer size  : " + localBufferSize);
             logger.info("Using minimal ACK size  : " + localMinimalACKSize);
+            logger.info("Piggybacking ACKs       : " + piggyback
+                    + (piggyback ? " (delay " + ackDelay + " ms)" : ""));
         }
     }
 
@@ -88,318 +113,232 @@ public class Hubrouted extends ConnectModule
             throw new Exception(module + ": no service link available!");
         }
 
-        serviceLink.registerVCCallBack(this);
-    }
+        if (piggyback && ackDelay > 0) {
+            ackTimer = new Timer("HubRouted delayed ACKs", true);
+        }
 
-    public DirectSocketAddress getAddresses() {
-        return null;
-    }
+        ServiceLink [] additional = parent.getAdditionalServiceLinks();
 
-    public VirtualSocket connect(VirtualSocketAddress target, int timeout,
-            Map<String, Object> properties) throws NonFatalIOException,
-            IOException {
+        links = new HubLink[1 + additional.length];
 
-        // First check if we are trying to connect to ourselves (which makes no
-        // sense for this module...
-        DirectSocketAddress tm = target.machine();
-        DirectSocketAddress hub = target.hub();
+        links[0] = new HubLink(this, serviceLink, logger);
+        serviceLink.registerVCCallBack(links[0]);
 
-        /*
-        if (tm.sameMachine(parent.getLocalHost())) {
-            throw new NonFatalIOException(module + ": Cannot set up " +
-                "a connection to myself!");
+        for (int i=0;i<additional.length;i++) {
+            links[i+1] = new HubLink(this, additional[i], logger);
+            additional[i].registerVCCallBack(links[i+1]);
         }
-        */
 
-        if (timeout == 0) {
-            timeout = DEFAULT_CONNECT_TIMEOUT;
+        // Fetch the hub graph early, so the first connection setups can use
+        // it to pick the nearest hub.
+        if (additional.length > 0) {
+            getHubGraph();
         }
+    }
 
-        final long deadline = System.currentTimeMillis() + timeout;
-        int timeleft = timeout;
-
-        // Create a socket first. Since this is a wrapper anyway, we can reuse
-        // it until we get a connection.
-        HubRoutedVirtualSocket s = new HubRoutedVirtualSocket(this,
-                 localFragmentation, localBufferSize, localMinimalACKSize,
-                 target, serviceLink, null);
-
-        while (true) {
+    public DirectSocketAddress getAddresses() {
+        return null;
+    }
 
-            long index = serviceLink.getConnectionNumber();
+    int getLocalFragmentation() {
+        return localFragmentation;
+    }
 
-            s.reset(index);
-            sockets.put(index, s);
+    int getLocalBufferSize() {
+        return localBufferSize;
+    }
 
-            try {
-          //      outgoingConnectionAttempts++;
+    int getLocalMinimalACKSize() {
+        return localMinimalACKSize;
+    }
 
-                serviceLink.createVirtualConnection(index, tm, hub,
-                        target.port(), localFragmentation, localBufferSize,
-                        timeleft);
+    VirtualServerSocket getServerSocket(int port) {
+        return parent.getServerSocket(port);
+    }
 
-             //   return s;
-            } catch (IOException e) {
-                // No connection to hub, or the send failed. Just retry ?
-           //     failedOutgoingConnections++;
-                sockets.remove(index);
+    boolean usePiggyback() {
+        return piggyback;
+    }
 
-                if (logger.isInfoEnabled()) {
-                    logger.info("Failed to create virtual connection to "
-                            + target + " (unknown host -> will retry)!");
-                }
+    int getACKDelay() {
+        return ackTimer == null ? 0 : ackDelay;
+    }
 
-                try {
-                    // TODO: deadline + exp backoff ?
-                    Thread.sleep(1000);
-                } catch (Exception x) {
-                    // ignored
-                }
+    void scheduleACK(TimerTask task, int delay) {
+        ackTimer.schedule(task, delay);
+    }
 
-                timeleft = (int) (deadline - System.currentTimeMillis());
+    // Returns the hub graph we currently have, which may be stale or null.
+    // When it has expired, a new one is requested in the background, so
+    // connection setups never wait for the hub.
+    private synchronized Map<DirectSocketAddress, DirectSocketAddress []>
+        getHubGraph() {
 
-                if (timeleft <= 0)  {
-                    throw new NonFatalIOException(
-                            new SocketTimeoutException("Failed to create "
-                            + "virtual connection within "
-                            + timeout + " ms. (" + e + ")"));
-                }
+        long now = System.currentTimeMillis();
 
-                index = -1;
-            }
+        if (!hubGraphPending && (hubGraph == null || now >= hubGraphExpires)) {
+            // Don't hammer the hub if the request fails.
+            hubGraphExpires = now + hubGraphRefresh;
+            hubGraphPending = true;
 
-            if (index != -1) {
-                int result = s.waitForACK(timeout);
-
-                switch (result) {
-
-                case 0: // success
-            //        acceptedOutgoingConnections++;
-                    return s;
-
-                case ServiceLinkProtocol.ERROR_SERVER_OVERLOAD:
-                    // This one should be handled on a higher level, where we
-                    // have a clue about timeouts
-                    s.setTargetOverload();
-                    return s;
-
-                case -1:
-                    // Timeout. Assume it is this module's fault
-          //          failedOutgoingConnections++;
-                    throw new NonFatalIOException(
-                            new SocketTimeoutException("Failed to create "
-                            + "virtual connection within " + timeout + " ms."));
-
-                case ServiceLinkProtocol.ERROR_UNKNOWN_HOST:
-                    // We couldn't find the machine. Assume its our own fault.
-               //     failedOutgoingConnections++;
-                    throw new NonFatalIOException(
-                            new UnknownHostException("Failed to find host"
-                                    + " within " + timeout + " ms."));
-
-                case ServiceLinkProtocol.ERROR_PORT_NOT_FOUND:
-                    // User error
-             //       failedOutgoingConnections++;
-                    throw new ConnectException("Remote port not found!");
-
-                case ServiceLinkProtocol.ERROR_CONNECTION_REFUSED:
-                    // User error
-              //      failedOutgoingConnections++;
-                    throw new ConnectException("Connection refused by server!");
-
-                case ServiceLinkProtocol.ERROR_ILLEGAL_TARGET:
-                    // User error
-             //       failedOutgoingConnections++;
-                    throw new NonFatalIOException("Attempting to connect to " +
-                            "illegal target! (" + target + ")");
-                }
-            }
+            ThreadPool.createNew(hubGraphUpdater, "Hubrouted Hub Graph");
         }
-    }
 
-    public boolean matchAdditionalRuntimeRequirements(Map<String, ?> requirements) {
-        return true;
+        return hubGraph;
     }
 
-    public void connect(DirectSocketAddress src, DirectSocketAddress srcHub,
-            int port, int remoteFragmentation, int remoteBufferSize,
-            int timeout, long index) {
-
-        // Incoming connection...
-      //  incomingConnections++;
-
-        // Get the serversocket (if it exists).
-        VirtualServerSocket ss = parent.getServerSocket(port);
-
-        // Could not find it, so send a 'port not found' error back
-        if (ss == null) {
-            logger.info("Failed find VirtualServerSocket(" + port + ")");
-       //     rejectedIncomingConnections++;
-
-            serviceLink.nackVirtualConnection(index,
-                    ServiceLinkProtocol.ERROR_PORT_NOT_FOUND);
-            return;
-        }
+    private synchronized void setHubGraph(
+            Map<DirectSocketAddress, DirectSocketAddress []> graph) {
 
-        if (logger.isInfoEnabled()) {
-            logger.info("Hubrouted got new connection: " + index);
+        if (graph != null) {
+            hubGraph = graph;
         }
 
-        // Create a new socket
-        VirtualSocketAddress sa = new VirtualSocketAddress(src, 0, srcHub, null);
+        hubGraphPending = false;
+    }
 
-        HubRoutedVirtualSocket s = new HubRoutedVirtualSocket(this,
-                localFragmentation, localBufferSize, localMinimalACKSize,
-                remoteFragmentation, remoteBufferSize, sa, serviceLink, index,
-                null);
+    private void updateHubGraph() {
 
-        sockets.put(index, s);
+        HashMap<DirectSocketAddress, DirectSocketAddress []> tmp = null;
 
-        int accept = ss.incomingConnection(s);
+        try {
+            HubInfo [] info = serviceLink.hubDetails();
 
-        if (accept != 0) {
-            sockets.remove(index);
-        //    rejectedIncomingConnections++;
+            tmp = new HashMap<DirectSocketAddress, DirectSocketAddress []>();
 
-            if (accept == -1) {
-                serviceLink.nackVirtualConnection(index,
-                        ServiceLinkProtocol.ERROR_CONNECTION_REFUSED);
-            } else {
-                serviceLink.nackVirtualConnection(index,
-                        ServiceLinkProtocol.ERROR_SERVER_OVERLOAD);
+            for (HubInfo h : info) {
+                tmp.put(h.hubAddress, h.connectedTo);
             }
+        } catch (Exception e) {
+            if (logger.isInfoEnabled()) {
+                logger.info("Failed to retrieve hub graph", e);
+            }
+        } finally {
+            setHubGraph(tmp);
         }
     }
 
-    public void disconnect(long vc) {
-
-        HubRoutedVirtualSocket s = sockets.remove(vc);
+    // Returns the number of hub-to-hub hops between the two hubs, or
+    // Integer.MAX_VALUE if this is unknown.
+    private static int distance(
+            Map<DirectSocketAddress, DirectSocketAddress []> graph,
+            DirectSocketAddress from, DirectSocketAddress to) {
 
-        if (s == null) {
-            // This can happen if we have just closed the socket...
-            /*
-            if (!closedSockets.contains(vc)) {
-                logger.warn("BAD!! Got disconnect from an unknown remote "
-                        + "socket!: " + vc);
-            }
-            */
-            return;
+        if (from.sameProcess(to)) {
+            return 0;
         }
 
-     //   closedSockets.add(vc);
-
-        try {
-            s.close(false);
-        } catch (Exception e) {
-            logger.warn("Failed to close socket!", e);
+        if (graph == null) {
+            return Integer.MAX_VALUE;
         }
-    }
 
-    public void close(long vc) {
+        HashSet<DirectSocketAddress> seen = new HashSet<DirectSocketAddress>();
+        LinkedList<DirectSocketAddress> current =
+            new LinkedList<DirectSocketAddress>();
 
-        HubRoutedVirtualSocket s = sockets.remove(vc);
+        current.add(from);
+        seen.add(from);
 
-        // logger.warn("Got close for socket!: " + vc);
+        int hops = 0;
 
-        if (s == null) {
-            // This can happen if we have just been closed by the other side...
-            return;
-        }
+        while (current.size() > 0) {
 
-        try {
-            serviceLink.closeVirtualConnection(vc);
-        } catch (Exception e) {
-            logger.warn("Failed to forward close for virtual socket: " + vc, e);
-        }
-    }
+            hops++;
 
-    public void connectACK(long index, int fragment, int buffer) {
+            LinkedList<DirectSocketAddress> next =
+                new LinkedList<DirectSocketAddress>();
 
-        HubRoutedVirtualSocket s = sockets.get(index);
+            for (DirectSocketAddress h : current) {
 
-        if (s == null) {
-            serviceLink.ackAckVirtualConnection(index, false);
-            return;
-        }
+                DirectSocketAddress [] neighbours = graph.get(h);
 
-        s.connectACK(fragment, buffer);
-    }
+                if (neighbours == null) {
+                    continue;
+                }
 
-    protected void sendAckAck(long index, boolean result) {
-        serviceLink.ackAckVirtualConnection(index, result);
-    }
+                for (DirectSocketAddress n : neighbours) {
 
-    public void connectNACK(long index, byte reason) {
+                    if (n.sameProcess(to)) {
+                        return hops;
+                    }
 
-        HubRoutedVirtualSocket s = sockets.remove(index);
+                    if (seen.add(n)) {
+                        next.add(n);
+                    }
+                }
+            }
 
-        if (s != null) {
-            s.connectNACK(reason);
+            current = next;
         }
+
+        return Integer.MAX_VALUE;
     }
 
-    public void connectACKACK(long index, boolean succes) {
+    public VirtualSocket connect(VirtualSocketAddress target, int timeout,
+            Map<String, Object> properties) throws NonFatalIOException,
+            IOException {
 
-        HubRoutedVirtualSocket s = sockets.get(index);
+        if (timeout == 0) {
+            timeout = DEFAULT_CONNECT_TIMEOUT;
+        }
 
-        boolean result = false;
+        DirectSocketAddress [] targetHubs = target.hubs();
 
-        if (s != null) {
-            result = s.connectACKACK(succes);
+        if (links.length == 1 || targetHubs.length == 0) {
+            return links[0].connect(target, target.hub(), timeout);
         }
 
-        // If the handshake failed and someone is waiting, we need to send a
-        // close back.
-        if (succes && !result) {
-            try {
-                serviceLink.closeVirtualConnection(index);
-            } catch (Exception e) {
-                logger.info("Failed to process ACKACK for socket!: "
-                        + index, e);
+        // We are attached to several hubs. First check if one of them is
+        // directly shared with the target.
+        for (HubLink l : links) {
+
+            DirectSocketAddress hub = l.getCurrentHub();
+
+            if (hub != null) {
+                for (DirectSocketAddress t : targetHubs) {
+                    if (hub.sameProcess(t)) {
+                        return l.connect(target, t, timeout);
+                    }
+                }
             }
         }
-    }
 
-    public boolean gotMessage(long index, int len, DataInputStream in)
-        throws IOException {
+        // If not, use the link to the hub with the shortest path to one of
+        // the target's hubs. Ties are won by the primary hub.
+        Map<DirectSocketAddress, DirectSocketAddress []> graph = getHubGraph();
 
-        HubRoutedVirtualSocket s = sockets.get(index);
+        HubLink best = links[0];
+        DirectSocketAddress bestHub = target.hub();
+        int bestDistance = Integer.MAX_VALUE;
 
-        // This can happen if we have just closed the socket.
-        if (s == null) {
+        for (HubLink l : links) {
 
-            /*
-            // Sanity check -- remove ASAP
-            if (!closedSockets.contains(index)) {
-                logger.warn("BAD!! Got message for an unknown socket!: " + index
-                        + " size = " + data.length);
-            } else { */
+            DirectSocketAddress hub = l.getCurrentHub();
 
-                logger.warn("BAD!! Got message for already closed socket!: "
-                        + index + " size = " + len);
-            /*}*/
-            return false;
-        }
-
-        s.message(len, in);
-        return true;
-    }
+            if (hub != null) {
+                for (DirectSocketAddress t : targetHubs) {
 
-    public void gotMessageACK(long index, int data) {
+                    int d = distance(graph, hub, t);
 
-        HubRoutedVirtualSocket s = sockets.get(index);
+                    if (d < bestDistance) {
+                        best = l;
+                        bestHub = t;
+                        bestDistance = d;
+                    }
+                }
+            }
+        }
 
-        // This can happen if we have just closed the socket.
-        if (s == null) {
-            // Sanity check -- remove ASAP
-/*            if (!closedSockets.contains(index)) {
-                logger.warn("BAD!! Got message ACK for an unknown socket!: "
-                        + index + " data = " + data);
-            } */
-            return;
+        if (logger.isDebugEnabled()) {
+            logger.debug("Routing connection to " + target + " via hub "
+                    + best.getCurrentHub() + " (" + bestDistance + " hops)");
         }
 
-        s.messageACK(data);
+        return best.connect(target, bestHub, timeout);
+    }
+
+    public boolean matchAdditionalRuntimeRequirements(Map<String, ?> requirements) {
+        return true;
     }
 
     public int getDefaultTimeout() {
@@ -0,0 +1,142 @@
+package ibis.smartsockets.virtual.modules.loopback;
+
+import ibis.smartsockets.SmartSocketsProperties;
+import ibis.smartsockets.direct.DirectSocketAddress;
+import ibis.smartsockets.util.TypedProperties;
+import ibis.smartsockets.virtual.NonFatalIOException;
+import ibis.smartsockets.virtual.VirtualServerSocket;
+import ibis.smartsockets.virtual.VirtualSocket;
+import ibis.smartsockets.virtual.VirtualSocketAddress;
+import ibis.smartsockets.virtual.modules.AbstractDirectModule;
+import ibis.smartsockets.virtual.modules.ConnectModule;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Connects to virtual server sockets in the same JVM without using the
+ * network.
+ *
+ * Every VirtualSocketFactory that uses this module registers itself (by its
+ * machine address) in a JVM wide table. A connection to a target in that
+ * table is set up by handing one end of an in-memory connection directly to
+ * the target server socket. Other targets are left to the next module.
+ */
+public class Loopback extends ConnectModule {
+
+    private static final int DEFAULT_CONNECT_TIMEOUT = 1000;
+
+    // All loopback modules in this JVM, by the address of their factory.
+    private static final HashMap<DirectSocketAddress, Loopback> modules =
+        new HashMap<DirectSocketAddress, Loopback>();
+
+    private DirectSocketAddress local;
+
+    private int capacity = 65536;
+
+    public Loopback() {
+        super("ConnectModule(Loopback)", false);
+    }
+
+    public void initModule(TypedProperties properties) throws Exception {
+
+        capacity = properties.getIntProperty(
+                SmartSocketsProperties.LOOPBACK_SIZE, capacity);
+
+        if (capacity <= 0) {
+            throw new Exception(module + ": illegal buffer size " + capacity);
+        }
+    }
+
+    public void startModule() throws Exception {
+
+        // The machine address is only complete once all modules are loaded.
+        local = parent.getLocalHost();
+
+        synchronized (modules) {
+            modules.put(local, this);
+        }
+    }
+
+    private static Loopback find(DirectSocketAddress machine) {
+        synchronized (modules) {
+            return modules.get(machine);
+        }
+    }
+
+    public DirectSocketAddress getAddresses() {
+        // Nothing to do here....
+        return null;
+    }
+
+    public VirtualSocket connect(VirtualSocketAddress target, int timeout,
+            Map<String, Object> properties) throws NonFatalIOException,
+            IOException {
+
+        Loopback peer = find(target.machine());
+
+        if (peer == null) {
+            throw new NonFatalIOException(target.machine()
+                    + " is not in this JVM");
+        }
+
+        LoopbackVirtualSocket c = LoopbackVirtualSocket.create(target,
+                new VirtualSocketAddress(local, 0), capacity);
+
+        // The rest of the handshake is done in waitForAccept.
+        peer.accept(c.getServerSide(), target.port());
+        return c;
+    }
+
+    // Hands a new connection to the target server socket, or stores the
+    // reason why that failed.
+    private void accept(LoopbackVirtualSocket s, int port) {
+
+        VirtualServerSocket vss = parent.getServerSocket(port);
+
+        if (vss == null) {
+            if (logger.isDebugEnabled()) {
+                logger.debug(module + ": Connection failed, PORT " + port
+                        + " not found!");
+            }
+
+            s.setReply(AbstractDirectModule.PORT_NOT_FOUND);
+            s.close();
+            return;
+        }
+
+        int accept = vss.incomingConnection(s);
+
+        if (accept != 0) {
+
+            if (logger.isInfoEnabled()) {
+                logger.info(module + ": Connection failed for port " + port
+                        + ": " + (accept < 0 ? "REFUSED" : "OVERLOAD"));
+            }
+
+            s.setReply(accept == -1
+                    ? AbstractDirectModule.CONNECTION_REJECTED
+                    : AbstractDirectModule.SERVER_OVERLOAD);
+            s.close();
+        }
+    }
+
+    public void end() {
+        synchronized (modules) {
+            if (local != null && modules.get(local) == this) {
+                modules.remove(local);
+            }
+        }
+    }
+
+    public boolean matchAdditionalRuntimeRequirements(Map<String, ?> requirements) {
+        // No additional properties, so always matches requirements.
+        return true;
+    }
+
+    @Override
+    public int getDefaultTimeout() {
+        return DEFAULT_CONNECT_TIMEOUT;
+    }
+}
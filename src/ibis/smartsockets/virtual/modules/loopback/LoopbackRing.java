@@ -0,0 +1,248 @@
+package ibis.smartsockets.virtual.modules.loopback;
+
+import java.io.IOException;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A single producer, single consumer ring buffer that carries the data of
+ * one direction of an in-process connection.
+ *
+ * The writer only updates head, and the reader only updates tail, so no
+ * locks are needed to pass data. A thread that has to wait for data (or
+ * room) publishes itself in a waiting field, checks the ring once more, and
+ * parks. The other side unparks it after updating head (or tail). Since all
+ * of these fields are volatile, one of the two always sees the other's
+ * update, so a wakeup cannot get lost.
+ */
+final class LoopbackRing {
+
+    private final byte [] buffer;
+    private final int capacity;
+
+    // Total number of bytes written (head) and read (tail).
+    private volatile long head = 0;
+    private volatile long tail = 0;
+
+    private volatile Thread waitingReader;
+    private volatile Thread waitingWriter;
+
+    private volatile boolean writerClosed = false;
+    private volatile boolean readerClosed = false;
+
+    private volatile int timeout = 0;
+
+    LoopbackRing(int capacity) {
+        this.capacity = capacity;
+        this.buffer = new byte[capacity];
+    }
+
+    void setTimeout(int timeout) {
+        this.timeout = timeout;
+    }
+
+    int getTimeout() {
+        return timeout;
+    }
+
+    // Parks the current thread until it is unparked, or the deadline (if
+    // any) has passed. Interrupts are remembered in the result, since a
+    // pending interrupt would prevent us from parking.
+    private boolean park(long deadline) throws SocketTimeoutException {
+
+        if (deadline == 0) {
+            LockSupport.park();
+        } else {
+            long left = deadline - System.nanoTime();
+
+            if (left <= 0) {
+                throw new SocketTimeoutException("Timeout occurred while "
+                        + "waiting for data");
+            }
+
+            LockSupport.parkNanos(left);
+        }
+
+        return Thread.interrupted();
+    }
+
+    void write(byte [] b, int off, int len) throws IOException {
+
+        boolean interrupted = false;
+
+        try {
+            while (len > 0) {
+
+                if (writerClosed) {
+                    throw new SocketException("Socket closed");
+                }
+
+                if (readerClosed) {
+                    throw new SocketException("Connection closed by peer");
+                }
+
+                long h = head;
+                long space = capacity - (h - tail);
+
+                if (space == 0) {
+                    waitingWriter = Thread.currentThread();
+
+                    if (capacity - (h - tail) == 0 && !readerClosed
+                            && !writerClosed) {
+                        interrupted |= park(0);
+                    }
+
+                    waitingWriter = null;
+                    continue;
+                }
+
+                int index = (int) (h % capacity);
+                int n = (int) Math.min(len, Math.min(space, capacity - index));
+
+                System.arraycopy(b, off, buffer, index, n);
+
+                // Publishes the data to the reader.
+                head = h + n;
+
+                off += n;
+                len -= n;
+
+                Thread t = waitingReader;
+
+                if (t != null) {
+                    LockSupport.unpark(t);
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    int read(byte [] b, int off, int len) throws IOException {
+
+        if (len == 0) {
+            return 0;
+        }
+
+        boolean interrupted = false;
+        long deadline = 0;
+
+        try {
+            while (true) {
+
+                if (readerClosed) {
+                    throw new SocketException("Socket closed");
+                }
+
+                long t = tail;
+
+                // Read the close flag first, so we do not miss the data
+                // written just before it was set.
+                boolean eos = writerClosed;
+                long avail = head - t;
+
+                if (avail == 0) {
+                    if (eos) {
+                        return -1;
+                    }
+
+                    if (deadline == 0 && timeout > 0) {
+                        deadline = System.nanoTime() + timeout * 1000000L;
+                    }
+
+                    waitingReader = Thread.currentThread();
+
+                    try {
+                        if (head == t && !writerClosed && !readerClosed) {
+                            interrupted |= park(deadline);
+                        }
+                    } finally {
+                        waitingReader = null;
+                    }
+
+                    continue;
+                }
+
+                int read = 0;
+
+                // Copy as much as we can (at most two parts).
+                while (read < len && avail > 0) {
+
+                    int index = (int) (t % capacity);
+
+                    int n = (int) Math.min(len - read,
+                            Math.min(avail, capacity - index));
+
+                    System.arraycopy(buffer, index, b, off + read, n);
+
+                    t += n;
+                    read += n;
+                    avail -= n;
+                }
+
+                // Gives the room back to the writer.
+                tail = t;
+
+                Thread w = waitingWriter;
+
+                if (w != null) {
+                    LockSupport.unpark(w);
+                }
+
+                return read;
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    int available() {
+        return (int) (head - tail);
+    }
+
+    private void wakeup() {
+
+        Thread t = waitingReader;
+
+        if (t != null) {
+            LockSupport.unpark(t);
+        }
+
+        t = waitingWriter;
+
+        if (t != null) {
+            LockSupport.unpark(t);
+        }
+    }
+
+    /**
+     * Closes the writing side. The reader gets the remaining data, followed
+     * by an end of stream.
+     */
+    void closeWriter() {
+        writerClosed = true;
+        wakeup();
+    }
+
+    /**
+     * Closes the reading side. Any data in the ring is dropped, and the
+     * writer gets an exception on its next write.
+     */
+    void closeReader() {
+        readerClosed = true;
+        wakeup();
+    }
+
+    boolean isWriterClosed() {
+        return writerClosed;
+    }
+
+    boolean isReaderClosed() {
+        return readerClosed;
+    }
+}
@@ -0,0 +1,346 @@
+package ibis.smartsockets.virtual.modules.loopback;
+
+import ibis.smartsockets.virtual.TargetOverloadedException;
+import ibis.smartsockets.virtual.VirtualSocket;
+import ibis.smartsockets.virtual.VirtualSocketAddress;
+import ibis.smartsockets.virtual.modules.AbstractDirectModule;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ConnectException;
+import java.net.SocketAddress;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.nio.channels.SocketChannel;
+
+/**
+ * One end of an in-process virtual connection. The two ends share a pair of
+ * {@link LoopbackRing}s, one for each direction.
+ *
+ * The accept handshake is done in memory. The server side stores its reply
+ * in the client side, which is the only state the two ends share apart from
+ * the rings.
+ */
+public class LoopbackVirtualSocket extends VirtualSocket {
+
+    private static final int PENDING   = 0;
+    private static final int CANCELLED = -1;
+
+    private final LoopbackRing in;
+    private final LoopbackRing out;
+
+    // The client side of this connection, which holds the handshake state.
+    private final LoopbackVirtualSocket client;
+
+    // Only used in the client side.
+    private LoopbackVirtualSocket server;
+    private int reply = PENDING;
+
+    private boolean closed = false;
+
+    private final InputStream input = new InputStream() {
+
+        private final byte [] tmp = new byte[1];
+
+        public synchronized int read() throws IOException {
+
+            if (in.read(tmp, 0, 1) == -1) {
+                return -1;
+            }
+
+            return tmp[0] & 0xff;
+        }
+
+        public synchronized int read(byte [] b, int off, int len)
+            throws IOException {
+            return in.read(b, off, len);
+        }
+
+        public int available() throws IOException {
+            return in.available();
+        }
+
+        public void close() throws IOException {
+            LoopbackVirtualSocket.this.close();
+        }
+    };
+
+    private final OutputStream output = new OutputStream() {
+
+        private final byte [] tmp = new byte[1];
+
+        public synchronized void write(int b) throws IOException {
+            tmp[0] = (byte) b;
+            out.write(tmp, 0, 1);
+        }
+
+        public synchronized void write(byte [] b, int off, int len)
+            throws IOException {
+            out.write(b, off, len);
+        }
+
+        public void close() throws IOException {
+            LoopbackVirtualSocket.this.close();
+        }
+    };
+
+    private LoopbackVirtualSocket(VirtualSocketAddress target,
+            LoopbackRing in, LoopbackRing out, LoopbackVirtualSocket client) {
+
+        super(target);
+
+        this.in = in;
+        this.out = out;
+        this.client = (client == null ? this : client);
+    }
+
+    /**
+     * Creates both ends of a connection, and returns the client side. The
+     * server side is available through {@link #getServerSide()}.
+     */
+    static LoopbackVirtualSocket create(VirtualSocketAddress target,
+            VirtualSocketAddress source, int capacity) {
+
+        LoopbackRing up = new LoopbackRing(capacity);
+        LoopbackRing down = new LoopbackRing(capacity);
+
+        LoopbackVirtualSocket c =
+            new LoopbackVirtualSocket(target, down, up, null);
+
+        c.server = new LoopbackVirtualSocket(source, up, down, c);
+        return c;
+    }
+
+    LoopbackVirtualSocket getServerSide() {
+        return server;
+    }
+
+    /**
+     * Stores the reply of the server side (one of the reply codes of
+     * {@link AbstractDirectModule}). Returns false if the client already
+     * gave up.
+     */
+    boolean setReply(int value) {
+
+        synchronized (client) {
+            if (client.reply == CANCELLED) {
+                return false;
+            }
+
+            client.reply = value;
+            client.notifyAll();
+            return true;
+        }
+    }
+
+    protected void connectionAccepted(int timeout) throws IOException {
+        if (!setReply(AbstractDirectModule.ACCEPT)) {
+            close();
+            throw new ConnectException("Client disconnected");
+        }
+    }
+
+    protected void connectionRejected(int timeout) {
+        setReply(AbstractDirectModule.CONNECTION_REJECTED);
+        close();
+    }
+
+    public void waitForAccept(int timeout) throws IOException {
+
+        int result;
+
+        synchronized (this) {
+
+            long deadline = System.currentTimeMillis() + timeout;
+
+            while (reply == PENDING) {
+
+                long left = timeout > 0
+                    ? deadline - System.currentTimeMillis() : 0;
+
+                if (timeout > 0 && left <= 0) {
+                    break;
+                }
+
+                try {
+                    wait(left);
+                } catch (InterruptedException e) {
+                    // ignore
+                }
+            }
+
+            result = reply;
+
+            if (result == PENDING) {
+                reply = CANCELLED;
+            }
+        }
+
+        switch (result) {
+        case AbstractDirectModule.ACCEPT:
+            return;
+
+        case PENDING:
+            close();
+            server.close();
+            throw new SocketTimeoutException("Timeout while waiting for "
+                    + "accept");
+
+        case AbstractDirectModule.PORT_NOT_FOUND:
+            close();
+            throw new SocketException("Remote port not found");
+
+        case AbstractDirectModule.SERVER_OVERLOAD:
+            close();
+            throw new TargetOverloadedException("Connection rejected (server overloaded)");
+
+        case AbstractDirectModule.CONNECTION_REJECTED:
+            close();
+            throw new SocketException("Connection rejected");
+
+        default:
+            close();
+            throw new SocketException("Got unknown reply (" + result
+                    + ") during connect!");
+        }
+    }
+
+    public void close() {
+
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+
+            closed = true;
+        }
+
+        out.closeWriter();
+        in.closeReader();
+    }
+
+    public SocketChannel getChannel() {
+        return null;
+    }
+
+    public InputStream getInputStream() throws IOException {
+        return input;
+    }
+
+    public OutputStream getOutputStream() throws IOException {
+        return output;
+    }
+
+    public int getLocalPort() {
+        return 0;
+    }
+
+    public SocketAddress getLocalSocketAddress() {
+        return null;
+    }
+
+    public boolean getOOBInline() throws SocketException {
+        return false;
+    }
+
+    public int getReceiveBufferSize() throws SocketException {
+        return 0;
+    }
+
+    public boolean getReuseAddress() throws SocketException {
+        return false;
+    }
+
+    public int getSendBufferSize() throws SocketException {
+        return 0;
+    }
+
+    public int getSoLinger() throws SocketException {
+        return 0;
+    }
+
+    public int getSoTimeout() throws SocketException {
+        return in.getTimeout();
+    }
+
+    public boolean getTcpNoDelay() throws SocketException {
+        return true;
+    }
+
+    public int getTrafficClass() throws SocketException {
+        return 0;
+    }
+
+    public boolean isBound() {
+        return true;
+    }
+
+    public synchronized boolean isClosed() {
+        return closed;
+    }
+
+    public synchronized boolean isConnected() {
+        return !closed;
+    }
+
+    public boolean isInputShutdown() {
+        return isClosed() || in.isReaderClosed();
+    }
+
+    public boolean isOutputShutdown() {
+        return isClosed() || out.isWriterClosed();
+    }
+
+    public void sendUrgentData(int data) throws IOException {
+        // ignored
+    }
+
+    public void setKeepAlive(boolean on) throws SocketException {
+        // ignored
+    }
+
+    public void setOOBInline(boolean on) throws SocketException {
+        // ignored
+    }
+
+    public void setReceiveBufferSize(int sz) throws SocketException {
+        // ignored
+    }
+
+    public void setReuseAddress(boolean on) throws SocketException {
+        // ignored
+    }
+
+    public void setSendBufferSize(int sz) throws SocketException {
+        // ignored
+    }
+
+    public void setSoLinger(boolean on, int linger) throws SocketException {
+        // ignored
+    }
+
+    public void setSoTimeout(int t) throws SocketException {
+        in.setTimeout(t);
+    }
+
+    public void setTcpNoDelay(boolean on) throws SocketException {
+        // ignored
+    }
+
+    public void setTrafficClass(int tc) throws SocketException {
+        // ignored
+    }
+
+    public void shutdownInput() throws IOException {
+        in.closeReader();
+    }
+
+    public void shutdownOutput() throws IOException {
+        out.closeWriter();
+    }
+
+    public String toString() {
+        return "LoopbackVirtualSocket(" + getRemoteSocketAddress() + ")";
+    }
+}
@@ -0,0 +1,5 @@
+/**
+ * This package contains the implementation of the In-Process Loopback
+ * Virtual Connection module.
+ */
+package ibis.smartsockets.virtual.modules.loopback;
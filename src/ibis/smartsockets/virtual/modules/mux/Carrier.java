@@ -0,0 +1,179 @@
+package ibis.smartsockets.virtual.modules.mux;
+
+import ibis.smartsockets.direct.DirectSocket;
+import ibis.smartsockets.direct.DirectSocketAddress;
+import ibis.smartsockets.direct.DirectSocketFactory;
+import ibis.smartsockets.util.MultiplexStreamFactory;
+import ibis.smartsockets.virtual.VirtualServerSocket;
+import ibis.smartsockets.virtual.VirtualSocketAddress;
+import ibis.smartsockets.virtual.modules.AbstractDirectModule;
+
+import java.io.IOException;
+
+import org.slf4j.Logger;
+
+/**
+ * A single direct connection that carries many virtual connections to or from
+ * one peer process.
+ *
+ * The carrier uses a MultiplexStreamFactory, which gives each virtual
+ * connection its own pair of streams with separate flow control. A virtual
+ * connection is opened with an OPEN frame that contains the target port, and
+ * is accepted or rejected (with one of the AbstractDirectModule reply codes)
+ * by the other side. The factory keeps track of the streams until both sides
+ * have closed them.
+ *
+ * Only the side that created the carrier opens virtual connections on it.
+ */
+final class Carrier implements MultiplexStreamFactory.Listener {
+
+    private final Mux parent;
+    private final Logger logger;
+
+    private final DirectSocket s;
+    private final DirectSocketAddress peer;
+    private final boolean client;
+
+    private final MultiplexStreamFactory factory;
+
+    // Number of virtual connections that are being opened.
+    private int active = 0;
+
+    private long lastUsed = System.currentTimeMillis();
+
+    private boolean closed = false;
+
+    Carrier(Mux parent, Logger logger, DirectSocket s, DirectSocketAddress peer,
+            boolean client) throws IOException {
+
+        this.parent = parent;
+        this.logger = logger;
+        this.s = s;
+        this.peer = peer;
+        this.client = client;
+
+        // The factory does its own buffering, so use the raw streams.
+        factory = new MultiplexStreamFactory(s.getInputStream(),
+                s.getOutputStream(), 8 + 16*1024, client, this);
+    }
+
+    DirectSocketAddress getPeer() {
+        return peer;
+    }
+
+    boolean isClient() {
+        return client;
+    }
+
+    synchronized boolean isClosed() {
+        return closed;
+    }
+
+    // Reserve room for a new virtual connection, so the carrier is not closed
+    // because it is idle. Returns false if the carrier is already closed.
+    synchronized boolean reserve() {
+
+        if (closed) {
+            return false;
+        }
+
+        active++;
+        return true;
+    }
+
+    synchronized void release() {
+        active--;
+        lastUsed = System.currentTimeMillis();
+    }
+
+    synchronized boolean isIdle(long limit) {
+        // Stream 0 is always there.
+        return !closed && active == 0 && factory.getStreamCount() <= 1
+            && lastUsed < limit;
+    }
+
+    // Called when a virtual connection on this carrier has been closed.
+    synchronized void closed(MuxVirtualSocket vs) {
+        lastUsed = System.currentTimeMillis();
+    }
+
+    /**
+     * Opens a new virtual connection to target. The caller must have reserved
+     * room for it. The connection setup is completed by waitForAccept.
+     */
+    MuxVirtualSocket open(VirtualSocketAddress target) throws IOException {
+
+        int id = factory.open(target.port());
+
+        return new MuxVirtualSocket(this, factory, target, id);
+    }
+
+    public void streamOpened(MultiplexStreamFactory f, int id, int port) {
+
+        VirtualServerSocket vss = parent.getServerSocket(port);
+
+        if (vss == null) {
+            if (logger.isDebugEnabled()) {
+                logger.debug("Mux: connection from " + peer + " failed, PORT "
+                        + port + " not found!");
+            }
+
+            f.reject(id, AbstractDirectModule.PORT_NOT_FOUND);
+            return;
+        }
+
+        // Called by the reader of the factory, which may run before our
+        // constructor has finished, so use f instead of factory.
+        MuxVirtualSocket vs = new MuxVirtualSocket(this, f,
+                new VirtualSocketAddress(peer, 0), id);
+
+        int accept = vss.incomingConnection(vs);
+
+        if (accept != 0) {
+
+            if (logger.isInfoEnabled()) {
+                logger.info("Mux: connection from " + peer + " failed for "
+                        + "port " + port + ": "
+                        + (accept < 0 ? "REFUSED" : "OVERLOAD"));
+            }
+
+            f.reject(id, accept == -1 ? AbstractDirectModule.CONNECTION_REJECTED
+                    : AbstractDirectModule.SERVER_OVERLOAD);
+        }
+    }
+
+    public void connectionLost(MultiplexStreamFactory f, IOException cause) {
+
+        if (cause != null && !isClosed() && logger.isInfoEnabled()) {
+            logger.info("Mux: carrier to " + peer + " failed", cause);
+        }
+
+        close();
+    }
+
+    void close() {
+
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+
+            closed = true;
+        }
+
+        if (logger.isDebugEnabled()) {
+            logger.debug("Mux: closing carrier to " + peer + " ("
+                    + (factory.getStreamCount()-1) + " connections)");
+        }
+
+        // The factory notifies all streams when its reader sees the
+        // connection being closed.
+        DirectSocketFactory.close(s, null, null);
+
+        parent.carrierClosed(this);
+    }
+
+    public String toString() {
+        return "Carrier(" + peer + ", " + (client ? "client" : "server") + ")";
+    }
+}
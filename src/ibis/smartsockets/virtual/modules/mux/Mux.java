@@ -0,0 +1,369 @@
+package ibis.smartsockets.virtual.modules.mux;
+
+import ibis.smartsockets.SmartSocketsProperties;
+import ibis.smartsockets.direct.DirectSocket;
+import ibis.smartsockets.direct.DirectSocketAddress;
+import ibis.smartsockets.direct.DirectSocketFactory;
+import ibis.smartsockets.util.ThreadPool;
+import ibis.smartsockets.util.TypedProperties;
+import ibis.smartsockets.virtual.NonFatalIOException;
+import ibis.smartsockets.virtual.VirtualServerSocket;
+import ibis.smartsockets.virtual.VirtualSocket;
+import ibis.smartsockets.virtual.VirtualSocketAddress;
+import ibis.smartsockets.virtual.modules.AbstractDirectModule;
+import ibis.smartsockets.virtual.modules.AcceptHandler;
+import ibis.smartsockets.virtual.modules.ConnectModule;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+
+/**
+ * Carries many virtual connections to the same process over a single direct
+ * connection (the carrier).
+ *
+ * The first connection to a process creates the carrier, using the direct
+ * module. Every following connection only costs a single OPEN frame (plus the
+ * reply), instead of a new TCP connection and SmartSockets
+ * handshake. Each virtual connection gets its own streams with separate flow
+ * control, so a slow reader does not block the other connections.
+ *
+ * Carriers are only used to open connections in the direction in which they
+ * were created. A carrier that has not been used for a while is closed by the
+ * side that created it.
+ */
+public class Mux extends ConnectModule implements AcceptHandler {
+
+    private static final int DEFAULT_CONNECT_TIMEOUT = 3000;
+
+    // The target port used to create carriers. It is outside the range of
+    // normal virtual ports, and does not have the POOLED bit set.
+    private static final int CARRIER_PORT = 0x20000000;
+
+    private DirectSocketFactory direct;
+
+    private final HashMap<DirectSocketAddress, Carrier> carriers =
+        new HashMap<DirectSocketAddress, Carrier>();
+
+    // Carriers that are being created.
+    private final HashSet<DirectSocketAddress> connecting =
+        new HashSet<DirectSocketAddress>();
+
+    // Processes that do not support carriers, and when we found out.
+    private final HashMap<DirectSocketAddress, Long> unsupported =
+        new HashMap<DirectSocketAddress, Long>();
+
+    // Carriers created by other processes to this one.
+    private final HashSet<Carrier> incoming = new HashSet<Carrier>();
+
+    private Timer timer;
+
+    private int idleTimeout = 60000;
+
+    public Mux() {
+        super("ConnectModule(Mux)", false);
+    }
+
+    public void initModule(TypedProperties properties) throws Exception {
+        idleTimeout = properties.getIntProperty(SmartSocketsProperties.MUX_IDLE,
+                idleTimeout);
+    }
+
+    public void startModule() throws Exception {
+
+        AbstractDirectModule d =
+            (AbstractDirectModule) parent.findModule("direct");
+
+        if (d == null) {
+            throw new Exception(module + ": no direct module available!");
+        }
+
+        direct = parent.getDirectSocketFactory();
+
+        d.installAcceptHandler(CARRIER_PORT, this);
+
+        if (idleTimeout > 0) {
+            timer = new Timer("Mux idle carriers", true);
+            timer.schedule(new TimerTask() {
+                public void run() {
+                    closeIdle();
+                }
+            }, idleTimeout, Math.max(1000, idleTimeout / 2));
+        }
+    }
+
+    public DirectSocketAddress getAddresses() {
+        // Nothing to do here....
+        return null;
+    }
+
+    VirtualServerSocket getServerSocket(int port) {
+        return parent.getServerSocket(port);
+    }
+
+    public VirtualSocket connect(VirtualSocketAddress target, int timeout,
+            Map<String, Object> properties) throws NonFatalIOException,
+            IOException {
+
+        if (timeout <= 0) {
+            timeout = DEFAULT_CONNECT_TIMEOUT;
+        }
+
+        Carrier c = getCarrier(target.machine(), timeout, properties);
+
+        try {
+            return c.open(target);
+        } catch (IOException e) {
+            throw new NonFatalIOException(e);
+        } finally {
+            c.release();
+        }
+    }
+
+    // Returns a (reserved) carrier to machine, creating one if needed.
+    private Carrier getCarrier(DirectSocketAddress machine, int timeout,
+            Map<String, Object> properties) throws NonFatalIOException {
+
+        long deadline = System.currentTimeMillis() + timeout;
+
+        synchronized (this) {
+            while (true) {
+
+                Long time = unsupported.get(machine);
+
+                if (time != null) {
+                    if (System.currentTimeMillis() - time < idleTimeout) {
+                        throw new NonFatalIOException(machine + " does not "
+                                + "support multiplexed connections");
+                    }
+
+                    unsupported.remove(machine);
+                }
+
+                Carrier c = carriers.get(machine);
+
+                if (c != null && c.reserve()) {
+                    return c;
+                }
+
+                if (!connecting.contains(machine)) {
+                    connecting.add(machine);
+                    break;
+                }
+
+                // Some other thread is creating the carrier.
+                long left = deadline - System.currentTimeMillis();
+
+                if (left <= 0) {
+                    throw new NonFatalIOException(new SocketTimeoutException(
+                            "Timeout while waiting for carrier to "
+                            + machine));
+                }
+
+                try {
+                    wait(left);
+                } catch (InterruptedException e) {
+                    // ignore
+                }
+            }
+        }
+
+        Carrier c = null;
+
+        try {
+            c = createCarrier(machine, timeout, properties);
+            c.reserve();
+            return c;
+        } finally {
+            synchronized (this) {
+                connecting.remove(machine);
+
+                if (c != null) {
+                    carriers.put(machine, c);
+                }
+
+                notifyAll();
+            }
+        }
+    }
+
+    private Carrier createCarrier(DirectSocketAddress machine, int timeout,
+            Map<String, Object> properties) throws NonFatalIOException {
+
+        DirectSocket s = null;
+        InputStream in = null;
+        OutputStream out = null;
+
+        try {
+            s = direct.createSocket(machine, timeout, 0, -1, -1, properties,
+                    false, CARRIER_PORT);
+
+            s.setSoTimeout(timeout);
+            s.setTcpNoDelay(true);
+
+            in = s.getInputStream();
+            out = s.getOutputStream();
+
+            int result = in.read();
+
+            if (result != AbstractDirectModule.ACCEPT) {
+
+                if (result == AbstractDirectModule.PORT_NOT_FOUND) {
+                    synchronized (this) {
+                        unsupported.put(machine, System.currentTimeMillis());
+                    }
+                }
+
+                throw new IOException("Carrier rejected by " + machine
+                        + " (" + result + ")");
+            }
+
+            // Tell the other side who we are.
+            byte [] tmp = parent.getLocalHost().getAddress();
+
+            DataOutputStream dout = new DataOutputStream(out);
+            dout.writeInt(tmp.length);
+            dout.write(tmp);
+            dout.flush();
+
+            s.setSoTimeout(0);
+
+            Carrier c = new Carrier(this, logger, s, machine, true);
+
+            if (logger.isInfoEnabled()) {
+                logger.info(module + ": created carrier to " + machine);
+            }
+
+            return c;
+
+        } catch (IOException e) {
+            DirectSocketFactory.close(s, out, in);
+            throw new NonFatalIOException(e);
+        }
+    }
+
+    public void accept(final DirectSocket s, int targetPort, long time) {
+
+        // Finish the handshake on a separate thread, so the direct module can
+        // accept the next connection.
+        ThreadPool.createNew(new Runnable() {
+            public void run() {
+                acceptCarrier(s);
+            }
+        }, "Mux carrier accept");
+    }
+
+    private void acceptCarrier(DirectSocket s) {
+
+        InputStream in = null;
+        OutputStream out = null;
+
+        try {
+            s.setSoTimeout(DEFAULT_CONNECT_TIMEOUT);
+            s.setTcpNoDelay(true);
+
+            in = s.getInputStream();
+            out = s.getOutputStream();
+
+            out.write(AbstractDirectModule.ACCEPT);
+            out.flush();
+
+            DataInputStream din = new DataInputStream(in);
+
+            int len = din.readInt();
+
+            if (len <= 0 || len > 64*1024) {
+                throw new IOException("Illegal address length " + len);
+            }
+
+            byte [] tmp = new byte[len];
+            din.readFully(tmp);
+
+            DirectSocketAddress peer = DirectSocketAddress.fromBytes(tmp);
+
+            s.setSoTimeout(0);
+
+            Carrier c = new Carrier(this, logger, s, peer, false);
+
+            synchronized (this) {
+                incoming.add(c);
+            }
+
+            if (logger.isInfoEnabled()) {
+                logger.info(module + ": accepted carrier from " + peer);
+            }
+
+        } catch (Exception e) {
+            logger.warn(module + ": Got exception during carrier setup!", e);
+            DirectSocketFactory.close(s, out, in);
+        }
+    }
+
+    synchronized void carrierClosed(Carrier c) {
+
+        if (c.isClient()) {
+            if (carriers.get(c.getPeer()) == c) {
+                carriers.remove(c.getPeer());
+            }
+        } else {
+            incoming.remove(c);
+        }
+    }
+
+    private void closeIdle() {
+
+        ArrayList<Carrier> idle = new ArrayList<Carrier>();
+
+        long now = System.currentTimeMillis();
+
+        synchronized (this) {
+
+            Iterator<Carrier> itt = carriers.values().iterator();
+
+            while (itt.hasNext()) {
+                Carrier c = itt.next();
+
+                if (c.isIdle(now - idleTimeout)) {
+                    itt.remove();
+                    idle.add(c);
+                }
+            }
+
+            Iterator<Long> times = unsupported.values().iterator();
+
+            while (times.hasNext()) {
+                if (now - times.next() > idleTimeout) {
+                    times.remove();
+                }
+            }
+        }
+
+        for (Carrier c : idle) {
+            if (logger.isDebugEnabled()) {
+                logger.debug(module + ": closing idle " + c);
+            }
+
+            c.close();
+        }
+    }
+
+    public boolean matchAdditionalRuntimeRequirements(Map<String, ?> requirements) {
+        // No additional properties, so always matches requirements.
+        return true;
+    }
+
+    @Override
+    public int getDefaultTimeout() {
+        return DEFAULT_CONNECT_TIMEOUT;
+    }
+}
@@ -0,0 +1,266 @@
+package ibis.smartsockets.virtual.modules.mux;
+
+import ibis.smartsockets.util.MultiplexInputStream;
+import ibis.smartsockets.util.MultiplexOutputStream;
+import ibis.smartsockets.util.MultiplexStreamFactory;
+import ibis.smartsockets.virtual.TargetOverloadedException;
+import ibis.smartsockets.virtual.VirtualSocket;
+import ibis.smartsockets.virtual.VirtualSocketAddress;
+import ibis.smartsockets.virtual.modules.AbstractDirectModule;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.SocketAddress;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.nio.channels.SocketChannel;
+
+/**
+ * A virtual connection that is carried by a stream of a {@link Carrier}.
+ *
+ * The stream number stays in use until both sides have closed the
+ * connection, so it cannot be reused while the other side may still send
+ * data on it. This is handled by the MultiplexStreamFactory of the carrier.
+ */
+public class MuxVirtualSocket extends VirtualSocket {
+
+    private final Carrier carrier;
+    private final MultiplexStreamFactory factory;
+    private final int stream;
+
+    private final MultiplexInputStream in;
+    private final MultiplexOutputStream out;
+
+    private int timeout = 0;
+
+    private boolean closed = false;
+    private boolean outputClosed = false;
+
+    MuxVirtualSocket(Carrier carrier, MultiplexStreamFactory factory,
+            VirtualSocketAddress target, int stream) {
+
+        super(target);
+
+        this.carrier = carrier;
+        this.factory = factory;
+        this.stream = stream;
+        this.in = factory.getInputStream(stream);
+        this.out = factory.getOutputStream(stream);
+    }
+
+    // Called on the server side when the connection is rejected.
+    private void rejected(int reason) {
+
+        synchronized (this) {
+            closed = true;
+        }
+
+        factory.reject(stream, reason);
+    }
+
+    protected void connectionAccepted(int timeout) throws IOException {
+        factory.accept(stream);
+    }
+
+    protected void connectionRejected(int timeout) {
+        rejected(AbstractDirectModule.CONNECTION_REJECTED);
+    }
+
+    public void waitForAccept(int timeout) throws IOException {
+
+        int result;
+
+        try {
+            result = factory.waitForReply(stream, timeout);
+        } catch (SocketTimeoutException e) {
+            // Give up. If the other side accepts later, it will see the
+            // connection being closed.
+            close();
+            throw e;
+        } catch (IOException e) {
+            throw new SocketException("Carrier connection lost");
+        }
+
+        switch (result) {
+        case MultiplexStreamFactory.ACCEPTED:
+            return;
+
+        case AbstractDirectModule.PORT_NOT_FOUND:
+            throw new SocketException("Remote port not found");
+
+        case AbstractDirectModule.SERVER_OVERLOAD:
+            throw new TargetOverloadedException("Connection rejected (server overloaded)");
+
+        case AbstractDirectModule.CONNECTION_REJECTED:
+            throw new SocketException("Connection rejected");
+
+        default:
+            throw new SocketException("Got unknown reply (" + result
+                    + ") during connect!");
+        }
+    }
+
+    private void closeOutput() {
+
+        synchronized (this) {
+            if (outputClosed) {
+                return;
+            }
+
+            outputClosed = true;
+        }
+
+        try {
+            out.close();
+        } catch (IOException e) {
+            // ignore
+        }
+    }
+
+    public void close() {
+
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+
+            closed = true;
+        }
+
+        closeOutput();
+
+        try {
+            in.close();
+        } catch (IOException e) {
+            // ignore
+        }
+
+        carrier.closed(this);
+    }
+
+    public SocketChannel getChannel() {
+        return null;
+    }
+
+    public InputStream getInputStream() throws IOException {
+        return in;
+    }
+
+    public OutputStream getOutputStream() throws IOException {
+        return out;
+    }
+
+    public int getLocalPort() {
+        return 0;
+    }
+
+    public SocketAddress getLocalSocketAddress() {
+        return null;
+    }
+
+    public boolean getOOBInline() throws SocketException {
+        return false;
+    }
+
+    public int getReceiveBufferSize() throws SocketException {
+        return 0;
+    }
+
+    public boolean getReuseAddress() throws SocketException {
+        return false;
+    }
+
+    public int getSendBufferSize() throws SocketException {
+        return 0;
+    }
+
+    public int getSoLinger() throws SocketException {
+        return 0;
+    }
+
+    public synchronized int getSoTimeout() throws SocketException {
+        return timeout;
+    }
+
+    public boolean getTcpNoDelay() throws SocketException {
+        return true;
+    }
+
+    public int getTrafficClass() throws SocketException {
+        return 0;
+    }
+
+    public boolean isBound() {
+        return true;
+    }
+
+    public synchronized boolean isClosed() {
+        return closed;
+    }
+
+    public synchronized boolean isConnected() {
+        return !closed;
+    }
+
+    public synchronized boolean isInputShutdown() {
+        return closed;
+    }
+
+    public synchronized boolean isOutputShutdown() {
+        return outputClosed || closed;
+    }
+
+    public void sendUrgentData(int data) throws IOException {
+        // ignored
+    }
+
+    public void setKeepAlive(boolean on) throws SocketException {
+        // ignored
+    }
+
+    public void setOOBInline(boolean on) throws SocketException {
+        // ignored
+    }
+
+    public void setReceiveBufferSize(int sz) throws SocketException {
+        // ignored
+    }
+
+    public void setReuseAddress(boolean on) throws SocketException {
+        // ignored
+    }
+
+    public void setSendBufferSize(int sz) throws SocketException {
+        // ignored
+    }
+
+    public void setSoLinger(boolean on, int linger) throws SocketException {
+        // ignored
+    }
+
+    public synchronized void setSoTimeout(int t) throws SocketException {
+        timeout = t;
+        in.setTimeout(t);
+    }
+
+    public void setTcpNoDelay(boolean on) throws SocketException {
+        // ignored
+    }
+
+    public void setTrafficClass(int tc) throws SocketException {
+        // ignored
+    }
+
+    public void shutdownInput() throws IOException {
+        // The remaining data is discarded when the socket is closed.
+    }
+
+    public void shutdownOutput() throws IOException {
+        closeOutput();
+    }
+
+    public String toString() {
+        return "MuxVirtualSocket(" + carrier.getPeer() + ", " + stream + ")";
+    }
+}
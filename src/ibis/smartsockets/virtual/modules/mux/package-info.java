@@ -0,0 +1,5 @@
+/**
+ * This package contains the implementation of the Multiplexing Virtual
+ * Connection module.
+ */
+package ibis.smartsockets.virtual.modules.mux;
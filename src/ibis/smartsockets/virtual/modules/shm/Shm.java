@@ -0,0 +1,444 @@
+package ibis.smartsockets.virtual.modules.shm;
+
+import ibis.smartsockets.SmartSocketsProperties;
+import ibis.smartsockets.direct.DirectSocket;
+import ibis.smartsockets.direct.DirectSocketAddress;
+import ibis.smartsockets.direct.DirectSocketFactory;
+import ibis.smartsockets.util.RunProcess;
+import ibis.smartsockets.util.ThreadPool;
+import ibis.smartsockets.util.TypedProperties;
+import ibis.smartsockets.virtual.NonFatalIOException;
+import ibis.smartsockets.virtual.VirtualServerSocket;
+import ibis.smartsockets.virtual.VirtualSocket;
+import ibis.smartsockets.virtual.VirtualSocketAddress;
+import ibis.smartsockets.virtual.modules.AbstractDirectModule;
+import ibis.smartsockets.virtual.modules.AcceptHandler;
+import ibis.smartsockets.virtual.modules.ConnectModule;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Connects processes on the same machine through shared memory.
+ *
+ * The client creates a file (in /dev/shm by default), maps it into memory,
+ * and asks the target process to map it as well, using a direct connection
+ * with a reserved target port. The file is created in a directory that only
+ * the owner of the process may enter, and is only accessible to its owner, so
+ * other users cannot read or change the data. Both processes must therefore
+ * run as the same user. The file contains a ring buffer for each
+ * direction, and is removed as soon as both processes have mapped it. The
+ * direct connection stays open, and is used to wake up a process that is
+ * waiting for data (or room) in a ring.
+ *
+ * Targets on other machines, and processes without this module, are left to
+ * the next module.
+ */
+public class Shm extends ConnectModule implements AcceptHandler {
+
+    private static final int DEFAULT_CONNECT_TIMEOUT = 3000;
+
+    // The target port used to set up connections. It is outside the range of
+    // normal virtual ports, and does not have the POOLED bit set.
+    private static final int SHM_PORT = 0x10000000;
+
+    private static final String PREFIX = "smartsockets-";
+    private static final String SUFFIX = ".shm";
+    private static final String DIR_SUFFIX = ".dir";
+
+    private static final int MAX_CAPACITY = 64*1024*1024;
+
+    private DirectSocketFactory direct;
+
+    private File dir;
+
+    // Our own directory in dir, in which we create the files.
+    private File privateDir;
+
+    private int capacity = 1024*1024;
+
+    // Processes that do not support shared memory, and when we found out.
+    private final HashMap<DirectSocketAddress, Long> unsupported =
+        new HashMap<DirectSocketAddress, Long>();
+
+    public Shm() {
+        super("ConnectModule(Shm)", false);
+    }
+
+    public void initModule(TypedProperties properties) throws Exception {
+
+        capacity = properties.getIntProperty(SmartSocketsProperties.SHM_SIZE,
+                capacity);
+
+        if (capacity <= 0 || capacity > MAX_CAPACITY) {
+            throw new Exception(module + ": illegal buffer size " + capacity);
+        }
+
+        String tmp = properties.getProperty(SmartSocketsProperties.SHM_DIR);
+
+        if (tmp != null) {
+            dir = new File(tmp);
+        } else {
+            dir = new File("/dev/shm");
+
+            if (!dir.isDirectory() || !dir.canWrite()) {
+                dir = new File(System.getProperty("java.io.tmpdir"));
+            }
+        }
+
+        if (!dir.isDirectory() || !dir.canWrite()) {
+            throw new Exception(module + ": cannot use directory " + dir);
+        }
+
+        dir = dir.getCanonicalFile();
+
+        privateDir = createPrivateDir();
+
+        if (logger.isInfoEnabled()) {
+            logger.info(module + ": using " + privateDir
+                    + " for shared memory");
+        }
+    }
+
+    // Creates a directory that only we can enter, so other users cannot
+    // open the files in it, not even before they are restricted.
+    private File createPrivateDir() throws Exception {
+
+        // Reserves a unique name.
+        File tmp = File.createTempFile(PREFIX, DIR_SUFFIX, dir);
+
+        if (!tmp.delete() || !tmp.mkdir()) {
+            throw new Exception(module + ": cannot create directory " + tmp);
+        }
+
+        if (!restrict(tmp, true)) {
+            tmp.delete();
+            throw new Exception(module + ": cannot restrict access to "
+                    + tmp);
+        }
+
+        tmp.deleteOnExit();
+        return tmp;
+    }
+
+    /**
+     * Makes a file or directory accessible to its owner only. The File
+     * methods for this were added in Java 6, so they are called through
+     * reflection, with chmod as fallback.
+     */
+    private static boolean restrict(File f, boolean directory) {
+
+        try {
+            Method r = File.class.getMethod("setReadable", boolean.class,
+                    boolean.class);
+            Method w = File.class.getMethod("setWritable", boolean.class,
+                    boolean.class);
+            Method x = File.class.getMethod("setExecutable", boolean.class,
+                    boolean.class);
+
+            return set(f, r, false, false) && set(f, w, false, false)
+                && set(f, x, false, false) && set(f, r, true, true)
+                && set(f, w, true, true)
+                && (!directory || set(f, x, true, true));
+
+        } catch (NoSuchMethodException e) {
+            // Java 5
+        }
+
+        RunProcess p = new RunProcess("chmod", directory ? "700" : "600",
+                f.getPath());
+        p.run();
+
+        return p.getExitStatus() == 0;
+    }
+
+    private static boolean set(File f, Method m, boolean on,
+            boolean ownerOnly) {
+
+        try {
+            return (Boolean) m.invoke(f, on, ownerOnly);
+        } catch (Exception e) {
+            return false;
+        }
+    }
+
+    public void startModule() throws Exception {
+
+        AbstractDirectModule d =
+            (AbstractDirectModule) parent.findModule("direct");
+
+        if (d == null) {
+            throw new Exception(module + ": no direct module available!");
+        }
+
+        direct = parent.getDirectSocketFactory();
+
+        d.installAcceptHandler(SHM_PORT, this);
+    }
+
+    public DirectSocketAddress getAddresses() {
+        // Nothing to do here....
+        return null;
+    }
+
+    private synchronized boolean isUnsupported(DirectSocketAddress machine) {
+
+        Long time = unsupported.get(machine);
+
+        if (time == null) {
+            return false;
+        }
+
+        if (System.currentTimeMillis() - time < 60000) {
+            return true;
+        }
+
+        unsupported.remove(machine);
+        return false;
+    }
+
+    private static ByteBuffer map(File f, int size, boolean create)
+        throws IOException {
+
+        RandomAccessFile raf = new RandomAccessFile(f, "rw");
+
+        try {
+            if (create) {
+                raf.setLength(size);
+            } else if (raf.length() != size) {
+                throw new IOException("File " + f + " has the wrong size");
+            }
+
+            // The mapping stays valid after the file is closed.
+            return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0,
+                    size);
+        } finally {
+            raf.close();
+        }
+    }
+
+    public VirtualSocket connect(VirtualSocketAddress target, int timeout,
+            Map<String, Object> properties) throws NonFatalIOException,
+            IOException {
+
+        DirectSocketAddress machine = target.machine();
+
+        if (!machine.sameMachine(parent.getLocalHost())) {
+            throw new NonFatalIOException(machine + " is not on this machine");
+        }
+
+        if (isUnsupported(machine)) {
+            throw new NonFatalIOException(machine + " does not support "
+                    + "shared memory connections");
+        }
+
+        if (timeout <= 0) {
+            timeout = DEFAULT_CONNECT_TIMEOUT;
+        }
+
+        int size = 2 * ShmRing.size(capacity);
+
+        File file = null;
+        DirectSocket s = null;
+        InputStream in = null;
+        OutputStream out = null;
+
+        try {
+            file = File.createTempFile(PREFIX, SUFFIX, privateDir);
+
+            if (!restrict(file, false)) {
+                throw new IOException("Cannot restrict access to " + file);
+            }
+
+            ByteBuffer buffer = map(file, size, true);
+
+            s = direct.createSocket(machine, timeout, 0, -1, -1, properties,
+                    false, SHM_PORT);
+
+            s.setSoTimeout(timeout);
+            s.setTcpNoDelay(true);
+
+            in = s.getInputStream();
+            out = s.getOutputStream();
+
+            int result = in.read();
+
+            if (result != AbstractDirectModule.ACCEPT) {
+
+                if (result == AbstractDirectModule.PORT_NOT_FOUND) {
+                    synchronized (this) {
+                        unsupported.put(machine, System.currentTimeMillis());
+                    }
+                }
+
+                throw new IOException("Shared memory rejected by " + machine
+                        + " (" + result + ")");
+            }
+
+            DataOutputStream dout = new DataOutputStream(out);
+
+            byte [] tmp = parent.getLocalHost().getAddress();
+
+            dout.writeInt(target.port());
+            dout.writeInt(tmp.length);
+            dout.write(tmp);
+            dout.writeUTF(file.getPath());
+            dout.writeInt(capacity);
+            dout.flush();
+
+            // The rest of the handshake is done in waitForAccept.
+            return new ShmVirtualSocket(target, s, in, out, file, buffer,
+                    capacity, true);
+
+        } catch (IOException e) {
+            if (file != null) {
+                file.delete();
+            }
+
+            DirectSocketFactory.close(s, out, in);
+            throw new NonFatalIOException(e);
+        }
+    }
+
+    public void accept(final DirectSocket s, int targetPort, long time) {
+
+        // Finish the handshake on a separate thread, so the direct module can
+        // accept the next connection.
+        ThreadPool.createNew(new Runnable() {
+            public void run() {
+                handleAccept(s);
+            }
+        }, "Shm accept");
+    }
+
+    private void handleAccept(DirectSocket s) {
+
+        InputStream in = null;
+        OutputStream out = null;
+
+        try {
+            s.setSoTimeout(DEFAULT_CONNECT_TIMEOUT);
+            s.setTcpNoDelay(true);
+
+            in = s.getInputStream();
+            out = s.getOutputStream();
+
+            out.write(AbstractDirectModule.ACCEPT);
+            out.flush();
+
+            DataInputStream din = new DataInputStream(in);
+
+            int port = din.readInt();
+            int len = din.readInt();
+
+            if (len <= 0 || len > 64*1024) {
+                throw new IOException("Illegal address length " + len);
+            }
+
+            byte [] tmp = new byte[len];
+            din.readFully(tmp);
+
+            DirectSocketAddress peer = DirectSocketAddress.fromBytes(tmp);
+
+            File file = new File(din.readUTF()).getCanonicalFile();
+            int cap = din.readInt();
+
+            File parentDir = file.getParentFile();
+
+            // Only map files that were created by this module, so a local
+            // process cannot make us write into an arbitrary file.
+            if (parentDir == null || !dir.equals(parentDir.getParentFile())
+                    || !parentDir.getName().startsWith(PREFIX)
+                    || !parentDir.getName().endsWith(DIR_SUFFIX)
+                    || !file.getName().startsWith(PREFIX)
+                    || !file.getName().endsWith(SUFFIX)) {
+                throw new IOException("Refusing to map " + file);
+            }
+
+            if (cap <= 0 || cap > MAX_CAPACITY) {
+                throw new IOException("Illegal buffer size " + cap);
+            }
+
+            ByteBuffer buffer = map(file, 2 * ShmRing.size(cap), false);
+
+            VirtualServerSocket vss = parent.getServerSocket(port);
+
+            if (vss == null) {
+                if (logger.isDebugEnabled()) {
+                    logger.debug(module + ": Connection failed, PORT "
+                            + port + " not found!");
+                }
+
+                out.write(AbstractDirectModule.PORT_NOT_FOUND);
+                out.flush();
+                DirectSocketFactory.close(s, out, in);
+                return;
+            }
+
+            ShmVirtualSocket vs = new ShmVirtualSocket(
+                    new VirtualSocketAddress(peer, 0), s, in, out, null,
+                    buffer, cap, false);
+
+            int accept = vss.incomingConnection(vs);
+
+            if (accept != 0) {
+
+                if (logger.isInfoEnabled()) {
+                    logger.info(module + ": Connection failed for port "
+                            + port + ": "
+                            + (accept < 0 ? "REFUSED" : "OVERLOAD"));
+                }
+
+                out.write(accept == -1
+                        ? AbstractDirectModule.CONNECTION_REJECTED
+                        : AbstractDirectModule.SERVER_OVERLOAD);
+                out.flush();
+                vs.close();
+            }
+
+        } catch (Exception e) {
+            logger.warn(module + ": Got exception during connection setup!",
+                    e);
+            DirectSocketFactory.close(s, out, in);
+        }
+    }
+
+    public void end() {
+
+        if (privateDir == null) {
+            return;
+        }
+
+        // Files of connections that are still being set up. New connections
+        // fail once the directory is gone.
+        File [] files = privateDir.listFiles();
+
+        if (files != null) {
+            for (File f : files) {
+                f.delete();
+            }
+        }
+
+        privateDir.delete();
+    }
+
+    public boolean matchAdditionalRuntimeRequirements(Map<String, ?> requirements) {
+        // No additional properties, so always matches requirements.
+        return true;
+    }
+
+    @Override
+    public int getDefaultTimeout() {
+        return DEFAULT_CONNECT_TIMEOUT;
+    }
+}
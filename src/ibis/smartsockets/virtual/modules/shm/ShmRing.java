@@ -0,0 +1,341 @@
+package ibis.smartsockets.virtual.modules.shm;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+
+/**
+ * A single producer, single consumer ring buffer in memory that is shared
+ * between two processes.
+ *
+ * The ring starts with a header that contains the total number of bytes
+ * written (head) and read (tail), flags that tell if the reader or writer is
+ * waiting, and flags that tell if either side has closed the ring. Head and
+ * tail are on separate cache lines, and are only written by the writer and
+ * reader respectively.
+ *
+ * Both sides first spin for a while when the ring is empty (or full). If that
+ * does not help, they set their waiting flag and sleep until the other side
+ * rings the doorbell, which is a single byte on the control connection.
+ *
+ * Java 5 has no explicit memory fences, and the Java memory model does not
+ * cover memory that is shared with another process. A volatile write followed
+ * by a volatile read is used as a full fence instead. The JVMs we run on order
+ * all loads and stores before the write before the read, and all loads and
+ * stores after the read after it, also on hardware with a weaker memory model
+ * than x86. A fence is needed after reading head or tail, before the data is
+ * used or overwritten, and before publishing a new head or tail.
+ */
+final class ShmRing {
+
+    interface Doorbell {
+        void ring(ShmRing r) throws IOException;
+    }
+
+    private static final int HEAD           = 0;
+    private static final int TAIL           = 64;
+    private static final int READER_WAITING = 128;
+    private static final int WRITER_WAITING = 192;
+    private static final int WRITER_CLOSED  = 256;
+    private static final int READER_CLOSED  = 260;
+
+    private static final int DATA = 320;
+
+    // Number of times we check the ring before going to sleep.
+    private static final int SPIN = 200;
+
+    // Upper bound on a single sleep, in case a doorbell gets lost.
+    private static final int MAX_SLEEP = 50;
+
+    private final ByteBuffer header;
+    private final ByteBuffer data;
+    private final int capacity;
+
+    // Our copy of head (if we are the writer) or tail (if we are the reader).
+    private long position = 0;
+
+    private final boolean writer;
+    private final Doorbell doorbell;
+
+    // Number of times the doorbell has rung for us.
+    private long wakeups = 0;
+
+    private boolean lost = false;
+
+    private volatile boolean closed = false;
+
+    private int timeout = 0;
+
+    private volatile int fence;
+
+    ShmRing(ByteBuffer buffer, int offset, int capacity, boolean writer,
+            Doorbell doorbell) {
+
+        ByteBuffer tmp = buffer.duplicate();
+        tmp.position(offset);
+        tmp.limit(offset + size(capacity));
+
+        this.header = tmp.slice();
+
+        tmp.position(offset + DATA);
+        this.data = tmp.slice();
+
+        this.capacity = capacity;
+        this.writer = writer;
+        this.doorbell = doorbell;
+    }
+
+    /**
+     * Returns the number of bytes needed for a ring of the given capacity.
+     */
+    static int size(int capacity) {
+        return DATA + capacity;
+    }
+
+    private int fence() {
+        fence = 0;
+        return fence;
+    }
+
+    synchronized void setTimeout(int timeout) {
+        this.timeout = timeout;
+    }
+
+    // Called when the other side rang the doorbell.
+    synchronized void wakeup() {
+        wakeups++;
+        notifyAll();
+    }
+
+    synchronized void connectionLost() {
+        lost = true;
+        notifyAll();
+    }
+
+    private synchronized boolean isLost() {
+        return lost;
+    }
+
+    private synchronized long getWakeups() {
+        return wakeups;
+    }
+
+    // Sleeps until the doorbell rings, or for at most MAX_SLEEP ms in case
+    // we missed it. The caller checks the ring again afterwards.
+    private synchronized void sleep(long seen, long deadline)
+        throws IOException {
+
+        if (wakeups != seen || lost) {
+            return;
+        }
+
+        long left = MAX_SLEEP;
+
+        if (deadline > 0) {
+            left = Math.min(left, deadline - System.currentTimeMillis());
+
+            if (left <= 0) {
+                throw new SocketTimeoutException("Timeout occurred while "
+                        + "waiting for data");
+            }
+        }
+
+        try {
+            wait(left);
+        } catch (InterruptedException e) {
+            // ignore
+        }
+    }
+
+    // Tells the other side it may continue if it is waiting on us.
+    private void notifyOther(int flag) throws IOException {
+
+        fence();
+
+        if (header.getInt(flag) != 0) {
+            header.putInt(flag, 0);
+            doorbell.ring(this);
+        }
+    }
+
+    // Returns the number of bytes that can be written or read without
+    // blocking, or -1 when the other side has closed the ring.
+    private long available() throws IOException {
+
+        if (writer) {
+            if (header.getInt(READER_CLOSED) != 0) {
+                throw new IOException("Stream closed by peer");
+            }
+
+            fence();
+            long tail = header.getLong(TAIL);
+
+            // Do not overwrite data before the reader is done with it.
+            fence();
+            return capacity - (position - tail);
+        }
+
+        boolean eos = header.getInt(WRITER_CLOSED) != 0;
+        fence();
+        long tmp = header.getLong(HEAD) - position;
+
+        // Do not read the data before the head that announced it.
+        fence();
+
+        if (tmp == 0 && eos) {
+            return -1;
+        }
+
+        return tmp;
+    }
+
+    // Waits until there is room (writer) or data (reader).
+    private long waitFor() throws IOException {
+
+        if (closed) {
+            throw new IOException("Stream already closed");
+        }
+
+        long deadline = 0;
+
+        if (!writer && timeout > 0) {
+            deadline = System.currentTimeMillis() + timeout;
+        }
+
+        int flag = writer ? WRITER_WAITING : READER_WAITING;
+
+        for (int i=0;;i++) {
+
+            if (closed) {
+                throw new IOException("Stream already closed");
+            }
+
+            long tmp = available();
+
+            if (tmp != 0) {
+                return tmp;
+            }
+
+            if (isLost()) {
+                // The other side may have finished just before it went away.
+                tmp = available();
+
+                if (tmp != 0) {
+                    return tmp;
+                }
+
+                throw new IOException("Connection lost");
+            }
+
+            if (i < SPIN) {
+                Thread.yield();
+                continue;
+            }
+
+            long seen = getWakeups();
+
+            header.putInt(flag, 1);
+            fence();
+
+            tmp = available();
+
+            if (tmp != 0) {
+                return tmp;
+            }
+
+            sleep(seen, deadline);
+        }
+    }
+
+    void write(byte [] b, int off, int len) throws IOException {
+
+        while (len > 0) {
+
+            long space = waitFor();
+
+            int index = (int) (position % capacity);
+
+            int n = (int) Math.min(len, Math.min(space, capacity - index));
+
+            data.position(index);
+            data.put(b, off, n);
+
+            position += n;
+            off += n;
+            len -= n;
+
+            // Publish the data before the new head.
+            fence();
+            header.putLong(HEAD, position);
+
+            notifyOther(READER_WAITING);
+        }
+    }
+
+    int read(byte [] b, int off, int len) throws IOException {
+
+        long avail = waitFor();
+
+        if (avail < 0) {
+            return -1;
+        }
+
+        int read = 0;
+
+        // Read as much as we can without blocking (at most two parts).
+        while (read < len && avail > 0) {
+
+            int index = (int) (position % capacity);
+
+            int n = (int) Math.min(len - read,
+                    Math.min(avail, capacity - index));
+
+            data.position(index);
+            data.get(b, off + read, n);
+
+            position += n;
+            read += n;
+            avail -= n;
+        }
+
+        // Make sure we are done with the data before giving the room back.
+        fence();
+        header.putLong(TAIL, position);
+
+        notifyOther(WRITER_WAITING);
+
+        return read;
+    }
+
+    int bytesAvailable() throws IOException {
+
+        if (closed) {
+            throw new IOException("Stream already closed");
+        }
+
+        long tmp = available();
+        return tmp < 0 ? 0 : (int) tmp;
+    }
+
+    /**
+     * Closes our side of the ring. Returns false if it was already closed.
+     * The caller must ring the doorbell afterwards, so the other side sees
+     * the ring being closed.
+     */
+    synchronized boolean close() {
+
+        if (closed) {
+            return false;
+        }
+
+        closed = true;
+
+        fence();
+        header.putInt(writer ? WRITER_CLOSED : READER_CLOSED, 1);
+        fence();
+
+        // Wake up any local thread that is sleeping on the ring.
+        notifyAll();
+        return true;
+    }
+}
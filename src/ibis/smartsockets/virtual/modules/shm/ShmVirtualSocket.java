@@ -0,0 +1,434 @@
+package ibis.smartsockets.virtual.modules.shm;
+
+import ibis.smartsockets.direct.DirectSocket;
+import ibis.smartsockets.direct.DirectSocketFactory;
+import ibis.smartsockets.util.ThreadPool;
+import ibis.smartsockets.virtual.TargetOverloadedException;
+import ibis.smartsockets.virtual.VirtualSocket;
+import ibis.smartsockets.virtual.VirtualSocketAddress;
+import ibis.smartsockets.virtual.modules.AbstractDirectModule;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ConnectException;
+import java.net.SocketAddress;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+/**
+ * A virtual connection between two processes on the same machine, which
+ * sends its data through a pair of {@link ShmRing}s in a shared memory
+ * mapped file.
+ *
+ * A direct connection between the processes is used for the connection
+ * setup, as doorbell for the rings, and to detect that the other process is
+ * gone.
+ */
+public class ShmVirtualSocket extends VirtualSocket
+    implements ShmRing.Doorbell, Runnable {
+
+    // Doorbells: there is data in your input, or room in your output.
+    private static final int DATA  = 1;
+    private static final int SPACE = 2;
+
+    private final DirectSocket s;
+    private final InputStream controlIn;
+    private final OutputStream controlOut;
+
+    // The file is removed once the other side has mapped it.
+    private File file;
+
+    private final ShmRing in;
+    private final ShmRing out;
+
+    private final InputStream input = new InputStream() {
+
+        private final byte [] tmp = new byte[1];
+
+        public synchronized int read() throws IOException {
+
+            if (read(tmp, 0, 1) == -1) {
+                return -1;
+            }
+
+            return tmp[0] & 0xff;
+        }
+
+        public synchronized int read(byte [] b, int off, int len)
+            throws IOException {
+
+            if (len == 0) {
+                return 0;
+            }
+
+            return in.read(b, off, len);
+        }
+
+        public int available() throws IOException {
+            return in.bytesAvailable();
+        }
+
+        public void close() throws IOException {
+            closeInput();
+        }
+    };
+
+    private final OutputStream output = new OutputStream() {
+
+        private final byte [] tmp = new byte[1];
+
+        public synchronized void write(int b) throws IOException {
+            tmp[0] = (byte) b;
+            write(tmp, 0, 1);
+        }
+
+        public synchronized void write(byte [] b, int off, int len)
+            throws IOException {
+            out.write(b, off, len);
+        }
+
+        public void close() throws IOException {
+            closeOutput();
+        }
+    };
+
+    private int timeout = 0;
+
+    // Set once the handshake is done, after which the control connection
+    // only carries doorbells.
+    private boolean started = false;
+
+    private boolean closed = false;
+
+    ShmVirtualSocket(VirtualSocketAddress target, DirectSocket s,
+            InputStream controlIn, OutputStream controlOut, File file,
+            ByteBuffer buffer, int capacity, boolean client) {
+
+        super(target);
+
+        this.s = s;
+        this.controlIn = controlIn;
+        this.controlOut = controlOut;
+        this.file = file;
+
+        // The first ring carries the data from client to server.
+        int size = ShmRing.size(capacity);
+
+        ShmRing first = new ShmRing(buffer, 0, capacity, client, this);
+        ShmRing second = new ShmRing(buffer, size, capacity, !client, this);
+
+        out = client ? first : second;
+        in = client ? second : first;
+    }
+
+    public void ring(ShmRing r) throws IOException {
+        synchronized (controlOut) {
+            controlOut.write(r == out ? DATA : SPACE);
+            controlOut.flush();
+        }
+    }
+
+    // Reads the doorbells of the other side until the connection is closed.
+    public void run() {
+
+        try {
+            while (true) {
+                int tmp = controlIn.read();
+
+                if (tmp == DATA) {
+                    in.wakeup();
+                } else if (tmp == SPACE) {
+                    out.wakeup();
+                } else {
+                    break;
+                }
+            }
+        } catch (Throwable e) {
+            // The connection is lost or closed.
+        }
+
+        in.connectionLost();
+        out.connectionLost();
+    }
+
+    private void start() {
+
+        synchronized (this) {
+            started = true;
+        }
+
+        ThreadPool.createNew(this, "Shm doorbell");
+    }
+
+    private synchronized boolean isStarted() {
+        return started;
+    }
+
+    private synchronized void deleteFile() {
+        if (file != null) {
+            file.delete();
+            file = null;
+        }
+    }
+
+    protected void connectionAccepted(int timeout) throws IOException {
+
+        try {
+            s.setSoTimeout(timeout);
+
+            controlOut.write(AbstractDirectModule.ACCEPT);
+            controlOut.flush();
+
+            // Wait until the client agrees that we have a connection.
+            int ack = controlIn.read();
+
+            if (ack == -1) {
+                throw new EOFException("Unexpected EOF during handshake");
+            } else if (ack != AbstractDirectModule.ACCEPT) {
+                throw new ConnectException("Client disconnected");
+            }
+
+            s.setSoTimeout(0);
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+
+        start();
+    }
+
+    protected void connectionRejected(int timeout) {
+
+        try {
+            s.setSoTimeout(timeout);
+            controlOut.write(AbstractDirectModule.CONNECTION_REJECTED);
+            controlOut.flush();
+        } catch (Exception e) {
+            // ignore
+        }
+
+        close();
+    }
+
+    public void waitForAccept(int timeout) throws IOException {
+
+        int result;
+
+        try {
+            s.setSoTimeout(timeout);
+            result = controlIn.read();
+        } catch (IOException e) {
+            close();
+            throw e;
+        } finally {
+            // The server has mapped the file (or never will).
+            deleteFile();
+        }
+
+        switch (result) {
+        case AbstractDirectModule.ACCEPT:
+            break;
+
+        case AbstractDirectModule.PORT_NOT_FOUND:
+            close();
+            throw new SocketException("Remote port not found");
+
+        case AbstractDirectModule.SERVER_OVERLOAD:
+            close();
+            throw new TargetOverloadedException("Connection rejected (server overloaded)");
+
+        case AbstractDirectModule.CONNECTION_REJECTED:
+            close();
+            throw new SocketException("Connection rejected");
+
+        case -1:
+            close();
+            throw new EOFException("Unexpected EOF during handshake");
+
+        default:
+            close();
+            throw new SocketException("Got unknown reply (" + result
+                    + ") during connect!");
+        }
+
+        try {
+            controlOut.write(AbstractDirectModule.ACCEPT);
+            controlOut.flush();
+            s.setSoTimeout(0);
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+
+        start();
+    }
+
+    private void closeOutput() {
+        if (out.close() && isStarted()) {
+            try {
+                ring(out);
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+    }
+
+    private void closeInput() {
+        if (in.close() && isStarted()) {
+            try {
+                ring(in);
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+    }
+
+    public void close() {
+
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+
+            closed = true;
+        }
+
+        deleteFile();
+
+        // Closing the rings first ensures the other side sees the end of the
+        // stream instead of a lost connection.
+        closeOutput();
+        closeInput();
+
+        DirectSocketFactory.close(s, controlOut, controlIn);
+    }
+
+    public SocketChannel getChannel() {
+        return null;
+    }
+
+    public InputStream getInputStream() throws IOException {
+        return input;
+    }
+
+    public OutputStream getOutputStream() throws IOException {
+        return output;
+    }
+
+    public int getLocalPort() {
+        return 0;
+    }
+
+    public SocketAddress getLocalSocketAddress() {
+        return null;
+    }
+
+    public boolean getOOBInline() throws SocketException {
+        return false;
+    }
+
+    public int getReceiveBufferSize() throws SocketException {
+        return 0;
+    }
+
+    public boolean getReuseAddress() throws SocketException {
+        return false;
+    }
+
+    public int getSendBufferSize() throws SocketException {
+        return 0;
+    }
+
+    public int getSoLinger() throws SocketException {
+        return 0;
+    }
+
+    public synchronized int getSoTimeout() throws SocketException {
+        return timeout;
+    }
+
+    public boolean getTcpNoDelay() throws SocketException {
+        return true;
+    }
+
+    public int getTrafficClass() throws SocketException {
+        return 0;
+    }
+
+    public boolean isBound() {
+        return true;
+    }
+
+    public synchronized boolean isClosed() {
+        return closed;
+    }
+
+    public synchronized boolean isConnected() {
+        return !closed;
+    }
+
+    public synchronized boolean isInputShutdown() {
+        return closed;
+    }
+
+    public synchronized boolean isOutputShutdown() {
+        return closed;
+    }
+
+    public void sendUrgentData(int data) throws IOException {
+        // ignored
+    }
+
+    public void setKeepAlive(boolean on) throws SocketException {
+        // ignored
+    }
+
+    public void setOOBInline(boolean on) throws SocketException {
+        // ignored
+    }
+
+    public void setReceiveBufferSize(int sz) throws SocketException {
+        // ignored
+    }
+
+    public void setReuseAddress(boolean on) throws SocketException {
+        // ignored
+    }
+
+    public void setSendBufferSize(int sz) throws SocketException {
+        // ignored
+    }
+
+    public void setSoLinger(boolean on, int linger) throws SocketException {
+        // ignored
+    }
+
+    public synchronized void setSoTimeout(int t) throws SocketException {
+        timeout = t;
+        in.setTimeout(t);
+    }
+
+    public void setTcpNoDelay(boolean on) throws SocketException {
+        // ignored
+    }
+
+    public void setTrafficClass(int tc) throws SocketException {
+        // ignored
+    }
+
+    public void shutdownInput() throws IOException {
+        closeInput();
+    }
+
+    public void shutdownOutput() throws IOException {
+        closeOutput();
+    }
+
+    public String toString() {
+        return "ShmVirtualSocket(" + getRemoteSocketAddress() + ")";
+    }
+}
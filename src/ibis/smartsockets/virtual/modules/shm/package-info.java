@@ -0,0 +1,5 @@
+/**
+ * This package contains the implementation of the Shared Memory Virtual
+ * Connection module.
+ */
+package ibis.smartsockets.virtual.modules.shm;
@@ -0,0 +1,910 @@
+package ibis.smartsockets.virtual.modules.udp;
+
+import ibis.smartsockets.SmartSocketsProperties;
+import ibis.smartsockets.direct.DirectSocketAddress;
+import ibis.smartsockets.hub.ReflectorProtocol;
+import ibis.smartsockets.util.ThreadPool;
+import ibis.smartsockets.util.TypedProperties;
+import ibis.smartsockets.virtual.NonFatalIOException;
+import ibis.smartsockets.virtual.VirtualServerSocket;
+import ibis.smartsockets.virtual.VirtualSocket;
+import ibis.smartsockets.virtual.VirtualSocketAddress;
+import ibis.smartsockets.virtual.modules.AbstractDirectModule;
+import ibis.smartsockets.virtual.modules.MessagingModule;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Sets up connections over UDP, punching holes in NATs and firewalls on the
+ * way.
+ *
+ * Every VirtualSocketFactory that uses this module has a single UDP socket,
+ * which is shared by all its connections. To set up a connection, both sides
+ * exchange their UDP endpoints through the hubs: the local addresses of the
+ * machine and the address and port from which the hub sees their packets
+ * arrive. The latter is the mapping created by a NAT, if there is one. Both
+ * sides then send probes to all endpoints of the other side. Sending a probe
+ * opens the NAT of the sender for packets of the other side, so once both
+ * sides have sent a probe, packets get through in both directions (unless a
+ * NAT uses a different mapping for every destination).
+ *
+ * The first endpoint that answers is used for a reliable stream, implemented
+ * by UdpConnection. The handshake with the target server socket is the same
+ * as in the direct module.
+ *
+ * The mapping of the NAT can only be found if the hubs run a UDP reflector
+ * (see {@link SmartSocketsProperties#HUB_UDP_REFLECTOR}), which is off by
+ * default. Without it, only the local endpoints are tried.
+ */
+public class Udp extends MessagingModule implements UdpProtocol {
+
+    private static final int DEFAULT_CONNECT_TIMEOUT = 5000;
+
+    private static final int PLEASE_CONNECT = 1;
+    private static final int CONNECT_ACK    = 2;
+
+    private static final byte OK             = 20;
+    private static final byte PORT_NOT_FOUND = 21;
+    private static final byte UNREACHABLE    = 22;
+
+    private static final int PROBE_INTERVAL = 100;
+
+    // Limits the number of endpoints a peer may ask us to probe.
+    private static final int MAX_ENDPOINTS = 16;
+
+    private static final int REFLECT_INTERVAL = 250;
+    private static final int REFLECT_TIMEOUT = 1000;
+
+    // How long a mapping found by a hub is used, or a failure remembered.
+    private static final long OBSERVED_TIMEOUT = 60000;
+    private static final long OBSERVED_RETRY = 10000;
+
+    private final HashMap<Integer, UdpConnection> connections =
+        new HashMap<Integer, UdpConnection>();
+
+    private UdpConnection [] snapshot = new UdpConnection[0];
+    private boolean changed = false;
+
+    private final Random random = new Random();
+
+    private DatagramChannel channel;
+
+    private int port = 0;
+    private int packetSize = 1400;
+    private int window = 1024;
+
+    private InetSocketAddress gateway;
+    private final ByteBuffer gatewayBuffer = ByteBuffer.allocate(64*1024);
+
+    private DirectSocketAddress local;
+    private InetSocketAddress [] localEndpoints;
+
+    // The endpoint as seen by a hub.
+    private final Object reflectLock = new Object();
+    private InetSocketAddress observed;
+    private long observedTime = 0;
+    private int reflectNonce = 0;
+    private InetSocketAddress reflected;
+
+    private volatile Thread timer;
+    private volatile long timerDeadline = 0;
+
+    private volatile boolean done = false;
+
+    public Udp() {
+        super("ConnectModule(Udp)", true);
+    }
+
+    public void initModule(TypedProperties properties) throws Exception {
+
+        port = properties.getIntProperty(SmartSocketsProperties.UDP_PORT, 0);
+
+        packetSize = properties.getIntProperty(
+                SmartSocketsProperties.UDP_PACKET_SIZE, packetSize);
+
+        if (packetSize < ACK_SIZE || packetSize > 65000) {
+            throw new Exception(module + ": illegal packet size "
+                    + packetSize);
+        }
+
+        window = properties.getIntProperty(SmartSocketsProperties.UDP_WINDOW,
+                window);
+
+        if (window < 2) {
+            throw new Exception(module + ": illegal window " + window);
+        }
+
+        String tmp = properties.getProperty(SmartSocketsProperties.UDP_GATEWAY);
+
+        if (tmp != null && tmp.length() > 0) {
+            int index = tmp.lastIndexOf(':');
+
+            gateway = new InetSocketAddress(
+                    InetAddress.getByName(tmp.substring(0, index)),
+                    Integer.parseInt(tmp.substring(index + 1)));
+
+            logger.warn(module + ": sending all packets through NAT "
+                    + "emulator at " + gateway);
+        }
+
+        channel = DatagramChannel.open();
+        channel.socket().bind(new InetSocketAddress(port));
+        port = channel.socket().getLocalPort();
+
+        if (logger.isInfoEnabled()) {
+            logger.info(module + ": using UDP port " + port);
+        }
+    }
+
+    public void startModule() throws Exception {
+
+        if (serviceLink == null) {
+            throw new Exception(module + ": no service link available!");
+        }
+
+        // The machine address is only complete once all modules are loaded.
+        local = parent.getLocalHost();
+
+        ArrayList<InetSocketAddress> tmp = new ArrayList<InetSocketAddress>();
+
+        addEndpoints(tmp, local.getPublicAddresses());
+        addEndpoints(tmp, local.getPrivateAddresses());
+
+        localEndpoints = tmp.toArray(new InetSocketAddress[tmp.size()]);
+
+        ThreadPool.createNew(new Runnable() {
+            public void run() {
+                receive();
+            }
+        }, "Udp Receiver");
+
+        ThreadPool.createNew(new Runnable() {
+            public void run() {
+                timer();
+            }
+        }, "Udp Timer");
+    }
+
+    private void addEndpoints(ArrayList<InetSocketAddress> list,
+            InetSocketAddress [] addresses) {
+
+        for (InetSocketAddress a : addresses) {
+            InetSocketAddress e = new InetSocketAddress(a.getAddress(), port);
+
+            if (!list.contains(e)) {
+                list.add(e);
+            }
+        }
+    }
+
+    public DirectSocketAddress getAddresses() {
+        // Nothing to do here, the endpoints are exchanged per connection.
+        return null;
+    }
+
+    public boolean matchAdditionalRuntimeRequirements(Map<String, ?> requirements) {
+        // No additional properties, so always matches requirements.
+        return true;
+    }
+
+    @Override
+    public int getDefaultTimeout() {
+        return DEFAULT_CONNECT_TIMEOUT;
+    }
+
+    // Connections ----------------------------------------------------------
+
+    private synchronized UdpConnection createConnection() {
+
+        int id = 0;
+
+        while (id == 0 || connections.containsKey(id)) {
+            id = random.nextInt();
+        }
+
+        UdpConnection c = new UdpConnection(this, id, window, packetSize);
+        connections.put(id, c);
+        changed = true;
+        return c;
+    }
+
+    private synchronized UdpConnection getConnection(int id) {
+        return connections.get(id);
+    }
+
+    private synchronized void removeConnection(UdpConnection c) {
+        if (connections.get(c.id) == c) {
+            connections.remove(c.id);
+            changed = true;
+        }
+    }
+
+    private synchronized UdpConnection [] getConnections() {
+
+        if (changed) {
+            snapshot = connections.values().toArray(
+                    new UdpConnection[connections.size()]);
+            changed = false;
+        }
+
+        return snapshot;
+    }
+
+    // Sends a probe to all candidates until the peer answers, or the
+    // deadline passes.
+    private boolean punch(UdpConnection c, InetSocketAddress [] candidates,
+            long deadline) {
+
+        if (candidates == null || candidates.length == 0) {
+            return false;
+        }
+
+        while (!done) {
+
+            for (InetSocketAddress a : candidates) {
+                c.sendProbe(PROBE, a, 0);
+            }
+
+            long left = deadline - System.currentTimeMillis();
+
+            if (left <= 0) {
+                return false;
+            }
+
+            if (c.waitForPeer(Math.min(left, PROBE_INTERVAL))) {
+
+                if (logger.isInfoEnabled()) {
+                    logger.info(module + ": reached peer at " + c.getPeer());
+                }
+
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    public VirtualSocket connect(VirtualSocketAddress target, int timeout,
+            Map<String, Object> properties) throws NonFatalIOException,
+            IOException {
+
+        if (target.machine().sameProcess(local)) {
+            throw new NonFatalIOException("Cannot setup a connection to "
+                    + "myself!");
+        }
+
+        if (timeout <= 0) {
+            timeout = DEFAULT_CONNECT_TIMEOUT;
+        }
+
+        long deadline = System.currentTimeMillis() + timeout;
+
+        InetSocketAddress [] endpoints = getEndpoints(deadline);
+
+        UdpConnection c = createConnection();
+
+        try {
+            serviceLink.send(target.machine(), target.hub(), module,
+                    PLEASE_CONNECT, new byte[][] {
+                        fromInt(c.id),
+                        fromInt(target.port()),
+                        fromEndpoints(endpoints),
+                        fromInt(timeout) });
+
+            // The probes of the target may arrive before its reply.
+            byte reply = c.waitForReply(deadline);
+
+            if (c.getPeer() == null) {
+
+                switch (reply) {
+                case OK:
+                    break;
+
+                case PORT_NOT_FOUND:
+                    throw new SocketException("Remote port not found");
+
+                case 0:
+                    throw new NonFatalIOException("Target machine did not "
+                            + "reply within " + timeout + " ms.");
+
+                default:
+                    throw new NonFatalIOException("Target machine is not "
+                            + "reachable");
+                }
+
+                if (!punch(c, c.getCandidates(), deadline)) {
+                    throw new NonFatalIOException("Failed to reach "
+                            + target + " at "
+                            + Arrays.toString(c.getCandidates()));
+                }
+            }
+
+        } catch (IOException e) {
+            c.end();
+            removeConnection(c);
+            throw e;
+        }
+
+        // The rest of the handshake is done in waitForAccept.
+        return new UdpVirtualSocket(target, c);
+    }
+
+    private void handleConnect(DirectSocketAddress src,
+            DirectSocketAddress srcHub, byte [][] message) {
+
+        if (message == null || message.length != 4) {
+            logger.warn(module + ": malformed connect message " + src + "@"
+                    + srcHub + "\"" +  Arrays.deepToString(message) + "\"");
+            return;
+        }
+
+        final DirectSocketAddress source = src;
+        final DirectSocketAddress sourceHub = srcHub;
+
+        final int remoteId;
+        final int port;
+        final InetSocketAddress [] candidates;
+        final int timeout;
+
+        try {
+            remoteId = toInt(message[0]);
+            port = toInt(message[1]);
+            candidates = toEndpoints(message[2]);
+            timeout = toInt(message[3]);
+        } catch (Exception e) {
+            logger.warn(module + ": failed to parse connect message " + src
+                    + "@" + srcHub + "\"" +  Arrays.deepToString(message)
+                    + "\"", e);
+            return;
+        }
+
+        ThreadPool.createNew(new Runnable() {
+            public void run() {
+                try {
+                    doAccept(source, sourceHub, remoteId, port, candidates,
+                            timeout);
+                } catch (Throwable e) {
+                    logger.warn(module + ": Got exception during connection "
+                            + "setup!", e);
+                }
+            }
+        }, "Udp Request Handler");
+    }
+
+    private void doAccept(DirectSocketAddress src, DirectSocketAddress srcHub,
+            int remoteId, int port, InetSocketAddress [] candidates,
+            int timeout) throws IOException {
+
+        byte [] id = fromInt(remoteId);
+
+        VirtualServerSocket vss = parent.getServerSocket(port);
+
+        if (vss == null) {
+            if (logger.isDebugEnabled()) {
+                logger.debug(module + ": Connection failed, PORT " + port
+                        + " not found!");
+            }
+
+            serviceLink.send(src, srcHub, module, CONNECT_ACK, new byte[][] {
+                    id, new byte[] { PORT_NOT_FOUND }});
+            return;
+        }
+
+        // The timeout comes from the peer, so do not let it keep us busy
+        // for longer than our own connection setup would take.
+        if (timeout <= 0 || timeout > DEFAULT_CONNECT_TIMEOUT) {
+            timeout = DEFAULT_CONNECT_TIMEOUT;
+        }
+
+        long deadline = System.currentTimeMillis() + timeout;
+
+        InetSocketAddress [] endpoints = getEndpoints(deadline);
+
+        UdpConnection c = createConnection();
+        c.setRemote(remoteId, candidates);
+
+        serviceLink.send(src, srcHub, module, CONNECT_ACK, new byte[][] {
+                id, new byte[] { OK }, fromInt(c.id),
+                fromEndpoints(endpoints) });
+
+        if (!punch(c, candidates, deadline)) {
+            if (logger.isInfoEnabled()) {
+                logger.info(module + ": Failed to reach " + src + " at "
+                        + Arrays.toString(candidates));
+            }
+
+            c.end();
+            removeConnection(c);
+            return;
+        }
+
+        UdpVirtualSocket vs =
+            new UdpVirtualSocket(new VirtualSocketAddress(src, 0), c);
+
+        int accept = vss.incomingConnection(vs);
+
+        if (accept != 0) {
+
+            if (logger.isInfoEnabled()) {
+                logger.info(module + ": Connection failed for port " + port
+                        + ": " + (accept < 0 ? "REFUSED" : "OVERLOAD"));
+            }
+
+            vs.reject(accept == -1
+                    ? AbstractDirectModule.CONNECTION_REJECTED
+                    : AbstractDirectModule.SERVER_OVERLOAD);
+        }
+    }
+
+    private void handleReply(DirectSocketAddress src,
+            DirectSocketAddress srcHub, byte [][] message) {
+
+        if (message == null || !(message.length == 2 || message.length == 4)
+                || message[1] == null || message[1].length != 1) {
+            logger.warn(module + ": malformed connect ack " + src + "@"
+                    + srcHub + "\"" +  Arrays.deepToString(message) + "\"");
+            return;
+        }
+
+        UdpConnection c = getConnection(toInt(message[0]));
+
+        if (c == null) {
+            if (logger.isInfoEnabled()) {
+                logger.info(module + ": ACK dropped, no one is listening!");
+            }
+            return;
+        }
+
+        try {
+            if (message.length == 4) {
+                c.setReply(message[1][0], toInt(message[2]),
+                        toEndpoints(message[3]));
+            } else {
+                c.setReply(message[1][0], 0, null);
+            }
+        } catch (Exception e) {
+            logger.warn(module + ": failed to parse connect ack " + src
+                    + "@" + srcHub + "\"" +  Arrays.deepToString(message)
+                    + "\"", e);
+            c.setReply(UNREACHABLE, 0, null);
+        }
+    }
+
+    public void gotMessage(DirectSocketAddress src, DirectSocketAddress srcHub,
+            int opcode, boolean returnToSender, byte [][] message) {
+
+        if (logger.isDebugEnabled()) {
+            logger.debug(module + ": got message " + src + "@" + srcHub + " "
+                    + opcode + " \"" +  Arrays.deepToString(message) + "\"");
+        }
+
+        if (returnToSender) {
+            // Our request could not be delivered.
+            if (opcode == PLEASE_CONNECT && message != null
+                    && message.length > 0 && message[0] != null
+                    && message[0].length == 4) {
+
+                UdpConnection c = getConnection(toInt(message[0]));
+
+                if (c != null) {
+                    c.setReply(UNREACHABLE, 0, null);
+                }
+            }
+
+            return;
+        }
+
+        switch (opcode) {
+        case PLEASE_CONNECT:
+            handleConnect(src, srcHub, message);
+            break;
+
+        case CONNECT_ACK:
+            handleReply(src, srcHub, message);
+            break;
+
+        default:
+            logger.warn(module + ": ignoring message " + src + "@" + srcHub
+                    + " " + opcode + "\"" +  Arrays.deepToString(message)
+                    + "\"");
+        }
+    }
+
+    // Endpoints ------------------------------------------------------------
+
+    private static void writeEndpoint(ByteBuffer b, InetSocketAddress a) {
+        byte [] tmp = a.getAddress().getAddress();
+        b.put((byte) tmp.length);
+        b.put(tmp);
+        b.putShort((short) a.getPort());
+    }
+
+    private static InetSocketAddress readEndpoint(ByteBuffer b)
+        throws IOException {
+
+        int len = b.get() & 0xff;
+
+        if (len != 4 && len != 16) {
+            throw new IOException("Illegal address length " + len);
+        }
+
+        byte [] tmp = new byte[len];
+        b.get(tmp);
+
+        return new InetSocketAddress(InetAddress.getByAddress(tmp),
+                b.getShort() & 0xffff);
+    }
+
+    private static byte [] fromEndpoints(InetSocketAddress [] endpoints) {
+
+        ByteBuffer b = ByteBuffer.allocate(endpoints.length * 19);
+
+        for (InetSocketAddress a : endpoints) {
+            writeEndpoint(b, a);
+        }
+
+        byte [] result = new byte[b.position()];
+        b.flip();
+        b.get(result);
+        return result;
+    }
+
+    private static InetSocketAddress [] toEndpoints(byte [] m)
+        throws IOException {
+
+        ArrayList<InetSocketAddress> tmp = new ArrayList<InetSocketAddress>();
+        ByteBuffer b = ByteBuffer.wrap(m);
+
+        while (b.hasRemaining()) {
+
+            if (tmp.size() == MAX_ENDPOINTS) {
+                throw new IOException("More than " + MAX_ENDPOINTS
+                        + " endpoints");
+            }
+
+            tmp.add(readEndpoint(b));
+        }
+
+        return tmp.toArray(new InetSocketAddress[tmp.size()]);
+    }
+
+    private InetSocketAddress [] getEndpoints(long deadline) {
+
+        InetSocketAddress o = getObserved(deadline);
+
+        ArrayList<InetSocketAddress> result =
+            new ArrayList<InetSocketAddress>();
+
+        if (o != null && !Arrays.asList(localEndpoints).contains(o)) {
+            result.add(o);
+        }
+
+        result.addAll(Arrays.asList(localEndpoints));
+
+        // The peer refuses longer lists, so leave out the last local ones.
+        while (result.size() > MAX_ENDPOINTS) {
+            result.remove(result.size() - 1);
+        }
+
+        return result.toArray(new InetSocketAddress[result.size()]);
+    }
+
+    private InetSocketAddress [] getReflectors() {
+
+        DirectSocketAddress [] hubs = null;
+        DirectSocketAddress hub = serviceLink.getCurrentHub();
+
+        if (hub != null) {
+            hubs = new DirectSocketAddress[] { hub };
+        } else {
+            try {
+                hubs = serviceLink.hubs();
+            } catch (IOException e) {
+                logger.info(module + ": Failed to retrieve hub list!", e);
+            }
+        }
+
+        ArrayList<InetSocketAddress> result =
+            new ArrayList<InetSocketAddress>();
+
+        if (hubs != null) {
+            for (DirectSocketAddress h : hubs) {
+                result.addAll(Arrays.asList(h.getPublicAddresses()));
+                result.addAll(Arrays.asList(h.getPrivateAddresses()));
+            }
+        }
+
+        return result.toArray(new InetSocketAddress[result.size()]);
+    }
+
+    // Asks a hub from which address and port our packets arrive. The answer
+    // is cached, since NATs keep a mapping for some time.
+    private InetSocketAddress getObserved(long deadline) {
+
+        synchronized (reflectLock) {
+
+            long now = System.currentTimeMillis();
+
+            if (observedTime != 0 && now - observedTime
+                    < (observed == null ? OBSERVED_RETRY : OBSERVED_TIMEOUT)) {
+                return observed;
+            }
+
+            InetSocketAddress [] reflectors = getReflectors();
+
+            reflectNonce = random.nextInt();
+            reflected = null;
+
+            ByteBuffer b = ByteBuffer.allocate(ReflectorProtocol.REQUEST_SIZE);
+            b.putInt(ReflectorProtocol.MAGIC);
+            b.put(ReflectorProtocol.REFLECT_REQUEST);
+            b.putInt(reflectNonce);
+
+            long end = Math.min(deadline, now + REFLECT_TIMEOUT);
+
+            while (reflected == null && now < end && reflectors.length > 0) {
+
+                for (InetSocketAddress a : reflectors) {
+                    b.flip();
+                    send(b, a);
+                }
+
+                try {
+                    reflectLock.wait(Math.min(end - now, REFLECT_INTERVAL));
+                } catch (InterruptedException e) {
+                    break;
+                }
+
+                now = System.currentTimeMillis();
+            }
+
+            observed = reflected;
+            observedTime = System.currentTimeMillis();
+
+            if (logger.isInfoEnabled()) {
+                logger.info(module + ": hub sees our packets from "
+                        + observed);
+            }
+
+            return observed;
+        }
+    }
+
+    private void handleReflect(ByteBuffer b) throws IOException {
+
+        int nonce = b.getInt();
+        InetSocketAddress a = readEndpoint(b);
+
+        synchronized (reflectLock) {
+            if (nonce == reflectNonce && reflected == null) {
+                reflected = a;
+                reflectLock.notifyAll();
+            }
+        }
+    }
+
+    // Packets --------------------------------------------------------------
+
+    void send(ByteBuffer b, InetSocketAddress to) {
+
+        try {
+            if (gateway == null) {
+                channel.send(b, to);
+                return;
+            }
+
+            synchronized (gatewayBuffer) {
+                gatewayBuffer.clear();
+                writeEndpoint(gatewayBuffer, to);
+                gatewayBuffer.put(b);
+                gatewayBuffer.flip();
+                channel.send(gatewayBuffer, gateway);
+            }
+        } catch (Exception e) {
+            if (logger.isDebugEnabled()) {
+                logger.debug(module + ": failed to send packet to " + to, e);
+            }
+        }
+    }
+
+    private void receive() {
+
+        ByteBuffer b = ByteBuffer.allocate(64*1024);
+
+        while (!done) {
+            try {
+                b.clear();
+
+                InetSocketAddress from = (InetSocketAddress) channel.receive(b);
+
+                b.flip();
+
+                if (gateway != null) {
+                    if (!gateway.equals(from)) {
+                        continue;
+                    }
+
+                    from = readEndpoint(b);
+                }
+
+                handlePacket(from, b);
+
+            } catch (BufferUnderflowException e) {
+                if (logger.isDebugEnabled()) {
+                    logger.debug(module + ": dropping truncated packet");
+                }
+            } catch (Throwable e) {
+                if (!done) {
+                    logger.warn(module + ": failed to handle packet", e);
+                }
+            }
+        }
+    }
+
+    private void handlePacket(InetSocketAddress from, ByteBuffer b)
+        throws IOException {
+
+        if (b.remaining() < ReflectorProtocol.REQUEST_SIZE
+                || b.getInt() != MAGIC) {
+            return;
+        }
+
+        byte type = b.get();
+
+        if (type == ReflectorProtocol.REFLECT_REPLY) {
+            handleReflect(b);
+            return;
+        }
+
+        if (b.remaining() < HEADER_SIZE - 5) {
+            return;
+        }
+
+        UdpConnection c = getConnection(b.getInt());
+
+        switch (type) {
+        case PROBE:
+        case PROBE_ACK:
+            if (c != null) {
+                int sender = b.getInt();
+                b.getInt();
+                b.getInt();
+                int ts = b.getInt();
+                int echo = b.getInt();
+
+                if (c.probed(from, sender, ts, echo, System.nanoTime())
+                        && type == PROBE) {
+                    c.sendProbe(PROBE_ACK, from, ts);
+                }
+            }
+            break;
+
+        case DATA:
+        case ACK:
+            if (c != null) {
+                c.receive(from, type, b, System.nanoTime());
+            } else if (type == DATA) {
+                sendReset(from, b.getInt(5));
+            }
+            break;
+
+        case RST:
+            if (c != null) {
+                c.receive(from, type, b, System.nanoTime());
+            } else {
+                // The peer did not know its connection, only ours.
+                reset(from, b.getInt());
+            }
+            break;
+
+        default:
+            if (logger.isDebugEnabled()) {
+                logger.debug(module + ": dropping packet of type " + type
+                        + " from " + from);
+            }
+        }
+    }
+
+    // Tells the sender of a packet for an unknown connection to give up.
+    // Since we do not know the id of its connection, the RST carries our
+    // (unknown) id instead.
+    private void sendReset(InetSocketAddress to, int id) {
+
+        ByteBuffer r = ByteBuffer.allocate(HEADER_SIZE);
+        r.putInt(MAGIC);
+        r.put(RST);
+        r.putInt(0);
+        r.putInt(id);
+        r.putInt(0);
+        r.putInt(0);
+        r.putInt(0);
+        r.putInt(0);
+        r.put((byte) 0);
+        r.flip();
+
+        send(r, to);
+    }
+
+    private void reset(InetSocketAddress from, int remoteId) {
+
+        for (UdpConnection c : getConnections()) {
+            if (c.getRemoteId() == remoteId && from.equals(c.getPeer())) {
+                c.reset();
+            }
+        }
+    }
+
+    // Timer ----------------------------------------------------------------
+
+    // Makes sure the timer thread runs at (or before) the given time.
+    void schedule(long deadline) {
+
+        if (deadline - timerDeadline < 0) {
+            timerDeadline = deadline;
+            LockSupport.unpark(timer);
+        }
+    }
+
+    private void timer() {
+
+        timer = Thread.currentThread();
+
+        while (!done) {
+
+            long now = System.nanoTime();
+            long next = now + 1000L * 1000L * 1000L;
+
+            for (UdpConnection c : getConnections()) {
+
+                long t = c.timeout(now);
+
+                if (t == -1) {
+                    removeConnection(c);
+                } else if (t != 0 && t - next < 0) {
+                    next = t;
+                }
+            }
+
+            timerDeadline = next;
+
+            long left = next - System.nanoTime();
+
+            if (left > 0) {
+                LockSupport.parkNanos(left);
+            }
+        }
+    }
+
+    public void end() {
+
+        if (done) {
+            return;
+        }
+
+        done = true;
+
+        for (UdpConnection c : getConnections()) {
+            c.end();
+        }
+
+        LockSupport.unpark(timer);
+
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // ignore
+        }
+    }
+}
@@ -0,0 +1,1268 @@
+package ibis.smartsockets.virtual.modules.udp;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+
+/**
+ * A reliable byte stream over UDP.
+ *
+ * The stream is cut into packets, which are numbered consecutively. The
+ * receiver acknowledges the next packet it expects and, when packets arrive
+ * out of order, the blocks of packets it already has (selective ACK). The
+ * sender retransmits a packet once three later packets have been
+ * acknowledged, or when no acknowledgements arrive within the retransmission
+ * timeout, which is derived from the measured round trip time.
+ *
+ * The number of packets in flight is limited by the receive window of the
+ * peer and by a congestion window, which grows exponentially (slow start) and
+ * later linearly, and is halved on every loss (or reset after a timeout).
+ * Packets are paced over the round trip time instead of being sent in bursts.
+ * Windows are counted in packets, so they do not need scaling.
+ *
+ * All state is protected by the lock of the connection. Packets are handled
+ * by the receiver thread of the module, timeouts by its timer thread.
+ */
+final class UdpConnection implements UdpProtocol {
+
+    private static final int INITIAL_WINDOW = 10;
+
+    private static final int DUP_THRESHOLD = 3;
+
+    private static final int MAX_RETRIES = 10;
+
+    private static final int MAX_BACKOFF = 64;
+
+    private static final long MS = 1000L * 1000L;
+
+    private static final long INITIAL_RTO = 1000 * MS;
+    private static final long MIN_RTO = 50 * MS;
+    private static final long MAX_RTO = 10000 * MS;
+
+    private static final long DELAYED_ACK = 5 * MS;
+
+    private static final long PACING_SLACK = 1 * MS;
+
+    // Time to keep answering the peer after both sides are done.
+    private static final long TIME_WAIT = 1000 * MS;
+
+    // Time to wait for the peer to close after we did.
+    private static final long LINGER = 30000 * MS;
+
+    private static final class Segment {
+
+        final byte [] data;
+        int len;
+        boolean fin;
+
+        // Only used by the sender, sent is the number of the transmission.
+        long sent;
+        int tx;
+        boolean sacked;
+        boolean lost;
+
+        Segment(byte [] data, int len) {
+            this.data = data;
+            this.len = len;
+        }
+    }
+
+    private final Udp module;
+
+    final int id;
+
+    private final int capacity;
+    private final int mask;
+    private final int mss;
+
+    private final ByteBuffer out;
+
+    // Set during connection setup.
+    private int remoteId = 0;
+    private InetSocketAddress peer;
+    private byte reply = 0;
+    private InetSocketAddress [] candidates;
+
+    // Send side. Packets in [sndUna, sndNxt) are in flight, packets in
+    // [sndNxt, sndEnd) are waiting to be sent.
+    private final Segment [] sendBuffer;
+
+    private int sndUna = 0;
+    private int sndNxt = 0;
+    private int sndEnd = 0;
+
+    // Right edge of the receive window of the peer.
+    private int sndEdge = INITIAL_WINDOW;
+
+    // Number of packets in flight that are not acknowledged or lost.
+    private int pipe = 0;
+    private int lost = 0;
+    private int highSack = 0;
+
+    private double cwnd = INITIAL_WINDOW;
+    private int ssthresh;
+    private boolean recovery = false;
+    private int recover = 0;
+
+    private long srtt = 0;
+    private long rttvar = 0;
+    private int backoff = 1;
+    private int retries = 0;
+    private boolean heard = false;
+
+    // Number of packets transmitted, including retransmissions.
+    private long transmissions = 0;
+
+    private long rtoDeadline = 0;
+    private long probeDeadline = 0;
+    private boolean probed = false;
+    private long paceDeadline = 0;
+    private long nextSend = 0;
+
+    private boolean finQueued = false;
+
+    // Receive side. Packets in [rcvRead, rcvNxt) are ready to be read,
+    // packets after rcvNxt arrived out of order.
+    private final Segment [] receiveBuffer;
+
+    private int rcvRead = 0;
+    private int readOffset = 0;
+    private int rcvNxt = 0;
+    private int rcvHigh = 0;
+    private int lastReceived = 0;
+    private int rcvEdge;
+
+    private int ackPending = 0;
+    private long ackDeadline = 0;
+    private int echo = 0;
+
+    private boolean finReceived = false;
+
+    private boolean inputShutdown = false;
+
+    private boolean closed = false;
+    private long closedAt = 0;
+    private long timeWait = 0;
+
+    private IOException error;
+
+    private int timeout = 0;
+
+    private final InputStream in = new InputStream() {
+
+        private final byte [] tmp = new byte[1];
+
+        public int read() throws IOException {
+            synchronized (UdpConnection.this) {
+                if (UdpConnection.this.read(tmp, 0, 1) == -1) {
+                    return -1;
+                }
+
+                return tmp[0] & 0xff;
+            }
+        }
+
+        public int read(byte [] b, int off, int len) throws IOException {
+            return UdpConnection.this.read(b, off, len);
+        }
+
+        public int available() throws IOException {
+            return UdpConnection.this.available();
+        }
+
+        public void close() throws IOException {
+            UdpConnection.this.close();
+        }
+    };
+
+    private final OutputStream outStream = new OutputStream() {
+
+        public void write(int b) throws IOException {
+            UdpConnection.this.write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        public void write(byte [] b, int off, int len) throws IOException {
+            UdpConnection.this.write(b, off, len);
+        }
+
+        public void close() throws IOException {
+            UdpConnection.this.close();
+        }
+    };
+
+    UdpConnection(Udp module, int id, int window, int packetSize) {
+
+        this.module = module;
+        this.id = id;
+
+        int tmp = 2;
+
+        while (tmp < window) {
+            tmp *= 2;
+        }
+
+        capacity = tmp;
+        mask = capacity - 1;
+        mss = packetSize - HEADER_SIZE;
+
+        ssthresh = capacity;
+        rcvEdge = capacity;
+
+        sendBuffer = new Segment[capacity];
+        receiveBuffer = new Segment[capacity];
+
+        out = ByteBuffer.allocate(Math.max(packetSize, ACK_SIZE));
+    }
+
+    private static boolean before(int a, int b) {
+        return a - b < 0;
+    }
+
+    private static int timestamp(long now) {
+        int t = (int) (now / 1000);
+        return t == 0 ? 1 : t;
+    }
+
+    InputStream getInputStream() {
+        return in;
+    }
+
+    OutputStream getOutputStream() {
+        return outStream;
+    }
+
+    int getBufferSize() {
+        return capacity * mss;
+    }
+
+    synchronized void setTimeout(int timeout) {
+        this.timeout = timeout;
+    }
+
+    synchronized int getTimeout() {
+        return timeout;
+    }
+
+    // Connection setup -----------------------------------------------------
+
+    synchronized void setReply(byte reply, int remoteId,
+            InetSocketAddress [] candidates) {
+
+        if (this.reply == 0) {
+            this.reply = reply;
+            this.candidates = candidates;
+
+            if (this.remoteId == 0) {
+                this.remoteId = remoteId;
+            }
+
+            notifyAll();
+        }
+    }
+
+    synchronized void setRemote(int remoteId, InetSocketAddress [] candidates) {
+        this.remoteId = remoteId;
+        this.candidates = candidates;
+    }
+
+    synchronized InetSocketAddress [] getCandidates() {
+        return candidates;
+    }
+
+    synchronized int getRemoteId() {
+        return remoteId;
+    }
+
+    synchronized InetSocketAddress getPeer() {
+        return peer;
+    }
+
+    // Waits until a reply to a connection request arrived, or the peer was
+    // found, and returns the reply (or 0).
+    synchronized byte waitForReply(long deadline) {
+
+        long left = deadline - System.currentTimeMillis();
+
+        while (reply == 0 && peer == null && left > 0) {
+            try {
+                wait(left);
+            } catch (InterruptedException e) {
+                break;
+            }
+
+            left = deadline - System.currentTimeMillis();
+        }
+
+        return reply;
+    }
+
+    synchronized boolean waitForPeer(long time) {
+
+        long deadline = System.currentTimeMillis() + time;
+        long left = time;
+
+        while (peer == null && left > 0) {
+            try {
+                wait(left);
+            } catch (InterruptedException e) {
+                break;
+            }
+
+            left = deadline - System.currentTimeMillis();
+        }
+
+        return peer != null;
+    }
+
+    // Handles a PROBE or PROBE_ACK, which proves that packets from the peer
+    // reach us through the given address. Returns if the probe should be
+    // answered.
+    synchronized boolean probed(InetSocketAddress from, int sender, int ts,
+            int echo, long now) {
+
+        if (remoteId == 0) {
+            remoteId = sender;
+        } else if (remoteId != sender) {
+            return false;
+        }
+
+        if (peer == null && !closed) {
+            peer = from;
+
+            if (echo != 0) {
+                updateRtt(timestamp(now) - echo);
+            }
+
+            notifyAll();
+        }
+
+        return true;
+    }
+
+    void sendProbe(byte type, InetSocketAddress to, int echo) {
+
+        ByteBuffer b = ByteBuffer.allocate(HEADER_SIZE);
+
+        synchronized (this) {
+            b.putInt(MAGIC);
+            b.put(type);
+            b.putInt(remoteId);
+            b.putInt(id);
+            b.putInt(0);
+            b.putInt(0);
+            b.putInt(timestamp(System.nanoTime()));
+            b.putInt(echo);
+            b.put((byte) 0);
+        }
+
+        b.flip();
+        module.send(b, to);
+    }
+
+    // Sending --------------------------------------------------------------
+
+    private int window() {
+        rcvEdge = rcvRead + capacity;
+        return rcvEdge - rcvNxt;
+    }
+
+    private void header(byte type, int seq, long now) {
+
+        out.clear();
+        out.putInt(MAGIC);
+        out.put(type);
+        out.putInt(remoteId);
+        out.putInt(seq);
+        out.putInt(rcvNxt);
+        out.putInt(window());
+        out.putInt(timestamp(now));
+        out.putInt(echo);
+
+        // Every packet acknowledges all data received so far.
+        ackPending = 0;
+        ackDeadline = 0;
+    }
+
+    private void transmit(int seq, Segment s, long now) {
+
+        header(DATA, seq, now);
+        out.put(s.fin ? FLAG_FIN : 0);
+        out.put(s.data, 0, s.len);
+        out.flip();
+
+        module.send(out, peer);
+
+        s.sent = ++transmissions;
+        s.tx++;
+
+        if (rtoDeadline == 0) {
+            armTimers(now);
+        }
+    }
+
+    private void sendAck(long now) {
+
+        if (peer == null) {
+            return;
+        }
+
+        header(ACK, sndNxt, now);
+        out.put((byte) 0);
+
+        int pos = out.position();
+        out.put((byte) 0);
+
+        // Report the blocks of packets received out of order, starting with
+        // the block that contains the last packet that arrived.
+        int blocks = 0;
+        int first = rcvNxt;
+        int firstEnd = rcvNxt;
+
+        if (before(rcvNxt, lastReceived)
+                && receiveBuffer[lastReceived & mask] != null) {
+
+            first = lastReceived;
+            firstEnd = lastReceived + 1;
+
+            while (before(rcvNxt, first - 1)
+                    && receiveBuffer[(first - 1) & mask] != null) {
+                first--;
+            }
+
+            while (before(firstEnd, rcvHigh)
+                    && receiveBuffer[firstEnd & mask] != null) {
+                firstEnd++;
+            }
+
+            out.putInt(first);
+            out.putInt(firstEnd);
+            blocks++;
+        }
+
+        int seq = rcvNxt + 1;
+
+        while (blocks < MAX_SACK_BLOCKS && before(seq, rcvHigh)) {
+
+            if (receiveBuffer[seq & mask] == null || seq == first) {
+                seq = (seq == first) ? firstEnd : seq + 1;
+                continue;
+            }
+
+            int start = seq;
+
+            while (before(seq, rcvHigh) && receiveBuffer[seq & mask] != null) {
+                seq++;
+            }
+
+            out.putInt(start);
+            out.putInt(seq);
+            blocks++;
+        }
+
+        out.put(pos, (byte) blocks);
+        out.flip();
+
+        module.send(out, peer);
+    }
+
+    // Starts the retransmission timer, and a shorter timer that resends the
+    // last packet in case it was lost (a tail loss probe), so the loss can be
+    // detected without waiting for the retransmission timeout.
+    private void armTimers(long now) {
+
+        rtoDeadline = now + rto();
+
+        if (srtt > 0 && !probed) {
+            long pto = now + Math.max(2 * srtt, 2 * MS) + DELAYED_ACK;
+
+            if (pto - rtoDeadline < 0) {
+                probeDeadline = pto;
+                module.schedule(probeDeadline);
+                return;
+            }
+        }
+
+        probeDeadline = 0;
+        module.schedule(rtoDeadline);
+    }
+
+    private long rto() {
+
+        long rto = (srtt == 0) ? INITIAL_RTO : srtt + 4 * rttvar;
+
+        if (rto < MIN_RTO) {
+            rto = MIN_RTO;
+        }
+
+        rto *= backoff;
+
+        return rto > MAX_RTO ? MAX_RTO : rto;
+    }
+
+    private void updateRtt(int micros) {
+
+        if (micros < 0) {
+            return;
+        }
+
+        long rtt = micros * 1000L;
+
+        if (srtt == 0) {
+            srtt = rtt;
+            rttvar = rtt / 2;
+        } else {
+            long delta = rtt - srtt;
+            srtt += delta / 8;
+            rttvar += (Math.abs(delta) - rttvar) / 4;
+        }
+    }
+
+    // Returns the first packet that is marked as lost.
+    private int nextLost() {
+
+        for (int seq = sndUna; before(seq, sndNxt); seq++) {
+            Segment s = sendBuffer[seq & mask];
+
+            if (s.lost) {
+                s.lost = false;
+                lost--;
+                return seq;
+            }
+        }
+
+        // Should not happen.
+        lost = 0;
+        return sndNxt;
+    }
+
+    // Sends as many packets as the windows and the pacing rate allow. Lost
+    // packets are retransmitted first.
+    private void pump(long now) {
+
+        if (peer == null || error != null) {
+            return;
+        }
+
+        while (pipe < (int) cwnd) {
+
+            boolean retransmit = lost > 0;
+
+            if (!retransmit
+                    && (sndNxt == sndEnd || !before(sndNxt, sndEdge))) {
+                break;
+            }
+
+            if (srtt > 0 && nextSend - now > PACING_SLACK) {
+                if (paceDeadline == 0) {
+                    paceDeadline = nextSend;
+                    module.schedule(paceDeadline);
+                }
+                return;
+            }
+
+            if (retransmit) {
+                int seq = nextLost();
+
+                if (seq == sndNxt) {
+                    continue;
+                }
+
+                transmit(seq, sendBuffer[seq & mask], now);
+            } else {
+                transmit(sndNxt, sendBuffer[sndNxt & mask], now);
+                sndNxt++;
+            }
+
+            pipe++;
+
+            if (srtt > 0) {
+                // Spread a window over a round trip, a bit faster to allow
+                // the window to grow.
+                double rate = (cwnd < ssthresh ? 2.0 : 1.25) * cwnd;
+                nextSend = Math.max(nextSend, now) + (long) (srtt / rate);
+            }
+        }
+
+        // When the peer has no room, the retransmission timer is used to
+        // probe its window.
+        if (rtoDeadline == 0 && sndNxt != sndEnd) {
+            rtoDeadline = now + rto();
+            module.schedule(rtoDeadline);
+        }
+    }
+
+    synchronized void write(byte [] b, int off, int len) throws IOException {
+
+        while (len > 0) {
+
+            checkOutput();
+
+            Segment last = (sndEnd != sndNxt)
+                ? sendBuffer[(sndEnd - 1) & mask] : null;
+
+            if (last != null && !last.fin && last.len < mss) {
+
+                // Add to a packet that was not sent yet.
+                int n = Math.min(len, mss - last.len);
+                System.arraycopy(b, off, last.data, last.len, n);
+                last.len += n;
+                off += n;
+                len -= n;
+
+            } else if (sndEnd - sndUna < capacity - 1) {
+
+                // Leave room for the FIN.
+                int n = Math.min(len, mss);
+                Segment s = new Segment(new byte[mss], n);
+                System.arraycopy(b, off, s.data, 0, n);
+                sendBuffer[sndEnd & mask] = s;
+                sndEnd++;
+                off += n;
+                len -= n;
+
+            } else {
+                pump(System.nanoTime());
+
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException("Interrupted while "
+                            + "writing");
+                }
+            }
+        }
+
+        pump(System.nanoTime());
+    }
+
+    private void checkOutput() throws IOException {
+
+        if (error != null) {
+            throw new SocketException(error.getMessage());
+        }
+
+        if (closed) {
+            throw new SocketException("Socket closed");
+        }
+
+        if (finQueued) {
+            throw new SocketException("Socket output is shutdown");
+        }
+    }
+
+    private void queueFin() {
+
+        if (finQueued) {
+            return;
+        }
+
+        finQueued = true;
+
+        Segment s = new Segment(new byte[0], 0);
+        s.fin = true;
+        sendBuffer[sndEnd & mask] = s;
+        sndEnd++;
+    }
+
+    synchronized void shutdownOutput() throws IOException {
+
+        checkOutput();
+        queueFin();
+        pump(System.nanoTime());
+    }
+
+    // Receiving ------------------------------------------------------------
+
+    synchronized int available() throws IOException {
+
+        int n = 0;
+
+        for (int seq = rcvRead; before(seq, rcvNxt); seq++) {
+            n += receiveBuffer[seq & mask].len;
+        }
+
+        return n - readOffset;
+    }
+
+    synchronized int read(byte [] b, int off, int len) throws IOException {
+
+        if (len == 0) {
+            return 0;
+        }
+
+        long deadline = 0;
+
+        while (rcvRead == rcvNxt) {
+
+            if (error != null) {
+                throw new SocketException(error.getMessage());
+            }
+
+            if (closed) {
+                throw new SocketException("Socket closed");
+            }
+
+            if (inputShutdown) {
+                return -1;
+            }
+
+            long left = 0;
+
+            if (timeout > 0) {
+                long now = System.currentTimeMillis();
+
+                if (deadline == 0) {
+                    deadline = now + timeout;
+                }
+
+                left = deadline - now;
+
+                if (left <= 0) {
+                    throw new SocketTimeoutException("Timeout occurred while "
+                            + "waiting for data");
+                }
+            }
+
+            try {
+                wait(left);
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException("Interrupted while reading");
+            }
+        }
+
+        int n = 0;
+
+        while (n < len && rcvRead != rcvNxt) {
+
+            Segment s = receiveBuffer[rcvRead & mask];
+
+            if (s.fin) {
+                break;
+            }
+
+            int tmp = Math.min(s.len - readOffset, len - n);
+            System.arraycopy(s.data, readOffset, b, off + n, tmp);
+            readOffset += tmp;
+            n += tmp;
+
+            if (readOffset == s.len) {
+                receiveBuffer[rcvRead & mask] = null;
+                rcvRead++;
+                readOffset = 0;
+            }
+        }
+
+        if (n == 0) {
+            // Reached the FIN of the peer.
+            return -1;
+        }
+
+        // Tell the peer when a large part of the window opened up again.
+        if (rcvRead + capacity - rcvEdge >= capacity / 2) {
+            sendAck(System.nanoTime());
+        }
+
+        return n;
+    }
+
+    synchronized void shutdownInput() {
+        inputShutdown = true;
+        discard();
+        notifyAll();
+    }
+
+    private void discard() {
+
+        while (rcvRead != rcvNxt) {
+
+            Segment s = receiveBuffer[rcvRead & mask];
+
+            if (s.fin) {
+                break;
+            }
+
+            receiveBuffer[rcvRead & mask] = null;
+            rcvRead++;
+        }
+
+        readOffset = 0;
+    }
+
+    // Handles a DATA, ACK or RST packet from the peer.
+    synchronized void receive(InetSocketAddress from, byte type, ByteBuffer b,
+            long now) {
+
+        if (peer == null || !peer.equals(from)) {
+            return;
+        }
+
+        int seq = b.getInt();
+        int ack = b.getInt();
+        int wnd = b.getInt();
+        int ts = b.getInt();
+        int echo = b.getInt();
+        byte flags = b.get();
+
+        if (type == RST) {
+            reset();
+            return;
+        }
+
+        if (error != null) {
+            return;
+        }
+
+        heard = true;
+
+        handleAck(ack, wnd, echo, type == ACK ? b : null, now);
+
+        if (type == DATA) {
+            handleData(seq, ts, (flags & FLAG_FIN) != 0, b, now);
+        }
+
+        pump(now);
+    }
+
+    private void handleAck(int ack, int wnd, int echo, ByteBuffer sack,
+            long now) {
+
+        if (before(sndNxt, ack) || before(ack, sndUna)) {
+            // Acknowledges data we did not send, or an old packet.
+            return;
+        }
+
+        int acked = 0;
+        boolean advanced = ack != sndUna;
+
+        while (sndUna != ack) {
+
+            Segment s = sendBuffer[sndUna & mask];
+
+            if (!s.sacked) {
+                acked++;
+
+                if (s.lost) {
+                    lost--;
+                } else {
+                    pipe--;
+                }
+            }
+
+            sendBuffer[sndUna & mask] = null;
+            sndUna++;
+        }
+
+        if (before(sndEdge, ack + wnd)) {
+            sndEdge = ack + wnd;
+        }
+
+        if (before(highSack, sndUna)) {
+            highSack = sndUna;
+        }
+
+        int sacked = 0;
+
+        if (sack != null && sack.remaining() > 0) {
+
+            int blocks = Math.min(sack.get(), sack.remaining() / 8);
+
+            for (int i = 0; i < blocks; i++) {
+
+                int start = sack.getInt();
+                int end = sack.getInt();
+
+                if (before(start, sndUna)) {
+                    start = sndUna;
+                }
+
+                if (before(sndNxt, end)) {
+                    end = sndNxt;
+                }
+
+                for (int seq = start; before(seq, end); seq++) {
+
+                    Segment s = sendBuffer[seq & mask];
+
+                    if (!s.sacked) {
+                        s.sacked = true;
+                        sacked++;
+
+                        if (s.lost) {
+                            s.lost = false;
+                            lost--;
+                        } else {
+                            pipe--;
+                        }
+                    }
+                }
+
+                if (before(highSack, end)) {
+                    highSack = end;
+                }
+            }
+        }
+
+        acked += sacked;
+
+        if (acked > 0 && echo != 0) {
+            updateRtt(timestamp(now) - echo);
+        }
+
+        if (advanced) {
+            retries = 0;
+            backoff = 1;
+            rtoDeadline = 0;
+            probeDeadline = 0;
+            probed = false;
+
+            if (sndUna != sndNxt) {
+                armTimers(now);
+            }
+
+            if (recovery && !before(sndUna, recover)) {
+                recovery = false;
+            }
+
+            // Wake up writers waiting for room.
+            notifyAll();
+        }
+
+        if (sacked > 0) {
+            detectLoss();
+        }
+
+        if (acked > 0 && !recovery) {
+            if (cwnd < ssthresh) {
+                cwnd += acked;
+            } else {
+                cwnd += acked / cwnd;
+            }
+
+            if (cwnd > capacity) {
+                cwnd = capacity;
+            }
+        }
+    }
+
+    // A packet is lost when at least DUP_THRESHOLD packets that were sent
+    // after it have been acknowledged. With only a few packets in flight the
+    // threshold is lowered, since there will never be that many.
+    private void detectLoss() {
+
+        int threshold = Math.max(1,
+                Math.min(DUP_THRESHOLD, sndNxt - sndUna - 1));
+
+        int count = 0;
+        long latest = 0;
+        boolean found = false;
+
+        for (int seq = highSack - 1; !before(seq, sndUna); seq--) {
+
+            Segment s = sendBuffer[seq & mask];
+
+            if (s.sacked) {
+                count++;
+
+                if (s.sent > latest) {
+                    latest = s.sent;
+                }
+
+            } else if (count >= threshold && !s.lost && s.tx > 0
+                    && s.sent < latest) {
+                s.lost = true;
+                lost++;
+                pipe--;
+                found = true;
+            }
+        }
+
+        if (found && !recovery) {
+            recovery = true;
+            recover = sndNxt;
+            ssthresh = Math.max((int) (cwnd / 2), 2);
+            cwnd = ssthresh;
+        }
+    }
+
+    private void handleData(int seq, int ts, boolean fin, ByteBuffer b,
+            long now) {
+
+        if (before(seq, rcvNxt) || !before(seq, rcvRead + capacity)) {
+            // A duplicate, or beyond our window (a window probe).
+            sendAck(now);
+            return;
+        }
+
+        int slot = seq & mask;
+
+        if (receiveBuffer[slot] != null) {
+            sendAck(now);
+            return;
+        }
+
+        byte [] data = new byte[b.remaining()];
+        b.get(data);
+
+        Segment s = new Segment(data, data.length);
+        s.fin = fin;
+        receiveBuffer[slot] = s;
+
+        lastReceived = seq;
+
+        if (before(rcvHigh, seq + 1)) {
+            rcvHigh = seq + 1;
+        }
+
+        if (seq != rcvNxt) {
+            // Out of order, so report the hole right away.
+            echo = ts;
+            sendAck(now);
+            return;
+        }
+
+        if (ackPending == 0) {
+            echo = ts;
+        }
+
+        boolean gap = before(rcvNxt + 1, rcvHigh);
+
+        while (receiveBuffer[rcvNxt & mask] != null
+                && before(rcvNxt, rcvRead + capacity)) {
+
+            fin |= receiveBuffer[rcvNxt & mask].fin;
+            rcvNxt++;
+
+            if (fin) {
+                finReceived = true;
+                break;
+            }
+        }
+
+        if (before(rcvHigh, rcvNxt)) {
+            rcvHigh = rcvNxt;
+        }
+
+        if (inputShutdown || closed) {
+            discard();
+        }
+
+        notifyAll();
+
+        ackPending++;
+
+        if (gap || fin || ackPending >= 2) {
+            sendAck(now);
+        } else if (ackDeadline == 0) {
+            ackDeadline = now + DELAYED_ACK;
+            module.schedule(ackDeadline);
+        }
+    }
+
+    // Timeouts and life cycle ----------------------------------------------
+
+    // Handles any timeouts that expired. Returns the next deadline, 0 if
+    // there is none, or -1 if the connection can be removed.
+    synchronized long timeout(long now) {
+
+        if (error != null) {
+            return -1;
+        }
+
+        if (peer == null) {
+            // Still being set up.
+            return 0;
+        }
+
+        if (ackDeadline != 0 && now - ackDeadline >= 0) {
+            sendAck(now);
+        }
+
+        if (paceDeadline != 0 && now - paceDeadline >= 0) {
+            paceDeadline = 0;
+            pump(now);
+        }
+
+        if (probeDeadline != 0 && now - probeDeadline >= 0) {
+            probeDeadline = 0;
+
+            if (sndUna != sndNxt && !probed) {
+                probed = true;
+                transmit(sndNxt - 1, sendBuffer[(sndNxt - 1) & mask], now);
+            }
+        }
+
+        if (rtoDeadline != 0 && now - rtoDeadline >= 0) {
+            retransmissionTimeout(now);
+
+            if (error != null) {
+                return -1;
+            }
+        }
+
+        if (closed) {
+
+            // Both sides are done once our FIN is acknowledged and the FIN
+            // of the peer arrived.
+            boolean done = (sndUna == sndEnd) && finReceived;
+
+            if (timeWait == 0 && (done || now - closedAt > LINGER)) {
+                timeWait = now + TIME_WAIT;
+            }
+
+            if (timeWait != 0 && now - timeWait >= 0) {
+                return -1;
+            }
+        }
+
+        long next = 0;
+
+        next = earliest(next, ackDeadline);
+        next = earliest(next, paceDeadline);
+        next = earliest(next, rtoDeadline);
+        next = earliest(next, probeDeadline);
+        next = earliest(next, timeWait);
+
+        if (closed && timeWait == 0) {
+            next = earliest(next, closedAt + LINGER);
+        }
+
+        return next;
+    }
+
+    private static long earliest(long a, long b) {
+
+        if (a == 0) {
+            return b;
+        }
+
+        if (b == 0) {
+            return a;
+        }
+
+        return (a - b < 0) ? a : b;
+    }
+
+    private void retransmissionTimeout(long now) {
+
+        rtoDeadline = 0;
+        probeDeadline = 0;
+
+        if (sndUna == sndNxt) {
+
+            if (sndNxt != sndEnd) {
+                // Probe the window of the peer with the next packet.
+                transmit(sndNxt, sendBuffer[sndNxt & mask], now);
+                sndNxt++;
+                pipe++;
+            }
+
+            return;
+        }
+
+        // Only give up when the peer stays silent. A peer that is alive
+        // but has no room may take any time to read its data.
+        if (heard) {
+            retries = 0;
+            heard = false;
+        }
+
+        if (++retries > MAX_RETRIES) {
+            fail(new SocketException("Connection timed out"));
+            return;
+        }
+
+        // Everything in flight is considered lost.
+        for (int seq = sndUna; before(seq, sndNxt); seq++) {
+
+            Segment s = sendBuffer[seq & mask];
+
+            if (!s.sacked && !s.lost) {
+                s.lost = true;
+                lost++;
+            }
+        }
+
+        pipe = 0;
+
+        ssthresh = Math.max((int) (cwnd / 2), 2);
+        cwnd = 1;
+        recovery = true;
+        recover = sndNxt;
+
+        if (backoff < MAX_BACKOFF) {
+            backoff *= 2;
+        }
+
+        nextSend = now;
+        pump(now);
+    }
+
+    private void fail(IOException e) {
+
+        if (error == null) {
+            error = e;
+        }
+
+        rtoDeadline = 0;
+        probeDeadline = 0;
+        notifyAll();
+
+        module.schedule(System.nanoTime());
+    }
+
+    synchronized void end() {
+
+        if (error == null) {
+            fail(new SocketException("Socket factory closed"));
+        }
+    }
+
+    synchronized boolean isClosed() {
+        return closed;
+    }
+
+    synchronized void close() {
+
+        if (closed) {
+            return;
+        }
+
+        closed = true;
+        closedAt = System.nanoTime();
+
+        notifyAll();
+
+        if (error != null) {
+            return;
+        }
+
+        if (peer == null) {
+            // Never connected.
+            fail(new SocketException("Socket closed"));
+            return;
+        }
+
+        discard();
+
+        if (!finQueued) {
+            queueFin();
+        }
+
+        pump(System.nanoTime());
+        module.schedule(System.nanoTime());
+    }
+
+    // Called when the peer does not know this connection anymore.
+    synchronized void reset() {
+        fail(new SocketException("Connection reset"));
+    }
+
+    public String toString() {
+        return "UdpConnection(" + id + " -> " + remoteId + "@" + peer + ")";
+    }
+}
@@ -0,0 +1,37 @@
+package ibis.smartsockets.virtual.modules.udp;
+
+import ibis.smartsockets.hub.ReflectorProtocol;
+
+/**
+ * Packets used by the udp module.
+ *
+ * Every packet starts with the same header: the MAGIC (an int, shared with
+ * the reflector of the hub), the packet type (a byte), the id of the
+ * connection at the receiver (an int), a sequence number, the cumulative
+ * acknowledgement (the next sequence number expected by the sender), the
+ * receive window of the sender (in packets), a timestamp of the sender, the
+ * last timestamp received from the peer (all ints) and some flags (a byte).
+ *
+ * A DATA packet carries its payload after the header. An ACK packet carries
+ * the number of selective acknowledgement blocks (a byte) followed by the
+ * start and end sequence number of each block. In a PROBE (and PROBE_ACK)
+ * the sequence number is the id of the connection at the sender.
+ */
+interface UdpProtocol {
+
+    static final int MAGIC = ReflectorProtocol.MAGIC;
+
+    static final byte PROBE     = 1;
+    static final byte PROBE_ACK = 2;
+    static final byte DATA      = 3;
+    static final byte ACK       = 4;
+    static final byte RST       = 5;
+
+    static final byte FLAG_FIN  = 1;
+
+    static final int HEADER_SIZE = 30;
+
+    static final int MAX_SACK_BLOCKS = 4;
+
+    static final int ACK_SIZE = HEADER_SIZE + 1 + 8 * MAX_SACK_BLOCKS;
+}
@@ -0,0 +1,6 @@
+/**
+ * This package contains a connect module that sets up connections over UDP,
+ * using the hubs to punch holes in NATs, and a reliable stream protocol with
+ * selective acknowledgements, congestion control and pacing on top of UDP.
+ */
+package ibis.smartsockets.virtual.modules.udp;
@@ -0,0 +1,375 @@
+package ibis.smartsockets.virtual.modules.unix;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.SocketAddress;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Unix domain sockets provided by the JDK (Java 16 and up).
+ *
+ * The classes and methods involved are looked up using reflection, so this
+ * code still compiles and runs on older JVMs, where the factory simply fails
+ * to initialize.
+ *
+ * Unix domain socket channels do not support a read timeout. Therefore, a
+ * channel is switched to non-blocking mode while a timeout is set, and a
+ * selector is used to wait for data (or room) when a read (or write) cannot
+ * make progress.
+ */
+final class JdkUnixSocketFactory extends UnixSocketFactory {
+
+    private static final class JdkSocket extends UnixSocket {
+
+        private final SocketChannel channel;
+
+        // Only used while a timeout is set.
+        private Selector readSelector;
+        private Selector writeSelector;
+
+        private int timeout = 0;
+
+        private boolean closed = false;
+
+        private final InputStream in = new InputStream() {
+
+            private final byte [] tmp = new byte[1];
+
+            public synchronized int read() throws IOException {
+
+                if (read(tmp, 0, 1) == -1) {
+                    return -1;
+                }
+
+                return tmp[0] & 0xff;
+            }
+
+            public synchronized int read(byte [] b, int off, int len)
+                throws IOException {
+
+                if (len == 0) {
+                    return 0;
+                }
+
+                ByteBuffer buffer = ByteBuffer.wrap(b, off, len);
+
+                while (true) {
+                    int n = channel.read(buffer);
+
+                    // A read only returns 0 in non-blocking mode.
+                    if (n != 0) {
+                        return n;
+                    }
+
+                    waitFor(true);
+                }
+            }
+
+            public void close() throws IOException {
+                JdkSocket.this.close();
+            }
+        };
+
+        private final OutputStream out = new OutputStream() {
+
+            private final byte [] tmp = new byte[1];
+
+            public synchronized void write(int b) throws IOException {
+                tmp[0] = (byte) b;
+                write(tmp, 0, 1);
+            }
+
+            public synchronized void write(byte [] b, int off, int len)
+                throws IOException {
+
+                ByteBuffer buffer = ByteBuffer.wrap(b, off, len);
+
+                while (buffer.hasRemaining()) {
+                    if (channel.write(buffer) == 0) {
+                        waitFor(false);
+                    }
+                }
+            }
+
+            public void close() throws IOException {
+                JdkSocket.this.close();
+            }
+        };
+
+        JdkSocket(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        // Waits until the channel is readable (or writable) in non-blocking
+        // mode. Returns immediately if the mode changed in the meantime, so
+        // the caller simply tries again.
+        private void waitFor(boolean read) throws IOException {
+
+            Selector s;
+            int t;
+
+            synchronized (this) {
+                if (closed) {
+                    throw new SocketException("Socket closed");
+                }
+
+                s = read ? readSelector : writeSelector;
+                t = read ? timeout : 0;
+            }
+
+            if (s == null) {
+                return;
+            }
+
+            try {
+                int n = s.select(t);
+
+                s.selectedKeys().clear();
+
+                if (n == 0 && t > 0 && s.isOpen()) {
+                    throw new SocketTimeoutException("Timeout occurred while "
+                            + "waiting for data");
+                }
+            } catch (ClosedSelectorException e) {
+                // The timeout was removed, or the socket was closed.
+            }
+        }
+
+        InputStream getInputStream() {
+            return in;
+        }
+
+        OutputStream getOutputStream() {
+            return out;
+        }
+
+        // The channel is in blocking mode as long as there is no timeout,
+        // which is the fastest way to use it. Note that changing the mode
+        // waits for any read or write that is blocked in the channel, so a
+        // timeout should be set by the thread that reads from the socket.
+        synchronized void setSoTimeout(int timeout) throws IOException {
+
+            if (closed) {
+                throw new SocketException("Socket closed");
+            }
+
+            if (timeout > 0 && this.timeout == 0) {
+
+                Selector r = null;
+                Selector w = null;
+
+                try {
+                    channel.configureBlocking(false);
+
+                    r = Selector.open();
+                    channel.register(r, SelectionKey.OP_READ);
+
+                    w = Selector.open();
+                    channel.register(w, SelectionKey.OP_WRITE);
+                } catch (IOException e) {
+                    closeSelector(r);
+                    closeSelector(w);
+                    channel.configureBlocking(true);
+                    throw e;
+                }
+
+                readSelector = r;
+                writeSelector = w;
+
+            } else if (timeout == 0 && this.timeout > 0) {
+
+                // Closing the selectors deregisters the channel, which is
+                // required to switch back to blocking mode.
+                closeSelectors();
+                channel.configureBlocking(true);
+            }
+
+            this.timeout = timeout;
+        }
+
+        private void closeSelectors() {
+            closeSelector(readSelector);
+            closeSelector(writeSelector);
+            readSelector = null;
+            writeSelector = null;
+        }
+
+        int getSendBufferSize() throws IOException {
+            return channel.getOption(StandardSocketOptions.SO_SNDBUF);
+        }
+
+        int getReceiveBufferSize() throws IOException {
+            return channel.getOption(StandardSocketOptions.SO_RCVBUF);
+        }
+
+        void setSendBufferSize(int size) throws IOException {
+            channel.setOption(StandardSocketOptions.SO_SNDBUF, size);
+        }
+
+        void setReceiveBufferSize(int size) throws IOException {
+            channel.setOption(StandardSocketOptions.SO_RCVBUF, size);
+        }
+
+        void shutdownInput() throws IOException {
+            channel.shutdownInput();
+        }
+
+        void shutdownOutput() throws IOException {
+            channel.shutdownOutput();
+        }
+
+        void close() {
+
+            synchronized (this) {
+                closed = true;
+
+                // Also wakes up any thread that is waiting in a selector.
+                closeSelectors();
+            }
+
+            closeChannel(channel);
+        }
+    }
+
+    private static final class JdkServerSocket extends UnixServerSocket {
+
+        private final ServerSocketChannel server;
+
+        JdkServerSocket(ServerSocketChannel server) {
+            this.server = server;
+        }
+
+        UnixSocket accept() throws IOException {
+            return new JdkSocket(server.accept());
+        }
+
+        void close() {
+            try {
+                server.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+    }
+
+    // java.net.UnixDomainSocketAddress.of(String)
+    private final Method addressOf;
+
+    // SocketChannel.open(ProtocolFamily) and ServerSocketChannel.open(...)
+    private final Method openSocket;
+    private final Method openServer;
+
+    // ServerSocketChannel.bind(SocketAddress)
+    private final Method bind;
+
+    // java.net.StandardProtocolFamily.UNIX
+    private final Object unix;
+
+    JdkUnixSocketFactory() throws Exception {
+
+        Class<?> family = Class.forName("java.net.ProtocolFamily");
+
+        addressOf = Class.forName("java.net.UnixDomainSocketAddress")
+            .getMethod("of", String.class);
+
+        unix = Class.forName("java.net.StandardProtocolFamily")
+            .getField("UNIX").get(null);
+
+        openSocket = SocketChannel.class.getMethod("open", family);
+        openServer = ServerSocketChannel.class.getMethod("open", family);
+        bind = ServerSocketChannel.class.getMethod("bind",
+                SocketAddress.class);
+    }
+
+    private static void closeSelector(Selector s) {
+        if (s != null) {
+            try {
+                s.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+    }
+
+    private static void closeChannel(SelectableChannel c) {
+        if (c != null) {
+            try {
+                c.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+    }
+
+    private Object invoke(Method m, Object target, Object arg)
+        throws IOException {
+
+        try {
+            return m.invoke(target, arg);
+        } catch (InvocationTargetException e) {
+            Throwable cause = e.getCause();
+
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+
+            IOException tmp = new IOException(m.getName() + " failed");
+            tmp.initCause(cause);
+            throw tmp;
+        } catch (IllegalAccessException e) {
+            IOException tmp = new IOException(m.getName() + " failed");
+            tmp.initCause(e);
+            throw tmp;
+        }
+    }
+
+    String getName() {
+        return "jdk";
+    }
+
+    UnixServerSocket createServerSocket(String path) throws IOException {
+
+        SocketAddress a = (SocketAddress) invoke(addressOf, null, path);
+
+        ServerSocketChannel server =
+            (ServerSocketChannel) invoke(openServer, null, unix);
+
+        try {
+            invoke(bind, server, a);
+        } catch (IOException e) {
+            closeChannel(server);
+            throw e;
+        }
+
+        return new JdkServerSocket(server);
+    }
+
+    UnixSocket createSocket(String path) throws IOException {
+
+        SocketAddress a = (SocketAddress) invoke(addressOf, null, path);
+
+        SocketChannel channel = (SocketChannel) invoke(openSocket, null, unix);
+
+        try {
+            // Connecting to a local socket does not block.
+            channel.connect(a);
+        } catch (IOException e) {
+            closeChannel(channel);
+            throw e;
+        }
+
+        return new JdkSocket(channel);
+    }
+}
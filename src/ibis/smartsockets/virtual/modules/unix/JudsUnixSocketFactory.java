@@ -0,0 +1,269 @@
+package ibis.smartsockets.virtual.modules.unix;
+
+import ibis.smartsockets.util.ThreadPool;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.SocketTimeoutException;
+
+import com.google.code.juds.UnixDomainSocket;
+import com.google.code.juds.UnixDomainSocketClient;
+import com.google.code.juds.UnixDomainSocketServer;
+
+/**
+ * Unix domain sockets provided by the juds library, which ships with native
+ * code for Linux and Mac OS X.
+ *
+ * Note that a read with a timeout starts a thread, so timeouts should only
+ * be used during connection setup. The buffer sizes cannot be changed.
+ */
+final class JudsUnixSocketFactory extends UnixSocketFactory {
+
+    private static final int BACKLOG = 50;
+
+    private static final int BUFFER = 64*1024;
+
+    // Fixes the way juds reports the end of a stream. Its single byte read
+    // returns the byte as a signed value, so any byte above 127 looks like
+    // the end of the stream. Its other read throws an IOException without a
+    // message at the end of the stream, which it also does for a read error.
+    // In both cases the connection is gone, so both are returned as the end
+    // of the stream.
+    //
+    // Also implements the read timeout. The juds timeout starts a thread for
+    // every read, and leaves it running when the read times out, so the data
+    // it reads afterwards is lost. Here a timed read starts a thread as well,
+    // but the data of a read that timed out is returned by the next read.
+    private static final class JudsInputStream extends FilterInputStream
+        implements Runnable {
+
+        private final byte [] tmp = new byte[1];
+
+        // Read timeout in milliseconds. A timeout of 0 blocks forever.
+        private volatile int timeout = 0;
+
+        // Data read by the thread of a timed read.
+        private byte [] buffer;
+        private int start = 0;
+        private int pending = 0;
+        private IOException error;
+
+        private boolean reading = false;
+
+        JudsInputStream(InputStream in) {
+            super(in);
+        }
+
+        void setTimeout(int timeout) {
+            this.timeout = timeout;
+        }
+
+        public synchronized int read() throws IOException {
+
+            if (read(tmp, 0, 1) < 0) {
+                return -1;
+            }
+
+            return tmp[0] & 0xff;
+        }
+
+        public synchronized int read(byte [] b, int off, int len)
+            throws IOException {
+
+            if (len == 0) {
+                return 0;
+            }
+
+            int t = timeout;
+
+            if (!reading && pending == 0 && error == null) {
+
+                if (t == 0) {
+                    return fill(b, off, len);
+                }
+
+                if (buffer == null) {
+                    buffer = new byte[BUFFER];
+                }
+
+                reading = true;
+                ThreadPool.createNew(this, "juds read");
+            }
+
+            long deadline = t > 0 ? System.currentTimeMillis() + t : 0;
+
+            while (reading) {
+
+                long left = 0;
+
+                if (deadline > 0) {
+                    left = deadline - System.currentTimeMillis();
+
+                    if (left <= 0) {
+                        throw new SocketTimeoutException("Timeout occurred "
+                                + "while waiting for data");
+                    }
+                }
+
+                try {
+                    wait(left);
+                } catch (InterruptedException e) {
+                    // ignore
+                }
+            }
+
+            if (error != null) {
+                IOException e = error;
+                error = null;
+                throw e;
+            }
+
+            if (pending < 0) {
+                pending = 0;
+                return -1;
+            }
+
+            int n = Math.min(len, pending);
+
+            System.arraycopy(buffer, start, b, off, n);
+
+            start += n;
+            pending -= n;
+
+            return n;
+        }
+
+        private int fill(byte [] b, int off, int len) throws IOException {
+
+            int n;
+
+            try {
+                n = in.read(b, off, len);
+            } catch (IOException e) {
+                if (e.getMessage() != null) {
+                    throw e;
+                }
+
+                return -1;
+            }
+
+            return n <= 0 ? -1 : n;
+        }
+
+        // Performs a timed read.
+        public void run() {
+
+            int n = 0;
+            IOException e = null;
+
+            try {
+                n = fill(buffer, 0, buffer.length);
+            } catch (IOException x) {
+                e = x;
+            }
+
+            synchronized (this) {
+                start = 0;
+                pending = n;
+                error = e;
+                reading = false;
+                notifyAll();
+            }
+        }
+    }
+
+    private static final class JudsSocket extends UnixSocket {
+
+        private final UnixDomainSocket s;
+        private final JudsInputStream in;
+        private final OutputStream out;
+
+        JudsSocket(UnixDomainSocket s) {
+            this.s = s;
+            this.in = new JudsInputStream(s.getInputStream());
+            this.out = s.getOutputStream();
+        }
+
+        InputStream getInputStream() {
+            return in;
+        }
+
+        OutputStream getOutputStream() {
+            return out;
+        }
+
+        void setSoTimeout(int timeout) {
+            in.setTimeout(timeout);
+        }
+
+        int getSendBufferSize() {
+            return 0;
+        }
+
+        int getReceiveBufferSize() {
+            return 0;
+        }
+
+        void setSendBufferSize(int size) {
+            // not supported
+        }
+
+        void setReceiveBufferSize(int size) {
+            // not supported
+        }
+
+        // Closing a juds stream only shuts down that direction.
+        void shutdownInput() throws IOException {
+            s.getInputStream().close();
+        }
+
+        void shutdownOutput() throws IOException {
+            s.getOutputStream().close();
+        }
+
+        void close() {
+            s.close();
+        }
+    }
+
+    private static final class JudsServerSocket extends UnixServerSocket {
+
+        private final UnixDomainSocketServer server;
+
+        JudsServerSocket(UnixDomainSocketServer server) {
+            this.server = server;
+        }
+
+        UnixSocket accept() throws IOException {
+            return new JudsSocket(server.accept());
+        }
+
+        void close() {
+            server.close();
+        }
+    }
+
+    JudsUnixSocketFactory() throws ClassNotFoundException {
+        // Loads the native library, which fails if there is none for this
+        // platform.
+        Class.forName(UnixDomainSocket.class.getName());
+    }
+
+    String getName() {
+        return "juds";
+    }
+
+    UnixServerSocket createServerSocket(String path) throws IOException {
+        // Note that the two parameter constructor accepts a single
+        // connection. This one only listens.
+        return new JudsServerSocket(new UnixDomainSocketServer(path,
+                UnixDomainSocket.SOCK_STREAM, BACKLOG));
+    }
+
+    UnixSocket createSocket(String path) throws IOException {
+        return new JudsSocket(new UnixDomainSocketClient(path,
+                UnixDomainSocket.SOCK_STREAM));
+    }
+}
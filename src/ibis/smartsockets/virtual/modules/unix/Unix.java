@@ -0,0 +1,342 @@
+package ibis.smartsockets.virtual.modules.unix;
+
+import ibis.smartsockets.SmartSocketsProperties;
+import ibis.smartsockets.direct.DirectSocketAddress;
+import ibis.smartsockets.util.ThreadPool;
+import ibis.smartsockets.util.TypedProperties;
+import ibis.smartsockets.virtual.NonFatalIOException;
+import ibis.smartsockets.virtual.VirtualServerSocket;
+import ibis.smartsockets.virtual.VirtualSocket;
+import ibis.smartsockets.virtual.VirtualSocketAddress;
+import ibis.smartsockets.virtual.modules.AbstractDirectModule;
+import ibis.smartsockets.virtual.modules.ConnectModule;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Map;
+
+/**
+ * Connects processes on the same machine through Unix domain sockets, which
+ * bypass the TCP/IP stack of the loopback interface.
+ *
+ * Every VirtualSocketFactory binds a Unix domain socket in a shared directory.
+ * The name of this socket is derived from the port of the direct module,
+ * which is part of the machine address of the factory. Since this port is
+ * unique on the machine, a client can find the socket of any local target
+ * without additional information.
+ *
+ * The connection setup only sends the target port and the address of the
+ * client, followed by the same three way handshake that the direct module
+ * uses. Targets on other machines, and processes without this module, are
+ * left to the next module.
+ */
+public class Unix extends ConnectModule implements Runnable {
+
+    private static final int DEFAULT_CONNECT_TIMEOUT = 3000;
+
+    private static final String PREFIX = "smartsockets-";
+    private static final String SUFFIX = ".sock";
+
+    private UnixSocketFactory factory;
+
+    private int buffer = 262144;
+
+    private File dir;
+
+    private File file;
+
+    private UnixServerSocket server;
+
+    private boolean done = false;
+
+    public Unix() {
+        super("ConnectModule(Unix)", false);
+    }
+
+    public void initModule(TypedProperties properties) throws Exception {
+
+        String impl = properties.getProperty(
+                SmartSocketsProperties.UNIX_IMPLEMENTATION, "auto");
+
+        factory = UnixSocketFactory.getFactory(impl, logger);
+
+        if (factory == null) {
+            throw new Exception(module + ": no Unix domain socket "
+                    + "implementation (" + impl + ") available");
+        }
+
+        buffer = properties.getIntProperty(SmartSocketsProperties.UNIX_BUFFER,
+                buffer);
+
+        String tmp = properties.getProperty(SmartSocketsProperties.UNIX_DIR,
+                System.getProperty("java.io.tmpdir"));
+
+        dir = new File(tmp).getCanonicalFile();
+
+        if (!dir.isDirectory() || !dir.canWrite()) {
+            throw new Exception(module + ": cannot use directory " + dir);
+        }
+
+        if (logger.isInfoEnabled()) {
+            logger.info(module + ": using " + factory.getName()
+                    + " Unix domain sockets in " + dir);
+        }
+    }
+
+    public void startModule() throws Exception {
+
+        // The machine address is only complete once all modules are loaded.
+        file = socketFile(parent.getLocalHost());
+
+        if (file == null) {
+            throw new Exception(module + ": local address has no ports");
+        }
+
+        // The port in the name is ours, so any existing socket is stale.
+        file.delete();
+
+        server = factory.createServerSocket(file.getPath());
+        file.deleteOnExit();
+
+        if (logger.isInfoEnabled()) {
+            logger.info(module + ": listening on " + file);
+        }
+
+        ThreadPool.createNew(this, "Unix AcceptThread");
+    }
+
+    private File socketFile(DirectSocketAddress machine) {
+
+        int [] ports = machine.getPorts(false);
+
+        if (ports.length == 0) {
+            return null;
+        }
+
+        return new File(dir, PREFIX + ports[0] + SUFFIX);
+    }
+
+    public DirectSocketAddress getAddresses() {
+        // Nothing to do here....
+        return null;
+    }
+
+    private synchronized boolean isDone() {
+        return done;
+    }
+
+    public void run() {
+
+        while (!isDone()) {
+
+            UnixSocket s;
+
+            try {
+                s = server.accept();
+            } catch (Throwable e) {
+                if (!isDone()) {
+                    logger.warn(module + ": accept failed, closing "
+                            + "Unix domain socket " + file, e);
+                    end();
+                }
+
+                return;
+            }
+
+            if (isDone()) {
+                s.close();
+                return;
+            }
+
+            handleAccept(s);
+        }
+    }
+
+    private void handleAccept(final UnixSocket s) {
+
+        // Finish the handshake on a separate thread, so we can accept the
+        // next connection.
+        ThreadPool.createNew(new Runnable() {
+            public void run() {
+                try {
+                    doAccept(s);
+                } catch (Throwable e) {
+                    logger.warn(module + ": Got exception during connection "
+                            + "setup!", e);
+                    s.close();
+                }
+            }
+        }, "Unix accept");
+    }
+
+    private void setBuffers(UnixSocket s, int send, int receive)
+        throws IOException {
+
+        if (send > 0) {
+            s.setSendBufferSize(send);
+        }
+
+        if (receive > 0) {
+            s.setReceiveBufferSize(receive);
+        }
+    }
+
+    private void doAccept(UnixSocket s) throws IOException {
+
+        s.setSoTimeout(DEFAULT_CONNECT_TIMEOUT);
+        setBuffers(s, buffer, buffer);
+
+        DataInputStream in = new DataInputStream(s.getInputStream());
+        OutputStream out = s.getOutputStream();
+
+        int port = in.readInt();
+        int len = in.readInt();
+
+        if (len <= 0 || len > 64*1024) {
+            throw new IOException("Illegal address length " + len);
+        }
+
+        byte [] tmp = new byte[len];
+        in.readFully(tmp);
+
+        DirectSocketAddress peer = DirectSocketAddress.fromBytes(tmp);
+
+        VirtualServerSocket vss = parent.getServerSocket(port);
+
+        if (vss == null) {
+            if (logger.isDebugEnabled()) {
+                logger.debug(module + ": Connection failed, PORT " + port
+                        + " not found!");
+            }
+
+            out.write(AbstractDirectModule.PORT_NOT_FOUND);
+            out.flush();
+            s.close();
+            return;
+        }
+
+        UnixVirtualSocket vs =
+            new UnixVirtualSocket(new VirtualSocketAddress(peer, 0), s);
+
+        int accept = vss.incomingConnection(vs);
+
+        if (accept != 0) {
+
+            if (logger.isInfoEnabled()) {
+                logger.info(module + ": Connection failed for port " + port
+                        + ": " + (accept < 0 ? "REFUSED" : "OVERLOAD"));
+            }
+
+            out.write(accept == -1
+                    ? AbstractDirectModule.CONNECTION_REJECTED
+                    : AbstractDirectModule.SERVER_OVERLOAD);
+            out.flush();
+            vs.close();
+        }
+    }
+
+    public VirtualSocket connect(VirtualSocketAddress target, int timeout,
+            Map<String, Object> properties) throws NonFatalIOException,
+            IOException {
+
+        DirectSocketAddress machine = target.machine();
+
+        if (!machine.sameMachine(parent.getLocalHost())) {
+            throw new NonFatalIOException(machine + " is not on this machine");
+        }
+
+        File f = socketFile(machine);
+
+        if (f == null || !f.exists()) {
+            throw new NonFatalIOException(machine + " has no Unix domain "
+                    + "socket");
+        }
+
+        if (timeout <= 0) {
+            timeout = DEFAULT_CONNECT_TIMEOUT;
+        }
+
+        int sendBuffer = buffer;
+        int receiveBuffer = buffer;
+
+        if (properties != null) {
+
+            Integer tmp = (Integer) properties.get("sendbuffer");
+
+            if (tmp != null) {
+                sendBuffer = tmp;
+            }
+
+            tmp = (Integer) properties.get("receivebuffer");
+
+            if (tmp != null) {
+                receiveBuffer = tmp;
+            }
+        }
+
+        UnixSocket s = null;
+
+        try {
+            s = factory.createSocket(f.getPath());
+            s.setSoTimeout(timeout);
+            setBuffers(s, sendBuffer, receiveBuffer);
+
+            byte [] tmp = parent.getLocalHost().getAddress();
+
+            DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(s.getOutputStream(),
+                            8 + tmp.length));
+
+            out.writeInt(target.port());
+            out.writeInt(tmp.length);
+            out.write(tmp);
+            out.flush();
+
+        } catch (IOException e) {
+            if (s != null) {
+                s.close();
+            }
+
+            throw new NonFatalIOException(e);
+        }
+
+        // The rest of the handshake is done in waitForAccept.
+        return new UnixVirtualSocket(target, s);
+    }
+
+    public void end() {
+
+        synchronized (this) {
+            if (done || server == null) {
+                return;
+            }
+
+            done = true;
+        }
+
+        // Not every implementation wakes up a thread blocked in accept when
+        // the server socket is closed, so connect to it once as well.
+        try {
+            factory.createSocket(file.getPath()).close();
+        } catch (Exception e) {
+            // ignore
+        }
+
+        server.close();
+        file.delete();
+    }
+
+    public boolean matchAdditionalRuntimeRequirements(Map<String, ?> requirements) {
+        // No additional properties, so always matches requirements.
+        return true;
+    }
+
+    @Override
+    public int getDefaultTimeout() {
+        return DEFAULT_CONNECT_TIMEOUT;
+    }
+}
@@ -0,0 +1,14 @@
+package ibis.smartsockets.virtual.modules.unix;
+
+import java.io.IOException;
+
+/**
+ * A Unix domain server socket, independent of the implementation that
+ * provides it.
+ */
+abstract class UnixServerSocket {
+
+    abstract UnixSocket accept() throws IOException;
+
+    abstract void close();
+}
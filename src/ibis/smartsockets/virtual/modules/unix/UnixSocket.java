@@ -0,0 +1,47 @@
+package ibis.smartsockets.virtual.modules.unix;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * A connected Unix domain socket, independent of the implementation that
+ * provides it.
+ */
+abstract class UnixSocket {
+
+    abstract InputStream getInputStream();
+
+    abstract OutputStream getOutputStream();
+
+    /**
+     * Sets the read timeout in milliseconds. A timeout of 0 blocks forever.
+     */
+    abstract void setSoTimeout(int timeout) throws IOException;
+
+    /**
+     * Returns the size of the send buffer, or 0 if unknown.
+     */
+    abstract int getSendBufferSize() throws IOException;
+
+    /**
+     * Returns the size of the receive buffer, or 0 if unknown.
+     */
+    abstract int getReceiveBufferSize() throws IOException;
+
+    /**
+     * Sets the size of the send buffer, if the implementation supports it.
+     */
+    abstract void setSendBufferSize(int size) throws IOException;
+
+    /**
+     * Sets the size of the receive buffer, if the implementation supports it.
+     */
+    abstract void setReceiveBufferSize(int size) throws IOException;
+
+    abstract void shutdownInput() throws IOException;
+
+    abstract void shutdownOutput() throws IOException;
+
+    abstract void close();
+}
@@ -0,0 +1,56 @@
+package ibis.smartsockets.virtual.modules.unix;
+
+import java.io.IOException;
+
+import org.slf4j.Logger;
+
+/**
+ * Creates Unix domain sockets.
+ *
+ * Two implementations are available: one that uses the Unix domain socket
+ * channels of the JDK (Java 16 and up, found using reflection), and one that
+ * uses the native juds library. The first one that works is used.
+ */
+abstract class UnixSocketFactory {
+
+    abstract String getName();
+
+    /**
+     * Creates a server socket bound to the given path. The path must not
+     * exist.
+     */
+    abstract UnixServerSocket createServerSocket(String path)
+        throws IOException;
+
+    abstract UnixSocket createSocket(String path) throws IOException;
+
+    /**
+     * Returns a factory of the requested implementation ("jdk", "juds" or
+     * "auto"), or null if none is available.
+     */
+    static UnixSocketFactory getFactory(String impl, Logger logger) {
+
+        if (impl.equals("auto") || impl.equals("jdk")) {
+            try {
+                return new JdkUnixSocketFactory();
+            } catch (Throwable e) {
+                if (logger.isInfoEnabled()) {
+                    logger.info("JDK Unix domain sockets not available: " + e);
+                }
+            }
+        }
+
+        if (impl.equals("auto") || impl.equals("juds")) {
+            try {
+                return new JudsUnixSocketFactory();
+            } catch (Throwable e) {
+                if (logger.isInfoEnabled()) {
+                    logger.info("juds Unix domain sockets not available: "
+                            + e);
+                }
+            }
+        }
+
+        return null;
+    }
+}
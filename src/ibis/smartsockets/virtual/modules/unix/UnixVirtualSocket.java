@@ -0,0 +1,281 @@
+package ibis.smartsockets.virtual.modules.unix;
+
+import ibis.smartsockets.virtual.TargetOverloadedException;
+import ibis.smartsockets.virtual.VirtualSocket;
+import ibis.smartsockets.virtual.VirtualSocketAddress;
+import ibis.smartsockets.virtual.modules.AbstractDirectModule;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ConnectException;
+import java.net.SocketAddress;
+import java.net.SocketException;
+import java.nio.channels.SocketChannel;
+
+/**
+ * A virtual connection between two processes on the same machine, which runs
+ * over a Unix domain socket.
+ */
+public class UnixVirtualSocket extends VirtualSocket {
+
+    private final UnixSocket s;
+    private final InputStream in;
+    private final OutputStream out;
+
+    private int timeout = 0;
+
+    private boolean closed = false;
+    private boolean inputShutdown = false;
+    private boolean outputShutdown = false;
+
+    UnixVirtualSocket(VirtualSocketAddress target, UnixSocket s) {
+        super(target);
+
+        this.s = s;
+        this.in = s.getInputStream();
+        this.out = s.getOutputStream();
+    }
+
+    protected void connectionAccepted(int timeout) throws IOException {
+
+        try {
+            s.setSoTimeout(timeout);
+
+            out.write(AbstractDirectModule.ACCEPT);
+            out.flush();
+
+            // Wait until the client agrees that we have a connection.
+            int ack = in.read();
+
+            if (ack == -1) {
+                throw new EOFException("Unexpected EOF during handshake");
+            } else if (ack != AbstractDirectModule.ACCEPT) {
+                throw new ConnectException("Client disconnected");
+            }
+
+            s.setSoTimeout(0);
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+    }
+
+    protected void connectionRejected(int timeout) {
+
+        try {
+            s.setSoTimeout(timeout);
+            out.write(AbstractDirectModule.CONNECTION_REJECTED);
+            out.flush();
+        } catch (Exception e) {
+            // ignore
+        }
+
+        close();
+    }
+
+    public void waitForAccept(int timeout) throws IOException {
+
+        try {
+            s.setSoTimeout(timeout);
+
+            int result = in.read();
+
+            switch (result) {
+            case AbstractDirectModule.ACCEPT:
+                out.write(AbstractDirectModule.ACCEPT);
+                out.flush();
+                s.setSoTimeout(0);
+                return;
+
+            case AbstractDirectModule.PORT_NOT_FOUND:
+                throw new SocketException("Remote port not found");
+
+            case AbstractDirectModule.SERVER_OVERLOAD:
+                throw new TargetOverloadedException("Connection rejected (server overloaded)");
+
+            case AbstractDirectModule.CONNECTION_REJECTED:
+                throw new SocketException("Connection rejected");
+
+            case -1:
+                throw new EOFException("Unexpected EOF while waiting for accept");
+
+            default:
+                throw new SocketException("Got unknown reply (" + result
+                        + ") during connect!");
+            }
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+    }
+
+    public void close() {
+
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+
+            closed = true;
+        }
+
+        s.close();
+    }
+
+    public SocketChannel getChannel() {
+        return null;
+    }
+
+    public InputStream getInputStream() throws IOException {
+        return in;
+    }
+
+    public OutputStream getOutputStream() throws IOException {
+        return out;
+    }
+
+    public int getLocalPort() {
+        return 0;
+    }
+
+    public SocketAddress getLocalSocketAddress() {
+        return null;
+    }
+
+    public boolean getOOBInline() throws SocketException {
+        return false;
+    }
+
+    public int getReceiveBufferSize() throws SocketException {
+        try {
+            return s.getReceiveBufferSize();
+        } catch (IOException e) {
+            throw new SocketException("Failed to get buffer size: " + e);
+        }
+    }
+
+    public boolean getReuseAddress() throws SocketException {
+        return false;
+    }
+
+    public int getSendBufferSize() throws SocketException {
+        try {
+            return s.getSendBufferSize();
+        } catch (IOException e) {
+            throw new SocketException("Failed to get buffer size: " + e);
+        }
+    }
+
+    public int getSoLinger() throws SocketException {
+        return 0;
+    }
+
+    public synchronized int getSoTimeout() throws SocketException {
+        return timeout;
+    }
+
+    public boolean getTcpNoDelay() throws SocketException {
+        return true;
+    }
+
+    public int getTrafficClass() throws SocketException {
+        return 0;
+    }
+
+    public boolean isBound() {
+        return true;
+    }
+
+    public synchronized boolean isClosed() {
+        return closed;
+    }
+
+    public synchronized boolean isConnected() {
+        return !closed;
+    }
+
+    public synchronized boolean isInputShutdown() {
+        return closed || inputShutdown;
+    }
+
+    public synchronized boolean isOutputShutdown() {
+        return closed || outputShutdown;
+    }
+
+    public void sendUrgentData(int data) throws IOException {
+        // ignored
+    }
+
+    public void setKeepAlive(boolean on) throws SocketException {
+        // ignored
+    }
+
+    public void setOOBInline(boolean on) throws SocketException {
+        // ignored
+    }
+
+    public void setReceiveBufferSize(int sz) throws SocketException {
+        try {
+            s.setReceiveBufferSize(sz);
+        } catch (IOException e) {
+            throw new SocketException("Failed to set buffer size: " + e);
+        }
+    }
+
+    public void setReuseAddress(boolean on) throws SocketException {
+        // ignored
+    }
+
+    public void setSendBufferSize(int sz) throws SocketException {
+        try {
+            s.setSendBufferSize(sz);
+        } catch (IOException e) {
+            throw new SocketException("Failed to set buffer size: " + e);
+        }
+    }
+
+    public void setSoLinger(boolean on, int linger) throws SocketException {
+        // ignored
+    }
+
+    public synchronized void setSoTimeout(int t) throws SocketException {
+
+        try {
+            s.setSoTimeout(t);
+        } catch (IOException e) {
+            throw new SocketException("Failed to set timeout: " + e);
+        }
+
+        timeout = t;
+    }
+
+    public void setTcpNoDelay(boolean on) throws SocketException {
+        // ignored
+    }
+
+    public void setTrafficClass(int tc) throws SocketException {
+        // ignored
+    }
+
+    public void shutdownInput() throws IOException {
+        s.shutdownInput();
+
+        synchronized (this) {
+            inputShutdown = true;
+        }
+    }
+
+    public void shutdownOutput() throws IOException {
+        s.shutdownOutput();
+
+        synchronized (this) {
+            outputShutdown = true;
+        }
+    }
+
+    public String toString() {
+        return "UnixVirtualSocket(" + getRemoteSocketAddress() + ")";
+    }
+}
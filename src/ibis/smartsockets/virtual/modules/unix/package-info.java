@@ -0,0 +1,5 @@
+/**
+ * This package contains the implementation of the Unix Domain Socket Virtual
+ * Connection module.
+ */
+package ibis.smartsockets.virtual.modules.unix;
@@ -0,0 +1,311 @@
+package test.direct.simple;
+
+import ibis.smartsockets.direct.DirectServerSocket;
+import ibis.smartsockets.direct.DirectSocket;
+import ibis.smartsockets.direct.DirectSocketFactory;
+import ibis.smartsockets.util.MultiplexStreamFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.lang.reflect.Method;
+
+/**
+ * Compares the throughput and allocation rate of a MultiplexStreamFactory
+ * with that of the raw socket it runs on.
+ *
+ * Usage: MultiplexBenchmark [MB per run] [streams] [runs]
+ *
+ * Both sides run in this process, connected through the loopback interface.
+ * Allocation is measured with the (HotSpot specific) per thread allocation
+ * counters, if they are available.
+ */
+public class MultiplexBenchmark {
+
+    private static final int BLOCK_SIZE = 64*1024;
+
+    private static final int RAW = 0;
+    private static final int MULTIPLEX = 1;
+
+    private static final ThreadMXBean threads =
+        ManagementFactory.getThreadMXBean();
+
+    private static Method allocated;
+
+    static {
+        try {
+            allocated = Class.forName("com.sun.management.ThreadMXBean")
+                .getMethod("getThreadAllocatedBytes", long [].class);
+        } catch (Exception e) {
+            allocated = null;
+        }
+    }
+
+    // Returns the number of bytes allocated by all live threads, or -1.
+    private static long allocatedBytes() {
+
+        if (allocated == null) {
+            return -1;
+        }
+
+        try {
+            long [] tmp = (long []) allocated.invoke(threads,
+                    threads.getAllThreadIds());
+
+            long total = 0;
+
+            for (long l : tmp) {
+                if (l > 0) {
+                    total += l;
+                }
+            }
+
+            return total;
+        } catch (Exception e) {
+            return -1;
+        }
+    }
+
+    private static void drain(InputStream in) throws IOException {
+
+        byte [] buffer = new byte[BLOCK_SIZE];
+
+        while (in.read(buffer) != -1) {
+            // discard
+        }
+    }
+
+    private static void fill(OutputStream out, long total) throws IOException {
+
+        byte [] buffer = new byte[BLOCK_SIZE];
+
+        while (total > 0) {
+            int len = (int) Math.min(total, buffer.length);
+            out.write(buffer, 0, len);
+            total -= len;
+        }
+
+        out.flush();
+    }
+
+    private static class Receiver extends Thread
+        implements MultiplexStreamFactory.Listener {
+
+        private final DirectServerSocket ss;
+
+        Receiver(DirectServerSocket ss) {
+            super("Receiver");
+            this.ss = ss;
+            setDaemon(true);
+        }
+
+        public void run() {
+            try {
+                while (true) {
+                    DirectSocket s = ss.accept();
+                    s.setTcpNoDelay(true);
+
+                    InputStream in = s.getInputStream();
+                    OutputStream out = s.getOutputStream();
+
+                    if (in.read() == RAW) {
+                        // Read until the sender closes its output.
+                        drain(in);
+                        s.close();
+                    } else {
+                        // The streams are drained by streamOpened.
+                        new MultiplexStreamFactory(in, out, 8 + 16*1024,
+                                false, this);
+                    }
+                }
+            } catch (IOException e) {
+                // The server socket was closed.
+            }
+        }
+
+        public void streamOpened(final MultiplexStreamFactory f,
+                final int stream, int data) {
+
+            new Thread("Stream " + stream) {
+                public void run() {
+                    try {
+                        f.accept(stream);
+
+                        InputStream in = f.getInputStream(stream);
+                        OutputStream out = f.getOutputStream(stream);
+
+                        drain(in);
+                        in.close();
+                        out.close();
+                    } catch (IOException e) {
+                        System.err.println("Stream " + stream + " failed: "
+                                + e);
+                    }
+                }
+            }.start();
+        }
+
+        public void connectionLost(MultiplexStreamFactory f,
+                IOException cause) {
+            // ignore
+        }
+    }
+
+    private static void raw(DirectSocketFactory sf, DirectServerSocket ss,
+            long total) throws IOException {
+
+        DirectSocket s = sf.createSocket(ss.getAddressSet(), 0, null);
+        s.setTcpNoDelay(true);
+
+        OutputStream out = s.getOutputStream();
+        InputStream in = s.getInputStream();
+
+        out.write(RAW);
+        fill(out, total);
+
+        // Wait until the receiver has read everything.
+        s.shutdownOutput();
+        in.read();
+        s.close();
+    }
+
+    private static void multiplex(DirectSocketFactory sf,
+            DirectServerSocket ss, long total, int streams) throws Exception {
+
+        long alloc = allocatedBytes();
+        long time = System.currentTimeMillis();
+
+        runMultiplex(sf, ss, total, streams);
+
+        time = System.currentTimeMillis() - time;
+        report("multiplex, " + streams + " stream(s)", total, time,
+                alloc < 0 ? -1 : allocatedBytes() - alloc);
+    }
+
+    private static void runMultiplex(DirectSocketFactory sf,
+            DirectServerSocket ss, long total, int streams) throws Exception {
+
+        DirectSocket s = sf.createSocket(ss.getAddressSet(), 0, null);
+        s.setTcpNoDelay(true);
+
+        s.getOutputStream().write(MULTIPLEX);
+
+        final MultiplexStreamFactory f = new MultiplexStreamFactory(
+                s.getInputStream(), s.getOutputStream(), 8 + 16*1024, true,
+                null);
+
+        final long perStream = total / streams;
+
+        Thread [] senders = new Thread[streams];
+        final Exception [] error = new Exception[1];
+
+        for (int i=0;i<streams;i++) {
+            senders[i] = new Thread() {
+                public void run() {
+                    try {
+                        int id = f.open(0);
+
+                        if (f.waitForReply(id, 0)
+                                != MultiplexStreamFactory.ACCEPTED) {
+                            throw new IOException("Stream rejected");
+                        }
+
+                        InputStream in = f.getInputStream(id);
+                        OutputStream out = f.getOutputStream(id);
+
+                        fill(out, perStream);
+                        out.close();
+
+                        // Wait until the receiver has read everything.
+                        drain(in);
+                        in.close();
+                    } catch (Exception e) {
+                        error[0] = e;
+                    }
+                }
+            };
+
+            senders[i].start();
+        }
+
+        for (Thread t : senders) {
+            t.join();
+        }
+
+        if (error[0] != null) {
+            throw error[0];
+        }
+
+        f.getBaseIn().close();
+        f.getBaseOut().close();
+        f.close();
+        s.close();
+    }
+
+    private static void report(String name, long total, long time,
+            long alloc) {
+
+        double sec = time / 1000.0;
+        double mb = total / (1024.0*1024.0);
+
+        String tmp = name + ": " + (long) mb + " MB in " + time + " ms ("
+            + (long) (mb / sec) + " MB/s)";
+
+        if (alloc >= 0) {
+            tmp += ", allocated " + (alloc / 1024) + " KB ("
+                + (alloc / (long) Math.max(1, mb)) + " bytes/MB)";
+        }
+
+        System.out.println(tmp);
+    }
+
+    public static void main(String [] args) throws Exception {
+
+        long total = 256L*1024*1024;
+        int streams = 4;
+        int runs = 5;
+
+        if (args.length > 0) {
+            total = Long.parseLong(args[0]) * 1024*1024;
+        }
+
+        if (args.length > 1) {
+            streams = Integer.parseInt(args[1]);
+        }
+
+        if (args.length > 2) {
+            runs = Integer.parseInt(args[2]);
+        }
+
+        if (allocated == null) {
+            System.out.println("Allocation counters not available");
+        }
+
+        DirectSocketFactory sf = DirectSocketFactory.getSocketFactory();
+        DirectServerSocket ss = sf.createServerSocket(0, 0, null);
+
+        new Receiver(ss).start();
+
+        for (int r=0;r<runs;r++) {
+
+            long alloc = allocatedBytes();
+            long time = System.currentTimeMillis();
+
+            raw(sf, ss, total);
+
+            time = System.currentTimeMillis() - time;
+            report("raw socket", total, time,
+                    alloc < 0 ? -1 : allocatedBytes() - alloc);
+
+            multiplex(sf, ss, total, 1);
+
+            if (streams > 1) {
+                multiplex(sf, ss, total, streams);
+            }
+        }
+
+        ss.close();
+    }
+}
@@ -0,0 +1,72 @@
+package test.direct.simple;
+
+import ibis.smartsockets.direct.DirectSocketFactory;
+import ibis.smartsockets.util.NetworkUtils;
+
+import java.net.InetAddress;
+import java.net.NetworkInterface;
+import java.util.Enumeration;
+
+/**
+ * Measures how long it takes to retrieve the configuration of the network
+ * interfaces (netmask, broadcast and MAC address), and to create a
+ * DirectSocketFactory. Both are only done once per JVM, so run this
+ * program several times to get a reliable number.
+ *
+ * Compare with the old behaviour (running ifconfig) by adding
+ * -Dsmartsockets.networks.info.native=false.
+ */
+public class StartupBenchmark {
+
+    public static void main(String [] args) throws Exception {
+
+        boolean verbose = args.length > 0 && args[0].equals("-v");
+
+        long start = System.nanoTime();
+
+        int found = 0;
+        int total = 0;
+
+        Enumeration<NetworkInterface> e =
+            NetworkInterface.getNetworkInterfaces();
+
+        while (e.hasMoreElements()) {
+
+            Enumeration<InetAddress> ads = e.nextElement().getInetAddresses();
+
+            while (ads.hasMoreElements()) {
+
+                InetAddress a = ads.nextElement();
+
+                total++;
+
+                try {
+                    byte [] mask = NetworkUtils.getNetmask(a);
+                    found++;
+
+                    if (verbose) {
+                        System.out.println(NetworkUtils.ipToString(a)
+                                + " netmask " + NetworkUtils.ipToString(
+                                        InetAddress.getByAddress(mask)));
+                    }
+                } catch (Exception ex) {
+                    if (verbose) {
+                        System.out.println(NetworkUtils.ipToString(a)
+                                + " netmask unknown");
+                    }
+                }
+            }
+        }
+
+        long info = System.nanoTime() - start;
+
+        DirectSocketFactory.getSocketFactory();
+
+        long factory = System.nanoTime() - start - info;
+
+        System.out.printf("Network info: %.1f ms (netmask found for %d of %d "
+                + "addresses)%n", info / 1000000.0, found, total);
+        System.out.printf("DirectSocketFactory: %.1f ms%n",
+                factory / 1000000.0);
+    }
+}
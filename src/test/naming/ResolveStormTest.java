@@ -0,0 +1,180 @@
+package test.naming;
+
+import ibis.smartsockets.naming.NameResolver;
+import ibis.smartsockets.naming.NameResolverMethod;
+import ibis.smartsockets.virtual.VirtualSocketAddress;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Lets many threads resolve the same names at the same time, and counts how
+ * often the resolver queries for them.
+ *
+ * A fake resolver method answers queries for names starting with "known"
+ * after a delay, and never answers other names. No hub is needed.
+ *
+ * Options: -threads N (default 100), -names N (default 10), -delay MS (the
+ * time the fake method needs to answer, default 200).
+ */
+public class ResolveStormTest {
+
+    private static final AtomicInteger queries = new AtomicInteger();
+
+    private static int delay = 200;
+
+    public static class CountingMethod extends NameResolverMethod {
+
+        static {
+            registerMethod(CountingMethod.class);
+        }
+
+        private final Timer timer = new Timer("CountingMethod", true);
+
+        static void init() {
+            // Forces the static block to run.
+        }
+
+        public void register(String name, String address,
+                Map<String, String> info) throws IOException {
+            // not used
+        }
+
+        public void unregister(String name) throws IOException {
+            // not used
+        }
+
+        public void start() throws IOException {
+            // nothing to do
+        }
+
+        public void stop() {
+            timer.cancel();
+        }
+
+        public void query(final String name) {
+
+            queries.incrementAndGet();
+
+            if (!name.startsWith("known")) {
+                return;
+            }
+
+            timer.schedule(new TimerTask() {
+                public void run() {
+                    try {
+                        fireLocalAdd(name, "127.0.0.1-" + (1000
+                                + (name.hashCode() & 0xfff)) + ":0", null);
+                    } catch (Exception e) {
+                        e.printStackTrace();
+                    }
+                }
+            }, delay);
+        }
+    }
+
+    private static long storm(final NameResolver resolver, String prefix,
+            int names, int threads, final int timeout) throws Exception {
+
+        final AtomicInteger resolved = new AtomicInteger();
+
+        Thread [] t = new Thread[threads];
+
+        long start = System.currentTimeMillis();
+
+        for (int i = 0; i < threads; i++) {
+
+            final String name = prefix + (i % names);
+
+            t[i] = new Thread() {
+                public void run() {
+                    if (resolver.resolve(name, timeout) != null) {
+                        resolved.incrementAndGet();
+                    }
+                }
+            };
+
+            t[i].start();
+        }
+
+        for (int i = 0; i < threads; i++) {
+            t[i].join();
+        }
+
+        long time = System.currentTimeMillis() - start;
+
+        System.out.println(threads + " threads resolving " + names + " "
+                + prefix + " names: " + resolved.get() + " resolved, "
+                + queries.getAndSet(0) + " queries, " + time + " ms.");
+
+        return time;
+    }
+
+    public static void main(String [] args) throws Exception {
+
+        int threads = 100;
+        int names = 10;
+
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("-threads")) {
+                threads = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("-names")) {
+                names = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("-delay")) {
+                delay = Integer.parseInt(args[++i]);
+            } else {
+                System.err.println("Unknown option: " + args[i]);
+                System.exit(1);
+            }
+        }
+
+        CountingMethod.init();
+
+        NameResolver resolver = NameResolver.getOrCreateResolver(
+                "ResolveStormTest", new Properties(), true);
+
+        // The names are not known yet, so they are queried once each.
+        storm(resolver, "known", names, threads, 5000);
+
+        // Now they are cached.
+        storm(resolver, "known", names, threads, 5000);
+
+        // These names time out, after which they are not queried again for a
+        // while.
+        storm(resolver, "unknown", names, threads, 500);
+        storm(resolver, "unknown", names, threads, 500);
+
+        final long start = System.currentTimeMillis();
+        final AtomicInteger pending = new AtomicInteger(names);
+
+        for (int i = 0; i < names; i++) {
+            resolver.resolveAsync("knownAsync" + i, 5000,
+                    new NameResolver.ResolveListener() {
+                public void onResolved(String name,
+                        VirtualSocketAddress address) {
+                    if (pending.decrementAndGet() == 0) {
+                        System.out.println("Resolved " + name + " to "
+                                + address + " asynchronously after "
+                                + (System.currentTimeMillis() - start)
+                                + " ms.");
+                    }
+                }
+            });
+        }
+
+        System.out.println("resolveAsync returned after "
+                + (System.currentTimeMillis() - start) + " ms.");
+
+        while (pending.get() > 0) {
+            Thread.sleep(10);
+        }
+
+        System.out.println("Async queries: " + queries.getAndSet(0));
+
+        NameResolver.closeAllResolvers();
+    }
+}
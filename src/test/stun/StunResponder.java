@@ -0,0 +1,179 @@
+package test.stun;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+
+/**
+ * A minimal STUN server, which answers binding requests with the address
+ * they came from. It can be used instead of a real STUN server when there
+ * is no network access.
+ *
+ * The responder can delay its answers, or ignore all requests to act as an
+ * unreachable server.
+ *
+ * Options: -port N (default 3478), -delay ms, -silent
+ */
+public class StunResponder implements Runnable {
+
+    private static final int BINDING_REQUEST = 0x0001;
+    private static final int BINDING_RESPONSE = 0x0101;
+
+    private static final int MAPPED_ADDRESS = 0x0001;
+    private static final int XOR_MAPPED_ADDRESS = 0x0020;
+
+    private static final int MAGIC_COOKIE = 0x2112A442;
+
+    private final DatagramSocket socket;
+    private final int delay;
+    private final boolean silent;
+
+    private int requests = 0;
+
+    public StunResponder(int port, int delay, boolean silent)
+        throws IOException {
+
+        this.socket = new DatagramSocket(port, InetAddress.getByName(
+                "127.0.0.1"));
+        this.delay = delay;
+        this.silent = silent;
+
+        Thread t = new Thread(this, "StunResponder");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    public String getServer() {
+        return "127.0.0.1:" + socket.getLocalPort();
+    }
+
+    public synchronized int getRequests() {
+        return requests;
+    }
+
+    private static void putAddress(ByteBuffer b, int type, InetSocketAddress a,
+            byte [] mask) {
+
+        byte [] ip = a.getAddress().getAddress();
+        int port = a.getPort();
+
+        if (mask != null) {
+            port ^= (MAGIC_COOKIE >>> 16);
+
+            for (int i = 0; i < ip.length; i++) {
+                ip[i] ^= mask[i];
+            }
+        }
+
+        b.putShort((short) type);
+        b.putShort((short) (4 + ip.length));
+        b.put((byte) 0);
+        b.put((byte) (ip.length == 4 ? 1 : 2));
+        b.putShort((short) port);
+        b.put(ip);
+    }
+
+    private byte [] answer(byte [] data, int len, InetSocketAddress from) {
+
+        ByteBuffer in = ByteBuffer.wrap(data, 0, len);
+
+        if (len < 20 || in.getShort() != BINDING_REQUEST) {
+            return null;
+        }
+
+        in.getShort();
+
+        byte [] id = new byte[16];
+        in.get(id);
+
+        boolean rfc5389 = (ByteBuffer.wrap(id).getInt() == MAGIC_COOKIE);
+
+        ByteBuffer out = ByteBuffer.allocate(128);
+        out.putShort((short) BINDING_RESPONSE);
+        out.putShort((short) 0);
+        out.put(id);
+
+        putAddress(out, MAPPED_ADDRESS, from, null);
+
+        if (rfc5389) {
+            putAddress(out, XOR_MAPPED_ADDRESS, from, id);
+        }
+
+        out.putShort(2, (short) (out.position() - 20));
+
+        byte [] result = new byte[out.position()];
+        System.arraycopy(out.array(), 0, result, 0, result.length);
+        return result;
+    }
+
+    public void run() {
+
+        byte [] buffer = new byte[1024];
+        DatagramPacket p = new DatagramPacket(buffer, buffer.length);
+
+        while (true) {
+            try {
+                p.setLength(buffer.length);
+                socket.receive(p);
+
+                synchronized (this) {
+                    requests++;
+                }
+
+                if (silent) {
+                    continue;
+                }
+
+                InetSocketAddress from =
+                    (InetSocketAddress) p.getSocketAddress();
+
+                byte [] reply = answer(buffer, p.getLength(), from);
+
+                if (reply == null) {
+                    continue;
+                }
+
+                if (delay > 0) {
+                    Thread.sleep(delay);
+                }
+
+                socket.send(new DatagramPacket(reply, reply.length, from));
+
+            } catch (Exception e) {
+                System.err.println("StunResponder: " + e);
+                return;
+            }
+        }
+    }
+
+    public static void main(String [] args) throws Exception {
+
+        int port = 3478;
+        int delay = 0;
+        boolean silent = false;
+
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("-port") && i < args.length-1) {
+                port = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("-delay") && i < args.length-1) {
+                delay = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("-silent")) {
+                silent = true;
+            } else {
+                System.err.println("Unknown option: " + args[i]);
+                System.exit(1);
+            }
+        }
+
+        StunResponder r = new StunResponder(port, delay, silent);
+
+        System.out.println("STUN responder running on " + r.getServer());
+
+        while (true) {
+            Thread.sleep(60000);
+        }
+    }
+}
@@ -0,0 +1,58 @@
+package test.stun;
+
+import ibis.smartsockets.util.NetworkUtils;
+import ibis.smartsockets.util.STUN;
+
+import java.net.InetAddress;
+
+/**
+ * Measures how long STUN takes to find the external address when some of
+ * the configured servers do not answer. Uses local StunResponders, so no
+ * network access is needed.
+ *
+ * Options: -silent N (number of servers that do not answer, default 2),
+ * -delay ms (reply delay of the server that does answer, default 0)
+ */
+public class StunTest {
+
+    public static void main(String [] args) throws Exception {
+
+        int silent = 2;
+        int delay = 0;
+
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("-silent") && i < args.length-1) {
+                silent = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("-delay") && i < args.length-1) {
+                delay = Integer.parseInt(args[++i]);
+            } else {
+                System.err.println("Unknown option: " + args[i]);
+                System.exit(1);
+            }
+        }
+
+        // The unreachable servers come first, which used to be the worst
+        // case.
+        String [] servers = new String[silent + 1];
+
+        for (int i = 0; i < silent; i++) {
+            servers[i] = new StunResponder(0, 0, true).getServer();
+        }
+
+        StunResponder live = new StunResponder(0, delay, false);
+        servers[silent] = live.getServer();
+
+        for (int i = 0; i < 2; i++) {
+
+            long start = System.nanoTime();
+
+            InetAddress a = STUN.getExternalAddress(servers, 5000);
+
+            long time = System.nanoTime() - start;
+
+            System.out.printf("Got %s in %.1f ms (%d requests answered)%n",
+                    a == null ? "nothing" : NetworkUtils.ipToString(a),
+                    time / 1000000.0, live.getRequests());
+        }
+    }
+}
@@ -0,0 +1,328 @@
+package test.util;
+
+import ibis.smartsockets.util.ConcurrentLongHashMap;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Compares ConcurrentLongHashMap against a HashMap under random puts,
+ * removes and gets, with one and with many stripes, and with small and
+ * large key ranges (so keys are both replaced and added).
+ *
+ * A second test fills a stripe with keys that all hash to the last slots
+ * of the table, so their probe sequences wrap around the end of the table,
+ * and removes them in random order. This exercises the backward shift of
+ * the removal for clusters that wrap. A third test lets several threads
+ * use the map at the same time.
+ *
+ * Options: -ops N (operations per random test, default 1000000), -seed N.
+ */
+public class ConcurrentLongHashMapTest {
+
+    private static int failed = 0;
+
+    private static void check(boolean ok, String what) {
+        System.out.println((ok ? "OK     " : "FAILED ") + what);
+
+        if (!ok) {
+            failed++;
+        }
+    }
+
+    // Must be the same as the hash function of the map.
+    private static int hash(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    // Returns the first difference between the map and the model, or null.
+    private static String compare(ConcurrentLongHashMap<Long> map,
+            Map<Long, Long> model) {
+
+        if (map.size() != model.size()) {
+            return "size " + map.size() + " instead of " + model.size();
+        }
+
+        for (Map.Entry<Long, Long> e : model.entrySet()) {
+
+            Long v = map.get(e.getKey());
+
+            if (!e.getValue().equals(v)) {
+                return "key " + e.getKey() + " maps to " + v + " instead of "
+                    + e.getValue();
+            }
+        }
+
+        List<Long> values = map.values();
+
+        if (values.size() != model.size()
+                || !new HashSet<Long>(values).equals(
+                        new HashSet<Long>(model.values()))) {
+            return "values() differs";
+        }
+
+        return null;
+    }
+
+    private static void random(long seed, int ops, int stripes, long range) {
+
+        Random r = new Random(seed);
+
+        ConcurrentLongHashMap<Long> map =
+            new ConcurrentLongHashMap<Long>(stripes);
+        HashMap<Long, Long> model = new HashMap<Long, Long>();
+
+        String error = null;
+        int maxSize = 0;
+
+        for (int i = 0; i < ops && error == null; i++) {
+
+            long key = (long) (r.nextDouble() * range) - range / 2;
+            Long value = new Long(r.nextLong());
+
+            int op = r.nextInt(10);
+
+            // Grow and shrink the map in phases, so it resizes repeatedly.
+            boolean grow = (i / 10000) % 2 == 0;
+
+            if (op < (grow ? 6 : 3)) {
+                Long a = map.put(key, value);
+                Long b = model.put(key, value);
+
+                if (a == null ? b != null : !a.equals(b)) {
+                    error = "put(" + key + ") returned " + a + " instead of "
+                        + b;
+                }
+            } else if (op < 8) {
+                Long a = map.remove(key);
+                Long b = model.remove(key);
+
+                if (a == null ? b != null : !a.equals(b)) {
+                    error = "remove(" + key + ") returned " + a
+                        + " instead of " + b;
+                }
+            } else {
+                Long a = map.get(key);
+                Long b = model.get(key);
+
+                if (a == null ? b != null : !a.equals(b)) {
+                    error = "get(" + key + ") returned " + a + " instead of "
+                        + b;
+                }
+            }
+
+            maxSize = Math.max(maxSize, model.size());
+
+            // Compare everything regularly, but less often for big maps.
+            int every = model.size() < 10000 ? 997 : 99991;
+
+            if (error == null && i % every == 0) {
+                error = compare(map, model);
+            }
+        }
+
+        if (error == null) {
+            error = compare(map, model);
+        }
+
+        if (error == null) {
+            List<Long> removed = map.removeAll();
+
+            if (removed.size() != model.size() || map.size() != 0
+                    || !new HashSet<Long>(removed).equals(
+                            new HashSet<Long>(model.values()))) {
+                error = "removeAll() differs";
+            }
+        }
+
+        check(error == null, ops + " random operations, " + stripes
+                + " stripes, key range " + range + ", max size " + maxSize
+                + (error == null ? "" : ": " + error));
+    }
+
+    private static void wraparound(long seed) {
+
+        Random r = new Random(seed);
+
+        // With a single stripe, all of the hash is used for the slot. Keys
+        // whose hash ends in 11110 or 11111 are stored in the last two slots
+        // of a table of 16 or 32 entries, so all other keys that hash there
+        // wrap around to the start of the table.
+        ArrayList<Long> keys = new ArrayList<Long>();
+
+        for (long k = 0; keys.size() < 20; k++) {
+            if ((hash(k) & 30) == 30) {
+                keys.add(k);
+            }
+        }
+
+        // A few keys that hash to the first slots, which the wrapped
+        // entries are shifted past.
+        for (long k = 0; keys.size() < 24; k++) {
+            if ((hash(k) & 31) <= 1) {
+                keys.add(k);
+            }
+        }
+
+        String error = null;
+
+        for (int round = 0; round < 1000 && error == null; round++) {
+
+            ConcurrentLongHashMap<Long> map = new ConcurrentLongHashMap<Long>(1);
+            HashMap<Long, Long> model = new HashMap<Long, Long>();
+
+            Collections.shuffle(keys, r);
+
+            for (Long k : keys) {
+                map.put(k, k);
+                model.put(k, k);
+            }
+
+            Collections.shuffle(keys, r);
+
+            for (int i = 0; i < keys.size() && error == null; i++) {
+
+                Long k = keys.get(i);
+
+                if (!k.equals(map.remove(k))) {
+                    error = "remove(" + k + ") failed";
+                }
+
+                model.remove(k);
+
+                if (error == null) {
+                    error = compare(map, model);
+                }
+
+                // Sometimes put the key back, so slots are reused.
+                if (error == null && r.nextInt(4) == 0) {
+                    map.put(k, k);
+                    model.put(k, k);
+                    keys.add(k);
+                    keys.remove(i);
+                    i--;
+
+                    error = compare(map, model);
+                }
+            }
+        }
+
+        check(error == null, "removal of " + keys.size()
+                + " colliding keys that wrap around the table end"
+                + (error == null ? "" : ": " + error));
+    }
+
+    private static void concurrent(final int threads, final int ops) {
+
+        final ConcurrentLongHashMap<Long> map =
+            new ConcurrentLongHashMap<Long>();
+
+        final String [] errors = new String[threads];
+        final HashMap<?, ?> [] models = new HashMap<?, ?>[threads];
+
+        Thread [] t = new Thread[threads];
+
+        for (int i = 0; i < threads; i++) {
+
+            final int id = i;
+
+            t[i] = new Thread() {
+                public void run() {
+
+                    Random r = new Random(id);
+                    HashMap<Long, Long> model = new HashMap<Long, Long>();
+
+                    for (int j = 0; j < ops && errors[id] == null; j++) {
+
+                        // Each thread uses its own keys, all threads share
+                        // the stripes.
+                        long key = r.nextInt(1000) * threads + id;
+
+                        if (r.nextBoolean()) {
+                            Long v = new Long(j);
+
+                            if (!equal(map.put(key, v), model.put(key, v))) {
+                                errors[id] = "put(" + key + ") differs";
+                            }
+                        } else if (!equal(map.remove(key),
+                                    model.remove(key))) {
+                            errors[id] = "remove(" + key + ") differs";
+                        }
+                    }
+
+                    models[id] = model;
+                }
+            };
+
+            t[i].start();
+        }
+
+        HashMap<Long, Long> model = new HashMap<Long, Long>();
+
+        String error = null;
+
+        for (int i = 0; i < threads; i++) {
+
+            try {
+                t[i].join();
+            } catch (InterruptedException e) {
+                // ignored
+            }
+
+            if (errors[i] != null && error == null) {
+                error = errors[i];
+            }
+
+            @SuppressWarnings("unchecked")
+            HashMap<Long, Long> tmp = (HashMap<Long, Long>) models[i];
+
+            model.putAll(tmp);
+        }
+
+        if (error == null) {
+            error = compare(map, model);
+        }
+
+        check(error == null, threads + " threads doing " + ops
+                + " operations each" + (error == null ? "" : ": " + error));
+    }
+
+    private static boolean equal(Long a, Long b) {
+        return a == null ? b == null : a.equals(b);
+    }
+
+    public static void main(String [] args) {
+
+        int ops = 1000000;
+        long seed = 42;
+
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("-ops") && i < args.length-1) {
+                ops = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("-seed") && i < args.length-1) {
+                seed = Long.parseLong(args[++i]);
+            } else {
+                System.err.println("Unknown option: " + args[i]);
+                System.exit(1);
+            }
+        }
+
+        random(seed, ops, 1, 100);
+        random(seed, ops, 1, 100000);
+        random(seed, ops, 16, 100);
+        random(seed, ops, 16, 100000);
+        random(seed, ops, 5, Long.MAX_VALUE);
+
+        wraparound(seed);
+
+        concurrent(8, ops / 8);
+
+        System.exit(failed == 0 ? 0 : 1);
+    }
+}
@@ -0,0 +1,74 @@
+package test.virtual.hub;
+
+import ibis.smartsockets.SmartSocketsProperties;
+import ibis.smartsockets.direct.DirectSocketAddress;
+import ibis.smartsockets.hub.Hub;
+import ibis.smartsockets.util.TypedProperties;
+import ibis.smartsockets.virtual.VirtualSocketFactory;
+
+import java.io.File;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.util.Properties;
+
+/**
+ * Measures how long it takes to create a VirtualSocketFactory when the first
+ * configured hub does not answer. A live hub is started in this process, and
+ * the dead hub is emulated by a server socket that never accepts.
+ *
+ * The factory is created twice, the second time without any configured hubs,
+ * so it has to use the hub stored in the hub cache file.
+ */
+public class HubStartupTest {
+
+    private static VirtualSocketFactory create(Properties p) throws Exception {
+
+        long start = System.nanoTime();
+
+        VirtualSocketFactory f = VirtualSocketFactory.createSocketFactory(p,
+                true);
+
+        long time = System.nanoTime() - start;
+
+        System.out.printf("Connected to hub %s in %.1f ms%n",
+                f.getServiceLink() == null ? "none"
+                        : f.getServiceLink().getAddress().toString(),
+                time / 1000000.0);
+
+        return f;
+    }
+
+    public static void main(String [] args) throws Exception {
+
+        TypedProperties hp = new TypedProperties();
+        hp.setProperty(SmartSocketsProperties.HUB_PORT, "0");
+
+        Hub hub = new Hub(hp);
+
+        ServerSocket dead = new ServerSocket(0, 50,
+                InetAddress.getByName("127.0.0.1"));
+
+        DirectSocketAddress deadAddress = DirectSocketAddress.getByAddress(
+                "127.0.0.1", dead.getLocalPort());
+
+        File cache = File.createTempFile("hubs", ".properties");
+        cache.delete();
+
+        Properties p = new Properties();
+        p.setProperty(SmartSocketsProperties.HUB_ADDRESSES,
+                deadAddress + "," + hub.getHubAddress());
+        p.setProperty(SmartSocketsProperties.HUB_CACHE_FILE, cache.getPath());
+
+        create(p).end();
+
+        p.remove(SmartSocketsProperties.HUB_ADDRESSES);
+
+        create(p).end();
+
+        cache.delete();
+        dead.close();
+        hub.end();
+
+        System.exit(0);
+    }
+}
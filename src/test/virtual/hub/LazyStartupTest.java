@@ -0,0 +1,119 @@
+package test.virtual.hub;
+
+import ibis.smartsockets.SmartSocketsProperties;
+import ibis.smartsockets.direct.DirectSocketAddress;
+import ibis.smartsockets.hub.Hub;
+import ibis.smartsockets.util.TypedProperties;
+import ibis.smartsockets.virtual.VirtualServerSocket;
+import ibis.smartsockets.virtual.VirtualSocket;
+import ibis.smartsockets.virtual.VirtualSocketFactory;
+
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.util.Properties;
+
+/**
+ * Measures how long it takes before a new VirtualSocketFactory can accept a
+ * direct connection, and how long before its service link is connected.
+ *
+ * Options: -dead (use a hub that never answers instead of a live one),
+ * -eager (wait for the service link in the constructor, which used to be
+ * the only option), -parallel (initialize the modules concurrently).
+ */
+public class LazyStartupTest {
+
+    public static void main(String [] args) throws Exception {
+
+        boolean dead = false;
+        boolean lazy = true;
+        boolean parallel = false;
+
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("-dead")) {
+                dead = true;
+            } else if (args[i].equals("-eager")) {
+                lazy = false;
+            } else if (args[i].equals("-parallel")) {
+                parallel = true;
+            } else {
+                System.err.println("Unknown option: " + args[i]);
+                System.exit(1);
+            }
+        }
+
+        String hubAddress;
+
+        if (dead) {
+            ServerSocket s = new ServerSocket(0, 50,
+                    InetAddress.getByName("127.0.0.1"));
+
+            hubAddress = DirectSocketAddress.getByAddress("127.0.0.1",
+                    s.getLocalPort()).toString();
+        } else {
+            TypedProperties hp = new TypedProperties();
+            hp.setProperty(SmartSocketsProperties.HUB_PORT, "0");
+
+            hubAddress = new Hub(hp).getHubAddress().toString();
+        }
+
+        Properties p = new Properties();
+        p.setProperty(SmartSocketsProperties.HUB_ADDRESSES, hubAddress);
+        p.setProperty(SmartSocketsProperties.MODULES_DEFINE,
+                "direct,reverse,splice,hubrouted");
+        p.setProperty(SmartSocketsProperties.SL_LAZY, "" + lazy);
+        p.setProperty(SmartSocketsProperties.MODULES_PARALLEL, "" + parallel);
+
+        VirtualSocketFactory client =
+            VirtualSocketFactory.createSocketFactory(p, true);
+
+        long start = System.nanoTime();
+
+        VirtualSocketFactory server =
+            VirtualSocketFactory.createSocketFactory(p, true);
+
+        long created = System.nanoTime();
+
+        final VirtualServerSocket ss = server.createServerSocket(0, 10, null);
+
+        new Thread() {
+            public void run() {
+                try {
+                    ss.accept().close();
+                } catch (Exception e) {
+                    System.err.println("Accept failed: " + e);
+                }
+            }
+        }.start();
+
+        VirtualSocket s = client.createClientSocket(
+                ss.getLocalSocketAddress(), 5000, null);
+
+        s.close();
+
+        long connected = System.nanoTime();
+
+        System.out.printf("Factory created in %.1f ms%n",
+                (created - start) / 1000000.0);
+        System.out.printf("First direct connection after %.1f ms%n",
+                (connected - start) / 1000000.0);
+
+        long deadline = System.currentTimeMillis() + 15000;
+
+        while (server.getLocalHub() == null
+                && System.currentTimeMillis() < deadline) {
+            Thread.sleep(1);
+        }
+
+        if (server.getLocalHub() != null) {
+            System.out.printf("Service link connected after %.1f ms%n",
+                    (System.nanoTime() - start) / 1000000.0);
+        } else {
+            System.out.println("Service link not connected");
+        }
+
+        System.out.println("Server socket address: "
+                + ss.getLocalSocketAddress());
+
+        System.exit(0);
+    }
+}
@@ -0,0 +1,329 @@
+package test.virtual.loopback;
+
+import ibis.smartsockets.virtual.VirtualServerSocket;
+import ibis.smartsockets.virtual.VirtualSocket;
+import ibis.smartsockets.virtual.VirtualSocketAddress;
+import ibis.smartsockets.virtual.VirtualSocketFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.util.Properties;
+import java.util.Random;
+import java.util.zip.Adler32;
+
+/**
+ * Tests the loopback module with two factories in the same process. Uses a
+ * small ring, so the data wraps around the end of the ring many times.
+ *
+ * Checks that data arrives intact in reads and writes of odd sizes, that
+ * the reader gets end of stream (repeatedly) after the writer closes, that
+ * a write to a closed peer fails, and that a read timeout fires and leaves
+ * the connection usable.
+ *
+ * Options: -ring bytes (default 1000), -size MB (default 16).
+ */
+public class LoopbackTest {
+
+    private static final int PORT = 5555;
+
+    private static int ring = 1000;
+    private static int size = 16;
+
+    private static int failed = 0;
+
+    private static void check(boolean ok, String what) {
+        System.out.println((ok ? "OK     " : "FAILED ") + what);
+
+        if (!ok) {
+            failed++;
+        }
+    }
+
+    private static VirtualSocketFactory createFactory() throws Exception {
+        Properties p = new Properties();
+        p.setProperty("smartsockets.modules.define", "loopback");
+        p.setProperty("smartsockets.modules.loopback.size", "" + ring);
+        return VirtualSocketFactory.createSocketFactory(p, false);
+    }
+
+    // Returns the client and server side of a new connection. The server
+    // side must be accepted in another thread, since the client waits for
+    // the accept.
+    private static VirtualSocket [] connect(VirtualSocketFactory f,
+            final VirtualServerSocket ss) throws Exception {
+
+        final VirtualSocket [] result = new VirtualSocket[2];
+
+        Thread t = new Thread() {
+            public void run() {
+                try {
+                    result[1] = ss.accept();
+                } catch (IOException e) {
+                    System.out.println("Accept failed: " + e);
+                }
+            }
+        };
+
+        t.start();
+
+        result[0] = f.createClientSocket(ss.getLocalSocketAddress(), 1000,
+                null);
+
+        t.join();
+
+        if (result[1] == null) {
+            throw new IOException("Accept failed");
+        }
+
+        return result;
+    }
+
+    // Writes random data in chunks of random size, and closes the socket.
+    private static long send(VirtualSocket s, long total) throws IOException {
+
+        OutputStream out = s.getOutputStream();
+
+        Random r = new Random(42);
+        Adler32 sum = new Adler32();
+        byte [] buffer = new byte[3 * ring + 7];
+
+        long done = 0;
+
+        while (done < total) {
+            int n = (int) Math.min(total - done, 1 + r.nextInt(buffer.length));
+
+            r.nextBytes(buffer);
+            sum.update(buffer, 0, n);
+
+            if (n == 1) {
+                out.write(buffer[0]);
+            } else {
+                out.write(buffer, 0, n);
+            }
+
+            done += n;
+        }
+
+        s.close();
+        return sum.getValue();
+    }
+
+    private static void wraparound(VirtualSocketFactory f,
+            VirtualServerSocket ss) throws Exception {
+
+        VirtualSocket [] tmp = connect(f, ss);
+
+        final VirtualSocket c = tmp[0];
+        VirtualSocket s = tmp[1];
+
+        final long total = (long) size * 1024 * 1024;
+        final long [] sent = new long[1];
+
+        Thread t = new Thread() {
+            public void run() {
+                try {
+                    sent[0] = send(c, total);
+                } catch (IOException e) {
+                    System.out.println("Send failed: " + e);
+                }
+            }
+        };
+
+        t.start();
+
+        InputStream in = s.getInputStream();
+
+        Random r = new Random(7);
+        Adler32 sum = new Adler32();
+        byte [] buffer = new byte[2 * ring + 3];
+        long received = 0;
+
+        long start = System.nanoTime();
+
+        while (true) {
+            int n;
+
+            if (r.nextInt(10) == 0) {
+                n = in.read();
+
+                if (n != -1) {
+                    sum.update(n);
+                    n = 1;
+                }
+            } else {
+                n = in.read(buffer, 0, 1 + r.nextInt(buffer.length));
+
+                if (n > 0) {
+                    sum.update(buffer, 0, n);
+                }
+            }
+
+            if (n == -1) {
+                break;
+            }
+
+            received += n;
+        }
+
+        long time = System.nanoTime() - start;
+
+        t.join();
+
+        check(received == total && sum.getValue() == sent[0],
+                "wraparound: " + received + " bytes through a " + ring
+                + " byte ring in " + (time / 1000000) + " ms");
+
+        check(in.read() == -1 && in.read(buffer, 0, 10) == -1,
+                "end of stream is returned again");
+
+        s.close();
+    }
+
+    private static void eof(VirtualSocketFactory f, VirtualServerSocket ss)
+        throws Exception {
+
+        VirtualSocket [] tmp = connect(f, ss);
+
+        VirtualSocket c = tmp[0];
+        VirtualSocket s = tmp[1];
+
+        // Data written before the close must still arrive.
+        c.getOutputStream().write(new byte [] { 1, 2, 3 });
+        c.close();
+
+        byte [] b = new byte[10];
+        InputStream in = s.getInputStream();
+
+        check(in.read(b) == 3 && b[2] == 3 && in.read(b) == -1,
+                "data written before close arrives, then end of stream");
+
+        // The peer is gone, so writing must fail once the ring is full or
+        // right away.
+        boolean threw = false;
+
+        try {
+            OutputStream out = s.getOutputStream();
+
+            for (int i = 0; i < 10; i++) {
+                out.write(new byte[ring]);
+            }
+        } catch (SocketException e) {
+            threw = true;
+        }
+
+        check(threw, "write to a closed peer fails");
+
+        s.close();
+
+        threw = false;
+
+        try {
+            in.read();
+        } catch (SocketException e) {
+            threw = true;
+        }
+
+        check(threw, "read from a closed socket fails");
+
+        // A reader blocked on an empty ring must be woken by the close.
+        tmp = connect(f, ss);
+
+        final VirtualSocket peer = tmp[0];
+        s = tmp[1];
+
+        new Thread() {
+            public void run() {
+                try {
+                    Thread.sleep(200);
+                    peer.close();
+                } catch (Exception e) {
+                    // ignored
+                }
+            }
+        }.start();
+
+        long start = System.currentTimeMillis();
+        int result = s.getInputStream().read();
+        long time = System.currentTimeMillis() - start;
+
+        check(result == -1 && time < 5000,
+                "blocked reader gets end of stream after " + time + " ms");
+
+        s.close();
+    }
+
+    private static void timeout(VirtualSocketFactory f,
+            VirtualServerSocket ss) throws Exception {
+
+        VirtualSocket [] tmp = connect(f, ss);
+
+        VirtualSocket c = tmp[0];
+        VirtualSocket s = tmp[1];
+
+        s.setSoTimeout(200);
+
+        InputStream in = s.getInputStream();
+
+        boolean threw = false;
+        long start = System.currentTimeMillis();
+
+        try {
+            in.read();
+        } catch (SocketTimeoutException e) {
+            threw = true;
+        }
+
+        long time = System.currentTimeMillis() - start;
+
+        check(threw && time >= 190 && time < 2000,
+                "read times out after " + time + " ms");
+
+        c.getOutputStream().write(42);
+
+        check(in.read() == 42, "connection still usable after timeout");
+
+        c.close();
+        s.close();
+    }
+
+    public static void main(String [] args) throws Exception {
+
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("-ring") && i < args.length-1) {
+                ring = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("-size") && i < args.length-1) {
+                size = Integer.parseInt(args[++i]);
+            } else {
+                System.err.println("Unknown option: " + args[i]);
+                System.exit(1);
+            }
+        }
+
+        VirtualSocketFactory serverFactory = createFactory();
+        VirtualSocketFactory clientFactory = createFactory();
+
+        VirtualServerSocket ss = serverFactory.createServerSocket(PORT, 10,
+                null);
+
+        VirtualSocketAddress target = ss.getLocalSocketAddress();
+
+        System.out.println("Server at " + target);
+
+        try {
+            wraparound(clientFactory, ss);
+            eof(clientFactory, ss);
+            timeout(clientFactory, ss);
+        } catch (IOException e) {
+            System.out.println("Test failed: " + e);
+            failed++;
+        }
+
+        clientFactory.end();
+        serverFactory.end();
+
+        System.exit(failed == 0 ? 0 : 1);
+    }
+}
@@ -0,0 +1,337 @@
+package test.virtual.select;
+
+import ibis.smartsockets.hub.Hub;
+import ibis.smartsockets.util.TypedProperties;
+import ibis.smartsockets.virtual.VirtualSelectionKey;
+import ibis.smartsockets.virtual.VirtualSelector;
+import ibis.smartsockets.virtual.VirtualServerSocket;
+import ibis.smartsockets.virtual.VirtualSocket;
+import ibis.smartsockets.virtual.VirtualSocketAddress;
+import ibis.smartsockets.virtual.VirtualSocketFactory;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.SelectionKey;
+import java.util.Properties;
+import java.util.Random;
+
+/**
+ * Tests the VirtualSelector with a single selector thread that accepts
+ * connections and echoes all data it receives. Two clients connect using
+ * the direct module and two using the hubrouted module, all at the same
+ * time.
+ *
+ * Also checks that end of stream is reported again on every read, that a
+ * selector does not keep reporting a socket that was closed, and that
+ * registering a socket of a module that does not support selection (here
+ * loopback) fails with a clear message.
+ *
+ * Options: -count N (messages per client, default 1000), -size bytes
+ * (maximum message size, default 10000).
+ */
+public class SelectorEchoTest {
+
+    private static final int PORT = 5555;
+
+    private static int count = 1000;
+    private static int size = 10000;
+
+    private static int failed = 0;
+
+    private static synchronized void check(boolean ok, String what) {
+        System.out.println((ok ? "OK     " : "FAILED ") + what);
+
+        if (!ok) {
+            failed++;
+        }
+    }
+
+    private static VirtualSocketFactory createFactory(Hub hub, String modules)
+        throws Exception {
+
+        Properties p = new Properties();
+        p.setProperty("smartsockets.modules.define", modules);
+        p.setProperty("smartsockets.hub.addresses",
+                hub.getHubAddress().toString());
+        p.setProperty("smartsockets.nio", "true");
+
+        return VirtualSocketFactory.createSocketFactory(p, true);
+    }
+
+    // The state of one echoed connection.
+    private static class Echo {
+
+        final ByteBuffer buffer = ByteBuffer.allocate(4096);
+        boolean eos = false;
+    }
+
+    private static class Server extends Thread {
+
+        private final VirtualSelector selector;
+        private final VirtualServerSocket ss;
+
+        private int connections = 0;
+        private int closed = 0;
+
+        private String registerError;
+
+        private volatile boolean done = false;
+
+        Server(VirtualServerSocket ss) throws IOException {
+            super("Selector");
+            this.ss = ss;
+            this.selector = new VirtualSelector();
+            selector.register(ss, null);
+        }
+
+        private void accept() throws IOException {
+
+            VirtualSocket s = ss.accept();
+
+            try {
+                selector.register(s, SelectionKey.OP_READ, new Echo());
+                connections++;
+            } catch (IOException e) {
+                registerError = e.getMessage();
+                s.close();
+            }
+        }
+
+        private void echo(VirtualSelectionKey key) throws IOException {
+
+            Echo e = (Echo) key.attachment();
+            ByteChannel c = key.channel();
+
+            if (key.isReadable() && !e.eos) {
+
+                int n = c.read(e.buffer);
+
+                if (n == -1) {
+                    e.eos = true;
+
+                    check(c.read(ByteBuffer.allocate(1)) == -1,
+                            "end of stream is reported again on "
+                            + key.socket());
+                }
+            }
+
+            e.buffer.flip();
+
+            if (e.buffer.hasRemaining()) {
+                c.write(e.buffer);
+            }
+
+            e.buffer.compact();
+
+            if (e.eos && e.buffer.position() == 0) {
+                // The key is not cancelled on purpose: a closed socket must
+                // no longer be reported as ready.
+                key.socket().close();
+                closed++;
+                return;
+            }
+
+            // Only wait for writability if the buffer is not empty, and
+            // only read if there is room left.
+            int ops = 0;
+
+            if (e.buffer.position() > 0) {
+                ops |= SelectionKey.OP_WRITE;
+            }
+
+            if (e.buffer.hasRemaining() && !e.eos) {
+                ops |= SelectionKey.OP_READ;
+            }
+
+            key.interestOps(ops);
+        }
+
+        public void run() {
+            try {
+                while (!done) {
+
+                    selector.select(100);
+
+                    for (VirtualSelectionKey key : selector.selectedKeys()) {
+                        if (key.isAcceptable()) {
+                            accept();
+                        } else {
+                            echo(key);
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                System.out.println("Selector thread failed: " + e);
+                e.printStackTrace(System.out);
+                failed++;
+            }
+        }
+
+        void done() throws InterruptedException {
+            done = true;
+            join();
+        }
+    }
+
+    private static class Client extends Thread {
+
+        private final VirtualSocketFactory factory;
+        private final VirtualSocketAddress target;
+        private final String name;
+
+        Client(String name, VirtualSocketFactory factory,
+                VirtualSocketAddress target) {
+            super(name);
+            this.name = name;
+            this.factory = factory;
+            this.target = target;
+        }
+
+        public void run() {
+
+            try {
+                VirtualSocket s = factory.createClientSocket(target, 10000,
+                        null);
+
+                OutputStream out = s.getOutputStream();
+                DataInputStream in = new DataInputStream(s.getInputStream());
+
+                Random r = new Random(name.hashCode());
+
+                byte [] msg = new byte[size];
+                byte [] reply = new byte[size];
+
+                boolean ok = true;
+
+                long start = System.currentTimeMillis();
+
+                for (int i = 0; i < count && ok; i++) {
+
+                    int len = 1 + r.nextInt(size);
+
+                    r.nextBytes(msg);
+
+                    out.write(msg, 0, len);
+                    out.flush();
+
+                    in.readFully(reply, 0, len);
+
+                    ok = equal(msg, reply, len);
+                }
+
+                long time = System.currentTimeMillis() - start;
+
+                // Hub routed connections cannot be half closed, so we close
+                // the socket, which the server sees as end of stream.
+                s.close();
+
+                check(ok, name + ": " + count + " messages echoed in "
+                        + time + " ms");
+
+            } catch (IOException e) {
+                check(false, name + ": " + e);
+            }
+        }
+    }
+
+    private static boolean equal(byte [] a, byte [] b, int len) {
+
+        for (int i = 0; i < len; i++) {
+            if (a[i] != b[i]) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    public static void main(String [] args) throws Exception {
+
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("-count") && i < args.length-1) {
+                count = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("-size") && i < args.length-1) {
+                size = Integer.parseInt(args[++i]);
+            } else {
+                System.err.println("Unknown option: " + args[i]);
+                System.exit(1);
+            }
+        }
+
+        TypedProperties p = new TypedProperties();
+        p.setProperty("smartsockets.hub.port", "0");
+
+        Hub hub = new Hub(p);
+
+        VirtualSocketFactory serverFactory = createFactory(hub,
+                "direct,hubrouted,loopback");
+        VirtualSocketFactory direct = createFactory(hub, "direct");
+        VirtualSocketFactory hubrouted = createFactory(hub, "hubrouted");
+        VirtualSocketFactory loopback = createFactory(hub, "loopback");
+
+        VirtualServerSocket ss = serverFactory.createServerSocket(PORT, 10,
+                null);
+
+        VirtualSocketAddress target = ss.getLocalSocketAddress();
+
+        Server server = new Server(ss);
+        server.start();
+
+        Client [] clients = new Client [] {
+                new Client("direct-1", direct, target),
+                new Client("direct-2", direct, target),
+                new Client("hubrouted-1", hubrouted, target),
+                new Client("hubrouted-2", hubrouted, target) };
+
+        for (Client c : clients) {
+            c.start();
+        }
+
+        for (Client c : clients) {
+            c.join();
+        }
+
+        // The loopback socket cannot be registered, so the server closes it.
+        try {
+            VirtualSocket s = loopback.createClientSocket(target, 10000, null);
+            s.getInputStream().read();
+            s.close();
+        } catch (IOException e) {
+            // expected if the close arrives first
+        }
+
+        // Give the server some time to see all closes.
+        Thread.sleep(500);
+
+        server.done();
+
+        check(server.connections == clients.length
+                && server.closed == clients.length,
+                "selector handled " + server.connections + " connections, "
+                + "closed " + server.closed);
+
+        check(server.registerError != null
+                && server.registerError.indexOf("does not support") >= 0,
+                "registering a loopback socket fails: "
+                + server.registerError);
+
+        // All sockets are closed, so nothing may be ready anymore, even
+        // though their keys were not cancelled.
+        int ready = server.selector.selectNow();
+
+        check(ready == 0, "no keys ready after all sockets were closed");
+
+        server.selector.close();
+
+        direct.end();
+        hubrouted.end();
+        loopback.end();
+        serverFactory.end();
+        hub.end();
+
+        System.exit(failed == 0 ? 0 : 1);
+    }
+}
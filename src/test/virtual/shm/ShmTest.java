@@ -0,0 +1,534 @@
+package test.virtual.shm;
+
+import ibis.smartsockets.virtual.VirtualServerSocket;
+import ibis.smartsockets.virtual.VirtualSocket;
+import ibis.smartsockets.virtual.VirtualSocketAddress;
+import ibis.smartsockets.virtual.VirtualSocketFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.SocketTimeoutException;
+import java.util.Properties;
+import java.util.Random;
+import java.util.zip.Adler32;
+
+/**
+ * Tests the shm module with two factories in the same process, and with a
+ * client in a second process that dies without closing its connection. Uses
+ * a small ring, so the data wraps around the end of the ring many times.
+ *
+ * Checks that data arrives intact, that the reader gets end of stream
+ * (repeatedly) after the writer closes, that a write to a closed peer fails,
+ * and that a read timeout fires and leaves the connection usable.
+ *
+ * The doorbell is checked by letting a reader (or a writer on a full ring)
+ * go to sleep before the other side continues. Without the doorbell it only
+ * wakes up after its maximum sleep of 50 ms, so the average wakeup time
+ * shows if the doorbell rang.
+ *
+ * Options: -ring bytes (default 1000), -size MB (default 16).
+ */
+public class ShmTest {
+
+    private static final int PORT = 5555;
+
+    // Time needed by a reader or writer to give up spinning and sleep.
+    private static final int ASLEEP = 20;
+
+    private static final int WAKEUPS = 20;
+
+    private static int ring = 1000;
+    private static int size = 16;
+
+    private static int failed = 0;
+
+    private static void check(boolean ok, String what) {
+        System.out.println((ok ? "OK     " : "FAILED ") + what);
+
+        if (!ok) {
+            failed++;
+        }
+    }
+
+    private static VirtualSocketFactory createFactory() throws Exception {
+        Properties p = new Properties();
+        p.setProperty("smartsockets.modules.define", "shm");
+        p.setProperty("smartsockets.modules.shm.size", "" + ring);
+        return VirtualSocketFactory.createSocketFactory(p, true);
+    }
+
+    // Returns the client and server side of a new connection. The server
+    // side must be accepted in another thread, since the client waits for
+    // the accept.
+    private static VirtualSocket [] connect(VirtualSocketFactory f,
+            final VirtualServerSocket ss) throws Exception {
+
+        final VirtualSocket [] result = new VirtualSocket[2];
+
+        Thread t = new Thread() {
+            public void run() {
+                try {
+                    result[1] = ss.accept();
+                } catch (IOException e) {
+                    System.out.println("Accept failed: " + e);
+                }
+            }
+        };
+
+        t.start();
+
+        result[0] = f.createClientSocket(ss.getLocalSocketAddress(), 5000,
+                null);
+
+        t.join();
+
+        if (result[1] == null) {
+            throw new IOException("Accept failed");
+        }
+
+        return result;
+    }
+
+    private static void pause(long ms) {
+        try {
+            Thread.sleep(ms);
+        } catch (InterruptedException e) {
+            // ignored
+        }
+    }
+
+    // Writes random data in chunks of random size, and closes the socket.
+    private static long send(VirtualSocket s, long total) throws IOException {
+
+        OutputStream out = s.getOutputStream();
+
+        Random r = new Random(42);
+        Adler32 sum = new Adler32();
+        byte [] buffer = new byte[3 * ring + 7];
+
+        long done = 0;
+
+        while (done < total) {
+            int n = (int) Math.min(total - done, 1 + r.nextInt(buffer.length));
+
+            r.nextBytes(buffer);
+            sum.update(buffer, 0, n);
+
+            if (n == 1) {
+                out.write(buffer[0]);
+            } else {
+                out.write(buffer, 0, n);
+            }
+
+            done += n;
+        }
+
+        s.close();
+        return sum.getValue();
+    }
+
+    private static void wraparound(VirtualSocketFactory f,
+            VirtualServerSocket ss) throws Exception {
+
+        VirtualSocket [] tmp = connect(f, ss);
+
+        final VirtualSocket c = tmp[0];
+        VirtualSocket s = tmp[1];
+
+        final long total = (long) size * 1024 * 1024;
+        final long [] sent = new long[1];
+
+        Thread t = new Thread() {
+            public void run() {
+                try {
+                    sent[0] = send(c, total);
+                } catch (IOException e) {
+                    System.out.println("Send failed: " + e);
+                }
+            }
+        };
+
+        t.start();
+
+        InputStream in = s.getInputStream();
+
+        Random r = new Random(7);
+        Adler32 sum = new Adler32();
+        byte [] buffer = new byte[2 * ring + 3];
+        long received = 0;
+
+        long start = System.nanoTime();
+
+        while (true) {
+            int n;
+
+            if (r.nextInt(10) == 0) {
+                n = in.read();
+
+                if (n != -1) {
+                    sum.update(n);
+                    n = 1;
+                }
+            } else {
+                n = in.read(buffer, 0, 1 + r.nextInt(buffer.length));
+
+                if (n > 0) {
+                    sum.update(buffer, 0, n);
+                }
+            }
+
+            if (n == -1) {
+                break;
+            }
+
+            received += n;
+        }
+
+        long time = System.nanoTime() - start;
+
+        t.join();
+
+        check(received == total && sum.getValue() == sent[0],
+                "wraparound: " + received + " bytes through a " + ring
+                + " byte ring in " + (time / 1000000) + " ms");
+
+        check(in.read() == -1 && in.read(buffer, 0, 10) == -1,
+                "end of stream is returned again");
+
+        s.close();
+    }
+
+    private static void doorbell(VirtualSocketFactory f,
+            VirtualServerSocket ss) throws Exception {
+
+        VirtualSocket [] tmp = connect(f, ss);
+
+        final VirtualSocket c = tmp[0];
+        VirtualSocket s = tmp[1];
+
+        final long [] written = new long[WAKEUPS];
+
+        // Each byte is written after the reader has gone to sleep.
+        Thread t = new Thread() {
+            public void run() {
+                try {
+                    OutputStream out = c.getOutputStream();
+
+                    for (int i = 0; i < WAKEUPS; i++) {
+                        pause(ASLEEP);
+                        written[i] = System.nanoTime();
+                        out.write(i);
+                    }
+                } catch (IOException e) {
+                    System.out.println("Write failed: " + e);
+                }
+            }
+        };
+
+        t.start();
+
+        InputStream in = s.getInputStream();
+
+        long wait = 0;
+        boolean ok = true;
+
+        for (int i = 0; i < WAKEUPS; i++) {
+            ok &= in.read() == i;
+            wait += System.nanoTime() - written[i];
+        }
+
+        t.join();
+
+        wait /= 1000L * WAKEUPS;
+
+        check(ok && wait < 10000, "sleeping reader is woken by the writer "
+                + "after " + wait + " us on average");
+
+        // Now fill the ring, so the writer goes to sleep until the reader
+        // makes room.
+        final long [] done = new long[1];
+        final byte [] data = new byte[ring + 1];
+
+        long woken = 0;
+
+        for (int i = 0; i < WAKEUPS; i++) {
+
+            t = new Thread() {
+                public void run() {
+                    try {
+                        c.getOutputStream().write(data);
+                        done[0] = System.nanoTime();
+                    } catch (IOException e) {
+                        System.out.println("Write failed: " + e);
+                    }
+                }
+            };
+
+            t.start();
+
+            pause(ASLEEP);
+
+            byte [] b = new byte[data.length];
+
+            long start = System.nanoTime();
+            int n = in.read(b);
+            t.join();
+
+            woken += done[0] - start;
+
+            // Get the remainder of the write.
+            while (n < b.length) {
+                n += in.read(b, n, b.length - n);
+            }
+        }
+
+        woken /= 1000L * WAKEUPS;
+
+        check(woken < 10000, "writer on a full ring is woken by the reader "
+                + "after " + woken + " us on average");
+
+        // A reader sleeping on an empty ring must be woken by the close.
+        new Thread() {
+            public void run() {
+                pause(200);
+
+                try {
+                    c.close();
+                } catch (IOException e) {
+                    // ignored
+                }
+            }
+        }.start();
+
+        long start = System.currentTimeMillis();
+        int result = in.read();
+        long time = System.currentTimeMillis() - start;
+
+        check(result == -1 && time < 5000,
+                "sleeping reader gets end of stream after " + time + " ms");
+
+        s.close();
+    }
+
+    private static void eof(VirtualSocketFactory f, VirtualServerSocket ss)
+        throws Exception {
+
+        VirtualSocket [] tmp = connect(f, ss);
+
+        VirtualSocket c = tmp[0];
+        VirtualSocket s = tmp[1];
+
+        // Data written before the close must still arrive.
+        c.getOutputStream().write(new byte [] { 1, 2, 3 });
+        c.close();
+
+        byte [] b = new byte[10];
+        InputStream in = s.getInputStream();
+
+        check(in.read(b) == 3 && b[2] == 3 && in.read(b) == -1
+                && in.read() == -1,
+                "data written before close arrives, then end of stream");
+
+        // The peer is gone, so writing must fail once the ring is full or
+        // right away.
+        boolean threw = false;
+
+        try {
+            OutputStream out = s.getOutputStream();
+
+            for (int i = 0; i < 10; i++) {
+                out.write(new byte[ring]);
+            }
+        } catch (IOException e) {
+            threw = true;
+        }
+
+        check(threw, "write to a closed peer fails");
+
+        s.close();
+
+        threw = false;
+
+        try {
+            in.read();
+        } catch (IOException e) {
+            threw = true;
+        }
+
+        check(threw, "read from a closed socket fails");
+    }
+
+    private static void timeout(VirtualSocketFactory f,
+            VirtualServerSocket ss) throws Exception {
+
+        VirtualSocket [] tmp = connect(f, ss);
+
+        VirtualSocket c = tmp[0];
+        VirtualSocket s = tmp[1];
+
+        s.setSoTimeout(200);
+
+        InputStream in = s.getInputStream();
+
+        boolean threw = false;
+        long start = System.currentTimeMillis();
+
+        try {
+            in.read();
+        } catch (SocketTimeoutException e) {
+            threw = true;
+        }
+
+        long time = System.currentTimeMillis() - start;
+
+        check(threw && time >= 190 && time < 2000,
+                "read times out after " + time + " ms");
+
+        c.getOutputStream().write(42);
+
+        check(in.read() == 42, "connection still usable after timeout");
+
+        c.close();
+        s.close();
+    }
+
+    // Starts a second process that connects, writes 3 bytes and dies.
+    private static void death(VirtualServerSocket ss) throws Exception {
+
+        String java = System.getProperty("java.home") + File.separator
+            + "bin" + File.separator + "java";
+
+        ProcessBuilder b = new ProcessBuilder(java, "-cp",
+                System.getProperty("java.class.path"),
+                ShmTest.class.getName(), "-ring", "" + ring, "-child",
+                ss.getLocalSocketAddress().toString());
+
+        b.redirectErrorStream(true);
+
+        final Process p = b.start();
+
+        // Discard the output of the child.
+        new Thread() {
+            public void run() {
+                try {
+                    InputStream in = p.getInputStream();
+
+                    while (in.read() != -1) {
+                        // ignored
+                    }
+                } catch (IOException e) {
+                    // ignored
+                }
+            }
+        }.start();
+
+        ss.setSoTimeout(30000);
+
+        VirtualSocket s = ss.accept();
+
+        InputStream in = s.getInputStream();
+        byte [] buffer = new byte[10];
+
+        int n = 0;
+
+        while (n < 3) {
+            n += in.read(buffer, n, 3 - n);
+        }
+
+        p.waitFor();
+
+        // The data arrived before the child died. After that the reader
+        // must not block forever.
+        long start = System.currentTimeMillis();
+        boolean ended;
+
+        try {
+            ended = in.read() == -1;
+        } catch (IOException e) {
+            ended = true;
+        }
+
+        long time = System.currentTimeMillis() - start;
+
+        check(buffer[2] == 3 && ended && time < 5000,
+                "reader notices that the peer died after " + time + " ms");
+
+        boolean threw = false;
+
+        try {
+            OutputStream out = s.getOutputStream();
+
+            for (int i = 0; i < 10; i++) {
+                out.write(new byte[ring]);
+            }
+        } catch (IOException e) {
+            threw = true;
+        }
+
+        check(threw, "write to a dead peer fails");
+
+        s.close();
+    }
+
+    private static void child(String target) throws Exception {
+
+        VirtualSocketFactory f = createFactory();
+
+        VirtualSocket s = f.createClientSocket(
+                new VirtualSocketAddress(target), 5000, null);
+
+        s.getOutputStream().write(new byte [] { 1, 2, 3 });
+
+        // Die without closing anything.
+        Runtime.getRuntime().halt(0);
+    }
+
+    public static void main(String [] args) throws Exception {
+
+        String target = null;
+
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("-ring") && i < args.length-1) {
+                ring = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("-size") && i < args.length-1) {
+                size = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("-child") && i < args.length-1) {
+                target = args[++i];
+            } else {
+                System.err.println("Unknown option: " + args[i]);
+                System.exit(1);
+            }
+        }
+
+        if (target != null) {
+            child(target);
+            return;
+        }
+
+        VirtualSocketFactory serverFactory = createFactory();
+        VirtualSocketFactory clientFactory = createFactory();
+
+        VirtualServerSocket ss = serverFactory.createServerSocket(PORT, 10,
+                null);
+
+        System.out.println("Server at " + ss.getLocalSocketAddress());
+
+        try {
+            wraparound(clientFactory, ss);
+            doorbell(clientFactory, ss);
+            eof(clientFactory, ss);
+            timeout(clientFactory, ss);
+            death(ss);
+        } catch (IOException e) {
+            System.out.println("Test failed: " + e);
+            failed++;
+        }
+
+        clientFactory.end();
+        serverFactory.end();
+
+        System.exit(failed == 0 ? 0 : 1);
+    }
+}
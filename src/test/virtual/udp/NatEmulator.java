@@ -0,0 +1,237 @@
+package test.virtual.udp;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Random;
+
+/**
+ * Emulates a NAT for the udp module, using UDP sockets on the loopback
+ * interface.
+ *
+ * A udp module configured with this emulator as its gateway sends all its
+ * packets to the emulator, prefixed with the real destination. The emulator
+ * forwards them from an "external" socket, which is created for every
+ * internal socket (a cone NAT), or for every internal socket and destination
+ * (a symmetric NAT). Packets arriving at an external socket are only passed
+ * on (prefixed with their source) if the internal socket sent a packet to
+ * their source before. Packets sent directly to internal sockets are dropped,
+ * just like private addresses are unreachable from the outside.
+ *
+ * Optionally, a fraction of all forwarded packets is lost.
+ */
+public class NatEmulator implements Runnable {
+
+    private final boolean symmetric;
+    private final double loss;
+
+    private final Random random = new Random(42);
+
+    private final DatagramSocket inside;
+
+    private final HashMap<String, Mapping> mappings =
+        new HashMap<String, Mapping>();
+
+    private final HashSet<Integer> internalPorts = new HashSet<Integer>();
+    private final HashSet<Integer> externalPorts = new HashSet<Integer>();
+
+    private long forwarded = 0;
+    private long filtered = 0;
+    private long lost = 0;
+
+    private class Mapping implements Runnable {
+
+        private final InetSocketAddress internal;
+        private final DatagramSocket external;
+
+        private final HashSet<InetSocketAddress> permitted =
+            new HashSet<InetSocketAddress>();
+
+        Mapping(InetSocketAddress internal) throws SocketException {
+            this.internal = internal;
+            this.external = new DatagramSocket();
+        }
+
+        synchronized void permit(InetSocketAddress a) {
+            permitted.add(a);
+        }
+
+        synchronized boolean isPermitted(InetSocketAddress a) {
+            return permitted.contains(a);
+        }
+
+        void send(InetSocketAddress to, byte [] data, int off, int len)
+            throws IOException {
+
+            permit(to);
+
+            if (drop()) {
+                return;
+            }
+
+            external.send(new DatagramPacket(data, off, len, to));
+        }
+
+        public void run() {
+
+            byte [] buffer = new byte[64*1024];
+            DatagramPacket p = new DatagramPacket(buffer, buffer.length);
+
+            while (true) {
+                try {
+                    p.setLength(buffer.length);
+                    external.receive(p);
+
+                    InetSocketAddress from =
+                        (InetSocketAddress) p.getSocketAddress();
+
+                    if (!isPermitted(from)) {
+                        count(false);
+                        continue;
+                    }
+
+                    if (drop()) {
+                        continue;
+                    }
+
+                    byte [] tmp = encode(from, buffer, p.getLength());
+                    inside.send(new DatagramPacket(tmp, tmp.length, internal));
+
+                } catch (IOException e) {
+                    System.err.println("NatEmulator: " + e);
+                    return;
+                }
+            }
+        }
+    }
+
+    public NatEmulator(boolean symmetric, double loss) throws IOException {
+        this.symmetric = symmetric;
+        this.loss = loss;
+
+        inside = new DatagramSocket(0, InetAddress.getByName("127.0.0.1"));
+
+        Thread t = new Thread(this, "NatEmulator");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    public String getGateway() {
+        return "127.0.0.1:" + inside.getLocalPort();
+    }
+
+    private synchronized boolean drop() {
+
+        if (loss > 0 && random.nextDouble() < loss) {
+            lost++;
+            return true;
+        }
+
+        forwarded++;
+        return false;
+    }
+
+    private synchronized void count(boolean forward) {
+        if (forward) {
+            forwarded++;
+        } else {
+            filtered++;
+        }
+    }
+
+    public synchronized String getStatistics() {
+        return "forwarded " + forwarded + ", filtered " + filtered
+            + ", lost " + lost + ", mappings " + mappings.size();
+    }
+
+    private static byte [] encode(InetSocketAddress a, byte [] data, int len) {
+
+        byte [] address = a.getAddress().getAddress();
+        byte [] result = new byte[address.length + 3 + len];
+
+        result[0] = (byte) address.length;
+        System.arraycopy(address, 0, result, 1, address.length);
+        result[address.length + 1] = (byte) (a.getPort() >> 8);
+        result[address.length + 2] = (byte) a.getPort();
+        System.arraycopy(data, 0, result, address.length + 3, len);
+        return result;
+    }
+
+    private synchronized Mapping getMapping(InetSocketAddress internal,
+            InetSocketAddress target) throws SocketException {
+
+        String key = symmetric ? internal + "/" + target : internal.toString();
+
+        Mapping m = mappings.get(key);
+
+        if (m == null) {
+            m = new Mapping(internal);
+            mappings.put(key, m);
+            internalPorts.add(internal.getPort());
+            externalPorts.add(m.external.getLocalPort());
+
+            System.out.println("NatEmulator: mapped " + internal + " to port "
+                    + m.external.getLocalPort()
+                    + (symmetric ? " for " + target : ""));
+
+            Thread t = new Thread(m, "NatEmulator mapping");
+            t.setDaemon(true);
+            t.start();
+        }
+
+        return m;
+    }
+
+    private synchronized boolean isInternal(InetSocketAddress a) {
+        return internalPorts.contains(a.getPort())
+            && !externalPorts.contains(a.getPort());
+    }
+
+    public void run() {
+
+        byte [] buffer = new byte[64*1024];
+        DatagramPacket p = new DatagramPacket(buffer, buffer.length);
+
+        while (true) {
+            try {
+                p.setLength(buffer.length);
+                inside.receive(p);
+
+                InetSocketAddress from =
+                    (InetSocketAddress) p.getSocketAddress();
+
+                int len = buffer[0] & 0xff;
+
+                InetSocketAddress to = new InetSocketAddress(
+                        InetAddress.getByAddress(copy(buffer, 1, len)),
+                        ((buffer[len + 1] & 0xff) << 8)
+                            | (buffer[len + 2] & 0xff));
+
+                // Register the sender first, so it is known as internal.
+                Mapping m = getMapping(from, to);
+
+                if (isInternal(to)) {
+                    count(false);
+                    continue;
+                }
+
+                m.send(to, buffer, len + 3, p.getLength() - len - 3);
+
+            } catch (IOException e) {
+                System.err.println("NatEmulator: " + e);
+                return;
+            }
+        }
+    }
+
+    private static byte [] copy(byte [] b, int off, int len) {
+        byte [] tmp = new byte[len];
+        System.arraycopy(b, off, tmp, 0, len);
+        return tmp;
+    }
+}
@@ -0,0 +1,230 @@
+package test.virtual.udp;
+
+import ibis.smartsockets.hub.Hub;
+import ibis.smartsockets.util.TypedProperties;
+import ibis.smartsockets.virtual.VirtualServerSocket;
+import ibis.smartsockets.virtual.VirtualSocket;
+import ibis.smartsockets.virtual.VirtualSocketAddress;
+import ibis.smartsockets.virtual.VirtualSocketFactory;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Properties;
+import java.util.Random;
+import java.util.zip.Adler32;
+
+/**
+ * Tests the udp module in a single process, with both the server and the
+ * client behind an emulated NAT.
+ *
+ * Options: -nat cone|symmetric|none, -loss fraction, -size MB, -count N
+ * (number of round trips).
+ */
+public class NatTest {
+
+    private static final int PORT = 5555;
+
+    private static String nat = "cone";
+    private static double loss = 0.0;
+    private static int size = 16;
+    private static int count = 1000;
+
+    private static VirtualSocketFactory createFactory(Hub hub,
+            NatEmulator emulator) throws Exception {
+
+        Properties p = new Properties();
+        p.setProperty("smartsockets.modules.define", "udp");
+        p.setProperty("smartsockets.hub.addresses",
+                hub.getHubAddress().toString());
+
+        if (emulator != null) {
+            p.setProperty("smartsockets.modules.udp.gateway",
+                    emulator.getGateway());
+        }
+
+        return VirtualSocketFactory.createSocketFactory(p, false);
+    }
+
+    private static void server(final VirtualServerSocket ss) {
+
+        while (true) {
+            try {
+                VirtualSocket s = ss.accept();
+
+                DataInputStream in = new DataInputStream(s.getInputStream());
+                DataOutputStream out =
+                    new DataOutputStream(s.getOutputStream());
+
+                int mode = in.readInt();
+
+                if (mode == 0) {
+                    // Echo single bytes.
+                    int b;
+
+                    while ((b = in.read()) != -1) {
+                        out.write(b);
+                        out.flush();
+                    }
+                } else {
+                    // Read all data and return its checksum.
+                    Adler32 sum = new Adler32();
+                    byte [] buffer = new byte[64*1024];
+                    long total = 0;
+                    int n;
+
+                    while ((n = in.read(buffer)) != -1) {
+                        sum.update(buffer, 0, n);
+                        total += n;
+                    }
+
+                    out.writeLong(total);
+                    out.writeLong(sum.getValue());
+                    out.flush();
+                }
+
+                s.close();
+            } catch (IOException e) {
+                System.out.println("Server failed: " + e);
+            }
+        }
+    }
+
+    private static void latency(VirtualSocketFactory f,
+            VirtualSocketAddress target) throws IOException {
+
+        VirtualSocket s = f.createClientSocket(target, 10000, null);
+
+        DataOutputStream out = new DataOutputStream(s.getOutputStream());
+        InputStream in = s.getInputStream();
+
+        out.writeInt(0);
+
+        long start = System.nanoTime();
+
+        for (int i = 0; i < count; i++) {
+            out.write(i);
+            out.flush();
+
+            if (in.read() != (i & 0xff)) {
+                throw new IOException("Wrong reply");
+            }
+        }
+
+        long time = System.nanoTime() - start;
+
+        System.out.printf("Round trip %.1f us%n", time / 1000.0 / count);
+
+        s.close();
+    }
+
+    private static void throughput(VirtualSocketFactory f,
+            VirtualSocketAddress target) throws IOException {
+
+        VirtualSocket s = f.createClientSocket(target, 10000, null);
+
+        DataOutputStream out = new DataOutputStream(s.getOutputStream());
+        DataInputStream in = new DataInputStream(s.getInputStream());
+
+        out.writeInt(1);
+
+        Random r = new Random(1);
+        Adler32 sum = new Adler32();
+        byte [] buffer = new byte[64*1024];
+        long total = (long) size * 1024 * 1024;
+
+        long start = System.nanoTime();
+
+        for (long done = 0; done < total; done += buffer.length) {
+            r.nextBytes(buffer);
+            sum.update(buffer);
+            out.write(buffer);
+        }
+
+        s.shutdownOutput();
+
+        long received = in.readLong();
+        long checksum = in.readLong();
+
+        long time = System.nanoTime() - start;
+
+        if (received != total || checksum != sum.getValue()) {
+            throw new IOException("Data corrupted: got " + received
+                    + " bytes, checksum " + checksum + " instead of "
+                    + sum.getValue());
+        }
+
+        System.out.printf("Sent %d MB in %.1f ms (%.1f MB/s)%n", size,
+                time / 1000000.0, size * 1000000000.0 / time);
+
+        s.close();
+    }
+
+    public static void main(String [] args) throws Exception {
+
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("-nat") && i < args.length-1) {
+                nat = args[++i];
+            } else if (args[i].equals("-loss") && i < args.length-1) {
+                loss = Double.parseDouble(args[++i]);
+            } else if (args[i].equals("-size") && i < args.length-1) {
+                size = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("-count") && i < args.length-1) {
+                count = Integer.parseInt(args[++i]);
+            } else {
+                System.err.println("Unknown option: " + args[i]);
+                System.exit(1);
+            }
+        }
+
+        TypedProperties p = new TypedProperties();
+        p.setProperty("smartsockets.hub.port", "0");
+        p.setProperty("smartsockets.hub.udp.reflector", "true");
+
+        Hub hub = new Hub(p);
+
+        NatEmulator emulator = null;
+
+        if (!nat.equals("none")) {
+            emulator = new NatEmulator(nat.equals("symmetric"), loss);
+        }
+
+        VirtualSocketFactory serverFactory = createFactory(hub, emulator);
+        VirtualSocketFactory clientFactory = createFactory(hub, emulator);
+
+        final VirtualServerSocket ss = serverFactory.createServerSocket(PORT,
+                10, null);
+
+        Thread t = new Thread("Server") {
+            public void run() {
+                server(ss);
+            }
+        };
+
+        t.setDaemon(true);
+        t.start();
+
+        VirtualSocketAddress target = ss.getLocalSocketAddress();
+
+        int result = 0;
+
+        try {
+            latency(clientFactory, target);
+            throughput(clientFactory, target);
+        } catch (IOException e) {
+            System.out.println("Test failed: " + e);
+            result = 1;
+        }
+
+        if (emulator != null) {
+            System.out.println("NatEmulator: " + emulator.getStatistics());
+        }
+
+        clientFactory.end();
+        serverFactory.end();
+        hub.end();
+
+        System.exit(result);
+    }
+}
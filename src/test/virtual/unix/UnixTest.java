@@ -0,0 +1,524 @@
+package test.virtual.unix;
+
+import ibis.smartsockets.virtual.VirtualServerSocket;
+import ibis.smartsockets.virtual.VirtualSocket;
+import ibis.smartsockets.virtual.VirtualSocketAddress;
+import ibis.smartsockets.virtual.VirtualSocketFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.SocketTimeoutException;
+import java.util.Properties;
+import java.util.Random;
+import java.util.zip.Adler32;
+
+/**
+ * Tests the unix module with two factories in the same process, and with a
+ * client in a second process that dies without closing its connection. Runs
+ * all tests for the JDK and for the juds implementation, and skips the ones
+ * that are not available.
+ *
+ * Checks that data arrives intact, that every byte value is returned by the
+ * single byte read (juds returns bytes above 127 as negative values, which
+ * look like the end of the stream), that the reader gets end of stream
+ * (repeatedly) after the writer closes or shuts down its output, that a write
+ * to a closed or dead peer fails, and that a read timeout fires and leaves
+ * the connection usable.
+ *
+ * Options: -impl jdk|juds (default both), -size MB (default 16).
+ */
+public class UnixTest {
+
+    private static final int PORT = 5555;
+
+    private static int size = 16;
+
+    private static int failed = 0;
+
+    private static void check(boolean ok, String what) {
+        System.out.println((ok ? "OK     " : "FAILED ") + what);
+
+        if (!ok) {
+            failed++;
+        }
+    }
+
+    private static VirtualSocketFactory createFactory(String impl)
+        throws Exception {
+
+        Properties p = new Properties();
+        p.setProperty("smartsockets.modules.define", "unix");
+        p.setProperty("smartsockets.modules.unix.implementation", impl);
+        return VirtualSocketFactory.createSocketFactory(p, true);
+    }
+
+    // Returns the client and server side of a new connection. The server
+    // side must be accepted in another thread, since the client waits for
+    // the accept.
+    private static VirtualSocket [] connect(VirtualSocketFactory f,
+            final VirtualServerSocket ss) throws Exception {
+
+        final VirtualSocket [] result = new VirtualSocket[2];
+
+        Thread t = new Thread() {
+            public void run() {
+                try {
+                    result[1] = ss.accept();
+                } catch (IOException e) {
+                    System.out.println("Accept failed: " + e);
+                }
+            }
+        };
+
+        t.start();
+
+        result[0] = f.createClientSocket(ss.getLocalSocketAddress(), 5000,
+                null);
+
+        t.join();
+
+        if (result[1] == null) {
+            throw new IOException("Accept failed");
+        }
+
+        return result;
+    }
+
+    // Writes random data in chunks of random size, and closes the socket.
+    private static long send(VirtualSocket s, long total) throws IOException {
+
+        OutputStream out = s.getOutputStream();
+
+        Random r = new Random(42);
+        Adler32 sum = new Adler32();
+        byte [] buffer = new byte[64*1024];
+
+        long done = 0;
+
+        while (done < total) {
+            int n = (int) Math.min(total - done, 1 + r.nextInt(buffer.length));
+
+            r.nextBytes(buffer);
+            sum.update(buffer, 0, n);
+
+            if (n == 1) {
+                out.write(buffer[0]);
+            } else {
+                out.write(buffer, 0, n);
+            }
+
+            done += n;
+        }
+
+        s.close();
+        return sum.getValue();
+    }
+
+    private static void data(String impl, VirtualSocketFactory f,
+            VirtualServerSocket ss) throws Exception {
+
+        VirtualSocket [] tmp = connect(f, ss);
+
+        final VirtualSocket c = tmp[0];
+        VirtualSocket s = tmp[1];
+
+        final long total = (long) size * 1024 * 1024;
+        final long [] sent = new long[1];
+
+        Thread t = new Thread() {
+            public void run() {
+                try {
+                    sent[0] = send(c, total);
+                } catch (IOException e) {
+                    System.out.println("Send failed: " + e);
+                }
+            }
+        };
+
+        t.start();
+
+        InputStream in = s.getInputStream();
+
+        Random r = new Random(7);
+        Adler32 sum = new Adler32();
+        byte [] buffer = new byte[32*1024];
+        long received = 0;
+
+        long start = System.nanoTime();
+
+        while (true) {
+            int n;
+
+            if (r.nextInt(10) == 0) {
+                n = in.read();
+
+                if (n != -1) {
+                    sum.update(n);
+                    n = 1;
+                }
+            } else {
+                n = in.read(buffer, 0, 1 + r.nextInt(buffer.length));
+
+                if (n > 0) {
+                    sum.update(buffer, 0, n);
+                }
+            }
+
+            if (n == -1) {
+                break;
+            }
+
+            received += n;
+        }
+
+        long time = System.nanoTime() - start;
+
+        t.join();
+
+        check(received == total && sum.getValue() == sent[0],
+                impl + ": " + received + " bytes in " + (time / 1000000)
+                + " ms");
+
+        check(in.read() == -1 && in.read(buffer, 0, 10) == -1,
+                impl + ": end of stream is returned again");
+
+        s.close();
+    }
+
+    private static void bytes(String impl, VirtualSocketFactory f,
+            VirtualServerSocket ss) throws Exception {
+
+        VirtualSocket [] tmp = connect(f, ss);
+
+        VirtualSocket c = tmp[0];
+        VirtualSocket s = tmp[1];
+
+        OutputStream out = c.getOutputStream();
+
+        for (int i = 0; i < 256; i++) {
+            out.write(i);
+        }
+
+        out.flush();
+
+        InputStream in = s.getInputStream();
+
+        int bad = -1;
+
+        for (int i = 0; i < 256 && bad == -1; i++) {
+            if (in.read() != i) {
+                bad = i;
+            }
+        }
+
+        check(bad == -1, impl + ": single byte read returns all byte values"
+                + (bad == -1 ? "" : ", wrong value for " + bad));
+
+        c.close();
+        s.close();
+    }
+
+    private static void eof(String impl, VirtualSocketFactory f,
+            VirtualServerSocket ss) throws Exception {
+
+        VirtualSocket [] tmp = connect(f, ss);
+
+        VirtualSocket c = tmp[0];
+        VirtualSocket s = tmp[1];
+
+        // Data written before the close must still arrive.
+        c.getOutputStream().write(new byte [] { 1, 2, (byte) 200 });
+        c.getOutputStream().flush();
+        c.close();
+
+        byte [] b = new byte[10];
+        InputStream in = s.getInputStream();
+
+        int n = 0;
+        int r;
+
+        while ((r = in.read(b, n, b.length - n)) > 0) {
+            n += r;
+        }
+
+        check(n == 3 && b[2] == (byte) 200 && r == -1 && in.read(b) == -1
+                && in.read() == -1,
+                impl + ": data written before close arrives, then end of "
+                + "stream");
+
+        // The peer is gone, so writing must fail once the buffers are full
+        // or right away.
+        boolean threw = false;
+
+        try {
+            OutputStream out = s.getOutputStream();
+
+            for (int i = 0; i < 1000; i++) {
+                out.write(new byte[64*1024]);
+                out.flush();
+            }
+        } catch (IOException e) {
+            threw = true;
+        }
+
+        check(threw, impl + ": write to a closed peer fails");
+
+        s.close();
+
+        // Shutting down the output ends the stream of the peer, while the
+        // other direction keeps working.
+        tmp = connect(f, ss);
+
+        c = tmp[0];
+        s = tmp[1];
+
+        c.getOutputStream().write(7);
+        c.getOutputStream().flush();
+        c.shutdownOutput();
+
+        in = s.getInputStream();
+
+        boolean ok = in.read() == 7 && in.read() == -1 && in.read() == -1;
+
+        s.getOutputStream().write(8);
+        s.getOutputStream().flush();
+
+        check(ok && c.getInputStream().read() == 8,
+                impl + ": end of stream after shutdownOutput, other "
+                + "direction still works");
+
+        c.close();
+        s.close();
+
+        // A blocked reader must get end of stream when the peer closes.
+        tmp = connect(f, ss);
+
+        final VirtualSocket peer = tmp[0];
+        s = tmp[1];
+
+        new Thread() {
+            public void run() {
+                try {
+                    Thread.sleep(200);
+                    peer.close();
+                } catch (Exception e) {
+                    // ignored
+                }
+            }
+        }.start();
+
+        long start = System.currentTimeMillis();
+        int result = s.getInputStream().read();
+        long time = System.currentTimeMillis() - start;
+
+        check(result == -1 && time < 5000,
+                impl + ": blocked reader gets end of stream after " + time
+                + " ms");
+
+        s.close();
+    }
+
+    private static void timeout(String impl, VirtualSocketFactory f,
+            VirtualServerSocket ss) throws Exception {
+
+        VirtualSocket [] tmp = connect(f, ss);
+
+        VirtualSocket c = tmp[0];
+        VirtualSocket s = tmp[1];
+
+        s.setSoTimeout(200);
+
+        InputStream in = s.getInputStream();
+
+        String error = "no exception";
+        long start = System.currentTimeMillis();
+
+        try {
+            in.read();
+        } catch (SocketTimeoutException e) {
+            error = null;
+        } catch (IOException e) {
+            error = e.toString();
+        }
+
+        long time = System.currentTimeMillis() - start;
+
+        check(error == null && time >= 190 && time < 2000,
+                impl + ": read times out after " + time + " ms"
+                + (error == null ? "" : ": " + error));
+
+        c.getOutputStream().write(42);
+        c.getOutputStream().flush();
+
+        check(in.read() == 42, impl + ": connection still usable after "
+                + "timeout");
+
+        c.close();
+        s.close();
+    }
+
+    // Starts a second process that connects, writes 3 bytes and dies.
+    private static void death(String impl, VirtualServerSocket ss)
+        throws Exception {
+
+        String java = System.getProperty("java.home") + File.separator
+            + "bin" + File.separator + "java";
+
+        ProcessBuilder b = new ProcessBuilder(java, "-cp",
+                System.getProperty("java.class.path"),
+                UnixTest.class.getName(), "-impl", impl, "-child",
+                ss.getLocalSocketAddress().toString());
+
+        b.redirectErrorStream(true);
+
+        final Process p = b.start();
+
+        // Discard the output of the child.
+        new Thread() {
+            public void run() {
+                try {
+                    InputStream in = p.getInputStream();
+
+                    while (in.read() != -1) {
+                        // ignored
+                    }
+                } catch (IOException e) {
+                    // ignored
+                }
+            }
+        }.start();
+
+        ss.setSoTimeout(30000);
+
+        VirtualSocket s = ss.accept();
+
+        InputStream in = s.getInputStream();
+        byte [] buffer = new byte[10];
+
+        int n = 0;
+
+        while (n < 3) {
+            n += in.read(buffer, n, 3 - n);
+        }
+
+        p.waitFor();
+
+        // The data arrived before the child died. After that the reader
+        // must not block forever.
+        long start = System.currentTimeMillis();
+        boolean ended;
+
+        try {
+            ended = in.read() == -1;
+        } catch (IOException e) {
+            ended = true;
+        }
+
+        long time = System.currentTimeMillis() - start;
+
+        check(buffer[2] == 3 && ended && time < 5000,
+                impl + ": reader notices that the peer died after " + time
+                + " ms");
+
+        boolean threw = false;
+
+        try {
+            OutputStream out = s.getOutputStream();
+
+            for (int i = 0; i < 1000; i++) {
+                out.write(new byte[64*1024]);
+                out.flush();
+            }
+        } catch (IOException e) {
+            threw = true;
+        }
+
+        check(threw, impl + ": write to a dead peer fails");
+
+        s.close();
+    }
+
+    private static void child(String impl, String target) throws Exception {
+
+        VirtualSocketFactory f = createFactory(impl);
+
+        VirtualSocket s = f.createClientSocket(
+                new VirtualSocketAddress(target), 5000, null);
+
+        s.getOutputStream().write(new byte [] { 1, 2, 3 });
+        s.getOutputStream().flush();
+
+        // Die without closing anything.
+        Runtime.getRuntime().halt(0);
+    }
+
+    private static void test(String impl) {
+
+        VirtualSocketFactory serverFactory;
+        VirtualSocketFactory clientFactory;
+
+        try {
+            serverFactory = createFactory(impl);
+            clientFactory = createFactory(impl);
+        } catch (Exception e) {
+            System.out.println("SKIPPED " + impl + ": not available (" + e
+                    + ")");
+            return;
+        }
+
+        try {
+            VirtualServerSocket ss = serverFactory.createServerSocket(PORT,
+                    10, null);
+
+            System.out.println("Server at " + ss.getLocalSocketAddress()
+                    + " using " + impl);
+
+            data(impl, clientFactory, ss);
+            bytes(impl, clientFactory, ss);
+            eof(impl, clientFactory, ss);
+            timeout(impl, clientFactory, ss);
+            death(impl, ss);
+        } catch (Exception e) {
+            System.out.println("Test failed: " + e);
+            failed++;
+        }
+
+        clientFactory.end();
+        serverFactory.end();
+    }
+
+    public static void main(String [] args) throws Exception {
+
+        String impl = null;
+        String target = null;
+
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("-impl") && i < args.length-1) {
+                impl = args[++i];
+            } else if (args[i].equals("-size") && i < args.length-1) {
+                size = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("-child") && i < args.length-1) {
+                target = args[++i];
+            } else {
+                System.err.println("Unknown option: " + args[i]);
+                System.exit(1);
+            }
+        }
+
+        if (target != null) {
+            child(impl, target);
+            return;
+        }
+
+        if (impl == null) {
+            test("jdk");
+            test("juds");
+        } else {
+            test(impl);
+        }
+
+        System.exit(failed == 0 ? 0 : 1);
+    }
+}